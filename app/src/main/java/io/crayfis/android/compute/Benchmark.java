@@ -0,0 +1,234 @@
+package io.crayfis.android.compute;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import io.crayfis.android.ScriptC_l2Trigger;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Times the per-frame kernels of a backend (weighted histogram and L2 trigger) on synthetic
+ * 1080p YUV and RAW frames, including the copy to a Java array that the Java backend needs.
+ */
+final class Benchmark {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+    private static final int NPIX = 120;
+
+    private Benchmark() { }
+
+    /**
+     * Time a YUV and a RAW frame, since the format is not known until the camera is configured
+     *
+     * @return mean time per frame of both formats together, in ns
+     */
+    static long run(ComputeBackend backend, RenderScript rs) {
+        long yuv = run(backend, rs, false);
+        long raw = run(backend, rs, true);
+        CFLog.d(backend.getName() + " backend: YUV " + yuv/1000 + " us/frame, RAW " + raw/1000 + " us/frame");
+        return yuv + raw;
+    }
+
+    private static long run(ComputeBackend backend, RenderScript rs, boolean raw) {
+        // dark noise with occasional bright pixels
+        Random r = new Random(0);
+        Allocation buf;
+        if(raw) {
+            short[] pixels = new short[WIDTH * HEIGHT];
+            for(int i=0; i<pixels.length; i++) {
+                pixels[i] = (short) (r.nextInt(100) == 0 ? 80 + r.nextInt(800) : r.nextInt(16));
+            }
+            buf = Allocation.createTyped(rs, createType(rs, Element.U16(rs)), Allocation.USAGE_SCRIPT);
+            buf.copyFromUnchecked(pixels);
+        } else {
+            byte[] pixels = new byte[WIDTH * HEIGHT];
+            for(int i=0; i<pixels.length; i++) {
+                pixels[i] = (byte) (r.nextInt(100) == 0 ? 20 + r.nextInt(200) : r.nextInt(4));
+            }
+            buf = Allocation.createTyped(rs, createType(rs, Element.U8(rs)), Allocation.USAGE_SCRIPT);
+            buf.copyFrom(pixels);
+        }
+        Weights weights = createWeights(rs, createType(rs, Element.U8(rs)), r);
+        FrameInput input = new FrameInput(buf, raw);
+
+        ComputeBackend.Histogram histogram = backend.createHistogram(WIDTH, HEIGHT, raw);
+        ComputeBackend.Trigger trigger = backend.createTrigger(WIDTH, HEIGHT, weights, raw ? 40 : 10, NPIX, false);
+        int[] hist = new int[histogram.size()];
+        int[] idx = new int[NPIX];
+
+        try {
+            long start = 0;
+            for(int i=0; i<WARMUP + ITERATIONS; i++) {
+                if(i == WARMUP) start = System.nanoTime();
+                // a new frame, which has to be copied out again if the backend reads it in Java
+                input.reset();
+                histogram.apply(input, weights, hist);
+                trigger.apply(input, idx);
+            }
+            return (System.nanoTime() - start) / ITERATIONS;
+        } finally {
+            histogram.release();
+            trigger.release();
+            buf.destroy();
+            weights.allocation.destroy();
+        }
+    }
+
+    /**
+     * Compare the banded maxn trigger in l2Trigger.rs against the original shared-list kernel
+     * on a dense frame, where most pixels pass.  Logs the time per frame of each, and whether
+     * each agrees with the Java backend's exact result.
+     */
+    static void compareMaxN(RenderScript rs) {
+        // uniform noise: nearly every pixel is over threshold
+        Plane plane = Plane.ofBytes(WIDTH, HEIGHT);
+        Random r = new Random(1);
+        for(int i=0; i<plane.bytes.length; i++) {
+            plane.bytes[i] = (byte) r.nextInt(256);
+        }
+
+        Type type = createType(rs, Element.U8(rs));
+        Allocation buf = Allocation.createTyped(rs, type, Allocation.USAGE_SCRIPT);
+        buf.copyFrom(plane.bytes);
+        Weights weights = createWeights(rs, type, r);
+        ComputeBackend.Input input = new FrameInput(buf, false);
+
+        int[] expected = new int[NPIX];
+        ComputeBackend.Trigger exact = new JavaBackend().createTrigger(WIDTH, HEIGHT, weights, 10, NPIX, true);
+        exact.apply(input, expected);
+        exact.release();
+
+        // current kernel
+        ScriptC_l2Trigger legacy = new ScriptC_l2Trigger(rs);
+        Allocation aPixIdx = Allocation.createSized(rs, Element.U32(rs), NPIX, Allocation.USAGE_SCRIPT);
+        Allocation aPixVal = Allocation.createSized(rs, Element.U32(rs), NPIX, Allocation.USAGE_SCRIPT);
+        Allocation aPixN = Allocation.createSized(rs, Element.U32(rs), 1, Allocation.USAGE_SCRIPT);
+        legacy.invoke_set_L2Thresh(10);
+        legacy.set_gMaxN(true);
+        legacy.set_gNPixMax(NPIX);
+        legacy.set_gResX(WIDTH);
+        legacy.set_gWeights(weights.allocation);
+        legacy.bind_gPixIdx(aPixIdx);
+        legacy.bind_gPixVal(aPixVal);
+        legacy.bind_gPixN(aPixN);
+
+        int[] legacyIdx = new int[NPIX];
+        boolean legacyExact = true;
+        long start = 0;
+        for(int i=0; i<WARMUP + ITERATIONS; i++) {
+            if(i == WARMUP) start = System.nanoTime();
+            legacy.invoke_reset();
+            legacy.forEach_trigger_uchar(buf);
+            aPixIdx.copyTo(legacyIdx);
+            legacyExact &= Arrays.equals(legacyIdx, expected);
+        }
+        long legacyTime = (System.nanoTime() - start) / ITERATIONS;
+
+        legacy.destroy();
+        aPixIdx.destroy();
+        aPixVal.destroy();
+        aPixN.destroy();
+
+        // banded kernel
+        ComputeBackend.Trigger banded = new RSBackend(rs).createTrigger(WIDTH, HEIGHT, weights, 10, NPIX, true);
+        int[] bandedIdx = new int[NPIX];
+        boolean bandedExact = true;
+        for(int i=0; i<WARMUP + ITERATIONS; i++) {
+            if(i == WARMUP) start = System.nanoTime();
+            int n = banded.apply(input, bandedIdx);
+            bandedExact &= n == NPIX && Arrays.equals(bandedIdx, expected);
+        }
+        long bandedTime = (System.nanoTime() - start) / ITERATIONS;
+
+        banded.release();
+        buf.destroy();
+        weights.allocation.destroy();
+
+        CFLog.i("maxn trigger, npix = " + NPIX + ": shared list " + legacyTime/1000 + " us/frame"
+                + (legacyExact ? "" : " (inexact)") + ", banded " + bandedTime/1000 + " us/frame"
+                + (bandedExact ? "" : " (inexact)"));
+    }
+
+    /**
+     * Random weights in [200, 255], as from a mild vignette
+     */
+    private static Weights createWeights(RenderScript rs, Type type, Random r) {
+        byte[] wgt = new byte[WIDTH * HEIGHT];
+        for(int i=0; i<wgt.length; i++) {
+            wgt[i] = (byte) (200 + r.nextInt(56));
+        }
+        Allocation wgtAlloc = Allocation.createTyped(rs, type, Allocation.USAGE_SCRIPT);
+        wgtAlloc.copyFrom(wgt);
+        return new Weights(WIDTH, HEIGHT, wgtAlloc, wgt);
+    }
+
+    private static Type createType(RenderScript rs, Element element) {
+        return new Type.Builder(rs, element)
+                .setX(WIDTH)
+                .setY(HEIGHT)
+                .create();
+    }
+
+    /**
+     * Input which copies the Allocation to a Java array the first time it is read, as
+     * Frame.getPlane() does
+     */
+    private static final class FrameInput implements ComputeBackend.Input {
+
+        private final Allocation mBuf;
+        private final boolean mRaw;
+        private final Plane mPlane;
+        private boolean mCopied;
+
+        FrameInput(Allocation buf, boolean raw) {
+            mBuf = buf;
+            mRaw = raw;
+            mPlane = raw ? Plane.ofShorts(WIDTH, HEIGHT) : Plane.ofBytes(WIDTH, HEIGHT);
+        }
+
+        void reset() {
+            mCopied = false;
+        }
+
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public boolean isRAW() {
+            return mRaw;
+        }
+
+        @Override
+        public Allocation getAllocation() {
+            return mBuf;
+        }
+
+        @Override
+        public Plane getPlane() {
+            if(!mCopied) {
+                if(mRaw) {
+                    mBuf.copyTo(mPlane.shorts);
+                } else {
+                    mBuf.copyTo(mPlane.bytes);
+                }
+                mCopied = true;
+            }
+            return mPlane;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io.crayfis.android.compute;
+
+import android.renderscript.Allocation;
+import android.renderscript.RenderScript;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import io.crayfis.android.BuildConfig;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Pixel kernels used by the triggers and precalibration.  Each operation is created per
+ * task, since most of them keep state (e.g. running sums) between frames.
+ *
+ * The backend is chosen once per run by {@link #select(RenderScript)}, which times the
+ * implementations on a synthetic frame and keeps whichever is fastest on this device.
+ */
+public abstract class ComputeBackend {
+
+    /**
+     * Source of pixel data for a kernel, usually a Frame.
+     */
+    public interface Input {
+        int getWidth();
+        int getHeight();
+        boolean isRAW();
+
+        /**
+         * @return the pixels as a RenderScript Allocation, of type U16 for RAW and U8 for YUV
+         */
+        Allocation getAllocation();
+
+        /**
+         * @return the pixels as a Java array
+         */
+        Plane getPlane();
+    }
+
+    /**
+     * Threshold trigger on weighted pixels: a pixel passes if val * wgt is at least
+     * (thresh + 1) * 255 - 127, i.e. if its weighted value would round up past thresh.
+     */
+    public interface Trigger {
+        /**
+         * Find the passing pixels.  If more than npix pass, in maxn mode this returns the npix
+         * largest weighted values and otherwise an arbitrary subset.  The maxn result is exact:
+         * entries are sorted by descending value, with ties going to the lower index, and only
+         * values strictly above the threshold are kept.
+         *
+         * @param input Frame
+         * @param idx Array of length npix to fill with x + width * y
+         * @return the number of entries written to idx
+         */
+        int apply(Input input, int[] idx);
+        void release();
+    }
+
+    /**
+     * Histogram of (weighted) pixel values
+     */
+    public interface Histogram {
+        /**
+         * @param input Frame
+         * @param weights Weights to apply, or null
+         * @param hist Array of length size() to fill
+         */
+        void apply(Input input, @Nullable Weights weights, int[] hist);
+        int size();
+        void release();
+    }
+
+    /**
+     * Element-wise running sum over frames
+     */
+    public interface RunningSum {
+        void add(Input input);
+
+        /**
+         * Mark a pixel to be ignored in tileMeans().  Should only be called after the last add().
+         */
+        void exclude(int x, int y);
+
+        /**
+         * Find the average sum for each step x step tile
+         *
+         * @param step Side length of tiles
+         * @param fudge Value added to the total sum of each tile before dividing by the number of
+         *              pixels
+         * @param means Array of length (width / step) * (height / step)
+         */
+        void tileMeans(int step, float fudge, float[] means);
+        void release();
+    }
+
+    /**
+     * Running largest and second-largest value for each pixel, truncated to 8 bits
+     */
+    public interface SecondMax {
+        void add(Input input);
+        void histogramSecond(int[] hist);
+        void copyMax(byte[] max);
+        void copySecond(byte[] second);
+        void release();
+    }
+
+    static final int OFFSET_BYTE = 127; // 0.5 * 255: the camera is presumed to round down
+    static final int MAX_BYTE = 255;
+
+    private static volatile ComputeBackend sInstance;
+
+    /**
+     * Get the current backend.  This is RenderScript until {@link #select(RenderScript)}
+     * has finished.
+     *
+     * @param rs RenderScript context
+     * @return ComputeBackend
+     */
+    @NonNull
+    public static ComputeBackend get(@NonNull RenderScript rs) {
+        ComputeBackend backend = sInstance;
+        if(backend == null) {
+            synchronized (ComputeBackend.class) {
+                if(sInstance == null) {
+                    sInstance = new RSBackend(rs);
+                }
+                backend = sInstance;
+            }
+        }
+        return backend;
+    }
+
+    /**
+     * Run a micro-benchmark on each backend and keep the fastest.  This takes a few hundred
+     * ms, so it should not be run on the main thread.
+     *
+     * @param rs RenderScript context
+     */
+    public static void select(@NonNull RenderScript rs) {
+        ComputeBackend[] candidates = new ComputeBackend[] {
+                new RSBackend(rs),
+                new JavaBackend()
+        };
+
+        ComputeBackend best = null;
+        long bestTime = Long.MAX_VALUE;
+        for(ComputeBackend backend : candidates) {
+            long t;
+            try {
+                t = Benchmark.run(backend, rs);
+            } catch (RuntimeException e) {
+                CFLog.w(backend.getName() + " backend failed benchmark: " + e.getMessage());
+                continue;
+            }
+            CFLog.i(backend.getName() + " backend: " + t/1000 + " us/frame");
+            if(t < bestTime) {
+                bestTime = t;
+                best = backend;
+            }
+        }
+
+        if(best != null) {
+            CFLog.i("Using " + best.getName() + " compute backend");
+            sInstance = best;
+        }
+
+        if(BuildConfig.DEBUG) {
+            Benchmark.compareMaxN(rs);
+        }
+    }
+
+    public abstract String getName();
+
+    public abstract Trigger createTrigger(int width, int height, @Nullable Weights weights,
+                                          int thresh, int npix, boolean maxn);
+
+    public abstract Histogram createHistogram(int width, int height, boolean raw);
+
+    public abstract RunningSum createRunningSum(int width, int height);
+
+    public abstract SecondMax createSecondMax(int width, int height);
+
+    /**
+     * Weighted pixel value, rounded, as used by the histograms
+     */
+    static int weigh(int val, int wgt) {
+        return (val * wgt + OFFSET_BYTE) / MAX_BYTE;
+    }
+
+    /**
+     * Minimum product val * wgt for a pixel to pass the trigger
+     */
+    static int triggerThreshold(int thresh) {
+        return (thresh + 1) * MAX_BYTE - OFFSET_BYTE;
+    }
+}
@@ -0,0 +1,440 @@
+package io.crayfis.android.compute;
+
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pure-Java backend, which splits each frame into bands of rows and processes them on a
+ * ForkJoinPool.  All per-band scratch space is allocated when the operation is created, so the
+ * inner loops do not allocate.
+ */
+class JavaBackend extends ComputeBackend {
+
+    private final ForkJoinPool mPool;
+    private final int mNTiles;
+
+    JavaBackend() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    JavaBackend(int nThreads) {
+        mPool = new ForkJoinPool(nThreads);
+        // a few bands per thread, so that work stealing can even out the load
+        mNTiles = 4 * nThreads;
+    }
+
+    @Override
+    public String getName() {
+        return "Java";
+    }
+
+    @Override
+    public Trigger createTrigger(int width, int height, @Nullable Weights weights,
+                                 int thresh, int npix, boolean maxn) {
+        return new JavaTrigger(height, weights, thresh, npix, maxn);
+    }
+
+    @Override
+    public Histogram createHistogram(int width, int height, boolean raw) {
+        return new JavaHistogram(height, raw ? 1024 : 256);
+    }
+
+    @Override
+    public RunningSum createRunningSum(int width, int height) {
+        return new JavaRunningSum(width, height);
+    }
+
+    @Override
+    public SecondMax createSecondMax(int width, int height) {
+        return new JavaSecondMax(width, height);
+    }
+
+    /**
+     * Work done on rows [y0, y1) of a frame
+     */
+    private interface BandKernel {
+        void run(int tile, int y0, int y1);
+    }
+
+    private static final class BandAction extends RecursiveAction {
+        private final BandKernel mKernel;
+        private final int mRows;
+        private final int mTiles;
+        private final int mLo;
+        private final int mHi;
+
+        BandAction(BandKernel kernel, int rows, int tiles, int lo, int hi) {
+            mKernel = kernel;
+            mRows = rows;
+            mTiles = tiles;
+            mLo = lo;
+            mHi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if(mHi - mLo == 1) {
+                int y0 = (int) ((long) mLo * mRows / mTiles);
+                int y1 = (int) ((long) mHi * mRows / mTiles);
+                mKernel.run(mLo, y0, y1);
+            } else {
+                int mid = (mLo + mHi) >>> 1;
+                invokeAll(new BandAction(mKernel, mRows, mTiles, mLo, mid),
+                        new BandAction(mKernel, mRows, mTiles, mid, mHi));
+            }
+        }
+    }
+
+    private int tilesFor(int rows) {
+        return Math.max(1, Math.min(mNTiles, rows));
+    }
+
+    private void forEachBand(int rows, int tiles, BandKernel kernel) {
+        mPool.invoke(new BandAction(kernel, rows, tiles, 0, tiles));
+    }
+
+    private class JavaTrigger implements Trigger, BandKernel {
+
+        private final Weights mWeights;
+        private final int mThresh;
+        private final int mNPix;
+        private final boolean mMaxN;
+        private final int mTiles;
+
+        // per-band results: sorted by descending value, then ascending index, in maxn mode
+        private final int[][] mTileIdx;
+        private final int[][] mTileVal;
+        private final int[] mTileN;
+        private final int[] mCursor;
+
+        private Plane mPlane;
+
+        JavaTrigger(int height, @Nullable Weights weights, int thresh, int npix, boolean maxn) {
+            mWeights = weights;
+            mThresh = triggerThreshold(thresh);
+            mNPix = npix;
+            mMaxN = maxn;
+            mTiles = tilesFor(height);
+            mTileIdx = new int[mTiles][npix];
+            mTileVal = new int[mTiles][npix];
+            mTileN = new int[mTiles];
+            mCursor = new int[mTiles];
+        }
+
+        @Override
+        public synchronized int apply(Input input, int[] idx) {
+            mPlane = input.getPlane();
+            forEachBand(mPlane.height, mTiles, this);
+            mPlane = null;
+
+            return mMaxN ? mergeTopN(idx) : concat(idx);
+        }
+
+        @Override
+        public void run(int tile, int y0, int y1) {
+            final Plane plane = mPlane;
+            final byte[] wgts = mWeights != null ? mWeights.plane : null;
+            final int[] tileIdx = mTileIdx[tile];
+            final int[] tileVal = mTileVal[tile];
+            final int start = y0 * plane.width;
+            final int end = y1 * plane.width;
+            int n = 0;
+
+            for(int i=start; i<end; i++) {
+                int wgt = wgts != null ? wgts[i] & 0xFF : MAX_BYTE;
+                int adjusted = plane.get(i) * wgt;
+
+                if(!mMaxN) {
+                    if(adjusted >= mThresh) {
+                        tileIdx[n++] = i;
+                        if(n == mNPix) break;
+                    }
+                } else if(adjusted > mThresh && (n < mNPix || adjusted > tileVal[n-1])) {
+                    // insertion into a short sorted list; later indices lose ties
+                    int j = n < mNPix ? n++ : n-1;
+                    while(j > 0 && tileVal[j-1] < adjusted) {
+                        tileVal[j] = tileVal[j-1];
+                        tileIdx[j] = tileIdx[j-1];
+                        j--;
+                    }
+                    tileVal[j] = adjusted;
+                    tileIdx[j] = i;
+                }
+            }
+            mTileN[tile] = n;
+        }
+
+        private int concat(int[] idx) {
+            int n = 0;
+            for(int t=0; t<mTiles && n<mNPix; t++) {
+                int len = Math.min(mTileN[t], mNPix - n);
+                System.arraycopy(mTileIdx[t], 0, idx, n, len);
+                n += len;
+            }
+            return n;
+        }
+
+        private int mergeTopN(int[] idx) {
+            for(int t=0; t<mTiles; t++) {
+                mCursor[t] = 0;
+            }
+            int n = 0;
+            while(n < mNPix) {
+                int best = -1;
+                for(int t=0; t<mTiles; t++) {
+                    if(mCursor[t] >= mTileN[t]) continue;
+                    // bands are in index order, so the earlier band wins ties
+                    if(best < 0 || mTileVal[t][mCursor[t]] > mTileVal[best][mCursor[best]]) {
+                        best = t;
+                    }
+                }
+                if(best < 0) break;
+                idx[n++] = mTileIdx[best][mCursor[best]++];
+            }
+            return n;
+        }
+
+        @Override
+        public void release() { }
+    }
+
+    private class JavaHistogram implements Histogram, BandKernel {
+
+        private final int mSize;
+        private final int mTiles;
+        private final int[][] mTileHist;
+
+        private Plane mPlane;
+        private Weights mWeights;
+
+        JavaHistogram(int height, int size) {
+            mSize = size;
+            mTiles = tilesFor(height);
+            mTileHist = new int[mTiles][size];
+        }
+
+        @Override
+        public synchronized void apply(Input input, @Nullable Weights weights, int[] hist) {
+            mPlane = input.getPlane();
+            mWeights = weights;
+            forEachBand(mPlane.height, mTiles, this);
+            mPlane = null;
+            mWeights = null;
+
+            for(int v=0; v<mSize; v++) {
+                int sum = 0;
+                for(int t=0; t<mTiles; t++) {
+                    sum += mTileHist[t][v];
+                }
+                hist[v] = sum;
+            }
+        }
+
+        @Override
+        public void run(int tile, int y0, int y1) {
+            final Plane plane = mPlane;
+            final byte[] wgts = mWeights != null ? mWeights.plane : null;
+            final int[] hist = mTileHist[tile];
+            final int max = mSize - 1;
+            final int start = y0 * plane.width;
+            final int end = y1 * plane.width;
+
+            for(int v=0; v<mSize; v++) {
+                hist[v] = 0;
+            }
+
+            if(wgts == null) {
+                for(int i=start; i<end; i++) {
+                    hist[Math.min(plane.get(i), max)]++;
+                }
+            } else {
+                for(int i=start; i<end; i++) {
+                    hist[Math.min(weigh(plane.get(i), wgts[i] & 0xFF), max)]++;
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public void release() { }
+    }
+
+    private class JavaRunningSum implements RunningSum {
+
+        private final int mWidth;
+        private final int mHeight;
+        private final int mTiles;
+        private final int[] mSums;
+
+        private Plane mPlane;
+
+        private final BandKernel mAdd = new BandKernel() {
+            @Override
+            public void run(int tile, int y0, int y1) {
+                final Plane plane = mPlane;
+                final int[] sums = mSums;
+                final int start = y0 * mWidth;
+                final int end = y1 * mWidth;
+                if(plane.shorts != null) {
+                    final short[] px = plane.shorts;
+                    for(int i=start; i<end; i++) {
+                        sums[i] += px[i] & 0xFFFF;
+                    }
+                } else {
+                    final byte[] px = plane.bytes;
+                    for(int i=start; i<end; i++) {
+                        sums[i] += px[i] & 0xFF;
+                    }
+                }
+            }
+        };
+
+        JavaRunningSum(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mTiles = tilesFor(height);
+            mSums = new int[width * height];
+        }
+
+        @Override
+        public synchronized void add(Input input) {
+            mPlane = input.getPlane();
+            forEachBand(mHeight, mTiles, mAdd);
+            mPlane = null;
+        }
+
+        @Override
+        public synchronized void exclude(int x, int y) {
+            mSums[x + mWidth * y] = -1;
+        }
+
+        @Override
+        public synchronized void tileMeans(final int step, final float fudge, final float[] means) {
+            final int outX = mWidth / step;
+            final int outY = mHeight / step;
+            forEachBand(outY, tilesFor(outY), new BandKernel() {
+                @Override
+                public void run(int tile, int y0, int y1) {
+                    for(int ty=y0; ty<y1; ty++) {
+                        for(int tx=0; tx<outX; tx++) {
+                            long sum = 0;
+                            int count = 0;
+                            for(int iy=ty*step; iy<(ty+1)*step; iy++) {
+                                int row = iy * mWidth;
+                                for(int ix=tx*step; ix<(tx+1)*step; ix++) {
+                                    int s = mSums[row + ix];
+                                    // skip over excluded pixels
+                                    if(s >= 0) {
+                                        sum += s;
+                                        count++;
+                                    }
+                                }
+                            }
+                            means[tx + outX * ty] = count > 0 ? (float) ((sum + (double) fudge) / count) : 0;
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void release() { }
+    }
+
+    private class JavaSecondMax implements SecondMax {
+
+        private final int mWidth;
+        private final int mHeight;
+        private final int mTiles;
+        private final byte[] mMax;
+        private final byte[] mSecond;
+        private final int[][] mTileHist;
+
+        private Plane mPlane;
+
+        private final BandKernel mAdd = new BandKernel() {
+            @Override
+            public void run(int tile, int y0, int y1) {
+                final Plane plane = mPlane;
+                final byte[] max = mMax;
+                final byte[] second = mSecond;
+                final int start = y0 * mWidth;
+                final int end = y1 * mWidth;
+                for(int i=start; i<end; i++) {
+                    int in = Math.min(plane.get(i), MAX_BYTE);
+                    int two = second[i] & 0xFF;
+                    if(in > two) {
+                        int one = max[i] & 0xFF;
+                        if(in > one) {
+                            second[i] = (byte) one;
+                            max[i] = (byte) in;
+                        } else {
+                            second[i] = (byte) in;
+                        }
+                    }
+                }
+            }
+        };
+
+        private final BandKernel mHist = new BandKernel() {
+            @Override
+            public void run(int tile, int y0, int y1) {
+                final int[] hist = mTileHist[tile];
+                final byte[] second = mSecond;
+                for(int v=0; v<hist.length; v++) {
+                    hist[v] = 0;
+                }
+                for(int i=y0*mWidth; i<y1*mWidth; i++) {
+                    hist[second[i] & 0xFF]++;
+                }
+            }
+        };
+
+        JavaSecondMax(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mTiles = tilesFor(height);
+            mMax = new byte[width * height];
+            mSecond = new byte[width * height];
+            mTileHist = new int[mTiles][256];
+        }
+
+        @Override
+        public synchronized void add(Input input) {
+            mPlane = input.getPlane();
+            forEachBand(mHeight, mTiles, mAdd);
+            mPlane = null;
+        }
+
+        @Override
+        public synchronized void histogramSecond(int[] hist) {
+            forEachBand(mHeight, mTiles, mHist);
+            for(int v=0; v<256; v++) {
+                int sum = 0;
+                for(int t=0; t<mTiles; t++) {
+                    sum += mTileHist[t][v];
+                }
+                hist[v] = sum;
+            }
+        }
+
+        @Override
+        public synchronized void copyMax(byte[] max) {
+            System.arraycopy(mMax, 0, max, 0, mMax.length);
+        }
+
+        @Override
+        public synchronized void copySecond(byte[] second) {
+            System.arraycopy(mSecond, 0, second, 0, mSecond.length);
+        }
+
+        @Override
+        public void release() { }
+    }
+}
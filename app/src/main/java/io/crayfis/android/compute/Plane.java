@@ -0,0 +1,44 @@
+package io.crayfis.android.compute;
+
+/**
+ * Pixel values of a single frame, held in a Java array for the {@link JavaBackend}.  RAW frames
+ * use 16-bit values and YUV frames use the 8-bit Y channel.
+ */
+public final class Plane {
+
+    public final int width;
+    public final int height;
+
+    // exactly one of these is non-null
+    public final short[] shorts;
+    public final byte[] bytes;
+
+    private Plane(int width, int height, short[] shorts, byte[] bytes) {
+        this.width = width;
+        this.height = height;
+        this.shorts = shorts;
+        this.bytes = bytes;
+    }
+
+    public static Plane ofShorts(int width, int height) {
+        return new Plane(width, height, new short[width * height], null);
+    }
+
+    public static Plane ofBytes(int width, int height) {
+        return new Plane(width, height, null, new byte[width * height]);
+    }
+
+    public boolean isRAW() {
+        return shorts != null;
+    }
+
+    /**
+     * Unsigned value of the pixel at the given index
+     *
+     * @param i x + width * y
+     * @return int
+     */
+    public int get(int i) {
+        return shorts != null ? shorts[i] & 0xFFFF : bytes[i] & 0xFF;
+    }
+}
@@ -0,0 +1,380 @@
+package io.crayfis.android.compute;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.ScriptIntrinsicHistogram;
+import android.renderscript.Type;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+import io.crayfis.android.ScriptC_findSecond;
+import io.crayfis.android.ScriptC_histogramRAW;
+import io.crayfis.android.ScriptC_l2Trigger;
+import io.crayfis.android.ScriptC_sumFrames;
+import io.crayfis.android.ScriptC_yuv;
+
+/**
+ * Backend using the RenderScript kernels in src/main/rs
+ */
+class RSBackend extends ComputeBackend {
+
+    private final RenderScript RS;
+
+    RSBackend(RenderScript rs) {
+        RS = rs;
+    }
+
+    @Override
+    public String getName() {
+        return "RenderScript";
+    }
+
+    private Allocation createU8(int width, int height) {
+        Type type = new Type.Builder(RS, Element.U8(RS))
+                .setX(width)
+                .setY(height)
+                .create();
+        return Allocation.createTyped(RS, type, Allocation.USAGE_SCRIPT);
+    }
+
+    private static Allocation allocationOf(Weights weights) {
+        if(weights.allocation == null) {
+            throw new IllegalArgumentException("Weights have no Allocation");
+        }
+        return weights.allocation;
+    }
+
+    @Override
+    public Trigger createTrigger(int width, int height, @Nullable Weights weights,
+                                 int thresh, int npix, boolean maxn) {
+        return new RSTrigger(width, height, weights, thresh, npix, maxn);
+    }
+
+    @Override
+    public Histogram createHistogram(int width, int height, boolean raw) {
+        return raw ? new RSHistogramRAW() : new RSHistogramYUV(width, height);
+    }
+
+    @Override
+    public RunningSum createRunningSum(int width, int height) {
+        return new RSRunningSum(width, height);
+    }
+
+    @Override
+    public SecondMax createSecondMax(int width, int height) {
+        return new RSSecondMax(width, height);
+    }
+
+    private class RSTrigger implements Trigger {
+
+        // rows per band in maxn mode: enough bands to keep every core busy, while
+        // keeping the merge short
+        private static final int BAND_ROWS = 8;
+
+        private final ScriptC_l2Trigger mTrigger;
+        private final int mNPix;
+        private final boolean mMaxN;
+        private final Allocation aPixIdx;
+        private final Allocation aPixVal;
+        private final Allocation aPixN;
+        private final Allocation aUnweighted;
+        private final int[] mPixN = new int[1];
+
+        // per-band lists for maxn mode
+        private final Allocation aBandIdx;
+        private final Allocation aBandVal;
+        private final Allocation aBandN;
+        private final Allocation aCursor;
+
+        RSTrigger(int width, int height, @Nullable Weights weights, int thresh, int npix, boolean maxn) {
+            mNPix = npix;
+            mMaxN = maxn;
+            mTrigger = new ScriptC_l2Trigger(RS);
+            aPixIdx = Allocation.createSized(RS, Element.U32(RS), npix, Allocation.USAGE_SCRIPT);
+            aPixVal = Allocation.createSized(RS, Element.U32(RS), npix, Allocation.USAGE_SCRIPT);
+            aPixN = Allocation.createSized(RS, Element.U32(RS), 1, Allocation.USAGE_SCRIPT);
+
+            if(weights != null) {
+                aUnweighted = null;
+                mTrigger.set_gWeights(allocationOf(weights));
+            } else {
+                byte[] ones = new byte[width * height];
+                Arrays.fill(ones, (byte) MAX_BYTE);
+                aUnweighted = createU8(width, height);
+                aUnweighted.copyFrom(ones);
+                mTrigger.set_gWeights(aUnweighted);
+            }
+
+            mTrigger.invoke_set_L2Thresh(thresh);
+            mTrigger.set_gMaxN(false);
+            mTrigger.set_gNPixMax(npix);
+            mTrigger.set_gResX(width);
+            mTrigger.set_gResY(height);
+            mTrigger.bind_gPixIdx(aPixIdx);
+            mTrigger.bind_gPixVal(aPixVal);
+            mTrigger.bind_gPixN(aPixN);
+
+            if(maxn) {
+                int nBands = (height + BAND_ROWS - 1) / BAND_ROWS;
+                aBandIdx = Allocation.createSized(RS, Element.U32(RS), nBands * npix, Allocation.USAGE_SCRIPT);
+                aBandVal = Allocation.createSized(RS, Element.U32(RS), nBands * npix, Allocation.USAGE_SCRIPT);
+                aBandN = Allocation.createSized(RS, Element.U32(RS), nBands, Allocation.USAGE_SCRIPT);
+                aCursor = Allocation.createSized(RS, Element.U32(RS), nBands, Allocation.USAGE_SCRIPT);
+                mTrigger.set_gBandRows(BAND_ROWS);
+                mTrigger.set_gNBands(nBands);
+                mTrigger.bind_gBandIdx(aBandIdx);
+                mTrigger.bind_gBandVal(aBandVal);
+                mTrigger.bind_gBandN(aBandN);
+                mTrigger.bind_gCursor(aCursor);
+            } else {
+                aBandIdx = null;
+                aBandVal = null;
+                aBandN = null;
+                aCursor = null;
+            }
+
+            // make sure pixN is initialized to 0
+            mTrigger.invoke_reset();
+        }
+
+        @Override
+        public synchronized int apply(Input input, int[] idx) {
+            Allocation buf = input.getAllocation();
+            if(mMaxN) {
+                mTrigger.set_gIn(buf);
+                if (input.isRAW()) {
+                    mTrigger.forEach_band_maxn_ushort(aBandN);
+                } else {
+                    mTrigger.forEach_band_maxn_uchar(aBandN);
+                }
+                mTrigger.invoke_merge_maxn();
+            } else if (input.isRAW()) {
+                mTrigger.forEach_trigger_ushort(buf);
+            } else {
+                mTrigger.forEach_trigger_uchar(buf);
+            }
+
+            // in default mode, the count keeps going past npix even though no more are stored
+            aPixN.copyTo(mPixN);
+            int n = Math.min(mPixN[0], mNPix);
+            if(n > 0) {
+                aPixIdx.copy1DRangeTo(0, n, idx);
+            }
+
+            mTrigger.invoke_reset();
+            return n;
+        }
+
+        @Override
+        public synchronized void release() {
+            mTrigger.destroy();
+            aPixIdx.destroy();
+            aPixVal.destroy();
+            aPixN.destroy();
+            if(aUnweighted != null) {
+                aUnweighted.destroy();
+            }
+            if(mMaxN) {
+                aBandIdx.destroy();
+                aBandVal.destroy();
+                aBandN.destroy();
+                aCursor.destroy();
+            }
+        }
+    }
+
+    private class RSHistogramRAW implements Histogram {
+
+        private static final int SIZE = 1024;
+
+        private final ScriptC_histogramRAW mScriptCHist;
+        private final Allocation aHist;
+
+        RSHistogramRAW() {
+            mScriptCHist = new ScriptC_histogramRAW(RS);
+            aHist = Allocation.createSized(RS, Element.U32(RS), SIZE, Allocation.USAGE_SCRIPT);
+            mScriptCHist.bind_ahist(aHist);
+        }
+
+        @Override
+        public synchronized void apply(Input input, @Nullable Weights weights, int[] hist) {
+            mScriptCHist.invoke_clear();
+            if(weights != null) {
+                mScriptCHist.forEach_histogram_weighted(input.getAllocation(), allocationOf(weights));
+            } else {
+                mScriptCHist.forEach_histogram_unweighted(input.getAllocation());
+            }
+            aHist.copyTo(hist);
+        }
+
+        @Override
+        public int size() {
+            return SIZE;
+        }
+
+        @Override
+        public synchronized void release() {
+            mScriptCHist.destroy();
+            aHist.destroy();
+        }
+    }
+
+    private class RSHistogramYUV implements Histogram {
+
+        private static final int SIZE = 256;
+
+        private final ScriptC_yuv mScriptCYuv;
+        private final ScriptIntrinsicHistogram mScriptIntrinsicHistogram;
+        private final Allocation aWeighted;
+        private final Allocation aHist;
+
+        RSHistogramYUV(int width, int height) {
+            mScriptCYuv = new ScriptC_yuv(RS);
+            mScriptIntrinsicHistogram = ScriptIntrinsicHistogram.create(RS, Element.U8(RS));
+            aWeighted = createU8(width, height);
+            aHist = Allocation.createSized(RS, Element.U32(RS), SIZE, Allocation.USAGE_SCRIPT);
+            mScriptIntrinsicHistogram.setOutput(aHist);
+        }
+
+        @Override
+        public synchronized void apply(Input input, @Nullable Weights weights, int[] hist) {
+            if(weights != null) {
+                mScriptCYuv.forEach_weightYUV(input.getAllocation(), allocationOf(weights), aWeighted);
+                mScriptIntrinsicHistogram.forEach(aWeighted);
+            } else {
+                mScriptIntrinsicHistogram.forEach(input.getAllocation());
+            }
+            aHist.copyTo(hist);
+        }
+
+        @Override
+        public int size() {
+            return SIZE;
+        }
+
+        @Override
+        public synchronized void release() {
+            mScriptCYuv.destroy();
+            mScriptIntrinsicHistogram.destroy();
+            aWeighted.destroy();
+            aHist.destroy();
+        }
+    }
+
+    private class RSRunningSum implements RunningSum {
+
+        private final ScriptC_sumFrames mScriptCSumFrames;
+        private final Allocation aSum;
+        private final int mWidth;
+        private final int mHeight;
+
+        private Allocation aTileMeans;
+        private int mStep;
+
+        RSRunningSum(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            mScriptCSumFrames = new ScriptC_sumFrames(RS);
+            Type type = new Type.Builder(RS, Element.I32(RS))
+                    .setX(width)
+                    .setY(height)
+                    .create();
+            aSum = Allocation.createTyped(RS, type, Allocation.USAGE_SCRIPT);
+            mScriptCSumFrames.set_gSum(aSum);
+        }
+
+        @Override
+        public synchronized void add(Input input) {
+            if(input.isRAW())
+                mScriptCSumFrames.forEach_update_ushort(input.getAllocation());
+            else
+                mScriptCSumFrames.forEach_update_uchar(input.getAllocation());
+        }
+
+        @Override
+        public synchronized void exclude(int x, int y) {
+            mScriptCSumFrames.invoke_killHotcell(x, y);
+        }
+
+        @Override
+        public synchronized void tileMeans(int step, float fudge, float[] means) {
+            if(aTileMeans == null || step != mStep) {
+                if(aTileMeans != null) aTileMeans.destroy();
+                Type type = new Type.Builder(RS, Element.F32(RS))
+                        .setX(mWidth / step)
+                        .setY(mHeight / step)
+                        .create();
+                aTileMeans = Allocation.createTyped(RS, type, Allocation.USAGE_SCRIPT);
+                mStep = step;
+            }
+            mScriptCSumFrames.set_sampleStep(step);
+            mScriptCSumFrames.set_gTileFudge(fudge);
+            mScriptCSumFrames.forEach_tileSums(aTileMeans);
+            aTileMeans.copyTo(means);
+        }
+
+        @Override
+        public synchronized void release() {
+            mScriptCSumFrames.destroy();
+            aSum.destroy();
+            if(aTileMeans != null) aTileMeans.destroy();
+        }
+    }
+
+    private class RSSecondMax implements SecondMax {
+
+        private final ScriptC_findSecond mScriptCFindSecond;
+        private final ScriptIntrinsicHistogram mHistogram;
+        private final Allocation aMax;
+        private final Allocation aSecond;
+        private final Allocation aHist;
+
+        RSSecondMax(int width, int height) {
+            mScriptCFindSecond = new ScriptC_findSecond(RS);
+            aMax = createU8(width, height);
+            aSecond = createU8(width, height);
+            mScriptCFindSecond.set_aMax(aMax);
+            mScriptCFindSecond.set_aSecond(aSecond);
+
+            mHistogram = ScriptIntrinsicHistogram.create(RS, Element.U8(RS));
+            aHist = Allocation.createSized(RS, Element.U32(RS), 256, Allocation.USAGE_SCRIPT);
+            mHistogram.setOutput(aHist);
+        }
+
+        @Override
+        public synchronized void add(Input input) {
+            if(input.isRAW())
+                mScriptCFindSecond.forEach_order_ushort(input.getAllocation());
+            else
+                mScriptCFindSecond.forEach_order_uchar(input.getAllocation());
+        }
+
+        @Override
+        public synchronized void histogramSecond(int[] hist) {
+            mHistogram.forEach(aSecond);
+            aHist.copyTo(hist);
+        }
+
+        @Override
+        public synchronized void copyMax(byte[] max) {
+            aMax.copyTo(max);
+        }
+
+        @Override
+        public synchronized void copySecond(byte[] second) {
+            aSecond.copyTo(second);
+        }
+
+        @Override
+        public synchronized void release() {
+            mScriptCFindSecond.destroy();
+            mHistogram.destroy();
+            aMax.destroy();
+            aSecond.destroy();
+            aHist.destroy();
+        }
+    }
+}
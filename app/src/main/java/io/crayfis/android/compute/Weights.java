@@ -0,0 +1,37 @@
+package io.crayfis.android.compute;
+
+import android.renderscript.Allocation;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Read-only per-pixel weights, in [0, 255], shared between ExposureBlocks.  These are kept both
+ * as an Allocation for RenderScript and as a byte[] for the {@link JavaBackend}.
+ */
+public final class Weights {
+
+    public final int width;
+    public final int height;
+    // null for weights which are only used by the JavaBackend
+    @Nullable
+    public final Allocation allocation;
+    public final byte[] plane;
+
+    public Weights(int width, int height, @NonNull Allocation allocation, @NonNull byte[] plane) {
+        this.width = width;
+        this.height = height;
+        this.allocation = allocation;
+        this.plane = plane;
+    }
+
+    /**
+     * Weights without an Allocation, which can only be used by the {@link JavaBackend}
+     */
+    public Weights(int width, int height, @NonNull byte[] plane) {
+        this.width = width;
+        this.height = height;
+        this.allocation = null;
+        this.plane = plane;
+    }
+}
@@ -2,15 +2,46 @@ package io.crayfis.android.daq;
 
 /**
  * Created by cshimmin on 5/13/16.
+ *
+ * Timestamps of an acquisition, derived from the monotonic time through the current
+ * {@link ClockMapping}.
  */
 public class AcquisitionTime {
     public final long Nano;
     public final long NTP;
+    public final long NTPNano;
     public final long Sys;
+
+    /**
+     * The time now
+     */
     public AcquisitionTime() {
-        // fetch timestamps in order of decreasing precision
-        Nano = System.nanoTime();
-        NTP = SntpClient.getInstance().getNtpTime();
-        Sys = System.currentTimeMillis();
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param monoNanos Time in the base of System.nanoTime()
+     */
+    public AcquisitionTime(long monoNanos) {
+        this(monoNanos, TimeSync.getInstance().getMapping());
+    }
+
+    private AcquisitionTime(long monoNanos, ClockMapping mapping) {
+        Nano = monoNanos;
+        NTPNano = mapping.toNtpNanos(monoNanos);
+        NTP = ClockMapping.toMillis(NTPNano);
+        Sys = mapping.toSysMillis(monoNanos);
+    }
+
+    /**
+     * The time of a capture
+     *
+     * @param sensorNanos SENSOR_TIMESTAMP of the capture
+     * @param realtime Whether the camera's timestamp source is REALTIME
+     * @return {@link AcquisitionTime}
+     */
+    public static AcquisitionTime fromSensor(long sensorNanos, boolean realtime) {
+        ClockMapping mapping = TimeSync.getInstance().getMapping();
+        return new AcquisitionTime(mapping.sensorToMonoNanos(sensorNanos, realtime), mapping);
     }
-}
\ No newline at end of file
+}
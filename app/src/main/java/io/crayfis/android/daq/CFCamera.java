@@ -40,10 +40,17 @@ import io.crayfis.android.R;
 import io.crayfis.android.exposure.ExposureBlock;
 import io.crayfis.android.exposure.ExposureBlockManager;
 import io.crayfis.android.exposure.Frame;
+import io.crayfis.android.exposure.SyntheticFrame;
+import io.crayfis.android.exposure.SyntheticSensor;
 import io.crayfis.android.main.CFApplication;
+import io.crayfis.android.main.ThermalMonitor;
 import io.crayfis.android.server.CFConfig;
+import io.crayfis.android.server.PreCalibrationService;
+import io.crayfis.android.server.WeightCache;
 import io.crayfis.android.util.CFLog;
-import io.crayfis.android.util.FrameHistory;
+import io.crayfis.android.util.EwmaRate;
+import io.crayfis.android.util.Metrics;
+import io.crayfis.android.util.RateEstimator;
 
 
 /**
@@ -58,6 +65,10 @@ class CFCamera {
                     ImageFormat.RAW12,
                     ImageFormat.RAW_SENSOR));
 
+    private static final ResolutionSpec MAX_COMPANION_RES = new ResolutionSpec(1920, 1440);
+    // size of a synthetic stream for RAW or MAX, where there is no sensor to ask
+    private static final Size SYNTHETIC_SIZE = new Size(1920, 1080);
+
     private final Frame.Builder FRAME_BUILDER;
     private final CFConfig CONFIG;
     
@@ -72,7 +83,7 @@ class CFCamera {
     private CaptureRequest.Builder mPreviewRequestBuilder;
     private List<CaptureRequest> mPreviewRequests = new ArrayList<>();
     private Size mPreviewSize;
-    private CameraCaptureSession mCaptureSession;
+    private volatile CameraCaptureSession mCaptureSession;
 
     // thread for Camera callbacks
     protected Handler mCameraHandler;
@@ -83,17 +94,51 @@ class CFCamera {
     protected final HandlerThread mResultThread = new HandlerThread("Result");
 
     int mCameraId = -1;
+    // fixed camera for a companion stream, or -1 for the primary, which moves between cameras
+    private final int mPinnedId;
     int mResX;
     int mResY;
     int mFormat;
+    // sensor settings of the current stream, which calibrations are only valid for
+    private int mISO;
+    private long mExposureNanos;
 
     // CaptureCallback depending on RAW/YUV format
     private Frame.Producer mFrameProducer;
-    private final FrameHistory<Long> mTimestampHistory = new FrameHistory<>(100);
+    private final RateEstimator mFrameRate = new RateEstimator(100);
+    private final EwmaRate mSmoothedFrameRate = new EwmaRate(0.02);
+    private volatile double mFPSScale = 1.0;
+    private volatile double mThermalFPSScale = 1.0;
+    // fraction of a frame owed to processing, for the thermal duty cycle
+    private double mDutyCredit;
+    private final Metrics.Counter mThrottledCount = Metrics.getInstance().counter("camera.frames_throttled");
+    private final Metrics.Counter mDroppedCount = Metrics.getInstance().counter("camera.frames_dropped");
+    // whether frames currently come from a SyntheticSensor instead of the camera
+    private volatile boolean mSynthetic;
+    // whether the stream being configured only has a new resolution on the same camera
+    private volatile boolean mResizing;
 
     CFCamera(Frame.Builder builder) {
+        this(builder, -1);
+    }
+
+    /**
+     * @param builder Frame.Builder for this stream
+     * @param pinnedId Camera to stream from alongside the primary, or -1 for the primary camera
+     */
+    CFCamera(Frame.Builder builder, int pinnedId) {
         FRAME_BUILDER = builder;
         CONFIG = CFConfig.getInstance();
+        mPinnedId = pinnedId;
+
+        String prefix = pinnedId < 0 ? "camera" : "camera" + pinnedId;
+        FRAME_BUILDER.setMetricPrefix(prefix);
+        Metrics.getInstance().gauge(prefix + ".fps", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return getFPS();
+            }
+        });
     }
 
     void register(Context context) {
@@ -130,6 +175,14 @@ class CFCamera {
 
         if (currentId != mCameraId || !mCameraThread.isAlive()) return;
 
+        if (isCompanion()) {
+            // a companion never moves to another camera, it just stops until the next DATA run
+            CFLog.i("Stopping companion camera " + currentId);
+            mCameraId = -1;
+            configure();
+            return;
+        }
+
         // find next camera based on DAQ state
         int nextId;
         CFApplication.State state = mApplication.getApplicationState();
@@ -166,6 +219,42 @@ class CFCamera {
 
     }
 
+    /**
+     * Start streaming from the pinned camera of a companion stream
+     */
+    synchronized void start() {
+        if (!isCompanion() || mCameraId == mPinnedId || !mCameraThread.isAlive()) return;
+        mCameraId = mPinnedId;
+        configure();
+    }
+
+    /**
+     * A companion just stops on an error, since the primary camera may still be fine
+     */
+    private void onCameraError(int code) {
+        if (isCompanion()) {
+            CFLog.e("Companion camera " + mCameraId + " error " + code);
+            changeCameraFrom(mCameraId);
+        } else {
+            mApplication.userErrorMessage(true, R.string.camera_error, code);
+        }
+    }
+
+    boolean isCompanion() {
+        return mPinnedId >= 0;
+    }
+
+    /**
+     * @return the camera streamed alongside the primary, or -1 for the primary camera
+     */
+    int getPinnedId() {
+        return mPinnedId;
+    }
+
+    boolean isStreaming() {
+        return mCaptureSession != null || mSynthetic && mFrameProducer != null;
+    }
+
     /**
      * Callback for opening the camera
      */
@@ -178,28 +267,24 @@ class CFCamera {
 
             try {
 
-                mPreviewRequests.clear();
                 configureCameraPreviewSession();
 
                 boolean raw = (RAW_FORMATS.contains(mFormat));
                 mFrameProducer = Frame.Producer.create(raw, mApplication.getRenderScript(),
                         mPreviewSize, mFrameCallback, mResultHandler, FRAME_BUILDER);
+                Integer timestampSource = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mFrameProducer.setRealtimeTimestamps(timestampSource != null
+                        && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME);
 
                 RenderScript rs = mApplication.getRenderScript();
                 if(raw) FRAME_BUILDER.configureRAW(rs, mPreviewSize, mFrameProducer);
                 else FRAME_BUILDER.configureYUV(rs, mPreviewSize, mFrameProducer);
 
-                List<Surface> outputs = mFrameProducer.getSurfaces();
-                for(Surface s: outputs) {
-                    mPreviewRequestBuilder.addTarget(s);
-                    mPreviewRequests.add(mPreviewRequestBuilder.build());
-                    mPreviewRequestBuilder.removeTarget(s); // just one per request
-                }
-
-                mCameraDevice.createCaptureSession(outputs, mStateCallback, mCameraHandler);
+                buildPreviewRequests();
+                mCameraDevice.createCaptureSession(mFrameProducer.getSurfaces(), mStateCallback, mCameraHandler);
 
             } catch (CameraAccessException e) {
-                mApplication.userErrorMessage(true, R.string.camera_error, 100 + e.getReason());
+                onCameraError(100 + e.getReason());
             }
 
         }
@@ -211,6 +296,11 @@ class CFCamera {
             mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
+            if (isCompanion()) {
+                // the primary camera may still be fine
+                changeCameraFrom(mCameraId);
+                return;
+            }
             mApplication.finishAndQuit(R.string.quit_no_cameras);
         }
 
@@ -219,7 +309,7 @@ class CFCamera {
             mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
-            mApplication.userErrorMessage(true, R.string.camera_error, error);
+            onCameraError(error);
         }
     };
 
@@ -236,29 +326,22 @@ class CFCamera {
                 return;
             }
 
-            synchronized (mTimestampHistory) {
-                mTimestampHistory.clear();
-            }
-            CFConfig.getInstance().setPrecalConfig(null);
-            if(!mApplication.changeApplicationState(CFApplication.State.INIT, CFApplication.State.SURVEY)) {
-                // need a new SURVEY XB for next camera
-                ExposureBlockManager.getInstance().abortExposureBlock();
-            }
+            onStreamStarting();
 
             // When the session is ready, we start displaying the preview.
             mCaptureSession = cameraCaptureSession;
             try {
                 // Finally, we start displaying the camera preview.
-                if(mPreviewRequests.size() == 1) {
-                    mCaptureSession.setRepeatingRequest(mPreviewRequests.get(0), mFrameProducer, mResultHandler);
-                } else {
-                    mCaptureSession.setRepeatingBurst(mPreviewRequests, mFrameProducer, mResultHandler);
+                startRepeating();
+                if(isCompanion()) {
+                    // frames are dropped until this stream has its own XB
+                    ExposureBlockManager.getInstance().newCompanionExposureBlock(mCameraId);
                 }
             } catch (CameraAccessException e) {
-                mApplication.userErrorMessage(true, R.string.camera_error, 100 + e.getReason());
+                onCameraError(100 + e.getReason());
             } catch (IllegalStateException e) {
                 // camera was already closed
-                mApplication.userErrorMessage(true, R.string.camera_error, 200);
+                onCameraError(200);
             }
         }
 
@@ -271,12 +354,49 @@ class CFCamera {
     };
 
 
+    /**
+     * Reset for a new stream, and for the primary camera, move on from INIT
+     */
+    private void onStreamStarting() {
+        mFrameRate.reset();
+        mSmoothedFrameRate.reset();
+        if(!isCompanion()) {
+            PreCalibrationService.Config precal = mResizing
+                    ? PreCalibrationService.Config.load(mApplication, mCameraId, mResX, mResY) : null;
+            mResizing = false;
+            if(precal != null && precal.isValid()) {
+                // the camera is known to work, and this size was precalibrated before
+                CFLog.i("Reusing stored precalibration at " + mResX + "x" + mResY);
+                CFConfig.getInstance().setPrecalConfig(precal);
+                if(mApplication.changeApplicationState(CFApplication.State.INIT, CFApplication.State.PRECALIBRATION)) {
+                    return;
+                }
+            }
+            CFConfig.getInstance().setPrecalConfig(null);
+            WeightCache.getInstance().clear();
+            if (!mApplication.changeApplicationState(CFApplication.State.INIT, CFApplication.State.SURVEY)) {
+                // need a new SURVEY XB for next camera
+                ExposureBlockManager.getInstance().abortExposureBlock();
+            }
+        }
+    }
+
     private final Frame.OnFrameCallback mFrameCallback = new Frame.OnFrameCallback() {
         @Override
         public void onFrame(Frame frame) {
-            // make sure the timestamp queues aren't cleared underneath us
-            synchronized (mTimestampHistory) {
-                mTimestampHistory.addValue(frame.getAcquiredTimeNano());
+            mFrameRate.addEvent(frame.getAcquiredTimeNano());
+            mSmoothedFrameRate.addEvent(frame.getAcquiredTimeNano());
+
+            // skip frames while hot, without changing the exposure of those we keep
+            double duty = ThermalMonitor.getInstance().getLevel().dutyCycle;
+            if(duty < 1.0) {
+                mDutyCredit = Math.min(1.0, mDutyCredit + duty);
+                if(mDutyCredit < 1.0) {
+                    mThrottledCount.inc();
+                    frame.retire();
+                    return;
+                }
+                mDutyCredit -= 1.0;
             }
             frame.commit();
         }
@@ -284,9 +404,10 @@ class CFCamera {
         @Override
         public void onDropped() {
             CFLog.w("dropped frame");
-            ExposureBlock xb = ExposureBlockManager.getInstance().getCurrentExposureBlock();
+            ExposureBlock xb = FRAME_BUILDER.getExposureBlock();
             if(xb != null)
                 xb.dropped.incrementAndGet();
+            mDroppedCount.inc();
 
             // TODO: should we lower the data rate if there are too many drops?
         }
@@ -340,6 +461,11 @@ class CFCamera {
                 = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
 
         ResolutionSpec resolutionSpec = CONFIG.getTargetResolution();
+        if(isCompanion() && (resolutionSpec.name.equals(ResolutionSpec.RAW)
+                || (long) resolutionSpec.width * resolutionSpec.height > (long) MAX_COMPANION_RES.width * MAX_COMPANION_RES.height)) {
+            // concurrent streams are only guaranteed for YUV up to 1440p
+            resolutionSpec = MAX_COMPANION_RES;
+        }
 
         // make preview as close to RAW as possible
         configureManualSettings();
@@ -349,7 +475,7 @@ class CFCamera {
             if(mFormat == ImageFormat.YUV_420_888) {
                 // no RAW capabilities, so switch to MAX
                 resolutionSpec = ResolutionSpec.fromString("MAX");
-                CONFIG.setTargetResolution(resolutionSpec);
+                if(!isCompanion()) CONFIG.setTargetResolution(resolutionSpec);
             }
         } else {
             mFormat = ImageFormat.YUV_420_888;
@@ -362,8 +488,22 @@ class CFCamera {
         mResX = mPreviewSize.getWidth();
         mResY = mPreviewSize.getHeight();
 
+        setFrameDuration(requestedDuration);
 
-        // set the frame length and exposure time
+        // set ISO
+        int iso = CONFIG.getISOGain();
+        if(iso == 0)
+            iso = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_MAX_ANALOG_SENSITIVITY);
+
+        mPreviewRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso);
+        mISO = iso;
+
+    }
+
+    /**
+     * Set the frame length and exposure time
+     */
+    private void setFrameDuration(long requestedDuration) {
         mPreviewRequestBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, requestedDuration);
 
         Range<Long> exposureTimes = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
@@ -373,15 +513,67 @@ class CFCamera {
                     * (1-CONFIG.getFracDeadTime()));
 
             mPreviewRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, requestedExpTime);
+            mExposureNanos = requestedExpTime;
+        } else {
+            mExposureNanos = requestedDuration;
         }
+    }
 
-        // set ISO
-        int iso = CONFIG.getISOGain();
-        if(iso == 0)
-            iso = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_MAX_ANALOG_SENSITIVITY);
+    /**
+     * Build one request per output, since each Surface gets its own buffers
+     */
+    private void buildPreviewRequests() {
+        mPreviewRequests.clear();
+        for(Surface s: mFrameProducer.getSurfaces()) {
+            mPreviewRequestBuilder.addTarget(s);
+            mPreviewRequests.add(mPreviewRequestBuilder.build());
+            mPreviewRequestBuilder.removeTarget(s); // just one per request
+        }
+    }
 
-        mPreviewRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso);
+    private void startRepeating() throws CameraAccessException {
+        if(mPreviewRequests.size() == 1) {
+            mCaptureSession.setRepeatingRequest(mPreviewRequests.get(0), mFrameProducer, mResultHandler);
+        } else {
+            mCaptureSession.setRepeatingBurst(mPreviewRequests, mFrameProducer, mResultHandler);
+        }
+    }
+
+    /**
+     * @return whether a new FPS can be applied to the running stream by updateFrameRate()
+     */
+    boolean canUpdateFrameRate() {
+        return !mSynthetic && mCaptureSession != null;
+    }
+
+    /**
+     * Apply the current FPS scales to the running stream, by replacing its repeating request
+     * rather than closing the camera.  This keeps the DAQ state and the precalibration.
+     */
+    void updateFrameRate() {
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // a camera being opened holds the lock until onOpened() runs on this thread, and
+                // its session picks up the new FPS when it is configured anyway
+                if(!mCameraOpenCloseLock.tryAcquire()) return;
+                try {
+                    if(mCaptureSession == null || mFrameProducer == null) return;
 
+                    setFrameDuration(findTargetDuration());
+                    buildPreviewRequests();
+                    startRepeating();
+                    CFLog.i("Updated frame duration, exposure " + mExposureNanos + " ns");
+                } catch (CameraAccessException e) {
+                    onCameraError(100 + e.getReason());
+                } catch (IllegalStateException e) {
+                    // camera was already closed
+                    CFLog.w("Could not update frame rate: " + e.getMessage());
+                } finally {
+                    mCameraOpenCloseLock.release();
+                }
+            }
+        });
     }
 
     private int findRAWFormat() {
@@ -428,6 +620,24 @@ class CFCamera {
 
     }
 
+    /**
+     * Lower the FPS once the thermal level calls for it, but only restore it when the device has
+     * cooled to LIGHT, so that a temperature near a boundary doesn't reconfigure every block
+     */
+    private double findThermalFPSScale() {
+        ThermalMonitor.Level level = ThermalMonitor.getInstance().getLevel();
+        if(level.fpsScale < 1.0) return level.fpsScale;
+        if(level.compareTo(ThermalMonitor.Level.LIGHT) <= 0) return 1.0;
+        return mThermalFPSScale;
+    }
+
+    /**
+     * @return whether the thermal level has changed enough to configure a different FPS
+     */
+    boolean needsThermalReconfigure() {
+        return findThermalFPSScale() != mThermalFPSScale;
+    }
+
     private long findTargetDuration() {
 
         // go through ranges known to be supported
@@ -439,7 +649,9 @@ class CFCamera {
         if(availableFpsRanges != null) {
 
             // find closest number in given ranges to target
-            long targetDuration = CONFIG.getTargetFPS() == 0 ? 5000000000L : (long)(1000000000L / CONFIG.getTargetFPS());
+            mThermalFPSScale = findThermalFPSScale();
+            double fps = CONFIG.getTargetFPS() * mFPSScale * mThermalFPSScale;
+            long targetDuration = CONFIG.getTargetFPS() == 0 ? 5000000000L : (long)(1000000000L / fps);
             for (Range<Integer> r : availableFpsRanges) {
                 long maxDuration = 1000000000L / r.getLower();
                 long minDuration = 1000000000L / r.getUpper();
@@ -470,6 +682,17 @@ class CFCamera {
     }
 
     void configure() {
+        configure(false);
+    }
+
+    /**
+     * Close the current stream, and open the camera again with the current settings
+     *
+     * @param resize Whether only the resolution changes, so that a stored precalibration for the
+     *               new size can be used without a SURVEY
+     */
+    void configure(boolean resize) {
+        mResizing = resize;
 
         // get rid of old camera setup
         mCameraOpenCloseLock.acquireUninterruptibly();
@@ -492,13 +715,21 @@ class CFCamera {
         mCameraOpenCloseLock.release();
 
         if(mCameraId == -1) {
+            mSynthetic = false;
             return;
         }
 
+        mSynthetic = !isCompanion() && isSyntheticEnabled();
+
         mCameraHandler.post(new Runnable() {
             @Override
             public void run() {
 
+                if (mSynthetic) {
+                    startSynthetic();
+                    return;
+                }
+
                 // make sure we have permission to use the camera
                 if (ContextCompat.checkSelfPermission(mApplication, Manifest.permission.CAMERA)
                         != PackageManager.PERMISSION_GRANTED) {
@@ -521,18 +752,94 @@ class CFCamera {
                 } catch (CameraAccessException e) {
                     e.printStackTrace();
                     mCameraOpenCloseLock.release();
-                    mApplication.userErrorMessage(true, R.string.camera_error, 100 + e.getReason());
+                    onCameraError(100 + e.getReason());
                 }
             }
         });
 
     }
 
-    void changeDataRate(boolean increase) {
-        // do nothing if we're locked
+    private boolean isSyntheticEnabled() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mApplication);
-        if(prefs.getBoolean(mApplication.getString(R.string.prefFPSResLock), false)) {
-            return;
+        return prefs.getBoolean(mApplication.getString(R.string.prefSyntheticSource), false);
+    }
+
+    private long getSyntheticSeed() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mApplication);
+        String seed = prefs.getString(mApplication.getString(R.string.prefSyntheticSeed), "0");
+        try {
+            return Long.parseLong(seed.trim());
+        } catch (NumberFormatException e) {
+            CFLog.w("Bad synthetic seed " + seed);
+            return 0L;
+        }
+    }
+
+    /**
+     * Stream from a seeded SyntheticSensor rather than the camera, at the target resolution and FPS
+     */
+    private void startSynthetic() {
+        mCameraOpenCloseLock.acquireUninterruptibly();
+        try {
+            if (!mSynthetic || mCameraId == -1) return;
+
+            ResolutionSpec resolutionSpec = CONFIG.getTargetResolution();
+            boolean raw = resolutionSpec.name.equals(ResolutionSpec.RAW);
+            if (raw || resolutionSpec.name.equals("MAX")) {
+                mPreviewSize = SYNTHETIC_SIZE;
+            } else {
+                mPreviewSize = new Size(resolutionSpec.width, resolutionSpec.height);
+            }
+            mFormat = raw ? ImageFormat.RAW_SENSOR : ImageFormat.YUV_420_888;
+            mResX = mPreviewSize.getWidth();
+            mResY = mPreviewSize.getHeight();
+            mISO = 0;
+
+            mThermalFPSScale = findThermalFPSScale();
+            double fps = CONFIG.getTargetFPS() == 0 ? 0.2 : CONFIG.getTargetFPS() * mFPSScale * mThermalFPSScale;
+
+            mExposureNanos = (long) (1e9 / fps);
+
+            long seed = getSyntheticSeed() + mCameraId;
+            CFLog.i("Synthetic " + (raw ? "RAW " : "YUV ") + mPreviewSize + " at " + String.format("%.2f", fps)
+                    + " FPS, seed " + seed);
+
+            RenderScript rs = mApplication.getRenderScript();
+            SyntheticSensor sensor = new SyntheticSensor(mResX, mResY, raw, seed);
+            SyntheticFrame.Producer producer = SyntheticFrame.Producer.create(rs, mPreviewSize, sensor, fps,
+                    mFrameCallback, mResultHandler, FRAME_BUILDER);
+            FRAME_BUILDER.configureSynthetic(rs, mPreviewSize, producer);
+            mFrameProducer = producer;
+
+            onStreamStarting();
+            producer.start();
+        } finally {
+            mCameraOpenCloseLock.release();
+        }
+    }
+
+    /**
+     * @return whether frames come from a SyntheticSensor instead of the camera
+     */
+    boolean isSynthetic() {
+        return mSynthetic;
+    }
+
+    boolean isDataRateLocked() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mApplication);
+        return prefs.getBoolean(mApplication.getString(R.string.prefFPSResLock), false);
+    }
+
+    /**
+     * Step the target resolution to the next supported size
+     *
+     * @param increase Whether to step up or down
+     * @return whether the target resolution changed
+     */
+    boolean changeDataRate(boolean increase) {
+        // do nothing if we're locked, or have no sensor sizes to step through
+        if(isDataRateLocked() || mSynthetic) {
+            return false;
         }
 
         StreamConfigurationMap map = mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
@@ -553,12 +860,24 @@ class CFCamera {
             } else if(!increase && index > 0) {
                 index--;
             } else {
-                return;
+                return false;
             }
 
             Size newSize = sizes.get(index);
             CONFIG.setTargetResolution(newSize.getWidth(), newSize.getHeight());
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Scale the target FPS down from the configured value, taking effect when the camera is
+     * next configured
+     *
+     * @param scale Fraction of CFConfig.getTargetFPS(), between 0 and 1
+     */
+    void setFPSScale(double scale) {
+        mFPSScale = scale;
     }
 
     boolean isStreamingRAW() {
@@ -585,22 +904,33 @@ class CFCamera {
         return mResY;
     }
 
+    int getISO() {
+        return mISO;
+    }
+
+    long getExposureTime() {
+        return mExposureNanos;
+    }
+
     /**
      * Calculates and returns the average FPS of the last 100 frames produced
      * @return double
      */
     double getFPS() {
-        synchronized(mTimestampHistory) {
-            int nframes = mTimestampHistory.size();
-            if (nframes>0) {
-                return ((double) nframes) / (System.nanoTime() - mTimestampHistory.getOldest()) * 1000000000L;
-            }
-        }
+        return mFrameRate.getRate(System.nanoTime());
+    }
 
-        return 0.0;
+    /**
+     * Exponentially-weighted FPS, which responds more smoothly than {@link #getFPS()}
+     * @return double
+     */
+    double getSmoothedFPS() {
+        return mSmoothedFrameRate.getRate(System.nanoTime());
     }
 
     Boolean isFacingBack() {
+        // synthetic frames behave like the usual back camera, so quality checks pass
+        if(mSynthetic) return true;
         if(mCameraCharacteristics == null) return null;
         Integer lensFacing = mCameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
         if(lensFacing != null && mCameraId != -1) {
@@ -634,7 +964,7 @@ class CFCamera {
                 + " (" + (targetRes.name.isEmpty() ? targetRes : targetRes.name) + ")\n";
 
 
-        devtxt += "Camera ID: " + mCameraId + ", FPS = " + String.format("%.02f", getFPS())
+        devtxt += "Camera ID: " + mCameraId + (mSynthetic ? " (synthetic)" : "") + ", FPS = " + String.format("%.02f", getFPS())
                 + "(" + CONFIG.getTargetFPS() + ")\n";
 
         return devtxt;
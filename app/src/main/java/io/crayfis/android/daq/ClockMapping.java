@@ -0,0 +1,136 @@
+package io.crayfis.android.daq;
+
+import android.os.SystemClock;
+
+/**
+ * Immutable mapping from the monotonic clock (System.nanoTime()) to the system and NTP clocks,
+ * published by {@link TimeSync}.  Converting a timestamp is pure arithmetic, so it is cheap enough
+ * for every frame.
+ *
+ * NTP time is extrapolated from the reference point with the fitted drift rate.  Until the first
+ * successful sync, it is the system time.
+ */
+public final class ClockMapping {
+
+    private final long mRefMonoNanos;
+    // SystemClock.elapsedRealtimeNanos() - System.nanoTime(), which grows while in deep sleep
+    private final long mElapsedOffsetNanos;
+    private final long mRefSysMillis;
+    private final long mRefNtpNanos;
+    // NTP nanoseconds per local nanosecond, minus one
+    private final double mDrift;
+    private final long mRoundTripNanos;
+    private final int mSamples;
+
+    ClockMapping(long refMonoNanos, long elapsedOffsetNanos, long refSysMillis, long refNtpNanos,
+                 double drift, long roundTripNanos, int samples) {
+        mRefMonoNanos = refMonoNanos;
+        mElapsedOffsetNanos = elapsedOffsetNanos;
+        mRefSysMillis = refSysMillis;
+        mRefNtpNanos = refNtpNanos;
+        mDrift = drift;
+        mRoundTripNanos = roundTripNanos;
+        mSamples = samples;
+    }
+
+    /**
+     * Sample the clocks now, with NTP time equal to the system time
+     *
+     * @return a new {@link ClockMapping}
+     */
+    static ClockMapping unsynced() {
+        long mono = System.nanoTime();
+        long elapsed = SystemClock.elapsedRealtimeNanos();
+        long sys = System.currentTimeMillis();
+        return new ClockMapping(mono, elapsed - mono, sys, sys * 1000000L, 0.0, -1L, 0);
+    }
+
+    /**
+     * Convert a SENSOR_TIMESTAMP to the monotonic clock
+     *
+     * @param sensorNanos The timestamp of the capture
+     * @param realtime Whether the camera's timestamp source is REALTIME, i.e. elapsedRealtimeNanos()
+     * @return the time in the base of System.nanoTime()
+     */
+    public long sensorToMonoNanos(long sensorNanos, boolean realtime) {
+        return realtime ? sensorNanos - mElapsedOffsetNanos : sensorNanos;
+    }
+
+    /**
+     * @param monoNanos Time in the base of System.nanoTime()
+     * @return NTP time, in nanoseconds since the epoch
+     */
+    public long toNtpNanos(long monoNanos) {
+        long dt = monoNanos - mRefMonoNanos;
+        return mRefNtpNanos + dt + Math.round(dt * mDrift);
+    }
+
+    /**
+     * @param monoNanos Time in the base of System.nanoTime()
+     * @return NTP time, in milliseconds since the epoch
+     */
+    public long toNtpMillis(long monoNanos) {
+        return toMillis(toNtpNanos(monoNanos));
+    }
+
+    /**
+     * @param monoNanos Time in the base of System.nanoTime()
+     * @return system time, in milliseconds since the epoch
+     */
+    public long toSysMillis(long monoNanos) {
+        return mRefSysMillis + toMillis(monoNanos - mRefMonoNanos);
+    }
+
+    long getRefMonoNanos() {
+        return mRefMonoNanos;
+    }
+
+    long getElapsedOffsetNanos() {
+        return mElapsedOffsetNanos;
+    }
+
+    long getRefSysMillis() {
+        return mRefSysMillis;
+    }
+
+    public boolean isSynced() {
+        return mSamples > 0;
+    }
+
+    /**
+     * @return the number of NTP responses in the fit
+     */
+    public int getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return the drift of the monotonic clock against NTP, in parts per million
+     */
+    public double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * @return the round trip time of the best NTP response, in nanoseconds, or -1 if unsynced
+     */
+    public long getRoundTripNanos() {
+        return mRoundTripNanos;
+    }
+
+    /**
+     * Nanoseconds to milliseconds, rounding down also for negative values
+     */
+    static long toMillis(long nanos) {
+        long millis = nanos / 1000000L;
+        return nanos < 0 && millis * 1000000L != nanos ? millis - 1 : millis;
+    }
+
+    @Override
+    public String toString() {
+        return "ClockMapping{samples=" + mSamples
+                + ", ntp-sys=" + (mRefNtpNanos / 1000000L - mRefSysMillis) + " ms"
+                + ", drift=" + String.format("%.2f", getDriftPpm()) + " ppm"
+                + ", rtt=" + (mRoundTripNanos / 1000L) + " us}";
+    }
+}
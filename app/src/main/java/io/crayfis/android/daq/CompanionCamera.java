@@ -0,0 +1,136 @@
+package io.crayfis.android.daq;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import io.crayfis.android.exposure.ExposureBlock;
+import io.crayfis.android.exposure.Frame;
+import io.crayfis.android.main.CFApplication;
+import io.crayfis.android.server.PreCalibrationService;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * A camera which streams alongside the primary one during DATA, with its own Frame.Producer,
+ * buffers, ExposureBlocks and TriggerChain.  Location and sensor readings are shared with the
+ * primary camera's Frame.Builder.
+ *
+ * A companion never surveys or precalibrates, since those drive the application state.  It uses
+ * the weights saved the last time its camera was precalibrated as the primary, if there are any.
+ */
+class CompanionCamera {
+
+    private final int mCameraId;
+    private final Frame.Builder mFrameBuilder;
+    private final CFCamera mCFCamera;
+
+    private CFApplication mApplication;
+
+    // precalibration for the current resolution, and the resolution it was loaded for
+    private PreCalibrationService.Config mPrecalConfig;
+    private int mPrecalResX;
+    private int mPrecalResY;
+
+    CompanionCamera(int cameraId, Frame.Builder sensorSource) {
+        mCameraId = cameraId;
+        mFrameBuilder = new Frame.Builder(sensorSource);
+        mCFCamera = new CFCamera(mFrameBuilder, cameraId);
+    }
+
+    void register(CFApplication app) {
+        mApplication = app;
+        mCFCamera.register(app);
+        mCFCamera.start();
+    }
+
+    void unregister() {
+        mCFCamera.unregister();
+    }
+
+    /**
+     * Stop streaming, e.g. after a failed quality check, until DATA is next entered
+     */
+    void stop() {
+        mCFCamera.changeCameraFrom(mCameraId);
+    }
+
+    void setExposureBlock(ExposureBlock xb) {
+        mFrameBuilder.setExposureBlock(xb);
+    }
+
+    /**
+     * Gets the saved precalibration for this camera at its current resolution
+     *
+     * @return the config, or null if this camera was never precalibrated at this resolution
+     */
+    @Nullable
+    synchronized PreCalibrationService.Config getPrecalConfig() {
+        int resX = mCFCamera.getResX();
+        int resY = mCFCamera.getResY();
+        if(resX != mPrecalResX || resY != mPrecalResY) {
+            mPrecalConfig = PreCalibrationService.Config.load(mApplication, mCameraId, resX, resY);
+            mPrecalResX = resX;
+            mPrecalResY = resY;
+            if(mPrecalConfig == null) {
+                CFLog.w("No precalibration for companion camera " + mCameraId + " at " + resX + "x" + resY);
+            }
+        }
+        return mPrecalConfig;
+    }
+
+    int getCameraId() {
+        return mCameraId;
+    }
+
+    boolean isStreaming() {
+        return mCFCamera.isStreaming();
+    }
+
+    CFCamera getCamera() {
+        return mCFCamera;
+    }
+
+    /**
+     * Find the cameras which the device can stream at the same time as the primary camera
+     *
+     * @param manager CameraManager
+     * @param primaryId Index of the primary camera
+     * @return indices of the other cameras in the largest supported combination
+     */
+    @NonNull
+    @RequiresApi(Build.VERSION_CODES.R)
+    static List<Integer> findConcurrentIds(CameraManager manager, int primaryId) {
+        List<Integer> ids = new ArrayList<>();
+        try {
+            List<String> idList = Arrays.asList(manager.getCameraIdList());
+            if(primaryId < 0 || primaryId >= idList.size()) return ids;
+            String primary = idList.get(primaryId);
+
+            Set<String> best = null;
+            for(Set<String> combination : manager.getConcurrentCameraIds()) {
+                if(combination.contains(primary) && (best == null || combination.size() > best.size())) {
+                    best = combination;
+                }
+            }
+            if(best == null) return ids;
+
+            for(String id : best) {
+                int index = idList.indexOf(id);
+                if(index >= 0 && index != primaryId) {
+                    ids.add(index);
+                }
+            }
+        } catch (CameraAccessException e) {
+            CFLog.e("Could not list concurrent cameras: " + e.getMessage());
+        }
+        return ids;
+    }
+}
@@ -1,10 +1,23 @@
 package io.crayfis.android.daq;
 
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.camera2.CameraManager;
 import android.location.Location;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import io.crayfis.android.R;
 import io.crayfis.android.exposure.ExposureBlock;
 import io.crayfis.android.exposure.Frame;
 import io.crayfis.android.main.CFApplication;
+import io.crayfis.android.server.PreCalibrationService;
+import io.crayfis.android.util.CFLog;
 
 /**
  * A wrapper class for coordinating and accessing cameras, sensors, and GPS
@@ -19,6 +32,10 @@ public class DAQManager {
     private final CFCamera mCFCamera;
     private final CFSensor mCFSensor;
     private final CFLocation mCFLocation;
+    private final DataRateController mRateController;
+
+    // cameras streaming alongside the primary one during DATA, by camera ID
+    private final HashMap<Integer, CompanionCamera> mCompanions = new HashMap<>();
 
     private static DAQManager sInstance;
 
@@ -33,6 +50,7 @@ public class DAQManager {
         mCFCamera = new CFCamera(FRAME_BUILDER);
         mCFSensor = new CFSensor(FRAME_BUILDER);
         mCFLocation = new CFLocation(FRAME_BUILDER);
+        mRateController = new DataRateController(mCFCamera);
     }
 
     /**
@@ -61,6 +79,7 @@ public class DAQManager {
         mCFCamera.register(app);
         mCFSensor.register(app);
         mCFLocation.register(app);
+        TimeSync.getInstance().register();
 
         changeCamera();
     }
@@ -70,9 +89,11 @@ public class DAQManager {
      */
     public synchronized void unregister() {
 
+        stopCompanions();
         mCFCamera.unregister();
         mCFSensor.unregister();
         mCFLocation.unregister();
+        TimeSync.getInstance().unregister();
         sInstance = null;
     }
 
@@ -90,20 +111,94 @@ public class DAQManager {
      * @param currentId The cameraId of the bad frame
      */
     public void changeCameraFrom(final int currentId) {
+        CompanionCamera companion = getCompanion(currentId);
+        if(companion != null) {
+            companion.stop();
+            return;
+        }
         mCFCamera.changeCameraFrom(currentId);
     }
 
+    /**
+     * Open any other cameras which the device can stream alongside the primary one.  Each runs
+     * until stopCompanions() is called, or until it fails, e.g. on a bad frame.
+     */
+    public synchronized void startCompanions() {
+        if(mApplication == null || !mCompanions.isEmpty()) return;
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.R) return;
+        // a synthetic stream has no real camera to run alongside
+        if(mCFCamera.isSynthetic()) return;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mApplication);
+        if(!prefs.getBoolean(mApplication.getString(R.string.prefMultiCamera), true)) return;
+
+        CameraManager manager = (CameraManager) mApplication.getSystemService(Context.CAMERA_SERVICE);
+        if(manager == null) return;
+
+        for(int id : CompanionCamera.findConcurrentIds(manager, getCameraId())) {
+            CFLog.i("Starting companion camera " + id);
+            CompanionCamera companion = new CompanionCamera(id, FRAME_BUILDER);
+            companion.register(mApplication);
+            mCompanions.put(id, companion);
+        }
+    }
+
+    /**
+     * Close all companion cameras
+     */
+    public synchronized void stopCompanions() {
+        for(CompanionCamera companion : mCompanions.values()) {
+            companion.unregister();
+        }
+        mCompanions.clear();
+    }
+
+    @Nullable
+    private synchronized CompanionCamera getCompanion(int cameraId) {
+        return mCompanions.get(cameraId);
+    }
+
+    /**
+     * @return IDs of the companion cameras which are currently streaming
+     */
+    public synchronized List<Integer> getStreamingCompanionIds() {
+        List<Integer> ids = new ArrayList<>();
+        for(CompanionCamera companion : mCompanions.values()) {
+            if(companion.isStreaming()) {
+                ids.add(companion.getCameraId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Whether the camera is a companion rather than the primary camera
+     *
+     * @param cameraId Camera ID
+     * @return boolean
+     */
+    public boolean isCompanion(int cameraId) {
+        return getCompanion(cameraId) != null;
+    }
+
     /**
      * Keep same camera, but restart with potentially new settings
      */
     public void reconfigureCamera() {
+        reconfigureCamera(false);
+    }
+
+    /**
+     * @param resize Whether only the resolution changed, so a stored precalibration can be reused
+     */
+    private void reconfigureCamera(boolean resize) {
         // switch to INIT if we are running
         if(mApplication.changeApplicationState(CFApplication.State.SURVEY, CFApplication.State.INIT)
             || mApplication.changeApplicationState(CFApplication.State.PRECALIBRATION, CFApplication.State.INIT)
             || mApplication.changeApplicationState(CFApplication.State.CALIBRATION, CFApplication.State.INIT)
             || mApplication.changeApplicationState(CFApplication.State.DATA, CFApplication.State.INIT))
 
-            mCFCamera.configure();
+            mCFCamera.configure(resize);
     }
 
     // FIXME: this is a hack
@@ -116,10 +211,58 @@ public class DAQManager {
         mCFCamera.changeDataRate(increase);
     }
 
+    /**
+     * Let the data rate controller and thermal throttle adjust the camera after a DATA block is
+     * finished
+     *
+     * @param xb The finished ExposureBlock
+     * @param durationNanos Time between the start and end of the block
+     */
+    public void onExposureBlockFinished(ExposureBlock xb, long durationNanos) {
+        DataRateController.Change change = mRateController.onExposureBlockFinished(xb, durationNanos);
+        if(change == DataRateController.Change.NONE && mCFCamera.needsThermalReconfigure()) {
+            change = DataRateController.Change.FRAME_RATE;
+        }
+
+        switch(change) {
+            case FRAME_RATE:
+                // the new XB has just started, so it is the first with the new FPS
+                if(mCFCamera.canUpdateFrameRate()) {
+                    mCFCamera.updateFrameRate();
+                } else {
+                    reconfigureCamera();
+                }
+                break;
+            case RESOLUTION:
+                reconfigureCamera(true);
+                break;
+            case NONE:
+        }
+    }
+
     public void setExposureBlock(ExposureBlock xb) {
         FRAME_BUILDER.setExposureBlock(xb);
     }
 
+    public void setExposureBlock(int cameraId, ExposureBlock xb) {
+        CompanionCamera companion = getCompanion(cameraId);
+        if(companion != null) {
+            companion.setExposureBlock(xb);
+        }
+    }
+
+    /**
+     * Gets the saved precalibration of a companion camera at its current resolution
+     *
+     * @param cameraId ID of the companion camera
+     * @return the config, or null if there is none
+     */
+    @Nullable
+    public PreCalibrationService.Config getPrecalConfig(int cameraId) {
+        CompanionCamera companion = getCompanion(cameraId);
+        return companion != null ? companion.getPrecalConfig() : null;
+    }
+
     public boolean isStreamingRAW() {
         return mCFCamera.isStreamingRAW();
     }
@@ -140,10 +283,56 @@ public class DAQManager {
         return mCFCamera.getFPS();
     }
 
+    /**
+     * @return ISO sensitivity requested for the primary camera
+     */
+    public int getISO() {
+        return mCFCamera.getISO();
+    }
+
+    /**
+     * @return exposure time requested for the primary camera, in ns
+     */
+    public long getExposureTime() {
+        return mCFCamera.getExposureTime();
+    }
+
+    public double getSmoothedFPS() {
+        return mCFCamera.getSmoothedFPS();
+    }
+
     public Boolean isCameraFacingBack() {
         return mCFCamera.isFacingBack();
     }
 
+    /**
+     * Gets the camera with the given ID, whether it is the primary camera or a companion
+     */
+    private CFCamera getCamera(int cameraId) {
+        CompanionCamera companion = getCompanion(cameraId);
+        return companion != null ? companion.getCamera() : mCFCamera;
+    }
+
+    public boolean isStreamingRAW(int cameraId) {
+        return getCamera(cameraId).isStreamingRAW();
+    }
+
+    public int getResX(int cameraId) {
+        return getCamera(cameraId).getResX();
+    }
+
+    public int getResY(int cameraId) {
+        return getCamera(cameraId).getResY();
+    }
+
+    public double getSmoothedFPS(int cameraId) {
+        return getCamera(cameraId).getSmoothedFPS();
+    }
+
+    public Boolean isCameraFacingBack(int cameraId) {
+        return getCamera(cameraId).isFacingBack();
+    }
+
     public boolean isPhoneFlat() {
         return mCFSensor == null || mCFSensor.isFlat();
     }
@@ -163,7 +352,15 @@ public class DAQManager {
      * @return String
      */
     public String getStatus() {
-        return mCFCamera.getStatus() + mCFSensor.getStatus() + mCFLocation.getStatus();
+        StringBuilder status = new StringBuilder(mCFCamera.getStatus());
+        synchronized (this) {
+            for(CompanionCamera companion : mCompanions.values()) {
+                status.append(companion.getCamera().getStatus());
+            }
+        }
+        return status.append(mCFSensor.getStatus())
+                .append(mCFLocation.getStatus())
+                .toString();
     }
 
     /**
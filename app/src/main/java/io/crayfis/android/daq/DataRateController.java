@@ -0,0 +1,244 @@
+package io.crayfis.android.daq;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import io.crayfis.android.exposure.ExposureBlock;
+import io.crayfis.android.main.ThermalMonitor;
+import io.crayfis.android.server.CFConfig;
+import io.crayfis.android.trigger.L1.L1Processor;
+import io.crayfis.android.trigger.TriggerProcessor;
+import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
+
+/**
+ * Chooses the camera resolution and FPS from how the device is actually coping, rather than
+ * waiting for the server to step them.  After each DATA block it looks at the fraction of
+ * frames dropped, how often the buffer pool ran dry, and the backlog of frames waiting for L1.
+ * It holds still while {@link ThermalMonitor} is throttling, since the thermal policy is
+ * already cutting the load and the blocks say nothing about sustainable throughput.
+ *
+ * The controller steps down as soon as a block is badly overloaded, or after two marginal
+ * blocks in a row.  It steps up only after several healthy blocks.  If a step up gives fewer
+ * processed pixels per second than the previous operating point, it steps back down.  Points
+ * which failed are not retried for a while, and the wait doubles on each failure.  The result
+ * is applied at the start of the next block: a new FPS by updating the running capture request,
+ * and a new resolution by configuring the camera again.
+ */
+class DataRateController {
+
+    /**
+     * What a decision requires of the camera
+     */
+    enum Change {
+        NONE,
+        // only the frame duration and exposure time
+        FRAME_RATE,
+        RESOLUTION
+    }
+
+    // acceptable fraction of frames dropped
+    private static final double TARGET_DROP_FRACTION = 0.02;
+    // step down immediately above this
+    private static final double SEVERE_DROP_FRACTION = 0.10;
+
+    private static final int HEALTHY_XBS_TO_STEP_UP = 3;
+    private static final int MARGINAL_XBS_TO_STEP_DOWN = 2;
+    private static final int INITIAL_BACKOFF_XBS = 4;
+    private static final int MAX_BACKOFF_XBS = 64;
+
+    private static final double FPS_STEP = 0.75;
+    private static final double MIN_FPS_SCALE = 0.25;
+
+    private final CFCamera mCamera;
+
+    // counted for this camera only, so that companions do not slow it down
+    private final Metrics.Counter mBuffersExhausted;
+    private final Metrics.Counter mL1Pending;
+    private long mLastExhausted;
+
+    private double mFPSScale = 1.0;
+    private String mLastPoint;
+    private int mHealthy;
+    private int mMarginal;
+
+    // the point we just left, and whether we left it by stepping up
+    private String mPreviousPoint;
+    private boolean mTrialStepUp;
+
+    private int mEvaluated;
+    // best throughput seen at each operating point, in pixels per second
+    private final HashMap<String, Double> mThroughput = new HashMap<>();
+    // the resolution step above each operating point, once we have seen it
+    private final HashMap<String, String> mAbove = new HashMap<>();
+    // operating points which failed, with the block number after which they may be retried
+    private final HashMap<String, Integer> mRetryAfter = new HashMap<>();
+    private final HashMap<String, Integer> mBackoff = new HashMap<>();
+
+    DataRateController(CFCamera camera) {
+        mCamera = camera;
+        int pinnedId = camera.getPinnedId();
+        String prefix = pinnedId < 0 ? "camera" : "camera" + pinnedId;
+        mBuffersExhausted = Metrics.getInstance().counter(prefix + ".buffers_exhausted");
+        mL1Pending = Metrics.getInstance().counter(
+                TriggerProcessor.metricName(L1Processor.class, pinnedId, "pending"));
+    }
+
+    /**
+     * Judge a finished DATA block and pick the next operating point
+     *
+     * @param xb The finished ExposureBlock
+     * @param durationNanos Time between the start and end of the block
+     * @return how the camera needs to be changed
+     */
+    synchronized Change onExposureBlockFinished(ExposureBlock xb, long durationNanos) {
+        if(durationNanos <= 0) return Change.NONE;
+
+        long exhausted = mBuffersExhausted.get() - mLastExhausted;
+        mLastExhausted = mBuffersExhausted.get();
+
+        if(mCamera.isDataRateLocked()) {
+            if(mFPSScale != 1.0) {
+                mFPSScale = 1.0;
+                mCamera.setFPSScale(mFPSScale);
+                return Change.FRAME_RATE;
+            }
+            return Change.NONE;
+        }
+
+        if(ThermalMonitor.getInstance().getLevel() != ThermalMonitor.Level.NONE) {
+            mHealthy = 0;
+            return Change.NONE;
+        }
+
+        String point = pointName(xb.res_x, xb.res_y, mFPSScale);
+        if(!point.equals(mLastPoint)) {
+            if(mPreviousPoint != null && mLastPoint != null && mLastPoint.equals(mPreviousPoint)) {
+                // learn which point a resolution step leads to
+                if(mTrialStepUp) {
+                    mAbove.put(mPreviousPoint, point);
+                } else {
+                    mAbove.put(point, mPreviousPoint);
+                }
+            } else {
+                // changed underneath us, e.g. by the server
+                mTrialStepUp = false;
+            }
+            mHealthy = 0;
+            mMarginal = 0;
+        }
+        mLastPoint = point;
+        mEvaluated++;
+
+        int frames = xb.count.get();
+        int dropped = xb.dropped.get();
+        double dropFraction = frames + dropped > 0 ? (double) dropped / (frames + dropped) : 0;
+        double throughput = (double) frames * xb.res_x * xb.res_y / (durationNanos / 1e9);
+
+        Double best = mThroughput.get(point);
+        if(best == null || throughput > best) {
+            mThroughput.put(point, throughput);
+        }
+
+        boolean backlogged = mL1Pending.get() > CFConfig.getInstance().getNAlloc() / 2;
+        boolean severe = dropFraction > SEVERE_DROP_FRACTION;
+        boolean marginal = severe || backlogged || dropFraction > TARGET_DROP_FRACTION
+                || exhausted > 0 && dropFraction > TARGET_DROP_FRACTION / 2;
+
+        CFLog.d("DataRateController: " + point + " drops=" + String.format("%.3f", dropFraction)
+                + " exhausted=" + exhausted + " backlog=" + mL1Pending.get()
+                + " px/s=" + String.format("%.3g", throughput));
+
+        // judge a step up against where we came from
+        if(mTrialStepUp && !point.equals(mPreviousPoint)) {
+            mTrialStepUp = false;
+            Double previous = mThroughput.get(mPreviousPoint);
+            if(marginal || previous != null && throughput < previous) {
+                CFLog.i("DataRateController: " + point + " is no improvement, stepping back down");
+                markFailed(point);
+                return stepDown(point);
+            }
+            clearFailed(point);
+        }
+
+        if(severe || marginal && ++mMarginal >= MARGINAL_XBS_TO_STEP_DOWN) {
+            markFailed(point);
+            return stepDown(point);
+        }
+        if(marginal) {
+            mHealthy = 0;
+            return Change.NONE;
+        }
+
+        mMarginal = 0;
+        if(++mHealthy >= HEALTHY_XBS_TO_STEP_UP) {
+            return stepUp(point);
+        }
+        return Change.NONE;
+    }
+
+    private Change stepDown(String point) {
+        mHealthy = 0;
+        mMarginal = 0;
+        mPreviousPoint = point;
+        mTrialStepUp = false;
+        if(mCamera.changeDataRate(false)) {
+            CFLog.i("DataRateController: lowering resolution");
+            return Change.RESOLUTION;
+        }
+        if(mFPSScale > MIN_FPS_SCALE) {
+            mFPSScale = Math.max(MIN_FPS_SCALE, mFPSScale * FPS_STEP);
+            mCamera.setFPSScale(mFPSScale);
+            CFLog.i("DataRateController: lowering FPS to " + String.format("%.2f", mFPSScale) + " of target");
+            return Change.FRAME_RATE;
+        }
+        return Change.NONE;
+    }
+
+    private Change stepUp(String point) {
+        mHealthy = 0;
+
+        // restore the FPS before raising the resolution again
+        if(mFPSScale < 1.0) {
+            double scale = Math.min(1.0, mFPSScale / FPS_STEP);
+        Change change;
+        if(mFPSScale < 1.0) {
+            double scale = Math.min(1.0, mFPSScale / FPS_STEP);
+            if(isBackingOff(pointName(mCamera.getResX(), mCamera.getResY(), scale))) return Change.NONE;
+            mFPSScale = scale;
+            mCamera.setFPSScale(mFPSScale);
+            CFLog.i("DataRateController: raising FPS to " + String.format("%.2f", mFPSScale) + " of target");
+            change = Change.FRAME_RATE;
+        } else {
+            String above = mAbove.get(point);
+            if(above != null && isBackingOff(above)) return Change.NONE;
+            if(!mCamera.changeDataRate(true)) return Change.NONE;
+            CFLog.i("DataRateController: raising resolution");
+            change = Change.RESOLUTION;
+        }
+        mPreviousPoint = point;
+        mTrialStepUp = true;
+        return change;
+    }
+
+    private boolean isBackingOff(String point) {
+        Integer retry = mRetryAfter.get(point);
+        return retry != null && mEvaluated < retry;
+    }
+
+    private void markFailed(String point) {
+        Integer backoff = mBackoff.get(point);
+        backoff = backoff == null ? INITIAL_BACKOFF_XBS : Math.min(2 * backoff, MAX_BACKOFF_XBS);
+        mBackoff.put(point, backoff);
+        mRetryAfter.put(point, mEvaluated + backoff);
+    }
+
+    private void clearFailed(String point) {
+        mBackoff.remove(point);
+        mRetryAfter.remove(point);
+    }
+
+    private static String pointName(int resX, int resY, double fpsScale) {
+        return resX + "x" + resY + "@" + String.format(Locale.US, "%.2f", fpsScale);
+    }
+}
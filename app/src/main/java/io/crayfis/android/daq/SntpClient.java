@@ -40,17 +40,6 @@ import java.net.InetAddress;
 class SntpClient
 {
 
-    private static SntpClient mInstance = null;
-
-    public static SntpClient getInstance()
-    {
-        if (mInstance==null)
-        {
-            mInstance = new SntpClient();
-        }
-        return mInstance;
-    }
-
     private static final String TAG = "SntpClient";
 
     private static final int REFERENCE_TIME_OFFSET = 16;
@@ -76,6 +65,11 @@ class SntpClient
     // round trip time in milliseconds
     private long mRoundTripTime;
 
+    // the same, in nanoseconds, with SystemClock.elapsedRealtimeNanos() as the reference
+    private long mNtpTimeNanos;
+    private long mNtpTimeReferenceNanos;
+    private long mRoundTripTimeNanos;
+
     /**
      * Sends an SNTP request to the given host and processes the response.
      *
@@ -84,13 +78,26 @@ class SntpClient
      * @return true if the transaction was successful.
      */
     public boolean requestTime(String host, int timeout) {
+        return requestTime(host, NTP_PORT, timeout);
+    }
+
+    /**
+     * Sends an SNTP request to the given host and port, e.g. a local server, and processes the
+     * response.
+     *
+     * @param host host name of the server.
+     * @param port UDP port of the server.
+     * @param timeout network timeout in milliseconds.
+     * @return true if the transaction was successful.
+     */
+    public boolean requestTime(String host, int port, int timeout) {
         DatagramSocket socket = null;
         try {
             socket = new DatagramSocket();
             socket.setSoTimeout(timeout);
             InetAddress address = InetAddress.getByName(host);
             byte[] buffer = new byte[NTP_PACKET_SIZE];
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, NTP_PORT);
+            DatagramPacket request = new DatagramPacket(buffer, buffer.length, address, port);
 
             // set mode = 3 (client) and version = 3
             // mode is in low 3 bits of first byte
@@ -99,7 +106,8 @@ class SntpClient
 
             // get current time and write it to the request packet
             long requestTime = System.currentTimeMillis();
-            long requestTicks = SystemClock.elapsedRealtime();
+            long requestTicksNanos = SystemClock.elapsedRealtimeNanos();
+            long requestTicks = requestTicksNanos / 1000000L;
             writeTimeStamp(buffer, TRANSMIT_TIME_OFFSET, requestTime);
 
             socket.send(request);
@@ -107,7 +115,8 @@ class SntpClient
             // read the response
             DatagramPacket response = new DatagramPacket(buffer, buffer.length);
             socket.receive(response);
-            long responseTicks = SystemClock.elapsedRealtime();
+            long responseTicksNanos = SystemClock.elapsedRealtimeNanos();
+            long responseTicks = responseTicksNanos / 1000000L;
             long responseTime = requestTime + (responseTicks - requestTicks);
 
             // extract the results
@@ -132,6 +141,15 @@ class SntpClient
             mNtpTime = responseTime + clockOffset;
             mNtpTimeReference = responseTicks;
             mRoundTripTime = roundTripTime;
+
+            // the same in nanoseconds, as the NTP fractions resolve far below a millisecond
+            long originateNanos = readTimeStampNanos(buffer, ORIGINATE_TIME_OFFSET);
+            long receiveNanos = readTimeStampNanos(buffer, RECEIVE_TIME_OFFSET);
+            long transmitNanos = readTimeStampNanos(buffer, TRANSMIT_TIME_OFFSET);
+            long responseNanos = originateNanos + (responseTicksNanos - requestTicksNanos);
+            mNtpTimeNanos = responseNanos + ((receiveNanos - originateNanos) + (transmitNanos - responseNanos))/2;
+            mNtpTimeReferenceNanos = responseTicksNanos;
+            mRoundTripTimeNanos = responseTicksNanos - requestTicksNanos - (transmitNanos - receiveNanos);
         } catch (Exception e) {
             if (false) CFLog.d("NTPClient request time failed: " + e);
             return false;
@@ -173,6 +191,33 @@ class SntpClient
         return mRoundTripTime;
     }
 
+    /**
+     * Returns the NTP time of the last transaction, in nanoseconds since January 1, 1970.
+     *
+     * @return the time computed from the NTP server response.
+     */
+    public long getNtpTimeNanos() {
+        return mNtpTimeNanos;
+    }
+
+    /**
+     * Returns the value of SystemClock.elapsedRealtimeNanos() corresponding to the NTP time.
+     *
+     * @return reference clock corresponding to the NTP time, in nanoseconds.
+     */
+    public long getNtpTimeReferenceNanos() {
+        return mNtpTimeReferenceNanos;
+    }
+
+    /**
+     * Returns the round trip time of the NTP transaction
+     *
+     * @return round trip time in nanoseconds.
+     */
+    public long getRoundTripTimeNanos() {
+        return mRoundTripTimeNanos;
+    }
+
     /**
      * Reads an unsigned 32 bit big endian number from the given offset in the buffer.
      */
@@ -201,6 +246,16 @@ class SntpClient
         return ((seconds - OFFSET_1900_TO_1970) * 1000) + ((fraction * 1000L) / 0x100000000L);        
     }
 
+    /**
+     * Reads the NTP time stamp at the given offset in the buffer and returns
+     * it in nanoseconds since January 1, 1970.
+     */
+    private long readTimeStampNanos(byte[] buffer, int offset) {
+        long seconds = read32(buffer, offset);
+        long fraction = read32(buffer, offset + 4);
+        return ((seconds - OFFSET_1900_TO_1970) * 1000000000L) + ((fraction * 1000000000L) >>> 32);
+    }
+
     /**
      * Writes system time (milliseconds since January 1, 1970) as an NTP time stamp 
      * at the given offset in the buffer.
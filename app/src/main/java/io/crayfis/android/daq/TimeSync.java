@@ -0,0 +1,231 @@
+package io.crayfis.android.daq;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
+
+/**
+ * Queries an NTP server in the background and publishes a {@link ClockMapping}, so that frames
+ * can be timestamped without querying any clocks.
+ *
+ * The offset between NTP and SystemClock.elapsedRealtimeNanos(), which keeps counting in deep
+ * sleep, is fitted to the recent responses as a straight line, weighting each by its round trip
+ * time, and the slope is the drift of the local clock.  Responses much slower than the best one
+ * are left out, as their offsets are less reliable.
+ */
+public final class TimeSync {
+
+    private static final String DEFAULT_HOST = "pool.ntp.org";
+    private static final int DEFAULT_PORT = 123;
+    private static final int TIMEOUT_MS = 3000;
+
+    // sync quickly until the fit has enough samples
+    private static final long INITIAL_PERIOD_MS = 30000L;
+    private static final long SYNC_PERIOD_MS = 600000L;
+    private static final int MIN_SAMPLES = 4;
+    private static final int MAX_SAMPLES = 12;
+
+    // the drift is only fitted over at least this long, and trusted up to this many ppm
+    private static final long MIN_FIT_SPAN_NANOS = 60000000000L;
+    private static final double MAX_DRIFT = 500e-6;
+    private static final int MAX_RTT_RATIO = 2;
+
+    private final Metrics.Counter mFailures = Metrics.getInstance().counter("time.sync_failures");
+
+    /**
+     * One NTP response, with the offset relative to the first one to keep the fit precise
+     */
+    private static final class Sample {
+        final long elapsedNanos;
+        final long offsetNanos;
+        final long rttNanos;
+
+        Sample(long elapsedNanos, long offsetNanos, long rttNanos) {
+            this.elapsedNanos = elapsedNanos;
+            this.offsetNanos = offsetNanos;
+            this.rttNanos = rttNanos;
+        }
+    }
+
+    // only touched in sync(), under mSyncLock
+    private final Object mSyncLock = new Object();
+    private final ArrayDeque<Sample> mSamples = new ArrayDeque<>();
+    private final SntpClient mClient = new SntpClient();
+    private long mBaseOffsetNanos;
+
+    private volatile ClockMapping mMapping = ClockMapping.unsynced();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private SyncLoop mLoop;
+    private String mHost;
+    private int mPort;
+
+    private static TimeSync sInstance;
+
+    /**
+     * Get the instance of {@link TimeSync}.
+     *
+     * @return {@link TimeSync}
+     */
+    public static synchronized TimeSync getInstance() {
+        if(sInstance == null) {
+            sInstance = new TimeSync();
+        }
+        return sInstance;
+    }
+
+    private TimeSync() { }
+
+    /**
+     * Start syncing with the default NTP server
+     */
+    public void register() {
+        register(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    /**
+     * Start syncing with the given NTP server, e.g. a local one for testing
+     *
+     * @param host Host name of the server
+     * @param port UDP port of the server
+     */
+    public synchronized void register(@NonNull String host, int port) {
+        if(mThread != null) return;
+
+        mHost = host;
+        mPort = port;
+        mThread = new HandlerThread("TimeSync");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mLoop = new SyncLoop(mHandler);
+        mHandler.post(mLoop);
+    }
+
+    public synchronized void unregister() {
+        if(mThread == null) return;
+        mHandler.removeCallbacks(mLoop);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+        mLoop = null;
+    }
+
+    /**
+     * @return the latest mapping, which never changes once published
+     */
+    public ClockMapping getMapping() {
+        return mMapping;
+    }
+
+    /**
+     * Sync loop of one registration.  A request still in flight after unregister() must not
+     * re-post itself, or a later register() would have two loops sharing mSamples.
+     */
+    private final class SyncLoop implements Runnable {
+        private final Handler mLoopHandler;
+
+        SyncLoop(Handler handler) {
+            mLoopHandler = handler;
+        }
+
+        @Override
+        public void run() {
+            long delay;
+            synchronized (mSyncLock) {
+                if(!isCurrent()) return;
+                sync();
+                delay = mSamples.size() < MIN_SAMPLES ? INITIAL_PERIOD_MS : SYNC_PERIOD_MS;
+            }
+
+            synchronized (TimeSync.this) {
+                if(mHandler != mLoopHandler) return;
+                mHandler.postDelayed(this, delay);
+            }
+        }
+
+        private boolean isCurrent() {
+            synchronized (TimeSync.this) {
+                return mHandler == mLoopHandler;
+            }
+        }
+    }
+
+    private void sync() {
+        if(mClient.requestTime(mHost, mPort, TIMEOUT_MS)) {
+            long elapsed = mClient.getNtpTimeReferenceNanos();
+            long offset = mClient.getNtpTimeNanos() - elapsed;
+
+            if(mSamples.isEmpty()) {
+                mBaseOffsetNanos = offset;
+            }
+            mSamples.addLast(new Sample(elapsed, offset - mBaseOffsetNanos, mClient.getRoundTripTimeNanos()));
+            if(mSamples.size() > MAX_SAMPLES) {
+                mSamples.removeFirst();
+            }
+        } else {
+            mFailures.inc();
+            CFLog.d("NTP request to " + mHost + " failed");
+        }
+
+        // republish even without a response, to follow changes of the system clock
+        mMapping = fit();
+        CFLog.d("TimeSync: " + mMapping);
+    }
+
+    /**
+     * Fit the offset to the samples, and express it as a mapping from now on
+     */
+    private ClockMapping fit() {
+        ClockMapping unsynced = ClockMapping.unsynced();
+        if(mSamples.isEmpty()) return unsynced;
+        long refMono = unsynced.getRefMonoNanos();
+        long refElapsed = refMono + unsynced.getElapsedOffsetNanos();
+
+        long minRtt = Long.MAX_VALUE;
+        Sample last = mSamples.getLast();
+        for(Sample s : mSamples) {
+            minRtt = Math.min(minRtt, Math.max(s.rttNanos, 1L));
+        }
+
+        // weighted least squares, about the last sample
+        double sw = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+        int n = 0;
+        long first = last.elapsedNanos;
+        for(Sample s : mSamples) {
+            long rtt = Math.max(s.rttNanos, 1L);
+            if(rtt > MAX_RTT_RATIO * minRtt) continue;
+            double w = 1.0 / ((double) rtt * rtt);
+            double x = s.elapsedNanos - last.elapsedNanos;
+            double y = s.offsetNanos;
+            sw += w;
+            sx += w * x;
+            sy += w * y;
+            sxx += w * x * x;
+            sxy += w * x * y;
+            first = Math.min(first, s.elapsedNanos);
+            n++;
+        }
+
+        double drift = 0.0;
+        double intercept = sy / sw;
+        double det = sw * sxx - sx * sx;
+        if(n >= 2 && last.elapsedNanos - first >= MIN_FIT_SPAN_NANOS && det > 0) {
+            double slope = (sw * sxy - sx * sy) / det;
+            if(Math.abs(slope) <= MAX_DRIFT) {
+                drift = slope;
+                intercept = (sy - slope * sx) / sw;
+            }
+        }
+
+        double offset = intercept + drift * (refElapsed - last.elapsedNanos);
+        long refNtp = refElapsed + mBaseOffsetNanos + Math.round(offset);
+        return new ClockMapping(refMono, unsynced.getElapsedOffsetNanos(), unsynced.getRefSysMillis(),
+                refNtp, drift, minRtt, n);
+    }
+}
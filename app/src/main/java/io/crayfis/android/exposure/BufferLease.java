@@ -0,0 +1,89 @@
+package io.crayfis.android.exposure;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted claim on one of the buffers of a {@link Frame.Producer}.  A frame starts
+ * with one reference, each extra branch of the TriggerChain adds one, and the buffer goes back
+ * to the producer when the count reaches zero.
+ *
+ * The watchdog revokes a lease held too long.  Its buffer then goes back once no task is reading
+ * it, and tasks which have not started on the frame skip it.
+ */
+final class BufferLease {
+
+    final Frame frame;
+    private final long mAcquiredMillis = SystemClock.elapsedRealtime();
+    private final AtomicInteger mRefs = new AtomicInteger(1);
+
+    // last stage known to hold the buffer, for leak reports
+    private volatile String mOwner = "camera";
+
+    // guarded by this
+    private boolean mRevoked;
+    private int mReaders;
+
+    BufferLease(Frame frame) {
+        this.frame = frame;
+    }
+
+    void acquire(int n) {
+        mRefs.addAndGet(n);
+    }
+
+    /**
+     * @return true if this was the last reference
+     */
+    boolean release() {
+        return mRefs.decrementAndGet() == 0;
+    }
+
+    /**
+     * Start reading the buffer
+     *
+     * @return false if the lease was revoked, and the buffer must not be touched
+     */
+    synchronized boolean beginRead() {
+        if(mRevoked) return false;
+        mReaders++;
+        return true;
+    }
+
+    /**
+     * @return true if the lease was revoked and this was the last reader, so the buffer can go back
+     */
+    synchronized boolean endRead() {
+        mReaders--;
+        return mRevoked && mReaders == 0;
+    }
+
+    /**
+     * @return true if nobody is reading the buffer, so it can go back now
+     */
+    synchronized boolean revoke() {
+        mRevoked = true;
+        return mReaders == 0;
+    }
+
+    synchronized boolean isRevoked() {
+        return mRevoked;
+    }
+
+    int getRefs() {
+        return mRefs.get();
+    }
+
+    void setOwner(String owner) {
+        mOwner = owner;
+    }
+
+    String getOwner() {
+        return mOwner;
+    }
+
+    long getAgeMillis() {
+        return SystemClock.elapsedRealtime() - mAcquiredMillis;
+    }
+}
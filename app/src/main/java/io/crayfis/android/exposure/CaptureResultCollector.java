@@ -9,9 +9,11 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 
 import io.crayfis.android.daq.AcquisitionTime;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 class CaptureResultCollector {
     private int mDropped = 0;
+    private final Metrics.Counter mDroppedCount = Metrics.getInstance().counter("camera.results_dropped");
     private static final String TAG = "CaptureResultCollector";
 
     private final Deque<Pair<TotalCaptureResult, AcquisitionTime>> mResultDeque
@@ -21,6 +23,7 @@ class CaptureResultCollector {
         mResultDeque.offer(new Pair<>(result, t));
         if(mResultDeque.size() > 2) {
             mDropped++;
+            mDroppedCount.inc();
             mResultDeque.poll();
         }
         //CFLog.d("onCaptureCompleted() " + mResultDeque.size());
@@ -57,6 +60,7 @@ class CaptureResultCollector {
         }
         if (result_timestamp < timestamp){
             mDropped++;
+            mDroppedCount.inc();
             return findMatch(timestamp);
         }
         mResultDeque.offerFirst(pair);
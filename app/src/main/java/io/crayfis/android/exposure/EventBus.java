@@ -0,0 +1,235 @@
+package io.crayfis.android.exposure;
+
+import androidx.annotation.NonNull;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.crayfis.android.DataProtos;
+import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
+
+/**
+ * Fans out finished events to sinks such as the live view and gallery, so that none of them
+ * run on the frame processing threads.  Publishing never blocks: each subscriber has its own
+ * bounded queue, drained on its own executor, and events that do not fit are dropped
+ * according to the subscriber's {@link DropPolicy}.
+ */
+public final class EventBus {
+
+    /**
+     * An event which has been added to its ExposureBlock
+     */
+    public static final class FinishedEvent {
+
+        private final byte[] mBytes;
+        private final int mNPix;
+        private final int[] mL2Values;
+        private DataProtos.Event mEvent;
+
+        FinishedEvent(@NonNull byte[] bytes, int npix, @NonNull int[] l2Values) {
+            mBytes = bytes;
+            mNPix = npix;
+            mL2Values = l2Values;
+        }
+
+        /**
+         * @return the number of pixels in the Pixel or ByteBlock payload
+         */
+        public int getPixelCount() {
+            return mNPix;
+        }
+
+        /**
+         * @return the values of the pixels which passed L2
+         */
+        public int[] getL2Values() {
+            return mL2Values;
+        }
+
+        /**
+         * Parse the event, once, for whichever subscriber asks first
+         *
+         * @return DataProtos.Event, or null if the bytes are corrupt
+         */
+        public synchronized DataProtos.Event getEvent() {
+            if(mEvent == null) {
+                try {
+                    mEvent = DataProtos.Event.parseFrom(mBytes);
+                } catch (InvalidProtocolBufferException e) {
+                    CFLog.e("Could not parse event", e);
+                }
+            }
+            return mEvent;
+        }
+    }
+
+    public interface Subscriber {
+        void onEvent(FinishedEvent event);
+    }
+
+    public enum DropPolicy {
+        DROP_NEWEST,
+        DROP_OLDEST
+    }
+
+    private static final class Subscription implements Runnable {
+
+        private final String mName;
+        private final Subscriber mSubscriber;
+        private final Executor mExecutor;
+        private final int mCapacity;
+        private final DropPolicy mPolicy;
+
+        private final ConcurrentLinkedQueue<FinishedEvent> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final Metrics.Counter mDropped;
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        Subscription(String name, Subscriber subscriber, Executor executor, int capacity,
+                     DropPolicy policy) {
+            mName = name;
+            mSubscriber = subscriber;
+            mExecutor = executor;
+            mCapacity = capacity;
+            mPolicy = policy;
+            mDropped = Metrics.getInstance().counter("eventbus." + name + ".dropped");
+            Metrics.getInstance().gauge("eventbus." + name + ".pending", new Metrics.Gauge() {
+                @Override
+                public double value() {
+                    return mSize.get();
+                }
+            });
+        }
+
+        void offer(FinishedEvent event) {
+            if(mSize.incrementAndGet() > mCapacity) {
+                if(mPolicy == DropPolicy.DROP_NEWEST) {
+                    mSize.decrementAndGet();
+                    drop();
+                    return;
+                }
+                // otherwise, make room, unless the subscriber just did
+                if(mQueue.poll() != null) {
+                    mSize.decrementAndGet();
+                    drop();
+                }
+            }
+            mQueue.add(event);
+            schedule();
+        }
+
+        private void drop() {
+            mDropped.inc();
+            long dropped = mDropped.get();
+            if(Long.bitCount(dropped) == 1) {
+                CFLog.w(mName + " is falling behind: " + dropped + " events dropped");
+            }
+        }
+
+        private void schedule() {
+            if(mScheduled.compareAndSet(false, true)) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the subscriber is shutting down
+                    mScheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            FinishedEvent event;
+            while((event = mQueue.poll()) != null) {
+                mSize.decrementAndGet();
+                try {
+                    mSubscriber.onEvent(event);
+                } catch (RuntimeException e) {
+                    CFLog.e(mName + " failed to handle event", e);
+                }
+            }
+            mScheduled.set(false);
+
+            // catch anything offered after the last poll
+            if(!mQueue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    private static EventBus sInstance;
+
+    /**
+     * Get the instance of {@link EventBus}.
+     *
+     * @return {@link EventBus}
+     */
+    public static synchronized EventBus getInstance() {
+        if(sInstance == null) {
+            sInstance = new EventBus();
+        }
+        return sInstance;
+    }
+
+    private EventBus() { }
+
+    /**
+     * Create a single background thread for a subscriber
+     *
+     * @param name Thread name
+     * @return ExecutorService
+     */
+    public static ExecutorService newSinkExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param name Name used in log messages
+     * @param subscriber Subscriber
+     * @param executor Executor to deliver events on
+     * @param capacity Maximum number of undelivered events
+     * @param policy What to do when the queue is full
+     */
+    public void subscribe(@NonNull String name, @NonNull Subscriber subscriber,
+                          @NonNull Executor executor, int capacity, @NonNull DropPolicy policy) {
+        mSubscriptions.add(new Subscription(name, subscriber, executor, capacity, policy));
+    }
+
+    public void unsubscribe(@NonNull Subscriber subscriber) {
+        for(Subscription s : mSubscriptions) {
+            if(s.mSubscriber == subscriber) {
+                mSubscriptions.remove(s);
+            }
+        }
+    }
+
+    /**
+     * Queue an event for every subscriber.  This never blocks.
+     *
+     * @param event FinishedEvent
+     */
+    void publish(@NonNull FinishedEvent event) {
+        for(Subscription s : mSubscriptions) {
+            s.offer(event);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.crayfis.android.exposure;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Serializes the Event of a Frame straight into a per-thread scratch buffer, without building
+ * an intermediate DataProtos.Event.  The buffer grows as needed and is reused for every frame
+ * processed on the same thread, so the only allocation per event is the final copy.
+ */
+final class EventWriter {
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_SIZE];
+        }
+    };
+
+    private EventWriter() { }
+
+    /**
+     * @param frame Frame with an Event to write
+     * @param payload Payload of the Event
+     * @param branch Branch which wrote the payload
+     * @return the bytes of a DataProtos.Event
+     */
+    static byte[] serialize(Frame frame, Frame.Payload payload, Frame.Branch branch) {
+        byte[] buf = sBuffer.get();
+        while(true) {
+            CodedOutputStream out = CodedOutputStream.newInstance(buf);
+            try {
+                frame.writeEvent(out, payload, branch);
+                return Arrays.copyOf(buf, out.getTotalBytesWritten());
+            } catch (CodedOutputStream.OutOfSpaceException e) {
+                buf = new byte[2 * buf.length];
+                sBuffer.set(buf);
+                CFLog.d("Event buffer grown to " + buf.length + " bytes");
+            } catch (IOException e) {
+                // an array never throws anything else
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
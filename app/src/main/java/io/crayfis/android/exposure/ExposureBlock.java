@@ -1,22 +1,22 @@
 package io.crayfis.android.exposure;
 
-import android.Manifest;
-import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
 import android.location.Location;
-import android.preference.PreferenceManager;
-import android.renderscript.Allocation;
 
 import androidx.annotation.Nullable;
 
-import java.util.ArrayList;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.io.IOException;
 import java.util.LinkedHashSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import io.crayfis.android.R;
 import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.DataProtos;
+import io.crayfis.android.compute.Weights;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.trigger.L1.L1Processor;
 import io.crayfis.android.trigger.L2.L2Processor;
@@ -24,19 +24,22 @@ import io.crayfis.android.trigger.TriggerChain;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.util.Histogram;
 import io.crayfis.android.daq.AcquisitionTime;
-import io.crayfis.android.ui.navdrawer.gallery.GalleryUtil;
-import io.crayfis.android.ui.navdrawer.gallery.LayoutGallery;
-import io.crayfis.android.ui.navdrawer.live_view.LayoutLiveView;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 public class ExposureBlock {
 
+    // trigger configs applied in this block, see configVersionFields()
+    public static final int XB_FIELD_CONFIG_VERSIONS = 101;
+
     private final CFApplication APPLICATION;
 
 	public final UUID run_id;
     public final int hot_hash;
     public final int wgt_hash;
     public final int camera_id;
+    // whether this camera streams alongside the primary camera
+    public final boolean companion;
     final Boolean camera_facing_back;
 
 	private final AcquisitionTime start_time;
@@ -50,10 +53,12 @@ public class ExposureBlock {
 	public final int res_x;
 	public final int res_y;
 
-	public final Allocation weights;
+	public final Weights weights;
 	public final TriggerChain TRIGGER_CHAIN;
 
-	private int total_pixels;
+	private final AtomicInteger total_pixels = new AtomicInteger();
+    // largest L2 pixel value in the events, for the chunk index
+    private final AtomicInteger max_pixel = new AtomicInteger();
 	
 	// the exposure block number within the given run
 	public final int xbn;
@@ -71,8 +76,8 @@ public class ExposureBlock {
     // list of raw frames that have been assigned to this XB (but not yet processed)
     private final LinkedHashSet<Frame> assignedFrames = new LinkedHashSet<>();
 
-    // list of reconstructed events to be uploaded
-    private final ArrayList<DataProtos.Event> events = new ArrayList<>();
+    // serialized events to be uploaded
+    private final ConcurrentLinkedQueue<byte[]> events = new ConcurrentLinkedQueue<>();
 
     ExposureBlock(CFApplication application,
                          int xbn,
@@ -80,8 +85,9 @@ public class ExposureBlock {
                          int hot_hash,
                          int wgt_hash,
                          int camera_id,
+                         boolean companion,
                          @Nullable Boolean camera_facing_back,
-                         Allocation weights,
+                         Weights weights,
                          Location start_loc,
                          int batteryTemp,
                          CFApplication.State daq_state,
@@ -95,17 +101,19 @@ public class ExposureBlock {
         this.hot_hash = hot_hash;
         this.wgt_hash = wgt_hash;
         this.camera_id = camera_id;
+        this.companion = companion;
         this.camera_facing_back = camera_facing_back;
         this.weights = weights;
-        this.underflow_hist = new Histogram((int) Math.ceil(CFConfig.getInstance().getL1Threshold())+1);
+        CFConfig config = CFConfig.getInstance();
+        float l1Thresh = companion ? config.getL1Trigger(camera_id).getFloat(L1Processor.KEY_L1_THRESH)
+                : config.getL1Threshold();
+        this.underflow_hist = new Histogram((int) Math.ceil(l1Thresh)+1);
         this.start_loc = start_loc;
         this.batteryTemp = batteryTemp;
         this.daq_state = daq_state;
         this.res_x = resx;
         this.res_y = resy;
 
-        total_pixels = 0;
-
         this.TRIGGER_CHAIN = new TriggerChain(APPLICATION, this);
 
     }
@@ -173,38 +181,33 @@ public class ExposureBlock {
         }
     }
 
+    /**
+     * Remove a processed frame from this XB, storing its event if it passed a trigger.  The
+     * event is then published to the {@link EventBus}, so no UI or disk work is done here.
+     *
+     * @param frame Frame
+     */
     public void clearFrame(Frame frame) {
-        synchronized (assignedFrames) {
-            if (frame.uploadRequested()) {
-                // this frame passed some trigger, so add it to the XB
-                DataProtos.Event event = frame.getEvent();
-                synchronized (events) {
-                    events.add(event);
-                }
-
-                // update UI
-                LayoutLiveView.addEvent(event);
-
-                if(event.getPixelsCount() >= LayoutGallery.getGalleryCount()
-                        || event.hasByteBlock() && event.getByteBlock().getXCount() >= LayoutGallery.getGalleryCount()) {
-                    SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(APPLICATION);
-                    if(sharedPrefs.getBoolean(APPLICATION.getString(R.string.prefEnableGallery), false)
-                            && (APPLICATION.checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
-                            == PackageManager.PERMISSION_GRANTED)) {
-
-                        GalleryUtil.saveImage(event);
-                    }
-                }
+        // one event for each branch of the TriggerChain which passed the frame
+        for(Frame.Event event : frame.getEvents()) {
+            events.add(event.bytes);
+
+            // add to XB pixels
+            int npix = event.pixelCount;
+            int total = total_pixels.addAndGet(npix);
+            CFLog.d("addevt: Added event with " + npix + " pixels (total = " + total + ")");
+
+            int val = event.maxPixel;
+            int max = max_pixel.get();
+            while(val > max && !max_pixel.compareAndSet(max, val)) {
+                max = max_pixel.get();
+            }
 
-                // add to XB pixels
-                int npix = event.getPixelsCount();
-                if(event.hasByteBlock()) {
-                    npix = event.getByteBlock().getXCount();
-                }
+            EventBus.getInstance().publish(new EventBus.FinishedEvent(event.bytes, npix, event.l2Values));
+        }
 
-                total_pixels += npix;
-                CFLog.d("addevt: Added event with " + npix + " pixels (total = " + total_pixels + ")");
-            }
+        // the event must be stored before the XB can be finalized
+        synchronized (assignedFrames) {
             if(!assignedFrames.remove(frame)) {
                 CFLog.e("clearFrame() called but frame was not assigned.");
                 CFLog.d("assigned frames: " + assignedFrames.size());
@@ -226,12 +229,12 @@ public class ExposureBlock {
 		}
 	}
 	
-	DataProtos.ExposureBlock buildProto() {
+	public DataProtos.ExposureBlock buildProto() {
 		DataProtos.ExposureBlock.Builder buf = DataProtos.ExposureBlock.newBuilder()
                 .setDaqState(translateState(daq_state));
 
 		for(TriggerProcessor processor : TRIGGER_CHAIN) {
-		    buf.addConfig(processor.getClass().getSimpleName() + ": " + processor.config.toString())
+		    buf.addConfig(processor.getClass().getSimpleName() + ": " + processor.getConfig().toString())
                     .addProcessed(processor.getProcessed())
                     .addPass(processor.getPasses())
                     .addSkip(processor.getSkips());
@@ -240,7 +243,7 @@ public class ExposureBlock {
         TriggerProcessor L1 = TRIGGER_CHAIN.getProcessor(L1Processor.class);
 
         if(L1 != null) {
-            float thresh = L1.config.getFloat(L1Processor.KEY_L1_THRESH);
+            float thresh = L1.getConfig().getFloat(L1Processor.KEY_L1_THRESH);
             buf.setL1Thresh((int) thresh);
             buf.setL1Prescale(thresh - (int)thresh);
         }
@@ -248,7 +251,7 @@ public class ExposureBlock {
         TriggerProcessor L2 = TRIGGER_CHAIN.getProcessor(L2Processor.class);
 
         if(L2 != null) {
-            buf.setL2Thresh(L2.config.getInt(L2Processor.KEY_L2_THRESH));
+            buf.setL2Thresh(L2.getConfig().getInt(L2Processor.KEY_L2_THRESH));
         }
 
         buf.setGpsLat(start_loc.getLatitude())
@@ -292,24 +295,90 @@ public class ExposureBlock {
             buf.setHotHash(hot_hash)
                     .setWgtHash(wgt_hash);
         }
-		
-		// don't output event information for calibration blocks...
-		// they're really huge.
-		if (daq_state == CFApplication.State.DATA) {
-			for (DataProtos.Event evt : events) {
-                try {
-                    buf.addEvents(evt);
-                } catch (Exception e) {
-                }
-			}
-		}
-				
+
+        buf.mergeUnknownFields(Metrics.getInstance().toFields());
+        buf.mergeUnknownFields(configVersionFields());
+
 		return buf.build();
 	}
 	
+    /**
+     * Record the configs which each processor applied, one per XB_FIELD_CONFIG_VERSIONS entry:
+     * 1 = processor, 2 = config version, 3 = config string, 4 = frames processed,
+     * 5/6 = acquisition time of the first/last of those frames in ns.  A processor lists more
+     * than one config if a new one was swapped in during this block.
+     */
+    private UnknownFieldSet configVersionFields() {
+        UnknownFieldSet.Field.Builder records = UnknownFieldSet.Field.newBuilder();
+        for(TriggerProcessor processor : TRIGGER_CHAIN) {
+            for(TriggerProcessor.Stage stage : processor.getStages()) {
+                try {
+                    ByteString.Output bytes = ByteString.newOutput();
+                    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+                    out.writeString(1, processor.getClass().getSimpleName());
+                    out.writeUInt32(2, stage.config.version);
+                    out.writeString(3, stage.config.toString());
+                    out.writeUInt32(4, stage.getProcessed());
+                    if(stage.getFirstNano() >= 0) {
+                        out.writeUInt64(5, stage.getFirstNano());
+                        out.writeUInt64(6, stage.getLastNano());
+                    }
+                    out.flush();
+                    records.addLengthDelimited(bytes.toByteString());
+                } catch (IOException e) {
+                    // not possible when writing to memory
+                    CFLog.e("Could not encode config version: " + e.getMessage());
+                }
+            }
+        }
+        return UnknownFieldSet.newBuilder()
+                .addField(XB_FIELD_CONFIG_VERSIONS, records.build())
+                .build();
+    }
+
+    /**
+     * @return the largest Pixel or ByteBlock value among the events, as in the ChunkIndex
+     */
+    public int getMaxPixel() {
+        return max_pixel.get();
+    }
+
+    /**
+     * Serialize this XB.  The events are spliced in as already-encoded bytes, rather than being
+     * parsed back into messages.
+     *
+     * @return bytes of a DataProtos.ExposureBlock
+     */
 	public byte[] toBytes() {
-		DataProtos.ExposureBlock buf = buildProto();
-		return buf.toByteArray();
+        DataProtos.ExposureBlock header = buildProto();
+
+        // don't output event information for calibration blocks...
+        // they're really huge.
+        if (daq_state != CFApplication.State.DATA) {
+            return header.toByteArray();
+        }
+
+        // a stale XB may still be receiving events
+        byte[][] snapshot = events.toArray(new byte[0][]);
+
+        int size = header.getSerializedSize();
+        for (byte[] evt : snapshot) {
+            size += CodedOutputStream.computeByteArraySize(DataProtos.ExposureBlock.EVENTS_FIELD_NUMBER, evt);
+        }
+
+        byte[] bytes = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+        try {
+            header.writeTo(out);
+            for (byte[] evt : snapshot) {
+                out.writeByteArray(DataProtos.ExposureBlock.EVENTS_FIELD_NUMBER, evt);
+            }
+            out.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // the size was computed above
+            throw new IllegalStateException(e);
+        }
+        return bytes;
 	}
 
     long getStartTimeNano() {
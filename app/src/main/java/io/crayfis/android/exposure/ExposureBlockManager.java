@@ -1,20 +1,37 @@
 package io.crayfis.android.exposure;
 
 import java.util.ArrayList;
+
+import android.Manifest;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
+import io.crayfis.android.DataProtos;
+import io.crayfis.android.R;
 import io.crayfis.android.daq.DAQManager;
 import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.server.PreCalibrationService;
 import io.crayfis.android.trigger.TriggerChain;
+import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.server.UploadExposureService;
 import io.crayfis.android.trigger.L2.L2Processor;
+import io.crayfis.android.ui.navdrawer.data.LayoutData;
+import io.crayfis.android.ui.navdrawer.gallery.GalleryUtil;
+import io.crayfis.android.ui.navdrawer.gallery.LayoutGallery;
+import io.crayfis.android.ui.navdrawer.live_view.LayoutLiveView;
 import io.crayfis.android.util.CFLog;
 
 /**
@@ -27,6 +44,11 @@ public final class ExposureBlockManager {
     private static final int XB_STALE_TIME = 30000;
     private static final long PASS_RATE_CHECK_TIME = 5000L;
 
+    // maximum number of undelivered events for each sink
+    private static final int LIVE_VIEW_QUEUE = 100;
+    private static final int DATA_QUEUE = 1000;
+    private static final int GALLERY_QUEUE = 8;
+
     private final CFConfig CONFIG = CFConfig.getInstance();
     private CFApplication mApplication;
 
@@ -39,6 +61,9 @@ public final class ExposureBlockManager {
     // the current exposure block through the public methods here.
     private ExposureBlock current_xb;
 
+    // current blocks of the companion cameras, by camera ID.  Only used on the XB thread.
+    private final HashMap<Integer, ExposureBlock> mCompanionXBs = new HashMap<>();
+
     // We keep a list of retired blocks, which have been closed but
     // may not be ready to commit yet (e.g. events belonging to this block
     // might be sequested in a queue somewhere, still)
@@ -46,6 +71,9 @@ public final class ExposureBlockManager {
 
     private XBExpirationTimer mXBExpirationTimer;
 
+    private final ArrayList<EventBus.Subscriber> mSinks = new ArrayList<>();
+    private final ArrayList<ExecutorService> mSinkExecutors = new ArrayList<>();
+
     // timer for creating new DATA blocks
     private class XBExpirationTimer extends CountDownTimer {
 
@@ -66,6 +94,16 @@ public final class ExposureBlockManager {
                 L2Processor.resetPassRate();
             }
 
+            // the companions drift independently
+            DAQManager daq = DAQManager.getInstance();
+            for(int cameraId : new ArrayList<>(mCompanionXBs.keySet())) {
+                if(L2Processor.getPassRateFPM(cameraId) > 1.8 * CONFIG.getTargetEventsPerMinute()) {
+                    mCompanionXBs.get(cameraId).aborted = true;
+                    newCompanionExposureBlock(daq, cameraId);
+                    L2Processor.resetPassRate(cameraId);
+                }
+            }
+
         }
 
         @Override
@@ -95,6 +133,62 @@ public final class ExposureBlockManager {
 
         mXBThread.start();
         mXBHandler = new Handler(mXBThread.getLooper());
+
+        subscribeEventSinks();
+    }
+
+    /**
+     * Attach the UI and gallery to the event bus.  The UI only cares about recent events, so
+     * it drops the oldest when it falls behind, while the gallery drops new events rather than
+     * pile up PNG compression.
+     */
+    private void subscribeEventSinks() {
+        EventBus.Subscriber liveView = new EventBus.Subscriber() {
+            @Override
+            public void onEvent(EventBus.FinishedEvent event) {
+                DataProtos.Event evt = event.getEvent();
+                if(evt != null) {
+                    LayoutLiveView.addEvent(evt);
+                }
+            }
+        };
+        EventBus.Subscriber dataHistogram = new EventBus.Subscriber() {
+            @Override
+            public void onEvent(EventBus.FinishedEvent event) {
+                for(int val : event.getL2Values()) {
+                    LayoutData.appendData(val);
+                }
+            }
+        };
+        EventBus.Subscriber gallery = new EventBus.Subscriber() {
+            @Override
+            public void onEvent(EventBus.FinishedEvent event) {
+                if(event.getPixelCount() < LayoutGallery.getGalleryCount()) return;
+
+                SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(mApplication);
+                if(sharedPrefs.getBoolean(mApplication.getString(R.string.prefEnableGallery), false)
+                        && (mApplication.checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                        == PackageManager.PERMISSION_GRANTED)) {
+
+                    DataProtos.Event evt = event.getEvent();
+                    if(evt != null) {
+                        GalleryUtil.saveImage(evt);
+                    }
+                }
+            }
+        };
+
+        subscribe("LiveView", liveView, LIVE_VIEW_QUEUE, EventBus.DropPolicy.DROP_OLDEST);
+        subscribe("DataHistogram", dataHistogram, DATA_QUEUE, EventBus.DropPolicy.DROP_OLDEST);
+        subscribe("Gallery", gallery, GALLERY_QUEUE, EventBus.DropPolicy.DROP_NEWEST);
+    }
+
+    private void subscribe(String name, EventBus.Subscriber subscriber, int capacity,
+                           EventBus.DropPolicy policy) {
+        ExecutorService executor = EventBus.newSinkExecutor(name + "Sink");
+        EventBus.getInstance().subscribe(name, subscriber, executor, capacity, policy);
+        mSinks.add(subscriber);
+        mSinkExecutors.add(executor);
     }
 
     public ExposureBlock getCurrentExposureBlock() {
@@ -131,6 +225,7 @@ public final class ExposureBlockManager {
                         precalConfig != null ?
                                 precalConfig.getWeightHash() : -1,
                         daq.getCameraId(),
+                        false,
                         daq.isCameraFacingBack(),
                         precalConfig != null ?
                                 precalConfig.generateWeights(mApplication.getRenderScript())
@@ -147,12 +242,24 @@ public final class ExposureBlockManager {
                 if (current_xb != null) {
                     current_xb.freeze();
                     retireExposureBlock(current_xb);
+                    if (current_xb.daq_state == CFApplication.State.DATA && !current_xb.aborted) {
+                        daq.onExposureBlockFinished(current_xb,
+                                current_xb.getEndTimeNano() - current_xb.getStartTimeNano());
+                    }
                 }
 
                 current_xb = newXB;
 
                 mTotalXBs++;
 
+                // companion cameras only run during DATA, with blocks alongside the primary's
+                if(state == CFApplication.State.DATA) {
+                    daq.startCompanions();
+                } else {
+                    daq.stopCompanions();
+                }
+                rollCompanionExposureBlocks(daq);
+
                 if(state == CFApplication.State.IDLE || state == CFApplication.State.FINISHED)
                     // do this immediately so we can kill the thread
                     flushCommittedBlocks();
@@ -162,6 +269,82 @@ public final class ExposureBlockManager {
         });
     }
 
+    /**
+     * Start a new block for a companion camera, e.g. once its stream is configured
+     *
+     * @param cameraId ID of the companion camera
+     */
+    public void newCompanionExposureBlock(final int cameraId) {
+        mXBHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(current_xb == null || current_xb.daq_state != CFApplication.State.DATA) return;
+                DAQManager daq = DAQManager.getInstance();
+                if(daq.getStreamingCompanionIds().contains(cameraId)) {
+                    newCompanionExposureBlock(daq, cameraId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start new blocks for each companion camera which is streaming, and retire the blocks of
+     * those which have stopped.  Must be called on the XB thread.
+     */
+    private void rollCompanionExposureBlocks(DAQManager daq) {
+        List<Integer> streaming = daq.getStreamingCompanionIds();
+
+        Iterator<Map.Entry<Integer, ExposureBlock>> it = mCompanionXBs.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Integer, ExposureBlock> entry = it.next();
+            if(!streaming.contains(entry.getKey())) {
+                entry.getValue().freeze();
+                retireExposureBlock(entry.getValue());
+                it.remove();
+            }
+        }
+
+        for(int cameraId : streaming) {
+            newCompanionExposureBlock(daq, cameraId);
+        }
+    }
+
+    /**
+     * Start a new DATA block for a companion camera.  Must be called on the XB thread.
+     */
+    private void newCompanionExposureBlock(DAQManager daq, int cameraId) {
+        PreCalibrationService.Config precalConfig = daq.getPrecalConfig(cameraId);
+
+        ExposureBlock newXB = new ExposureBlock(mApplication,
+                mTotalXBs,
+                mApplication.getBuildInformation().getRunId(),
+                precalConfig != null ?
+                        precalConfig.getHotHash() : -1,
+                precalConfig != null ?
+                        precalConfig.getWeightHash() : -1,
+                cameraId,
+                true,
+                daq.isCameraFacingBack(cameraId),
+                precalConfig != null ?
+                        precalConfig.generateWeights(mApplication.getRenderScript())
+                        : null,
+                daq.getLastKnownLocation(),
+                mApplication.getBatteryTemp(),
+                CFApplication.State.DATA,
+                daq.getResX(cameraId),
+                daq.getResY(cameraId));
+
+        daq.setExposureBlock(cameraId, newXB);
+
+        ExposureBlock oldXB = mCompanionXBs.put(cameraId, newXB);
+        if(oldXB != null) {
+            oldXB.freeze();
+            retireExposureBlock(oldXB);
+        }
+
+        mTotalXBs++;
+    }
+
     public void flushCommittedBlocks() {
         flushCommittedBlocks(0);
     }
@@ -196,13 +379,39 @@ public final class ExposureBlockManager {
 
                 for (ExposureBlock xb : toRemove) {
                     // submit the retired XB's to be uploaded.
-                    UploadExposureService.submitMessage(mApplication, xb.camera_id, xb.buildProto());
+                    UploadExposureService.submitExposureBlock(mApplication, xb.camera_id, xb);
                     retired_blocks.remove(xb);
                 }
             }
         }, delay);
     }
 
+    /**
+     * Apply a new trigger config to the running blocks from their next frame on, where the
+     * processor allows it.  Otherwise the config takes effect with the next block, as before.
+     *
+     * @param cls Type of processor the config is for
+     * @param config New config
+     */
+    public void swapTriggerConfig(final Class<? extends TriggerProcessor> cls,
+                                  final TriggerProcessor.Config config) {
+        if(mXBHandler == null || config == null) return;
+        mXBHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<ExposureBlock> xbs = new ArrayList<>(mCompanionXBs.values());
+                if(current_xb != null) xbs.add(current_xb);
+                for(ExposureBlock xb : xbs) {
+                    TriggerProcessor processor = xb.TRIGGER_CHAIN.getProcessor(cls);
+                    if(processor != null && !processor.swapConfig(config)) {
+                        CFLog.d(cls.getSimpleName() + " config v" + config.version
+                                + " waits for the next block");
+                    }
+                }
+            }
+        });
+    }
+
     public synchronized void abortExposureBlock() {
         if(current_xb != null) {
             current_xb.aborted = true;
@@ -239,6 +448,12 @@ public final class ExposureBlockManager {
     public void unregister() {
         if(mXBThread.isAlive())
             mXBThread.quitSafely();
+        for(EventBus.Subscriber sink : mSinks) {
+            EventBus.getInstance().unsubscribe(sink);
+        }
+        for(ExecutorService executor : mSinkExecutors) {
+            executor.shutdown();
+        }
         // TODO: Thread.join() occasionally freezes here, but would be appropriate
         sInstance = null;
     }
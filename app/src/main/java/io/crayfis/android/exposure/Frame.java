@@ -8,10 +8,7 @@ import android.location.Location;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.renderscript.Allocation;
-import android.renderscript.Element;
 import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicHistogram;
-import android.renderscript.Type;
 import android.util.Size;
 import android.view.Surface;
 
@@ -19,29 +16,43 @@ import androidx.annotation.CallSuper;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import io.crayfis.android.DataProtos;
-import io.crayfis.android.ScriptC_histogramRAW;
 import io.crayfis.android.ScriptC_yuv;
+import io.crayfis.android.compute.ComputeBackend;
+import io.crayfis.android.compute.Plane;
 import io.crayfis.android.daq.AcquisitionTime;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 /**
  * Representation of a single frame from the camera.  This tracks the image data along with the
  * location of the device and the time the frame was captured.
  */
-public abstract class Frame {
-    
+public abstract class Frame implements ComputeBackend.Input {
+
+    // field of the Event with the id of its branch, if it is not the root
+    public static final int EVENT_FIELD_BRANCH = 31;
+
     public enum Format {
         RAW,
         YUV,
@@ -60,7 +71,10 @@ public abstract class Frame {
     // are rebuilt by the Builder (e.g. for changing cameras)
     private final Lock mHistLock;
 
-    final Allocation aHist;
+    final ComputeBackend.Histogram mHistogram;
+
+    // copy of aBuf for kernels that run in Java, filled on first use
+    private Plane mPlane;
 
     // these are left as frame properties in case they change in a SURVEY block
     final int mResX;
@@ -79,11 +93,15 @@ public abstract class Frame {
     double mPixAvg = -1;
     double mPixStd = -1;
 
-    DataProtos.Event.Builder mEventBuilder;
-    private DataProtos.Event mEvent;
-    private boolean mUploadRequested;
+    // Event payloads of each branch of the TriggerChain, serialized by getEvents()
+    private final HashMap<Branch, Payload> mPayloads = new HashMap<>(2);
+    // branches which have processed this frame
+    private final HashSet<Branch> mEntered = new HashSet<>(2);
+
     private boolean mCommitted;
     private final AtomicBoolean mRetired = new AtomicBoolean(false);
+    // one reference for each open branch of the TriggerChain
+    private final BufferLease mLease;
 
     public interface OnFrameCallback {
         void onFrame(Frame frame);
@@ -101,7 +119,7 @@ public abstract class Frame {
           final ExposureBlock exposureBlock,
           final int resX,
           final int resY,
-          final Allocation hist,
+          final ComputeBackend.Histogram histogram,
           final Lock histLock) {
 
         aBuf = alloc;
@@ -115,8 +133,10 @@ public abstract class Frame {
         mExposureBlock = exposureBlock;
         mResX = resX;
         mResY = resY;
-        aHist = hist;
+        mHistogram = histogram;
         mHistLock = histLock;
+
+        mLease = producer.lease(alloc, this);
     }
 
 
@@ -167,8 +187,29 @@ public abstract class Frame {
         return aBuf;
     }
 
-    public boolean uploadRequested() {
-        return mUploadRequested;
+    /**
+     * Return the Y/RAW channel as a Java array.  The array belongs to the buffer, so it is only
+     * valid until the frame is retired.
+     *
+     * @return Plane
+     */
+    @Override
+    public synchronized Plane getPlane() {
+        if(mPlane == null) {
+            Plane plane = mFrameProducer.getPlane(aBuf, mResX, mResY, isRAW());
+            if(plane.isRAW()) {
+                aBuf.copyTo(plane.shorts);
+            } else {
+                aBuf.copyTo(plane.bytes);
+            }
+            mPlane = plane;
+        }
+        return mPlane;
+    }
+
+    @Override
+    public boolean isRAW() {
+        return mFormat == Format.RAW;
     }
 
     /**
@@ -184,10 +225,62 @@ public abstract class Frame {
     }
 
     /**
-     * Return the image buffer to be used by the camera, and free all locks
+     * Keep the buffer until retire() has been called n more times, so that several branches of
+     * the TriggerChain can share it
+     *
+     * @param n Number of additional holders
+     */
+    public void hold(int n) {
+        if(n > 0) mLease.acquire(n);
+    }
+
+    /**
+     * Record which stage is working on the frame, to report if the buffer is never returned
+     *
+     * @param holder Name of the stage
+     */
+    public void setHolder(String holder) {
+        mLease.setOwner(holder);
+    }
+
+    /**
+     * Claim the buffer for a task to read.  Each successful call must be paired with
+     * {@link #endProcessing()}.
+     *
+     * @return false if the watchdog has taken the buffer back, and the frame must be skipped
+     */
+    public boolean beginProcessing() {
+        return mLease.beginRead();
+    }
+
+    public void endProcessing() {
+        if(mLease.endRead()) {
+            free();
+        }
+    }
+
+    /**
+     * Return the buffer regardless of any holds, once it has been leased for too long.  If a task
+     * is reading it, it goes back when the task finishes.
+     */
+    void reclaim() {
+        if(mLease.revoke()) {
+            free();
+        }
+    }
+
+    /**
+     * Release one hold on the frame.  Once the last is released, return the image buffer to be
+     * used by the camera, and free all locks
      */
     @CallSuper
     public void retire() {
+        if(mLease.release()) {
+            free();
+        }
+    }
+
+    private void free() {
         // make this idempotent
         if(mRetired.compareAndSet(false, true)) {
 
@@ -199,7 +292,11 @@ public abstract class Frame {
         }
     }
 
-    abstract int[] histogram();
+    int[] histogram() {
+        int[] hist = new int[mHistogram.size()];
+        mHistogram.apply(this, mExposureBlock.weights, hist);
+        return hist;
+    }
 
     void calculateStatistics() {
         mHistLock.lock();
@@ -259,6 +356,15 @@ public abstract class Frame {
         return mAcquiredTime.NTP;
     }
 
+    /**
+     * Get the epoch time with NTP corrections, in nanoseconds.
+     *
+     * @return long
+     */
+    public long getAcquiredTimeNTPNano() {
+        return mAcquiredTime.NTPNano;
+    }
+
 
     /** Get the epoch time.
      *
@@ -335,75 +441,298 @@ public abstract class Frame {
         return mExposureBlock.camera_facing_back;
     }
 
+    /**
+     * Write the fields of this frame's Event, in field order, as DataProtos.Event.writeTo() would
+     *
+     * @param out Stream to write to
+     * @throws IOException if the stream runs out of space
+     */
     @CallSuper
-    DataProtos.Event.Builder getEventBuilder() {
-        if (mEventBuilder == null) {
-            mEventBuilder = DataProtos.Event.newBuilder();
-
-            Long timestamp = mResult.get(CaptureResult.SENSOR_TIMESTAMP);
-            if(timestamp != null) {
-                mEventBuilder.setTimestampTarget(timestamp);
+    void writeEvent(CodedOutputStream out, Payload payload, Branch branch) throws IOException {
+        // make sure the histogram is filled
+        double avg = getPixAvg();
+        double std = getPixStd();
+
+        out.writeUInt64(DataProtos.Event.TIMESTAMP_FIELD_NUMBER, getAcquiredTime());
+        out.writeDouble(DataProtos.Event.GPS_LAT_FIELD_NUMBER, mLocation.getLatitude());
+        out.writeDouble(DataProtos.Event.GPS_LON_FIELD_NUMBER, mLocation.getLongitude());
+        if(payload.pixels != null) {
+            for(DataProtos.Pixel pixel : payload.pixels) {
+                out.writeMessage(DataProtos.Event.PIXELS_FIELD_NUMBER, pixel);
             }
+        }
+        out.writeDouble(DataProtos.Event.AVG_FIELD_NUMBER, avg);
+        out.writeDouble(DataProtos.Event.STD_FIELD_NUMBER, std);
+        out.writeUInt32(DataProtos.Event.XBN_FIELD_NUMBER, mExposureBlock.xbn);
+        if(mOrientation != null) {
+            out.writeFloat(DataProtos.Event.ORIENT_X_FIELD_NUMBER, mOrientation[0]);
+            out.writeFloat(DataProtos.Event.ORIENT_Y_FIELD_NUMBER, mOrientation[1]);
+            out.writeFloat(DataProtos.Event.ORIENT_Z_FIELD_NUMBER, mOrientation[2]);
+        }
+        if (mLocation.hasAltitude()) {
+            out.writeDouble(DataProtos.Event.GPS_ALTITUDE_FIELD_NUMBER, mLocation.getAltitude());
+        }
+        if (mLocation.hasAccuracy()) {
+            out.writeFloat(DataProtos.Event.GPS_ACCURACY_FIELD_NUMBER, mLocation.getAccuracy());
+        }
+        out.writeUInt64(DataProtos.Event.GPS_FIXTIME_FIELD_NUMBER, mLocation.getTime());
+        out.writeUInt64(DataProtos.Event.TIMESTAMP_NANO_FIELD_NUMBER, getAcquiredTimeNano());
+        out.writeUInt64(DataProtos.Event.TIMESTAMP_NTP_FIELD_NUMBER, getAcquiredTimeNTP());
+        out.writeFloat(DataProtos.Event.PRESSURE_FIELD_NUMBER, mPressure);
+
+        Long timestamp = mResult == null ? null : mResult.get(CaptureResult.SENSOR_TIMESTAMP);
+        if(timestamp != null) {
+            out.writeUInt64(DataProtos.Event.TIMESTAMP_TARGET_FIELD_NUMBER, timestamp);
+        }
 
-            Long exposureTime = mResult.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-            if(exposureTime != null) {
-                mEventBuilder.setExposureTime(exposureTime);
-            }
+        for (int val=0; val < mExposureBlock.underflow_hist.size(); val++) {
+            out.writeUInt32(DataProtos.Event.HIST_FIELD_NUMBER, mHist[val]);
+        }
 
-            mEventBuilder.setTimestamp(getAcquiredTime())
-                    .setTimestampNano(getAcquiredTimeNano())
-                    .setTimestampNtp(getAcquiredTimeNTP())
-                    .setPressure(mPressure)
-                    .setGpsLat(mLocation.getLatitude())
-                    .setGpsLon(mLocation.getLongitude())
-                    .setGpsFixtime(mLocation.getTime())
-                    .setAvg(getPixAvg())
-                    .setStd(getPixStd());
-            if (mLocation.hasAccuracy()) {
-                mEventBuilder.setGpsAccuracy(mLocation.getAccuracy());
-            }
-            if (mLocation.hasAltitude()) {
-                mEventBuilder.setGpsAltitude(mLocation.getAltitude());
-            }
-            if(mOrientation != null) {
-                mEventBuilder.setOrientX(mOrientation[0])
-                        .setOrientY(mOrientation[1])
-                        .setOrientZ(mOrientation[2]);
-            }
+        if(payload.zeroBias != null) {
+            out.writeMessage(DataProtos.Event.ZERO_BIAS_FIELD_NUMBER, payload.zeroBias);
+        }
+        if(payload.byteBlock != null) {
+            out.writeMessage(DataProtos.Event.BYTE_BLOCK_FIELD_NUMBER, payload.byteBlock);
+        }
 
-            for (int val=0; val < mExposureBlock.underflow_hist.size(); val++) {
-                mEventBuilder.addHist(mHist[val]);
-            }
+        Long exposureTime = mResult == null ? null : mResult.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        if(exposureTime != null) {
+            out.writeUInt64(DataProtos.Event.EXPOSURE_TIME_FIELD_NUMBER, exposureTime);
+        }
+
+        if(payload.extraFields != null) {
+            payload.extraFields.writeTo(out);
+        }
+        if(branch != Branch.ROOT) {
+            out.writeUInt32(EVENT_FIELD_BRANCH, branch.id);
+        }
+    }
+
+    /**
+     * A branch of the TriggerChain.  Every stage in a branch writes to the same Event, and each
+     * branch which the frame reaches last produces its own Event, tagged with the branch id.
+     */
+    public static final class Branch {
+
+        public static final Branch ROOT = new Branch(0, null);
+
+        public final int id;
+        @Nullable
+        public final Branch parent;
+
+        public Branch(int id, @Nullable Branch parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * The parts of an Event written by the stages of one branch
+     */
+    static final class Payload {
+        List<DataProtos.Pixel> pixels;
+        DataProtos.ByteBlock byteBlock;
+        DataProtos.ZeroBiasSquare zeroBias;
+        UnknownFieldSet extraFields;
+        // drop the hits of earlier branches
+        boolean clearHits;
+        // null until a stage in the branch requests or rejects the upload
+        Boolean upload;
+
+        // indices x + width * y of the pixels which passed L2
+        int[] l2Hits;
+        int[] l2Values;
+    }
+
+    /**
+     * An Event to store for this frame
+     */
+    public static final class Event {
+        public final Branch branch;
+        public final byte[] bytes;
+        public final int pixelCount;
+        @NonNull
+        public final int[] l2Values;
+        // largest value among the Pixels and ByteBlock of the event, as ChunkIndex defines it
+        public final int maxPixel;
+
+        Event(Branch branch, byte[] bytes, int pixelCount, int[] l2Values, int maxPixel) {
+            this.branch = branch;
+            this.bytes = bytes;
+            this.pixelCount = pixelCount;
+            this.l2Values = l2Values;
+            this.maxPixel = maxPixel;
+        }
+    }
 
-            mEventBuilder.setXbn(mExposureBlock.xbn);
+    private Payload payload(Branch branch) {
+        Payload payload = mPayloads.get(branch);
+        if(payload == null) {
+            payload = new Payload();
+            mPayloads.put(branch, payload);
         }
+        return payload;
+    }
 
-        return mEventBuilder;
+    /**
+     * Record that a stage of the branch is processing this frame
+     */
+    public synchronized void enterBranch(Branch branch) {
+        mEntered.add(branch);
     }
 
-    public void setPixels(List<DataProtos.Pixel> pixels) {
-        mEvent = null;
-        mUploadRequested = true;
-        getEventBuilder().addAllPixels(pixels);
+    public synchronized void setPixels(Branch branch, List<DataProtos.Pixel> pixels) {
+        Payload payload = payload(branch);
+        payload.upload = true;
+        if(payload.pixels == null) {
+            payload.pixels = new ArrayList<>(pixels);
+        } else {
+            payload.pixels.addAll(pixels);
+        }
     }
 
-    public void setByteBlock(DataProtos.ByteBlock byteBlock) {
-        mEvent = null;
-        mUploadRequested = true;
-        getEventBuilder().setByteBlock(byteBlock);
+    public synchronized void setByteBlock(Branch branch, DataProtos.ByteBlock byteBlock) {
+        Payload payload = payload(branch);
+        payload.upload = true;
+        payload.byteBlock = byteBlock;
     }
 
-    public void setZeroBias(DataProtos.ZeroBiasSquare zeroBiasSquare) {
-        mEvent = null;
-        mUploadRequested = true;
-        getEventBuilder().setZeroBias(zeroBiasSquare);
+    /**
+     * Record the pixels which passed L2, for later stages of the branch
+     *
+     * @param branch Branch of the L2 stage
+     * @param idx Array of x + width * y
+     * @param n Number of valid entries in idx
+     */
+    public synchronized void setL2Hits(Branch branch, int[] idx, int n) {
+        payload(branch).l2Hits = Arrays.copyOf(idx, n);
     }
 
-    public DataProtos.Event getEvent() {
-        if(mEvent == null) {
-            mEvent = mEventBuilder.build();
+    /**
+     * @return the L2 hits of the branch, or of the nearest branch before it with any
+     */
+    @Nullable
+    public synchronized int[] getL2Hits(Branch branch) {
+        for(Branch b = branch; b != null; b = b.parent) {
+            Payload payload = mPayloads.get(b);
+            if(payload != null && payload.l2Hits != null) return payload.l2Hits;
         }
-        return mEvent;
+        return null;
+    }
+
+    /**
+     * Record the values of the pixels which passed L2, for the data histogram
+     *
+     * @param branch Branch of the L2 stage
+     * @param vals Pixel values
+     */
+    public synchronized void setL2Values(Branch branch, int[] vals) {
+        payload(branch).l2Values = vals;
+    }
+
+    /**
+     * Add fields which are not in DataProtos to the Event of the branch
+     *
+     * @param branch Branch of the stage
+     * @param fields Fields to merge
+     * @param clearHits Whether to drop the Pixel and ByteBlock payloads
+     */
+    public synchronized void addEventFields(Branch branch, UnknownFieldSet fields, boolean clearHits) {
+        Payload payload = payload(branch);
+        payload.upload = true;
+        if(clearHits) {
+            payload.pixels = null;
+            payload.byteBlock = null;
+            payload.clearHits = true;
+        }
+        payload.extraFields = payload.extraFields == null ? fields
+                : UnknownFieldSet.newBuilder(payload.extraFields).mergeFrom(fields).build();
+    }
+
+    /**
+     * Undo an upload request from an earlier stage, for this branch only
+     */
+    public synchronized void rejectEvent(Branch branch) {
+        payload(branch).upload = false;
+    }
+
+    public synchronized void setZeroBias(Branch branch, DataProtos.ZeroBiasSquare zeroBiasSquare) {
+        Payload payload = payload(branch);
+        payload.upload = true;
+        payload.zeroBias = zeroBiasSquare;
+    }
+
+    /**
+     * Serialize an Event for each branch which the frame reached last, if its stages requested
+     * an upload.  The Event holds what its branch and those before it wrote, as a chain with
+     * only those stages would have, with the hits of the latest stage that wrote any.
+     *
+     * @return the Events to store, usually one or none
+     */
+    synchronized List<Event> getEvents() {
+        if(mPayloads.isEmpty()) return Collections.emptyList();
+
+        List<Event> events = new ArrayList<>(1);
+        for(Branch leaf : mEntered.isEmpty() ? Collections.singleton(Branch.ROOT) : mEntered) {
+            if(hasEnteredChild(leaf)) continue;
+
+            ArrayDeque<Payload> path = new ArrayDeque<>();
+            for(Branch b = leaf; b != null; b = b.parent) {
+                Payload payload = mPayloads.get(b);
+                if(payload != null) path.addFirst(payload);
+            }
+
+            Payload merged = new Payload();
+            boolean upload = false;
+            for(Payload payload : path) {
+                if(payload.upload != null) upload = payload.upload;
+                if(payload.clearHits) {
+                    merged.pixels = null;
+                    merged.byteBlock = null;
+                }
+                if(payload.pixels != null) {
+                    if(merged.pixels == null) merged.pixels = new ArrayList<>();
+                    merged.pixels.addAll(payload.pixels);
+                }
+                if(payload.byteBlock != null) merged.byteBlock = payload.byteBlock;
+                if(payload.zeroBias != null) merged.zeroBias = payload.zeroBias;
+                if(payload.l2Values != null) merged.l2Values = payload.l2Values;
+                if(payload.extraFields != null) {
+                    merged.extraFields = merged.extraFields == null ? payload.extraFields
+                            : UnknownFieldSet.newBuilder(merged.extraFields).mergeFrom(payload.extraFields).build();
+                }
+            }
+            if(!upload) continue;
+
+            int pixelCount = merged.byteBlock != null ? merged.byteBlock.getXCount()
+                    : merged.pixels != null ? merged.pixels.size() : 0;
+            events.add(new Event(leaf, EventWriter.serialize(this, merged, leaf), pixelCount,
+                    merged.l2Values != null ? merged.l2Values : new int[0], maxPixel(merged)));
+        }
+        return events;
+    }
+
+    private static int maxPixel(Payload payload) {
+        int max = 0;
+        if(payload.pixels != null) {
+            for(DataProtos.Pixel pixel : payload.pixels) {
+                max = Math.max(max, pixel.getVal());
+            }
+        }
+        if(payload.byteBlock != null) {
+            for(int val : payload.byteBlock.getValList()) {
+                max = Math.max(max, val);
+            }
+        }
+        return max;
+    }
+
+    private boolean hasEnteredChild(Branch branch) {
+        for(Branch b : mEntered) {
+            if(b.parent == branch) return true;
+        }
+        return false;
     }
 
     /**
@@ -428,9 +757,46 @@ public abstract class Frame {
         final Deque<Allocation> mAllocs;
         final List<Surface> mSurfaces;
 
+        // frames of this camera dropped because every buffer was still in use
+        final Metrics.Counter mBuffersExhausted;
+        private final String mFreeBuffersName;
+        private final Metrics.Gauge mFreeBuffers = new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return mAllocs.size();
+            }
+        };
+
+        // a buffer leased for longer than this is assumed to be leaked, and is returned to the pool
+        private static final long LEASE_DEADLINE_MS = 10000L;
+        private static final long WATCHDOG_PERIOD_MS = 2000L;
+
+        private static final Metrics.Counter sBuffersLeaked = Metrics.getInstance().counter("camera.buffers_leaked");
+        private static final Metrics.Timer sLeaseTime = Metrics.getInstance().timer("camera.lease_time");
+        // leased buffers of every producer
+        private static final AtomicInteger sLeased = new AtomicInteger();
+
+        static {
+            Metrics.getInstance().gauge("camera.leased_buffers", new Metrics.Gauge() {
+                @Override
+                public double value() {
+                    return sLeased.get();
+                }
+            });
+        }
+
+        // buffers currently out of mAllocs
+        private final IdentityHashMap<Allocation, BufferLease> mLeases = new IdentityHashMap<>();
+
+        // Java copies of each buffer, created as needed
+        private final IdentityHashMap<Allocation, Plane> mPlanes = new IdentityHashMap<>();
+
         // stop has been called
         boolean mStopCalled = false;
 
+        // whether SENSOR_TIMESTAMP is in the base of elapsedRealtimeNanos(), rather than nanoTime()
+        private volatile boolean mRealtimeTimestamps = false;
+
         Producer(RenderScript rs,
                  Size sz,
                  OnFrameCallback callback,
@@ -447,11 +813,17 @@ public abstract class Frame {
             for(int i=0; i<mNAlloc; i++) {
                 mAllocs.add(buildAlloc(sz, rs));
             }
+            // named for the camera, e.g. "camera.free_buffers" or "camera2.free_buffers"
+            String prefix = builder.getMetricPrefix();
+            mBuffersExhausted = Metrics.getInstance().counter(prefix + ".buffers_exhausted");
+            mFreeBuffersName = prefix + ".free_buffers";
+            Metrics.getInstance().gauge(mFreeBuffersName, mFreeBuffers);
 
             mBufferHandler = handler;
 
             mFrameThread.start();
             mFrameHandler = new Handler(mFrameThread.getLooper());
+            mFrameHandler.postDelayed(mWatchdog, WATCHDOG_PERIOD_MS);
         }
 
         public static Producer create(boolean raw,
@@ -468,6 +840,15 @@ public abstract class Frame {
             }
         }
 
+        /**
+         * Set the clock of SENSOR_TIMESTAMP, from SENSOR_INFO_TIMESTAMP_SOURCE
+         *
+         * @param realtime true if the source is REALTIME
+         */
+        public void setRealtimeTimestamps(boolean realtime) {
+            mRealtimeTimestamps = realtime;
+        }
+
         /**
          * Assemble Allocation buffers to fit the Frame data.
          *
@@ -483,11 +864,63 @@ public abstract class Frame {
          */
         abstract void buildFrames();
 
+        /**
+         * Register a buffer as held by a frame until it is replenished
+         *
+         * @param alloc The allocation taken from mAllocs
+         * @param frame The Frame wrapping it
+         * @return the lease, with one reference
+         */
+        BufferLease lease(Allocation alloc, Frame frame) {
+            BufferLease lease = new BufferLease(frame);
+            synchronized (mLeases) {
+                mLeases.put(alloc, lease);
+            }
+            sLeased.incrementAndGet();
+            return lease;
+        }
+
+        /**
+         * Reports and reclaims buffers which have been leased for longer than LEASE_DEADLINE_MS
+         */
+        private final Runnable mWatchdog = new Runnable() {
+            @Override
+            public void run() {
+                if(mStopCalled) return;
+
+                List<BufferLease> expired = new ArrayList<>();
+                synchronized (mLeases) {
+                    for(BufferLease lease : mLeases.values()) {
+                        if(lease.getAgeMillis() > LEASE_DEADLINE_MS && !lease.isRevoked()) {
+                            expired.add(lease);
+                        }
+                    }
+                }
+                for(BufferLease lease : expired) {
+                    CFLog.w("Reclaiming buffer held by " + lease.getOwner() + " for "
+                            + lease.getAgeMillis() + " ms with " + lease.getRefs() + " references");
+                    sBuffersLeaked.inc();
+                    lease.frame.reclaim();
+                }
+
+                mFrameHandler.postDelayed(this, WATCHDOG_PERIOD_MS);
+            }
+        };
+
         /**
          * Return an allocation to the buffer queue to be rewritten
          * @param alloc The allocation to be replenished
          */
         void replenish(Allocation alloc) {
+            BufferLease lease;
+            synchronized (mLeases) {
+                lease = mLeases.remove(alloc);
+            }
+            if(lease != null) {
+                sLeased.decrementAndGet();
+                sLeaseTime.record(lease.getAgeMillis() * 1000000L);
+            }
+
             if(mStopCalled) {
                 // we're getting rid of the producer, so destroy this
                 alloc.destroy();
@@ -496,6 +929,20 @@ public abstract class Frame {
             }
         }
 
+        /**
+         * Get the Java array associated with a buffer
+         */
+        Plane getPlane(Allocation alloc, int width, int height, boolean raw) {
+            synchronized (mPlanes) {
+                Plane plane = mPlanes.get(alloc);
+                if(plane == null) {
+                    plane = raw ? Plane.ofShorts(width, height) : Plane.ofBytes(width, height);
+                    mPlanes.put(alloc, plane);
+                }
+                return plane;
+            }
+        }
+
         /**
          * Pass a frame to mCallback through mFrameHandler
          *
@@ -531,6 +978,7 @@ public abstract class Frame {
         @CallSuper
         public void close(){
             mStopCalled = true;
+            Metrics.getInstance().removeGauge(mFreeBuffersName, mFreeBuffers);
             for (Surface s : mSurfaces) {
                 s.release();
             }
@@ -539,6 +987,9 @@ public abstract class Frame {
                 a.destroy();
             }
             mAllocs.clear();
+            synchronized (mPlanes) {
+                mPlanes.clear();
+            }
 
             mFrameThread.quitSafely();
             try {
@@ -551,7 +1002,10 @@ public abstract class Frame {
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
-            mResultCollector.add(result, new AcquisitionTime());
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            mResultCollector.add(result, timestamp != null
+                    ? AcquisitionTime.fromSensor(timestamp, mRealtimeTimestamps)
+                    : new AcquisitionTime());
             buildFrames();
         }
     }
@@ -562,6 +1016,7 @@ public abstract class Frame {
     public static class Builder {
 
         private Format bFormat;
+        private boolean bSynthetic;
 
         private Allocation aBuf;
         private TotalCaptureResult bResult;
@@ -579,12 +1034,36 @@ public abstract class Frame {
         
         private Lock bHistLock;
 
-        private ScriptC_histogramRAW bScriptCHistogram;
-        private ScriptIntrinsicHistogram bScriptIntrinsicHistogram;
+        private ComputeBackend.Histogram bHistogram;
         private ScriptC_yuv bScriptCYuv;
 
-        private Allocation bWeighted;
-        private Allocation bHist;
+        // prefix of the metrics of this camera's producers
+        private String bMetricPrefix = "camera";
+
+        // builder which receives the location and sensor readings
+        private final Builder bSensorSource;
+
+        public Builder() {
+            bSensorSource = this;
+        }
+
+        /**
+         * Builder for a second camera, which shares the location and sensor readings of another
+         *
+         * @param sensorSource Builder updated by the sensors, e.g. that of the primary camera
+         */
+        public Builder(Builder sensorSource) {
+            bSensorSource = sensorSource;
+        }
+
+        public Builder setMetricPrefix(String prefix) {
+            bMetricPrefix = prefix;
+            return this;
+        }
+
+        String getMetricPrefix() {
+            return bMetricPrefix;
+        }
 
         public Builder setCapture(Allocation buf, TotalCaptureResult result) {
             aBuf = buf;
@@ -597,31 +1076,19 @@ public abstract class Frame {
             if(!(producer instanceof RAWFrame.Producer)) throw new IllegalArgumentException();
 
             bFormat = Format.RAW;
+            bSynthetic = false;
 
             bResX = sz.getWidth();
             bResY = sz.getHeight();
 
             bProducer = producer;
 
-            bScriptCHistogram = new ScriptC_histogramRAW(rs);
-            bHist = Allocation.createSized(rs, Element.U32(rs), 1024, Allocation.USAGE_SCRIPT);
-
-            bScriptCHistogram.bind_ahist(bHist);
+            releaseScripts();
+            bHistogram = ComputeBackend.get(rs).createHistogram(bResX, bResY, true);
 
             // build a lock for this script
             bHistLock = new ReentrantLock();
 
-            // get rid of YUV objects
-            if(bScriptIntrinsicHistogram != null) {
-                bScriptIntrinsicHistogram.destroy();
-                bScriptCYuv.destroy();
-                bWeighted.destroy();
-
-                bScriptIntrinsicHistogram = null;
-                bScriptCYuv = null;
-                bWeighted = null;
-            }
-
             return this;
         }
 
@@ -629,38 +1096,55 @@ public abstract class Frame {
             if(!(producer instanceof YUVFrame.Producer)) throw new IllegalArgumentException();
 
             bFormat = Format.YUV;
+            bSynthetic = false;
 
             bResX = sz.getWidth();
             bResY = sz.getHeight();
 
             bProducer = producer;
 
-            Type.Builder tb = new Type.Builder(rs, Element.U8(rs));
-            Type type = tb.setX(bResX)
-                    .setY(bResY)
-                    .create();
+            releaseScripts();
+            bHistogram = ComputeBackend.get(rs).createHistogram(bResX, bResY, false);
 
+            // the grayscale conversion reads from the producer's input, so it stays in RenderScript
             bScriptCYuv = new ScriptC_yuv(rs);
-            bScriptIntrinsicHistogram = ScriptIntrinsicHistogram.create(rs, Element.U8(rs));
             bScriptCYuv.set_gIn(((YUVFrame.Producer)producer).ain);
 
-            bWeighted = Allocation.createTyped(rs, type, Allocation.USAGE_SCRIPT);
-            bHist = Allocation.createSized(rs, Element.U32(rs), 256, Allocation.USAGE_SCRIPT);
-
-            bScriptIntrinsicHistogram.setOutput(bHist);
-
             // build a lock for these scripts
             bHistLock = new ReentrantLock();
 
-            // get rid of RAW objects
-            if(bScriptCHistogram != null) {
-                bScriptCHistogram.destroy();
-                bScriptCHistogram = null;
-            }
+            return this;
+        }
+
+        public Builder configureSynthetic(RenderScript rs, Size sz, SyntheticFrame.Producer producer) {
+            bFormat = producer.isRAW() ? Format.RAW : Format.YUV;
+            bSynthetic = true;
+
+            bResX = sz.getWidth();
+            bResY = sz.getHeight();
+
+            bProducer = producer;
+
+            // synthetic buffers are already single-channel, so YUV needs no conversion
+            releaseScripts();
+            bHistogram = ComputeBackend.get(rs).createHistogram(bResX, bResY, producer.isRAW());
+
+            bHistLock = new ReentrantLock();
 
             return this;
         }
 
+        private void releaseScripts() {
+            if(bHistogram != null) {
+                bHistogram.release();
+                bHistogram = null;
+            }
+            if(bScriptCYuv != null) {
+                bScriptCYuv.destroy();
+                bScriptCYuv = null;
+            }
+        }
+
         public Builder setAcquisitionTime(AcquisitionTime acquisitionTime) {
             bAcquisitionTime = acquisitionTime;
             return this;
@@ -691,16 +1175,28 @@ public abstract class Frame {
             return this;
         }
 
+        public ExposureBlock getExposureBlock() {
+            return bExposureBlock;
+        }
+
         public Frame build() {
+            if(bSynthetic) {
+                return new SyntheticFrame(aBuf, bProducer, bAcquisitionTime, bSensorSource.bLocation,
+                        bSensorSource.bOrientation, bSensorSource.bRotationZZ,
+                        bSensorSource.bPressure, bExposureBlock, bResX, bResY,
+                        bFormat, bHistogram, bHistLock);
+            }
             switch (bFormat) {
                 case YUV:
-                    return new YUVFrame(aBuf, bResult, bProducer, bAcquisitionTime, bLocation,
-                            bOrientation, bRotationZZ, bPressure, bExposureBlock, bResX, bResY,
-                            bScriptCYuv, bScriptIntrinsicHistogram, bWeighted, bHist, bHistLock);
+                    return new YUVFrame(aBuf, bResult, bProducer, bAcquisitionTime, bSensorSource.bLocation,
+                            bSensorSource.bOrientation, bSensorSource.bRotationZZ,
+                            bSensorSource.bPressure, bExposureBlock, bResX, bResY,
+                            bScriptCYuv, bHistogram, bHistLock);
                 case RAW:
-                    return new RAWFrame(aBuf, bResult, bProducer, bAcquisitionTime, bLocation,
-                            bOrientation, bRotationZZ, bPressure, bExposureBlock, bResX, bResY,
-                            bScriptCHistogram, bHist, bHistLock);
+                    return new RAWFrame(aBuf, bResult, bProducer, bAcquisitionTime, bSensorSource.bLocation,
+                            bSensorSource.bOrientation, bSensorSource.bRotationZZ,
+                            bSensorSource.bPressure, bExposureBlock, bResX, bResY,
+                            bHistogram, bHistLock);
                 default:
                     return null;
             }
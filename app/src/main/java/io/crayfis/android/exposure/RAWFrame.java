@@ -23,14 +23,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import io.crayfis.android.ScriptC_histogramRAW;
+import io.crayfis.android.compute.ComputeBackend;
 import io.crayfis.android.daq.AcquisitionTime;
 import io.crayfis.android.util.CFLog;
 
 class RAWFrame extends Frame {
 
-    private final ScriptC_histogramRAW mScriptCHist;
-
     RAWFrame(@NonNull final Allocation alloc,
              final TotalCaptureResult result,
              final Frame.Producer producer,
@@ -42,33 +40,13 @@ class RAWFrame extends Frame {
              final ExposureBlock exposureBlock,
              final int resX,
              final int resY,
-             final ScriptC_histogramRAW scriptCHist,
-             final Allocation hist,
+             final ComputeBackend.Histogram histogram,
              final Lock histLock) {
 
         super(alloc, result, producer, acquisitionTime, location, orientation, rotationZZ,
-                pressure, exposureBlock, resX, resY, hist, histLock);
+                pressure, exposureBlock, resX, resY, histogram, histLock);
 
         mFormat = Format.RAW;
-        mScriptCHist = scriptCHist;
-    }
-
-    @Override
-    int[] histogram() {
-
-        int[] hist = new int[1024];
-        mScriptCHist.invoke_clear();
-
-        // apply weights if necessary
-        if(mExposureBlock.weights != null) {
-            mScriptCHist.forEach_histogram_weighted(aBuf, mExposureBlock.weights);
-        } else {
-            mScriptCHist.forEach_histogram_unweighted(aBuf);
-        }
-
-        aHist.copyTo(hist);
-
-        return hist;
     }
 
     @Override
@@ -162,6 +140,7 @@ class RAWFrame extends Frame {
 
                     } else {
                         mShortArrayLock.unlock();
+                        mBuffersExhausted.inc();
                         mCallback.onDropped();
                     }
 
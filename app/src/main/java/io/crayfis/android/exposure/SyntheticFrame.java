@@ -0,0 +1,250 @@
+package io.crayfis.android.exposure;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import io.crayfis.android.compute.ComputeBackend;
+import io.crayfis.android.daq.AcquisitionTime;
+import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
+
+/**
+ * Frame generated by a {@link SyntheticSensor} rather than a camera.  It has no
+ * TotalCaptureResult, and carries the tracks and spots injected into it.
+ */
+public class SyntheticFrame extends Frame {
+
+    private List<SyntheticSensor.Injection> mInjections = Collections.emptyList();
+
+    SyntheticFrame(@NonNull final Allocation alloc,
+                   final Frame.Producer producer,
+                   final AcquisitionTime acquisitionTime,
+                   final Location location,
+                   final float[] orientation,
+                   final float rotationZZ,
+                   final float pressure,
+                   final ExposureBlock exposureBlock,
+                   final int resX,
+                   final int resY,
+                   final Format format,
+                   final ComputeBackend.Histogram histogram,
+                   final Lock histLock) {
+
+        super(alloc, null, producer, acquisitionTime, location, orientation, rotationZZ,
+                pressure, exposureBlock, resX, resY, histogram, histLock);
+
+        mFormat = format;
+    }
+
+    @Override
+    public void copyRange(int xOffset, int yOffset, int w, int h, short[] array) {
+        if(isRAW()) {
+            aBuf.copy2DRangeTo(xOffset, yOffset, w, h, array);
+            return;
+        }
+        byte[] buf = new byte[w*h];
+        aBuf.copy2DRangeTo(xOffset, yOffset, w, h, buf);
+        for(int i=0; i<buf.length; i++) {
+            array[i] = (short) (buf[i] & 0xFF);
+        }
+    }
+
+    /**
+     * @return the tracks and spots injected into this frame
+     */
+    public List<SyntheticSensor.Injection> getInjections() {
+        return mInjections;
+    }
+
+    /**
+     * Generates frames from a {@link SyntheticSensor} at a fixed rate, in place of a camera.
+     * When every buffer is still in use, the frame is dropped just as a camera frame would be.
+     */
+    public abstract static class Producer extends Frame.Producer {
+
+        private static final Metrics.Counter sTracks = Metrics.getInstance().counter("synthetic.tracks");
+        private static final Metrics.Counter sSpots = Metrics.getInstance().counter("synthetic.spots");
+
+        final SyntheticSensor mSensor;
+        private final long mPeriodMillis;
+
+        private final HandlerThread mSensorThread = new HandlerThread("SyntheticSensor");
+        private Handler mSensorHandler;
+        private long mNextFrameTime;
+
+        Producer(RenderScript rs,
+                 Size size,
+                 SyntheticSensor sensor,
+                 double fps,
+                 OnFrameCallback callback,
+                 Handler handler,
+                 Frame.Builder builder) {
+
+            super(rs, size, callback, handler, builder);
+
+            mSensor = sensor;
+            mPeriodMillis = Math.max(1L, Math.round(1000. / fps));
+        }
+
+        /**
+         * Create a producer for the given sensor, which must match the size
+         */
+        public static Producer create(RenderScript rs,
+                                      Size size,
+                                      SyntheticSensor sensor,
+                                      double fps,
+                                      OnFrameCallback callback,
+                                      Handler handler,
+                                      Frame.Builder builder) {
+            if(sensor.getWidth() != size.getWidth() || sensor.getHeight() != size.getHeight()) {
+                throw new IllegalArgumentException("Sensor does not match " + size);
+            }
+            if(sensor.isRAW()) {
+                return new RAWProducer(rs, size, sensor, fps, callback, handler, builder);
+            } else {
+                return new YUVProducer(rs, size, sensor, fps, callback, handler, builder);
+            }
+        }
+
+        public boolean isRAW() {
+            return mSensor.isRAW();
+        }
+
+        /**
+         * Start generating frames
+         */
+        public void start() {
+            mSensorThread.start();
+            mSensorHandler = new Handler(mSensorThread.getLooper());
+            mNextFrameTime = SystemClock.uptimeMillis();
+            mSensorHandler.post(mFrameRunnable);
+        }
+
+        private final Runnable mFrameRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if(mStopCalled) return;
+
+                // keep the rate steady even if a frame took a while to generate
+                mNextFrameTime += mPeriodMillis;
+                mSensorHandler.postAtTime(this, mNextFrameTime);
+
+                Allocation alloc = mAllocs.poll();
+                if(alloc == null) {
+                    mBuffersExhausted.inc();
+                    mCallback.onDropped();
+                    return;
+                }
+
+                List<SyntheticSensor.Injection> injections = fill(alloc, mPeriodMillis / 1000.);
+                for(SyntheticSensor.Injection injection : injections) {
+                    if(injection.track) {
+                        sTracks.inc();
+                    } else {
+                        sSpots.inc();
+                    }
+                }
+
+                SyntheticFrame frame = (SyntheticFrame) FRAME_BUILDER.setCapture(alloc, null)
+                        .setAcquisitionTime(new AcquisitionTime())
+                        .build();
+                frame.mInjections = injections;
+                dispatchFrame(frame);
+            }
+        };
+
+        /**
+         * Generate the next frame into a buffer
+         */
+        abstract List<SyntheticSensor.Injection> fill(Allocation alloc, double exposureSeconds);
+
+        @Override
+        void buildFrames() {
+            // frames are generated on a timer instead
+        }
+
+        @Override
+        public void close() {
+            mStopCalled = true;
+            if(mSensorHandler != null) {
+                mSensorHandler.removeCallbacks(mFrameRunnable);
+                mSensorThread.quitSafely();
+                try {
+                    mSensorThread.join(500L);
+                } catch (InterruptedException e) {
+                    CFLog.w("Interrupted while stopping synthetic sensor");
+                }
+            }
+            super.close();
+        }
+    }
+
+    private static class RAWProducer extends Producer {
+
+        private final short[] mBuf;
+
+        RAWProducer(RenderScript rs, Size size, SyntheticSensor sensor, double fps,
+                    OnFrameCallback callback, Handler handler, Frame.Builder builder) {
+            super(rs, size, sensor, fps, callback, handler, builder);
+            mBuf = new short[size.getWidth() * size.getHeight()];
+        }
+
+        @Override
+        Allocation buildAlloc(Size sz, RenderScript rs) {
+            Type t = new Type.Builder(rs, Element.U16(rs))
+                    .setX(sz.getWidth())
+                    .setY(sz.getHeight())
+                    .create();
+
+            return Allocation.createTyped(rs, t, Allocation.USAGE_SCRIPT);
+        }
+
+        @Override
+        List<SyntheticSensor.Injection> fill(Allocation alloc, double exposureSeconds) {
+            List<SyntheticSensor.Injection> injections = mSensor.fill(mBuf, exposureSeconds);
+            alloc.copyFromUnchecked(mBuf);
+            return injections;
+        }
+    }
+
+    private static class YUVProducer extends Producer {
+
+        private final byte[] mBuf;
+
+        YUVProducer(RenderScript rs, Size size, SyntheticSensor sensor, double fps,
+                    OnFrameCallback callback, Handler handler, Frame.Builder builder) {
+            super(rs, size, sensor, fps, callback, handler, builder);
+            mBuf = new byte[size.getWidth() * size.getHeight()];
+        }
+
+        @Override
+        Allocation buildAlloc(Size sz, RenderScript rs) {
+            Type t = new Type.Builder(rs, Element.U8(rs))
+                    .setX(sz.getWidth())
+                    .setY(sz.getHeight())
+                    .create();
+
+            return Allocation.createTyped(rs, t, Allocation.USAGE_SCRIPT);
+        }
+
+        @Override
+        List<SyntheticSensor.Injection> fill(Allocation alloc, double exposureSeconds) {
+            List<SyntheticSensor.Injection> injections = mSensor.fill(mBuf, exposureSeconds);
+            alloc.copyFrom(mBuf);
+            return injections;
+        }
+    }
+}
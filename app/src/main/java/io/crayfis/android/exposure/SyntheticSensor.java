@@ -0,0 +1,382 @@
+package io.crayfis.android.exposure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Generates camera-like frames from a seed, for running the DAQ without a camera.  This has no
+ * Android dependencies, so it can also be used to check the triggers on a JVM.
+ *
+ * Each pixel is pedestal + gain(x, y) * (dark + deposit), clamped to the range of the format:
+ *  - dark is Poisson dark current plus Gaussian read noise
+ *  - gain is a vignetting falloff towards the edges, so that the mean dark level, and hence the
+ *    weights found by StatsTask, log(1 + 1/mu), follow {@link #getExpectedWeight(int, int)}
+ *  - a fixed population of hotcells sits well above the noise
+ *  - muon-like tracks and compact spots are injected at known rates, and returned as
+ *    {@link Injection}s to compare against what the triggers find
+ *
+ * The same seed and settings always give the same sequence of frames.
+ */
+public final class SyntheticSensor {
+
+    // number of precomputed dark noise samples
+    private static final int NOISE_TABLE_SIZE = 1 << 16;
+
+    // share of a spot's deposit in each pixel of a 3x3 block, for a Gaussian of sigma 0.7 pixels
+    private static final double[] SPOT_SHARE = {
+            0.0113, 0.0838, 0.0113,
+            0.0838, 0.6196, 0.0838,
+            0.0113, 0.0838, 0.0113};
+
+    /**
+     * Ground truth for a track or spot added to a frame
+     */
+    public static final class Injection {
+        public final boolean track;
+        // bounding box, inclusive
+        public final int xMin;
+        public final int yMin;
+        public final int xMax;
+        public final int yMax;
+        // number of pixels touched and the largest deposit, before gain
+        public final int npix;
+        public final int maxDeposit;
+
+        Injection(boolean track, int xMin, int yMin, int xMax, int yMax, int npix, int maxDeposit) {
+            this.track = track;
+            this.xMin = xMin;
+            this.yMin = yMin;
+            this.xMax = xMax;
+            this.yMax = yMax;
+            this.npix = npix;
+            this.maxDeposit = maxDeposit;
+        }
+
+        /**
+         * @return whether the pixel lies within margin of the bounding box
+         */
+        public boolean contains(int x, int y, int margin) {
+            return x >= xMin - margin && x <= xMax + margin
+                    && y >= yMin - margin && y <= yMax + margin;
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mRaw;
+    private final int mMaxValue;
+    private final long mSeed;
+
+    private int mPedestal;
+    private double mDarkMean = 1.0;
+    private double mReadSigma = 0.7;
+    private double mVignetting = 0.4;
+    private double mHotcellFraction = 2e-6;
+    private double mTrackRate = 0.05;
+    private double mSpotRate = 0.1;
+    private double mTrackLength = 25;
+    private double mTrackDeposit = 40;
+    private double mSpotDeposit = 150;
+
+    // built on the first frame, once the settings are final
+    private Random mRandom;
+    private int[] mNoise;
+    private float[] mGainX;
+    private float[] mGainY;
+    private int[] mHotcells;
+    private int[] mHotLevels;
+
+    /**
+     * @param width Frame width
+     * @param height Frame height
+     * @param raw Whether to produce 10-bit RAW values, rather than an 8-bit Y channel
+     * @param seed Seed for every random choice
+     */
+    public SyntheticSensor(int width, int height, boolean raw, long seed) {
+        if(width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mRaw = raw;
+        mMaxValue = raw ? 1023 : 255;
+        mSeed = seed;
+        mPedestal = raw ? 64 : 0;
+        if(raw) {
+            // keep the same signal to noise in 10 bits
+            mDarkMean *= 4;
+            mReadSigma *= 4;
+            mTrackDeposit *= 4;
+            mSpotDeposit *= 4;
+        }
+    }
+
+    /**
+     * Set the dark noise.  Settings must be made before the first frame.
+     *
+     * @param darkMean Mean of the Poisson dark current, in counts
+     * @param readSigma Standard deviation of the Gaussian read noise, in counts
+     */
+    public SyntheticSensor setDarkNoise(double darkMean, double readSigma) {
+        mDarkMean = darkMean;
+        mReadSigma = readSigma;
+        return this;
+    }
+
+    public SyntheticSensor setPedestal(int pedestal) {
+        mPedestal = pedestal;
+        return this;
+    }
+
+    /**
+     * @param strength Fractional loss of gain in the corners, between 0 and 1
+     */
+    public SyntheticSensor setVignetting(double strength) {
+        mVignetting = strength;
+        return this;
+    }
+
+    /**
+     * @param fraction Fraction of pixels which are hot
+     */
+    public SyntheticSensor setHotcellFraction(double fraction) {
+        mHotcellFraction = fraction;
+        return this;
+    }
+
+    /**
+     * @param perSecond Mean number of tracks per second of exposure
+     * @param meanLength Mean length of a track, in pixels
+     * @param deposit Most probable deposit per pixel, in counts
+     */
+    public SyntheticSensor setTracks(double perSecond, double meanLength, double deposit) {
+        mTrackRate = perSecond;
+        mTrackLength = meanLength;
+        mTrackDeposit = deposit;
+        return this;
+    }
+
+    /**
+     * @param perSecond Mean number of spots per second of exposure
+     * @param deposit Mean total deposit of a spot, in counts
+     */
+    public SyntheticSensor setSpots(double perSecond, double deposit) {
+        mSpotRate = perSecond;
+        mSpotDeposit = deposit;
+        return this;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean isRAW() {
+        return mRaw;
+    }
+
+    /**
+     * @return the hot pixels, as sorted x + width * y
+     */
+    public int[] getHotcells() {
+        init();
+        return mHotcells.clone();
+    }
+
+    /**
+     * The weight StatsTask should find for a pixel, before normalizing to the smallest mean
+     *
+     * @return log(1 + 1/mu), where mu is the mean dark level of the pixel
+     */
+    public double getExpectedWeight(int x, int y) {
+        init();
+        double mu = mPedestal + mGainX[x] * mGainY[y] * mDarkMean;
+        return Math.log1p(1 / mu);
+    }
+
+    private synchronized void init() {
+        if(mRandom != null) return;
+        mRandom = new Random(mSeed);
+
+        mNoise = new int[NOISE_TABLE_SIZE];
+        for(int i=0; i<NOISE_TABLE_SIZE; i++) {
+            mNoise[i] = (int) Math.round(poisson(mDarkMean) + mReadSigma * mRandom.nextGaussian());
+        }
+
+        // separable falloff, from 1 in the middle to (1 - strength) in the corners
+        double edge = 1 - Math.sqrt(1 - mVignetting);
+        mGainX = new float[mWidth];
+        for(int x=0; x<mWidth; x++) {
+            double u = 2. * x / Math.max(mWidth - 1, 1) - 1;
+            mGainX[x] = (float) (1 - edge * u * u);
+        }
+        mGainY = new float[mHeight];
+        for(int y=0; y<mHeight; y++) {
+            double v = 2. * y / Math.max(mHeight - 1, 1) - 1;
+            mGainY[y] = (float) (1 - edge * v * v);
+        }
+
+        int npix = mWidth * mHeight;
+        int nHot = (int) Math.round(mHotcellFraction * npix);
+        TreeSet<Integer> hot = new TreeSet<>();
+        while(hot.size() < nHot) {
+            hot.add(mRandom.nextInt(npix));
+        }
+        mHotcells = new int[nHot];
+        mHotLevels = new int[nHot];
+        int i = 0;
+        for(int pos : hot) {
+            mHotcells[i] = pos;
+            mHotLevels[i] = mMaxValue / 4 + mRandom.nextInt(mMaxValue / 2);
+            i++;
+        }
+    }
+
+    /**
+     * Fill a RAW frame
+     *
+     * @param out Array of width * height
+     * @param exposureSeconds Time covered by this frame, which sets the number of injections
+     * @return the tracks and spots added
+     */
+    public synchronized List<Injection> fill(short[] out, double exposureSeconds) {
+        if(!mRaw) throw new IllegalStateException("Sensor is not RAW");
+        return fill(out, null, exposureSeconds);
+    }
+
+    /**
+     * Fill the Y channel of a YUV frame
+     *
+     * @param out Array of width * height
+     * @param exposureSeconds Time covered by this frame, which sets the number of injections
+     * @return the tracks and spots added
+     */
+    public synchronized List<Injection> fill(byte[] out, double exposureSeconds) {
+        if(mRaw) throw new IllegalStateException("Sensor is RAW");
+        return fill(null, out, exposureSeconds);
+    }
+
+    private List<Injection> fill(short[] outRaw, byte[] outYuv, double exposureSeconds) {
+        init();
+
+        // xorshift for the per-pixel noise, seeded from the frame sequence
+        long state = mRandom.nextLong() | 1L;
+        for(int y=0; y<mHeight; y++) {
+            float gy = mGainY[y];
+            int row = y * mWidth;
+            for(int x=0; x<mWidth; x++) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                int dark = Math.max(0, mNoise[(int) (state & (NOISE_TABLE_SIZE - 1))]);
+                int val = mPedestal + (int) (mGainX[x] * gy * dark + 0.5f);
+                set(outRaw, outYuv, row + x, val);
+            }
+        }
+
+        for(int i=0; i<mHotcells.length; i++) {
+            set(outRaw, outYuv, mHotcells[i], mHotLevels[i]);
+        }
+
+        List<Injection> injections = new ArrayList<>();
+        int nTracks = poisson(mTrackRate * exposureSeconds);
+        for(int i=0; i<nTracks; i++) {
+            injections.add(addTrack(outRaw, outYuv));
+        }
+        int nSpots = poisson(mSpotRate * exposureSeconds);
+        for(int i=0; i<nSpots; i++) {
+            injections.add(addSpot(outRaw, outYuv));
+        }
+        return injections;
+    }
+
+    private Injection addTrack(short[] outRaw, byte[] outYuv) {
+        double x = mRandom.nextDouble() * mWidth;
+        double y = mRandom.nextDouble() * mHeight;
+        double angle = mRandom.nextDouble() * 2 * Math.PI;
+        double length = -mTrackLength * Math.log(1 - mRandom.nextDouble());
+        double dx = Math.cos(angle);
+        double dy = Math.sin(angle);
+
+        int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE, xMax = -1, yMax = -1;
+        int npix = 0;
+        int maxDeposit = 0;
+        int lastPos = -1;
+        for(double s=0; s<=length; s+=1) {
+            int px = (int) (x + s * dx);
+            int py = (int) (y + s * dy);
+            if(px < 0 || py < 0 || px >= mWidth || py >= mHeight) break;
+            int pos = px + mWidth * py;
+            if(pos == lastPos) continue;
+            lastPos = pos;
+
+            // log-normal, for a Landau-like tail of large deposits
+            int deposit = (int) (mTrackDeposit * Math.exp(0.5 * mRandom.nextGaussian()));
+            add(outRaw, outYuv, px, py, deposit);
+            npix++;
+            maxDeposit = Math.max(maxDeposit, deposit);
+            xMin = Math.min(xMin, px);
+            yMin = Math.min(yMin, py);
+            xMax = Math.max(xMax, px);
+            yMax = Math.max(yMax, py);
+        }
+        return new Injection(true, xMin, yMin, xMax, yMax, npix, maxDeposit);
+    }
+
+    private Injection addSpot(short[] outRaw, byte[] outYuv) {
+        int cx = mRandom.nextInt(mWidth);
+        int cy = mRandom.nextInt(mHeight);
+        double total = -mSpotDeposit * Math.log(1 - mRandom.nextDouble());
+
+        int npix = 0;
+        int maxDeposit = 0;
+        for(int j=0; j<9; j++) {
+            int px = cx + j % 3 - 1;
+            int py = cy + j / 3 - 1;
+            if(px < 0 || py < 0 || px >= mWidth || py >= mHeight) continue;
+            int deposit = (int) (total * SPOT_SHARE[j]);
+            if(deposit == 0) continue;
+            add(outRaw, outYuv, px, py, deposit);
+            npix++;
+            maxDeposit = Math.max(maxDeposit, deposit);
+        }
+        return new Injection(false, Math.max(cx - 1, 0), Math.max(cy - 1, 0),
+                Math.min(cx + 1, mWidth - 1), Math.min(cy + 1, mHeight - 1), npix, maxDeposit);
+    }
+
+    private void add(short[] outRaw, byte[] outYuv, int x, int y, int deposit) {
+        int pos = x + mWidth * y;
+        int current = outRaw != null ? outRaw[pos] & 0xFFFF : outYuv[pos] & 0xFF;
+        set(outRaw, outYuv, pos, current + (int) (mGainX[x] * mGainY[y] * deposit));
+    }
+
+    private void set(short[] outRaw, byte[] outYuv, int pos, int val) {
+        if(val > mMaxValue) val = mMaxValue;
+        if(outRaw != null) {
+            outRaw[pos] = (short) val;
+        } else {
+            outYuv[pos] = (byte) val;
+        }
+    }
+
+    private int poisson(double mean) {
+        if(mean <= 0) return 0;
+        if(mean > 30) {
+            // normal approximation, to keep this cheap
+            return Math.max(0, (int) Math.round(mean + Math.sqrt(mean) * mRandom.nextGaussian()));
+        }
+        double limit = Math.exp(-mean);
+        double p = mRandom.nextDouble();
+        int k = 0;
+        while(p > limit) {
+            p *= mRandom.nextDouble();
+            k++;
+        }
+        return k;
+    }
+}
@@ -8,7 +8,6 @@ import android.os.Handler;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicHistogram;
 import android.renderscript.Type;
 import android.util.Log;
 import android.util.Pair;
@@ -20,6 +19,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
 import io.crayfis.android.ScriptC_yuv;
+import io.crayfis.android.compute.ComputeBackend;
 import io.crayfis.android.daq.AcquisitionTime;
 import io.crayfis.android.util.CFLog;
 
@@ -29,11 +29,6 @@ import io.crayfis.android.util.CFLog;
 
 public class YUVFrame extends Frame {
 
-    // RenderScript objects
-    private final ScriptIntrinsicHistogram mScriptIntrinsicHistogram;
-    private final ScriptC_yuv mScriptCYuv;
-    private final Allocation aWeighted;
-
     YUVFrame(@NonNull final Allocation alloc,
              final TotalCaptureResult result,
              final Frame.Producer producer,
@@ -46,13 +41,11 @@ public class YUVFrame extends Frame {
              final int resX,
              final int resY,
              final ScriptC_yuv scriptCYuv,
-             final ScriptIntrinsicHistogram scriptIntrinsicHistogram,
-             final Allocation weighted,
-             final Allocation hist,
+             final ComputeBackend.Histogram histogram,
              final Lock histLock) {
 
         super(alloc, result, producer, acquisitionTime, location, orientation, rotationZZ,
-                pressure, exposureBlock, resX, resY, hist, histLock);
+                pressure, exposureBlock, resX, resY, histogram, histLock);
 
         // first load grayscale data into aBuf so ain can receive another buffer
         // N.B. since buildFrames() is synchronized, the next ioReceive() will be called after
@@ -60,29 +53,6 @@ public class YUVFrame extends Frame {
         scriptCYuv.forEach_grayscale(alloc);
 
         mFormat = Format.YUV;
-
-        mScriptCYuv = scriptCYuv;
-        mScriptIntrinsicHistogram = scriptIntrinsicHistogram;
-        aWeighted = weighted;
-    }
-
-    @Override
-    int[] histogram() {
-
-        int[] hist = new int[256];
-
-        // apply weights if necessary
-
-        if(mExposureBlock.weights != null) {
-            mScriptCYuv.forEach_weightYUV(aBuf, mExposureBlock.weights, aWeighted);
-            mScriptIntrinsicHistogram.forEach(aWeighted);
-        } else {
-            mScriptIntrinsicHistogram.forEach(aBuf);
-        }
-
-        aHist.copyTo(hist);
-
-        return hist;
     }
 
     @Override
@@ -151,6 +121,7 @@ public class YUVFrame extends Frame {
                 synchronized (this) {
                     ain.ioReceive();
                 }
+                mBuffersExhausted.inc();
                 mCallback.onDropped();
             } else {
                 nBuffersQueued.incrementAndGet();
@@ -11,6 +11,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
 import android.os.CountDownTimer;
 import android.preference.PreferenceManager;
@@ -25,6 +26,7 @@ import java.util.Calendar;
 import java.util.UUID;
 
 import io.crayfis.android.R;
+import io.crayfis.android.compute.ComputeBackend;
 import io.crayfis.android.daq.DAQManager;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.server.UploadExposureService;
@@ -89,8 +91,6 @@ public class CFApplication extends Application {
     };
 
     //private static final String SHARED_PREFS_NAME = "global";
-    private int mBatteryTemp = -1;
-    private static final int BATTERY_START_TEMP = 350;
     private static final float BATTERY_START_PCT = .80f;
     private boolean mBatteryLow = false;
     private boolean mBatteryOverheated = false;
@@ -118,6 +118,33 @@ public class CFApplication extends Application {
         final Intent intent = new Intent(this, UploadExposureService.class);
         startService(intent);
         mRS = RenderScript.create(this);
+
+        // react to battery changes as they happen, rather than polling from the DAQ
+        ThermalMonitor monitor = ThermalMonitor.getInstance();
+        monitor.register(this);
+        monitor.addListener(new ThermalMonitor.Listener() {
+            @Override
+            public void onBatteryChanged(ThermalMonitor.Level level) {
+                if(mApplicationState != State.FINISHED) {
+                    checkBatteryStats();
+                }
+            }
+        });
+
+        // time the compute backends off the main thread; RenderScript is used until this is done
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ComputeBackend.select(mRS);
+            }
+        });
+    }
+
+    @Override
+    public void onTerminate() {
+        // only called on emulators, but don't leave a batch of config behind there either
+        CFConfig.getInstance().flush();
+        super.onTerminate();
     }
 
     /**
@@ -126,7 +153,9 @@ public class CFApplication extends Application {
     public void savePreferences() {
         //final SharedPreferences localPrefs = getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE);
         final SharedPreferences localPrefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        CFConfig.getInstance().save(localPrefs);
+        final CFConfig config = CFConfig.getInstance();
+        config.save(localPrefs);
+        if(config.getPrecalConfig() != null) config.getPrecalConfig().save(this);
     }
 
     /**
@@ -249,7 +278,7 @@ public class CFApplication extends Application {
                 if(safeExit) {
                     title = getString(R.string.notification_quit);
                     text = String.format(getString(R.string.notification_stats),
-                            L1Processor.L1CountData, L2Processor.L2Count);
+                            L1Processor.L1CountData.get(), L2Processor.L2Count.get());
                 } else {
                     title = getString(R.string.notification_error);
                     text = dialogMessage;
@@ -299,21 +328,18 @@ public class CFApplication extends Application {
     }
 
     /**
-     * Finds the battery temperature and charge, then switches to IDLE mode if the battery
-     * has poor health or to SURVEY if the battery returns to health
+     * Checks the battery charge and thermal level kept by {@link ThermalMonitor}, then switches
+     * to IDLE mode if the battery is low or critically hot, or to INIT if it returns to health.
+     * Lesser thermal levels are handled by throttling rather than stopping.
      *
      * @return true if in good health, false otherwise
      */
     public Boolean checkBatteryStats() {
-        IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        Intent batteryStatus = registerReceiver(null, ifilter);
-
-        // get battery updates
-        if(batteryStatus == null) return null;
-        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
-        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
-        float batteryPct = level / (float) scale;
-        int newTemp = batteryStatus.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
+        ThermalMonitor monitor = ThermalMonitor.getInstance();
+        float batteryPct = monitor.getBatteryPct();
+        if(batteryPct < 0) return null;
+        int temp = monitor.getBatteryTemp();
+        ThermalMonitor.Level level = monitor.getLevel();
 
         // check for low battery
         if (mBatteryLow) {
@@ -326,31 +352,22 @@ public class CFApplication extends Application {
             mBatteryLow = batteryPct < batteryStopPct;
         }
 
-        // check temperature for overheat
+        // check for overheat, and don't restart until throttling could cope
         if (mBatteryOverheated) {
-            // see if temp has stabilized below overheat threshold or has reached a sufficiently low temp
-            mBatteryOverheated = (newTemp <= mBatteryTemp && newTemp > BATTERY_START_TEMP) || newTemp > CONFIG.getBatteryOverheatTemp();
-            LayoutStatus.updateIdleStatus(String.format(getResources().getString(R.string.idle_cooling),
-                    newTemp / 10.));
+            mBatteryOverheated = level.compareTo(ThermalMonitor.Level.MODERATE) > 0;
         } else {
-            mBatteryOverheated = newTemp > CONFIG.getBatteryOverheatTemp();
-        }
-
-        if(mBatteryTemp != newTemp) {
-            CFLog.i("Temperature change: " + mBatteryTemp + "->" + newTemp);
-            mBatteryTemp = newTemp;
+            mBatteryOverheated = level == ThermalMonitor.Level.CRITICAL;
         }
 
         if(mBatteryLow) {
             LayoutStatus.updateIdleStatus(String.format(getResources().getString(R.string.idle_low),
                     (int) (batteryPct * 100), (int) (BATTERY_START_PCT * 100)));
-            int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-            if(status != BatteryManager.BATTERY_STATUS_CHARGING && mApplicationState != State.FINISHED) {
+            if(monitor.getBatteryStatus() != BatteryManager.BATTERY_STATUS_CHARGING && mApplicationState != State.FINISHED) {
                 finishAndQuit(R.string.quit_low);
             }
         } else if(mBatteryOverheated) {
             LayoutStatus.updateIdleStatus(String.format(getResources().getString(R.string.idle_cooling),
-                    newTemp / 10.));
+                    temp / 10.));
         }
 
         boolean healthy = !mBatteryLow && !mBatteryOverheated;
@@ -370,7 +387,7 @@ public class CFApplication extends Application {
     }
 
     public int getBatteryTemp() {
-        return mBatteryTemp;
+        return ThermalMonitor.getInstance().getBatteryTemp();
     }
 
     public RenderScript getRenderScript() {
@@ -53,7 +53,6 @@ import android.widget.Toast;
 import java.util.List;
 
 import io.crayfis.android.R;
-import io.crayfis.android.ui.navdrawer.your_account.UserStatusView;
 import io.crayfis.android.ui.settings.UserSettingActivity;
 import io.crayfis.android.ui.navdrawer.NavDrawerAdapter;
 import io.crayfis.android.ui.navdrawer.NavHelper;
@@ -98,6 +97,7 @@ public class DAQActivity extends AppCompatActivity {
                                     NotificationManager notificationManager
                                             = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
                                     notificationManager.cancelAll();
+                                    CFConfig.getInstance().flush();
                                     System.exit(0);
                                 }
                             })
@@ -162,11 +162,6 @@ public class DAQActivity extends AppCompatActivity {
                 mBinder = null;
             }
         };
-
-        final UserStatusView userStatus = (UserStatusView) findViewById(R.id.user_status);
-        if (userStatus != null) {
-            userStatus.postInvalidate();
-        }
     }
 
     @Override
@@ -11,6 +11,7 @@ import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.TaskStackBuilder;
@@ -36,6 +37,7 @@ import io.crayfis.android.server.UploadExposureService;
 import io.crayfis.android.trigger.L1.L1Processor;
 import io.crayfis.android.trigger.L2.L2Processor;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 /**
  * Created by Jeff on 2/17/2017.
@@ -69,6 +71,10 @@ public class DAQService extends Service {
 
     private ExposureBlockManager mXBManager;
 
+    // time from INIT, i.e. starting or switching cameras, until DATA
+    private final Metrics.Timer mTimeToData = Metrics.getInstance().timer("daq.time_to_data");
+    private long mInitTimeNanos;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -125,7 +131,7 @@ public class DAQService extends Service {
     public void onDestroy() {
         CFLog.i("DAQService Suspending!");
         mApplication.setApplicationState(CFApplication.State.FINISHED);
-
+        CFConfig.getInstance().flush();
 
         CFLog.d("DAQService: stopped");
     }
@@ -202,6 +208,7 @@ public class DAQService extends Service {
                 throw new IllegalFsmStateException(previousState + " -> INIT");
         }
 
+        mInitTimeNanos = SystemClock.elapsedRealtimeNanos();
         mXBManager.newExposureBlock(CFApplication.State.INIT);
     }
 
@@ -243,6 +250,11 @@ public class DAQService extends Service {
                 // just updating weights
                 PreCalibrationService.getWeights(this, cameraId, resX, resY);
                 break;
+            case INIT:
+                // a new resolution on the same camera, with the stored precalibration already set
+                CONFIG.setThresholds(null);
+                mApplication.changeApplicationState(CFApplication.State.PRECALIBRATION, CFApplication.State.CALIBRATION);
+                break;
             default:
                 throw new IllegalFsmStateException(previousState + " -> PRECALIBRATION");
 
@@ -257,6 +269,11 @@ public class DAQService extends Service {
             throw new IllegalFsmStateException(previousState + " -> CALIBRATION");
 
         L1Processor.getCalibrator().clear();
+        if(L1Processor.warmStart(mApplication)) {
+            // the stored calibration is checked against the first DATA frames instead
+            mApplication.changeApplicationState(CFApplication.State.CALIBRATION, CFApplication.State.DATA);
+            return;
+        }
         mXBManager.newExposureBlock(CFApplication.State.CALIBRATION);
     }
 
@@ -270,6 +287,12 @@ public class DAQService extends Service {
         if(previousState != CFApplication.State.CALIBRATION)
             throw new IllegalFsmStateException(previousState + " -> DATA");
 
+        if(mInitTimeNanos > 0) {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - mInitTimeNanos;
+            mTimeToData.record(elapsed);
+            CFLog.i("Time to DATA: " + String.format("%.1f", elapsed / 1e9) + " s");
+            mInitTimeNanos = 0;
+        }
         mXBManager.newExposureBlock(CFApplication.State.DATA);
     }
 
@@ -416,13 +439,13 @@ public class DAQService extends Service {
 
     private final IBinder mBinder = new DAQBinder();
     private long mTimeBeforeSleeping = 0;
-    private int mCountsBeforeSleeping = 0;
+    private long mCountsBeforeSleeping = 0;
 
     public class DAQBinder extends Binder {
 
         public void saveStatsBeforeSleeping() {
             mTimeBeforeSleeping = System.currentTimeMillis();
-            mCountsBeforeSleeping = L2Processor.L2Count;
+            mCountsBeforeSleeping = L2Processor.L2Count.get();
         }
 
         public long getTimeWhileSleeping() {
@@ -431,19 +454,19 @@ public class DAQService extends Service {
         }
 
         public int getCountsWhileSleeping() {
-            return L2Processor.L2Count - mCountsBeforeSleeping;
+            return (int) (L2Processor.L2Count.get() - mCountsBeforeSleeping);
         }
 
         public long getTotalEvents() {
-            return L2Processor.L2Count;
+            return L2Processor.L2Count.get();
         }
 
         public long getTotalPixelsScanned() {
-            return (long)L1Processor.L1CountData * mDAQManager.getResX() * mDAQManager.getResY();
+            return L1Processor.L1CountData.get() * mDAQManager.getResX() * mDAQManager.getResY();
         }
 
         public long getTotalFrames() {
-            return L1Processor.L1CountData;
+            return L1Processor.L1CountData.get();
         }
 
         public String getDevText() {
@@ -453,12 +476,13 @@ public class DAQService extends Service {
 
             String devtxt = "@@ Developer View @@\n"
                     + "State: " + mApplication.getApplicationState() + "\n"
-                    + "total frames - L1: " + L0Processor.L0Count.intValue() + " (L2: " + L2Processor.L2Count + ")\n"
+                    + "total frames - L1: " + L0Processor.L0Count.intValue() + " (L2: " + L2Processor.L2Count.get() + ")\n"
                     + "target eff=" +String.format("%1.2f", targetL1Rate)+ "\n"
                     + "L1 pass rate=" + String.format("%1.2f", L2Processor.getPassRateFPM())
                     + ", target=" + String.format("%1.2f",CONFIG.getTargetEventsPerMinute())+"\n"
                     + "Exposure Blocks:" + (mXBManager != null ? mXBManager.getTotalXBs() : -1) + "\n"
-                    + "Battery temp = " + String.format("%1.1f", mApplication.getBatteryTemp()/10.) + "C\n"
+                    + "Battery temp = " + String.format("%1.1f", mApplication.getBatteryTemp()/10.) + "C"
+                    + ", thermal level = " + ThermalMonitor.getInstance().getLevel() + "\n"
                     + "\n";
 
             devtxt += mDAQManager.getStatus() + "\n";
@@ -0,0 +1,240 @@
+package io.crayfis.android.main;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.crayfis.android.server.CFConfig;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Keeps the battery state and a thermal level up to date in the background, so that nothing on
+ * the frame path has to query the battery.  The level comes from the battery temperature,
+ * relative to {@link CFConfig#getBatteryOverheatTemp()}, and from the platform thermal status
+ * where available, whichever is worse.
+ *
+ * Each level below {@link Level#CRITICAL} maps to a throttle: the fraction of frames to
+ * process, and the fraction of the target FPS to configure.  Only CRITICAL sends the DAQ to IDLE.
+ */
+public final class ThermalMonitor {
+
+    public enum Level {
+        //    duty cycle, FPS scale
+        NONE(1.0, 1.0),
+        LIGHT(0.75, 1.0),
+        MODERATE(0.5, 1.0),
+        SEVERE(0.25, 0.5),
+        CRITICAL(0.0, 0.5);
+
+        public final double dutyCycle;
+        public final double fpsScale;
+
+        Level(double dutyCycle, double fpsScale) {
+            this.dutyCycle = dutyCycle;
+            this.fpsScale = fpsScale;
+        }
+    }
+
+    public interface Listener {
+        void onBatteryChanged(Level level);
+    }
+
+    // tenths of a degree C below the overheat temperature for each level
+    private static final int STEP = 10;
+
+    private volatile Level mLevel = Level.NONE;
+    private volatile int mPlatformStatus = -1;
+
+    // -1 until the first battery broadcast
+    private volatile int mBatteryTemp = -1;
+    private volatile float mBatteryPct = -1f;
+    private volatile int mBatteryStatus = -1;
+
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private Context mContext;
+    private Object mPlatformListener;
+
+    private static ThermalMonitor sInstance;
+
+    /**
+     * Get the instance of {@link ThermalMonitor}.
+     *
+     * @return {@link ThermalMonitor}
+     */
+    public static synchronized ThermalMonitor getInstance() {
+        if(sInstance == null) {
+            sInstance = new ThermalMonitor();
+        }
+        return sInstance;
+    }
+
+    private ThermalMonitor() { }
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryIntent(intent);
+        }
+    };
+
+    /**
+     * Start listening for battery and thermal changes.  The battery broadcast is sticky, so the
+     * state is available as soon as this returns.
+     *
+     * @param context Context
+     */
+    public synchronized void register(@NonNull Context context) {
+        if(mContext != null) return;
+        mContext = context.getApplicationContext();
+
+        Intent sticky = mContext.registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if(sticky != null) {
+            onBatteryIntent(sticky);
+        }
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            registerPlatformListener();
+        }
+    }
+
+    public synchronized void unregister() {
+        if(mContext == null) return;
+        mContext.unregisterReceiver(mBatteryReceiver);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mPlatformListener != null) {
+            PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            if(pm != null) {
+                pm.removeThermalStatusListener((PowerManager.OnThermalStatusChangedListener) mPlatformListener);
+            }
+            mPlatformListener = null;
+        }
+        mContext = null;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private void registerPlatformListener() {
+        PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+        if(pm == null) return;
+
+        PowerManager.OnThermalStatusChangedListener listener = new PowerManager.OnThermalStatusChangedListener() {
+            @Override
+            public void onThermalStatusChanged(int status) {
+                mPlatformStatus = status;
+                update();
+            }
+        };
+        mPlatformStatus = pm.getCurrentThermalStatus();
+        pm.addThermalStatusListener(mContext.getMainExecutor(), listener);
+        mPlatformListener = listener;
+        update();
+    }
+
+    private void onBatteryIntent(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if(level >= 0 && scale > 0) {
+            mBatteryPct = level / (float) scale;
+        }
+        mBatteryStatus = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+
+        int temp = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
+        if(temp != mBatteryTemp) {
+            CFLog.i("Temperature change: " + mBatteryTemp + "->" + temp);
+            mBatteryTemp = temp;
+        }
+        update();
+    }
+
+    private void update() {
+        Level level = max(levelFromTemp(mBatteryTemp), levelFromPlatform(mPlatformStatus));
+        if(level != mLevel) {
+            CFLog.i("Thermal level " + mLevel + " -> " + level);
+            mLevel = level;
+        }
+        for(Listener l : mListeners) {
+            l.onBatteryChanged(level);
+        }
+    }
+
+    private static Level levelFromTemp(int temp) {
+        if(temp < 0) return Level.NONE;
+        int overheat = CFConfig.getInstance().getBatteryOverheatTemp();
+        if(temp > overheat) return Level.CRITICAL;
+        if(temp > overheat - STEP) return Level.SEVERE;
+        if(temp > overheat - 2*STEP) return Level.MODERATE;
+        if(temp > overheat - 3*STEP) return Level.LIGHT;
+        return Level.NONE;
+    }
+
+    private static Level levelFromPlatform(int status) {
+        // PowerManager.THERMAL_STATUS_*
+        switch(status) {
+            case 1:
+                return Level.LIGHT;
+            case 2:
+                return Level.MODERATE;
+            case 3:
+                return Level.SEVERE;
+            case 4:
+            case 5:
+            case 6:
+                return Level.CRITICAL;
+            default:
+                return Level.NONE;
+        }
+    }
+
+    private static Level max(Level a, Level b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    public void addListener(@NonNull Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @NonNull
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return battery temperature in tenths of a degree C, or -1 if unknown
+     */
+    public int getBatteryTemp() {
+        return mBatteryTemp;
+    }
+
+    /**
+     * @return battery charge between 0 and 1, or -1 if unknown
+     */
+    public float getBatteryPct() {
+        return mBatteryPct;
+    }
+
+    /**
+     * @return whether the battery is charging or full
+     */
+    public boolean isCharging() {
+        return mBatteryStatus == BatteryManager.BATTERY_STATUS_CHARGING
+                || mBatteryStatus == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    /**
+     * @return BatteryManager.BATTERY_STATUS_*, or -1 if unknown
+     */
+    public int getBatteryStatus() {
+        return mBatteryStatus;
+    }
+}
@@ -4,12 +4,16 @@ import android.content.SharedPreferences;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.HashMap;
+
 import io.crayfis.android.BuildConfig;
 import io.crayfis.android.daq.DAQManager;
 import io.crayfis.android.daq.ResolutionSpec;
+import io.crayfis.android.exposure.ExposureBlockManager;
 import io.crayfis.android.trigger.L0.L0Processor;
 import io.crayfis.android.trigger.L1.L1Processor;
 import io.crayfis.android.trigger.L2.L2Processor;
+import io.crayfis.android.trigger.cluster.ClusterProcessor;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.trigger.precalibration.PreCalibrator;
 import io.crayfis.android.trigger.quality.QualityProcessor;
@@ -37,6 +41,8 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
     private static final String KEY_PRECAL_TRIGGER = "precal_trigger";
     private static final String KEY_L1_TRIGGER = "L1_trigger";
     private static final String KEY_L2_TRIGGER = "L2_trigger";
+    private static final String KEY_CLUSTER_TRIGGER = "cluster_trigger";
+    private static final String KEY_DATA_TRIGGER_GRAPH = "data_trigger_graph";
     private static final String KEY_XB_TARGET_EVENTS = "xb_target_events";
     private static final String KEY_CURRENT_EXPERIMENT = "current_experiment";
     private static final String KEY_DEVICE_NICKNAME = "device_nickname";
@@ -49,11 +55,20 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
     private static final String KEY_BATTERY_OVERHEAT_TEMP = "battery_overheat_temp";
     private static final String KEY_DATACHUNK_SIZE = "datachunk_size";
 
+    private static final String[] KEYS = {
+            KEY_L0_TRIGGER, KEY_QUAL_TRIGGER, KEY_PRECAL_TRIGGER, KEY_L1_TRIGGER, KEY_L2_TRIGGER,
+            KEY_CLUSTER_TRIGGER, KEY_DATA_TRIGGER_GRAPH, KEY_XB_TARGET_EVENTS, KEY_CURRENT_EXPERIMENT,
+            KEY_DEVICE_NICKNAME, KEY_ACCOUNT_NAME, KEY_ACCOUNT_SCORE, KEY_TARGET_RESOLUTION_STR,
+            KEY_TARGET_FPS, KEY_N_ALLOC, KEY_FRAC_DEAD_TIME, KEY_BATTERY_OVERHEAT_TEMP, KEY_DATACHUNK_SIZE
+    };
+
     private static final String DEFAULT_L0_TRIGGER = "";
     private static final String DEFAULT_QUAL_TRIGGER = "";
     private static final String DEFAULT_PRECAL_TRIGGER = "";
     private static final String DEFAULT_L1_TRIGGER = "";
     private static final String DEFAULT_L2_TRIGGER = "";
+    private static final String DEFAULT_CLUSTER_TRIGGER = "";
+    private static final String DEFAULT_DATA_TRIGGER_GRAPH = "";
     private static final int DEFAULT_XB_TARGET_EVENTS = 60;
     private static final String DEFAULT_CURRENT_EXPERIMENT = null;
     private static final String DEFAULT_DEVICE_NICKNAME = null;
@@ -73,7 +88,11 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
     private PreCalibrator.ConfigList mPrecalTriggers;
     private TriggerProcessor.Config mL1Trigger;
     private TriggerProcessor.Config mL2Trigger;
+    private TriggerProcessor.Config mClusterTrigger;
+    private String mDataTriggerGraph;
     private boolean mThresholdsSet;
+    // L1 thresholds of companion cameras, by camera ID
+    private final HashMap<Integer, Float> mCompanionL1Thresholds = new HashMap<>();
     private int mExposureBlockTargetEvents;
     private String mCurrentExperiment;
     private String mDeviceNickname;
@@ -88,12 +107,35 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
     private int mBatteryOverheatTemp;
     private long mDataChunkSize;
 
+    private final ConfigStore mStore = new ConfigStore();
+
     private CFConfig() {
+        mStore.register(KEY_L0_TRIGGER, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_QUAL_TRIGGER, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_PRECAL_TRIGGER, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_L1_TRIGGER, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_L2_TRIGGER, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_CLUSTER_TRIGGER, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_DATA_TRIGGER_GRAPH, ConfigStore.Group.TRIGGERS);
+        mStore.register(KEY_XB_TARGET_EVENTS, ConfigStore.Group.RUN);
+        mStore.register(KEY_CURRENT_EXPERIMENT, ConfigStore.Group.RUN);
+        mStore.register(KEY_BATTERY_OVERHEAT_TEMP, ConfigStore.Group.RUN);
+        mStore.register(KEY_DATACHUNK_SIZE, ConfigStore.Group.RUN);
+        mStore.register(KEY_DEVICE_NICKNAME, ConfigStore.Group.ACCOUNT);
+        mStore.register(KEY_ACCOUNT_NAME, ConfigStore.Group.ACCOUNT);
+        mStore.register(KEY_ACCOUNT_SCORE, ConfigStore.Group.ACCOUNT);
+        mStore.register(KEY_TARGET_RESOLUTION_STR, ConfigStore.Group.CAMERA);
+        mStore.register(KEY_TARGET_FPS, ConfigStore.Group.CAMERA);
+        mStore.register(KEY_N_ALLOC, ConfigStore.Group.CAMERA);
+        mStore.register(KEY_FRAC_DEAD_TIME, ConfigStore.Group.CAMERA);
+
         mL0Trigger = L0Processor.makeConfig(DEFAULT_L0_TRIGGER);
         mQualTrigger = QualityProcessor.makeConfig(DEFAULT_QUAL_TRIGGER);
         mPrecalTriggers = PreCalibrator.makeConfig(DEFAULT_PRECAL_TRIGGER);
         mL1Trigger = L1Processor.makeConfig(DEFAULT_L1_TRIGGER);
         mL2Trigger = L2Processor.makeConfig(DEFAULT_L2_TRIGGER);
+        mClusterTrigger = ClusterProcessor.makeConfig(DEFAULT_CLUSTER_TRIGGER);
+        mDataTriggerGraph = DEFAULT_DATA_TRIGGER_GRAPH;
         mThresholdsSet = false;
         mExposureBlockTargetEvents = DEFAULT_XB_TARGET_EVENTS;
         mCurrentExperiment = DEFAULT_CURRENT_EXPERIMENT;
@@ -140,6 +182,17 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
         return mL2Trigger;
     }
 
+    public TriggerProcessor.Config getClusterTrigger() {
+        return mClusterTrigger;
+    }
+
+    /**
+     * @return the graph of trigger stages for DATA, or an empty string for the usual chain
+     */
+    public String getDataTriggerGraph() {
+        return mDataTriggerGraph;
+    }
+
     /**
      * Get the threshold for camera frame capturing.
      *
@@ -187,6 +240,65 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
         mThresholdsSet = true;
     }
 
+    /**
+     * Get the L1 trigger of a companion camera, which is the same as the primary camera's except
+     * for the threshold.  With a trigger lock, companions use the locked thresholds.
+     *
+     * @param cameraId ID of the companion camera
+     * @return TriggerProcessor.Config
+     */
+    public TriggerProcessor.Config getL1Trigger(int cameraId) {
+        TriggerProcessor.Config l1Trigger = mL1Trigger;
+        if(l1Trigger.getBoolean(L1Processor.KEY_TRIGGER_LOCK)) {
+            return l1Trigger;
+        }
+
+        Float thresh;
+        synchronized (mCompanionL1Thresholds) {
+            thresh = mCompanionL1Thresholds.get(cameraId);
+        }
+        if(thresh == null) {
+            thresh = DAQManager.getInstance().isStreamingRAW(cameraId) ? 1023f : 255f;
+        }
+        return l1Trigger.edit()
+                .putFloat(L1Processor.KEY_L1_THRESH, thresh)
+                .create();
+    }
+
+    /**
+     * Get the L2 trigger of a companion camera, with a threshold generated from its L1 threshold
+     *
+     * @param cameraId ID of the companion camera
+     * @return TriggerProcessor.Config
+     */
+    public TriggerProcessor.Config getL2Trigger(int cameraId) {
+        TriggerProcessor.Config l2Trigger = mL2Trigger;
+        if(mL1Trigger.getBoolean(L1Processor.KEY_TRIGGER_LOCK)) {
+            return l2Trigger;
+        }
+
+        float l1Thresh = getL1Trigger(cameraId).getFloat(L1Processor.KEY_L1_THRESH);
+        return l2Trigger.edit()
+                .putInt(L2Processor.KEY_L2_THRESH, ((L2Processor.Config)l2Trigger).generateL2Threshold(l1Thresh))
+                .create();
+    }
+
+    /**
+     * Set the L1 threshold of a companion camera
+     *
+     * @param cameraId ID of the companion camera
+     * @param l1Thresh New L1 threshold, or null to return to the maximum
+     */
+    public void setThresholds(int cameraId, @Nullable Float l1Thresh) {
+        synchronized (mCompanionL1Thresholds) {
+            if(l1Thresh == null) {
+                mCompanionL1Thresholds.remove(cameraId);
+            } else {
+                mCompanionL1Thresholds.put(cameraId, l1Thresh);
+            }
+        }
+    }
+
     /**
      * How many frames to sample during calibration.  More frames is longer but gives better
      * statistics.
@@ -321,12 +433,15 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
             DAQManager.getInstance().changeDataRate(serverCommand.getCameraCommand().shouldIncrease());
             restartCamera = true;
         }
+        // trigger changes which the running tasks can pick up are applied from the next frame
+        ExposureBlockManager xbManager = ExposureBlockManager.getInstance();
         if (serverCommand.getL0Trigger() != null) {
             if(serverCommand.getL0Trigger().hasName()) {
                 mL0Trigger = L0Processor.makeConfig(serverCommand.getL0Trigger().toString());
             } else if(mL0Trigger != null) {
                 mL0Trigger = mL0Trigger.editFromString(serverCommand.getL0Trigger().toString());
             }
+            xbManager.swapTriggerConfig(L0Processor.class, mL0Trigger);
         }
         if (serverCommand.getQualityTrigger() != null) {
             if(serverCommand.getQualityTrigger().hasName()) {
@@ -334,6 +449,7 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
             } else if(mQualTrigger != null) {
                 mQualTrigger = mQualTrigger.editFromString(serverCommand.getQualityTrigger().toString());
             }
+            xbManager.swapTriggerConfig(QualityProcessor.class, mQualTrigger);
         }
         if (serverCommand.getPrecalTriggers() != null) {
             StringBuilder sb = new StringBuilder();
@@ -352,6 +468,7 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
             } else if(mL1Trigger != null) {
                 mL1Trigger = mL1Trigger.editFromString(serverCommand.getL1Trigger().toString());
             }
+            xbManager.swapTriggerConfig(L1Processor.class, mL1Trigger);
         }
         if (serverCommand.getL2Trigger() != null) {
             if(serverCommand.getL2Trigger().hasName()) {
@@ -359,6 +476,19 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
             } else if(mL2Trigger != null) {
                 mL2Trigger = mL2Trigger.editFromString(serverCommand.getL2Trigger().toString());
             }
+            xbManager.swapTriggerConfig(L2Processor.class, mL2Trigger);
+        }
+        if (serverCommand.getClusterTrigger() != null) {
+            if(serverCommand.getClusterTrigger().hasName()) {
+                mClusterTrigger = ClusterProcessor.makeConfig(serverCommand.getClusterTrigger().toString());
+            } else if(mClusterTrigger != null) {
+                mClusterTrigger = mClusterTrigger.editFromString(serverCommand.getClusterTrigger().toString());
+            }
+            xbManager.swapTriggerConfig(ClusterProcessor.class, mClusterTrigger);
+        }
+        if (serverCommand.getDataTriggerGraph() != null) {
+            // takes effect with the next ExposureBlock
+            mDataTriggerGraph = serverCommand.getDataTriggerGraph();
         }
         if (serverCommand.getTargetExposureBlockPeriod() != null) {
             mExposureBlockTargetEvents = (int)(serverCommand.getTargetExposureBlockPeriod()
@@ -417,50 +547,128 @@ public final class CFConfig implements SharedPreferences.OnSharedPreferenceChang
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String s) {
-        mL0Trigger = L0Processor.makeConfig(sharedPreferences.getString(KEY_L0_TRIGGER, DEFAULT_L0_TRIGGER));
-        mQualTrigger = QualityProcessor.makeConfig(sharedPreferences.getString(KEY_QUAL_TRIGGER, DEFAULT_QUAL_TRIGGER));
-        mPrecalTriggers = PreCalibrator.makeConfig(sharedPreferences.getString(KEY_PRECAL_TRIGGER, DEFAULT_PRECAL_TRIGGER));
-        mL1Trigger = L1Processor.makeConfig(sharedPreferences.getString(KEY_L1_TRIGGER, DEFAULT_L1_TRIGGER));
-        mL2Trigger = L2Processor.makeConfig(sharedPreferences.getString(KEY_L2_TRIGGER, DEFAULT_L2_TRIGGER));
-        mExposureBlockTargetEvents = sharedPreferences.getInt(KEY_XB_TARGET_EVENTS, DEFAULT_XB_TARGET_EVENTS);
-        mCurrentExperiment = sharedPreferences.getString(KEY_CURRENT_EXPERIMENT, DEFAULT_CURRENT_EXPERIMENT);
-        mDeviceNickname = sharedPreferences.getString(KEY_DEVICE_NICKNAME, DEFAULT_DEVICE_NICKNAME);
-        mAccountName = sharedPreferences.getString(KEY_ACCOUNT_NAME, DEFAULT_ACCOUNT_NAME);
-        mAccountScore = sharedPreferences.getFloat(KEY_ACCOUNT_SCORE, DEFAULT_ACCOUNT_SCORE);
-        mTargetResolutionStr = sharedPreferences.getString(KEY_TARGET_RESOLUTION_STR, DEFAULT_TARGET_RESOLUTION_STR);
-        // this is necessary to make this configurable in the settings
-        try {
-            mTargetFPS = Float.parseFloat(sharedPreferences.getString(KEY_TARGET_FPS, DEFAULT_TARGET_FPS.toString()));
-        } catch (NumberFormatException e) {
-            mTargetFPS = DEFAULT_TARGET_FPS;
-        }
-        mNAlloc = sharedPreferences.getInt(KEY_N_ALLOC, DEFAULT_N_ALLOC);
-        mFracDeadTime = sharedPreferences.getFloat(KEY_FRAC_DEAD_TIME, DEFAULT_FRAC_DEAD_TIME);
-        mBatteryOverheatTemp = sharedPreferences.getInt(KEY_BATTERY_OVERHEAT_TEMP, DEFAULT_BATTERY_OVERHEAT_TEMP);
-        mDataChunkSize = sharedPreferences.getLong(KEY_DATACHUNK_SIZE, DEFAULT_DATACHUNK_SIZE);
+        if(s == null) {
+            for(String key : KEYS) {
+                load(sharedPreferences, key);
+            }
+            mStore.load(sharedPreferences);
+            return;
+        }
+        // our own writes hold what is already in memory
+        if(mStore.isEcho(sharedPreferences, s)) return;
+
+        load(sharedPreferences, s);
+        mStore.onExternalChange(sharedPreferences, s);
+    }
+
+    private void load(SharedPreferences sharedPreferences, String key) {
+        switch (key) {
+            case KEY_L0_TRIGGER:
+                mL0Trigger = L0Processor.makeConfig(sharedPreferences.getString(KEY_L0_TRIGGER, DEFAULT_L0_TRIGGER));
+                break;
+            case KEY_QUAL_TRIGGER:
+                mQualTrigger = QualityProcessor.makeConfig(sharedPreferences.getString(KEY_QUAL_TRIGGER, DEFAULT_QUAL_TRIGGER));
+                break;
+            case KEY_PRECAL_TRIGGER:
+                mPrecalTriggers = PreCalibrator.makeConfig(sharedPreferences.getString(KEY_PRECAL_TRIGGER, DEFAULT_PRECAL_TRIGGER));
+                break;
+            case KEY_L1_TRIGGER:
+                mL1Trigger = L1Processor.makeConfig(sharedPreferences.getString(KEY_L1_TRIGGER, DEFAULT_L1_TRIGGER));
+                break;
+            case KEY_L2_TRIGGER:
+                mL2Trigger = L2Processor.makeConfig(sharedPreferences.getString(KEY_L2_TRIGGER, DEFAULT_L2_TRIGGER));
+                break;
+            case KEY_CLUSTER_TRIGGER:
+                mClusterTrigger = ClusterProcessor.makeConfig(sharedPreferences.getString(KEY_CLUSTER_TRIGGER, DEFAULT_CLUSTER_TRIGGER));
+                break;
+            case KEY_DATA_TRIGGER_GRAPH:
+                mDataTriggerGraph = sharedPreferences.getString(KEY_DATA_TRIGGER_GRAPH, DEFAULT_DATA_TRIGGER_GRAPH);
+                break;
+            case KEY_XB_TARGET_EVENTS:
+                mExposureBlockTargetEvents = sharedPreferences.getInt(KEY_XB_TARGET_EVENTS, DEFAULT_XB_TARGET_EVENTS);
+                break;
+            case KEY_CURRENT_EXPERIMENT:
+                mCurrentExperiment = sharedPreferences.getString(KEY_CURRENT_EXPERIMENT, DEFAULT_CURRENT_EXPERIMENT);
+                break;
+            case KEY_DEVICE_NICKNAME:
+                mDeviceNickname = sharedPreferences.getString(KEY_DEVICE_NICKNAME, DEFAULT_DEVICE_NICKNAME);
+                break;
+            case KEY_ACCOUNT_NAME:
+                mAccountName = sharedPreferences.getString(KEY_ACCOUNT_NAME, DEFAULT_ACCOUNT_NAME);
+                break;
+            case KEY_ACCOUNT_SCORE:
+                mAccountScore = sharedPreferences.getFloat(KEY_ACCOUNT_SCORE, DEFAULT_ACCOUNT_SCORE);
+                break;
+            case KEY_TARGET_RESOLUTION_STR:
+                mTargetResolutionStr = sharedPreferences.getString(KEY_TARGET_RESOLUTION_STR, DEFAULT_TARGET_RESOLUTION_STR);
+                break;
+            case KEY_TARGET_FPS:
+                // this is necessary to make this configurable in the settings
+                try {
+                    mTargetFPS = Float.parseFloat(sharedPreferences.getString(KEY_TARGET_FPS, DEFAULT_TARGET_FPS.toString()));
+                } catch (NumberFormatException e) {
+                    mTargetFPS = DEFAULT_TARGET_FPS;
+                }
+                break;
+            case KEY_N_ALLOC:
+                mNAlloc = sharedPreferences.getInt(KEY_N_ALLOC, DEFAULT_N_ALLOC);
+                break;
+            case KEY_FRAC_DEAD_TIME:
+                mFracDeadTime = sharedPreferences.getFloat(KEY_FRAC_DEAD_TIME, DEFAULT_FRAC_DEAD_TIME);
+                break;
+            case KEY_BATTERY_OVERHEAT_TEMP:
+                mBatteryOverheatTemp = sharedPreferences.getInt(KEY_BATTERY_OVERHEAT_TEMP, DEFAULT_BATTERY_OVERHEAT_TEMP);
+                break;
+            case KEY_DATACHUNK_SIZE:
+                mDataChunkSize = sharedPreferences.getLong(KEY_DATACHUNK_SIZE, DEFAULT_DATACHUNK_SIZE);
+                break;
+        }
     }
 
+    /**
+     * Write the fields which changed since the last save, shortly and in the background
+     */
     public void save(@NonNull final SharedPreferences sharedPreferences) {
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-
-        editor.putString(KEY_L0_TRIGGER, mL0Trigger.toString())
-                .putString(KEY_QUAL_TRIGGER, mQualTrigger.toString())
-                .putString(KEY_PRECAL_TRIGGER, mPrecalTriggers.toString())
-                .putString(KEY_L1_TRIGGER, getL1Trigger().toString())
-                .putString(KEY_L2_TRIGGER, getL2Trigger().toString())
-                .putInt(KEY_XB_TARGET_EVENTS, mExposureBlockTargetEvents)
-                .putString(KEY_CURRENT_EXPERIMENT, mCurrentExperiment)
-                .putString(KEY_DEVICE_NICKNAME, mDeviceNickname)
-                .putString(KEY_ACCOUNT_NAME,mAccountName)
-                .putFloat(KEY_ACCOUNT_SCORE,mAccountScore)
-                .putString(KEY_TARGET_RESOLUTION_STR,mTargetResolutionStr)
-                .putString(KEY_TARGET_FPS, mTargetFPS.toString())
-                .putInt(KEY_N_ALLOC, mNAlloc)
-                .putFloat(KEY_FRAC_DEAD_TIME, mFracDeadTime)
-                .putInt(KEY_BATTERY_OVERHEAT_TEMP, mBatteryOverheatTemp)
-                .putLong(KEY_DATACHUNK_SIZE, mDataChunkSize)
-                .apply();
-
-        if(mPrecalConfig != null) mPrecalConfig.saveToPrefs(sharedPreferences);
+        mStore.put(KEY_L0_TRIGGER, mL0Trigger.toString());
+        mStore.put(KEY_QUAL_TRIGGER, mQualTrigger.toString());
+        mStore.put(KEY_PRECAL_TRIGGER, mPrecalTriggers.toString());
+        mStore.put(KEY_L1_TRIGGER, getL1Trigger().toString());
+        mStore.put(KEY_L2_TRIGGER, getL2Trigger().toString());
+        mStore.put(KEY_CLUSTER_TRIGGER, mClusterTrigger.toString());
+        mStore.put(KEY_DATA_TRIGGER_GRAPH, mDataTriggerGraph);
+        mStore.put(KEY_XB_TARGET_EVENTS, mExposureBlockTargetEvents);
+        mStore.put(KEY_CURRENT_EXPERIMENT, mCurrentExperiment);
+        mStore.put(KEY_DEVICE_NICKNAME, mDeviceNickname);
+        mStore.put(KEY_ACCOUNT_NAME, mAccountName);
+        mStore.put(KEY_ACCOUNT_SCORE, mAccountScore);
+        mStore.put(KEY_TARGET_RESOLUTION_STR, mTargetResolutionStr);
+        mStore.put(KEY_TARGET_FPS, mTargetFPS.toString());
+        mStore.put(KEY_N_ALLOC, mNAlloc);
+        mStore.put(KEY_FRAC_DEAD_TIME, mFracDeadTime);
+        mStore.put(KEY_BATTERY_OVERHEAT_TEMP, mBatteryOverheatTemp);
+        mStore.put(KEY_DATACHUNK_SIZE, mDataChunkSize);
+        mStore.commit(sharedPreferences);
+    }
+
+    /**
+     * Write any fields saved but not yet written, and wait for them, e.g. before the process exits
+     */
+    public void flush() {
+        mStore.flush();
+    }
+
+    public void addListener(@NonNull ConfigStore.OnConfigChangeListener listener) {
+        mStore.addListener(listener);
+    }
+
+    public void removeListener(@NonNull ConfigStore.OnConfigChangeListener listener) {
+        mStore.removeListener(listener);
+    }
+
+    /**
+     * @return a number which increases whenever a field in the group changes
+     */
+    public int getVersion(@NonNull ConfigStore.Group group) {
+        return mStore.getVersion(group);
     }
 }
@@ -0,0 +1,492 @@
+package io.crayfis.android.server;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import io.crayfis.android.DataProtos;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Sidecar index of a DataChunk file, so that its records can be found without parsing the
+ * chunk.  It has one fixed-size record per field of the DataChunk, appended as the chunk is, and
+ * is meant to be memory-mapped by readers.
+ *
+ * Layout (big-endian):
+ *   header: magic, version, record size, reserved
+ *   record: offset of the message, its length, DataChunk field number, xbn, DAQ state,
+ *           # of events, max pixel value, run ID (hi, lo), start time, end time (ms)
+ *
+ * The max pixel value is the largest Pixel.val or ByteBlock.val in the events of an
+ * ExposureBlock, and 0 if none has any, e.g. events with only clusters or a zero-bias square.
+ * ExposureBlock.getMaxPixel() gives the same value when appending, so a rebuilt index matches.
+ *
+ * The index is out of date if its last record does not end where the chunk does, e.g. after a
+ * crash between the two writes, and is then rebuilt from the chunk.
+ */
+public final class ChunkIndex {
+
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x43464958; // "CFIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 64;
+
+    private ChunkIndex() { }
+
+    /**
+     * Key fields of one message in a DataChunk
+     */
+    public static final class Entry {
+        public final long offset;
+        public final int length;
+        public final int type;
+        public final int xbn;
+        public final int daqState;
+        public final int eventCount;
+        public final int maxPixel;
+        public final long runIdHi;
+        public final long runIdLo;
+        public final long startTime;
+        public final long endTime;
+
+        Entry(long offset, int length, int type, int xbn, int daqState, int eventCount, int maxPixel,
+              long runIdHi, long runIdLo, long startTime, long endTime) {
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+            this.xbn = xbn;
+            this.daqState = daqState;
+            this.eventCount = eventCount;
+            this.maxPixel = maxPixel;
+            this.runIdHi = runIdHi;
+            this.runIdLo = runIdLo;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        public boolean isExposureBlock() {
+            return type == DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER;
+        }
+
+        /**
+         * Read the key fields of a serialized ExposureBlock, skipping over its events
+         *
+         * @param offset Position of the bytes in the chunk
+         * @param xb Bytes of a DataProtos.ExposureBlock
+         * @param maxPixel Largest pixel value in the events, if known
+         */
+        static Entry scanExposureBlock(long offset, byte[] xb, int maxPixel) throws IOException {
+            int xbn = 0;
+            int daqState = 0;
+            int nEvents = 0;
+            long runIdHi = 0;
+            long runIdLo = 0;
+            long startTime = 0;
+            long endTime = 0;
+
+            CodedInputStream in = CodedInputStream.newInstance(xb);
+            int tag;
+            while((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case DataProtos.ExposureBlock.XBN_FIELD_NUMBER:
+                        xbn = in.readUInt32();
+                        break;
+                    case DataProtos.ExposureBlock.DAQ_STATE_FIELD_NUMBER:
+                        daqState = in.readEnum();
+                        break;
+                    case DataProtos.ExposureBlock.RUN_ID_FIELD_NUMBER:
+                        runIdLo = in.readUInt64();
+                        break;
+                    case DataProtos.ExposureBlock.RUN_ID_HI_FIELD_NUMBER:
+                        runIdHi = in.readUInt64();
+                        break;
+                    case DataProtos.ExposureBlock.START_TIME_FIELD_NUMBER:
+                        startTime = in.readUInt64();
+                        break;
+                    case DataProtos.ExposureBlock.END_TIME_FIELD_NUMBER:
+                        endTime = in.readUInt64();
+                        break;
+                    case DataProtos.ExposureBlock.EVENTS_FIELD_NUMBER:
+                        nEvents++;
+                        in.skipField(tag);
+                        break;
+                    default:
+                        in.skipField(tag);
+                }
+            }
+            return new Entry(offset, xb.length, DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER,
+                    xbn, daqState, nEvents, maxPixel, runIdHi, runIdLo, startTime, endTime);
+        }
+
+        /**
+         * Make the entry for a message which has already been parsed
+         *
+         * @param offset Position of the message in the chunk
+         * @param type DataChunk field number
+         */
+        static Entry fromMessage(long offset, int type, AbstractMessage message) {
+            int length = message.getSerializedSize();
+            if(message instanceof DataProtos.ExposureBlock) {
+                DataProtos.ExposureBlock xb = (DataProtos.ExposureBlock) message;
+                return new Entry(offset, length, type, xb.getXbn(), xb.getDaqState().getNumber(),
+                        xb.getEventsCount(), maxPixel(xb), xb.getRunIdHi(), xb.getRunId(),
+                        xb.getStartTime(), xb.getEndTime());
+            } else if(message instanceof DataProtos.RunConfig) {
+                DataProtos.RunConfig rc = (DataProtos.RunConfig) message;
+                return new Entry(offset, length, type, 0, 0, 0, 0, rc.getIdHi(), rc.getIdLo(),
+                        rc.getStartTime(), 0);
+            }
+            return new Entry(offset, length, type, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+
+        private static int maxPixel(DataProtos.ExposureBlock xb) {
+            int max = 0;
+            for(DataProtos.Event event : xb.getEventsList()) {
+                for(DataProtos.Pixel pixel : event.getPixelsList()) {
+                    max = Math.max(max, pixel.getVal());
+                }
+                for(int val : event.getByteBlock().getValList()) {
+                    max = Math.max(max, val);
+                }
+            }
+            return max;
+        }
+
+        private void writeTo(ByteBuffer buf) {
+            buf.putLong(offset)
+                    .putInt(length)
+                    .putInt(type)
+                    .putInt(xbn)
+                    .putInt(daqState)
+                    .putInt(eventCount)
+                    .putInt(maxPixel)
+                    .putLong(runIdHi)
+                    .putLong(runIdLo)
+                    .putLong(startTime)
+                    .putLong(endTime);
+        }
+
+        private static Entry readFrom(ByteBuffer buf, int pos) {
+            return new Entry(buf.getLong(pos),
+                    buf.getInt(pos + 8),
+                    buf.getInt(pos + 12),
+                    buf.getInt(pos + 16),
+                    buf.getInt(pos + 20),
+                    buf.getInt(pos + 24),
+                    buf.getInt(pos + 28),
+                    buf.getLong(pos + 32),
+                    buf.getLong(pos + 40),
+                    buf.getLong(pos + 48),
+                    buf.getLong(pos + 56));
+        }
+    }
+
+    @NonNull
+    public static File indexFile(@NonNull File chunk) {
+        return new File(chunk.getParentFile(), chunk.getName() + SUFFIX);
+    }
+
+    /**
+     * @return the offset of a field's message, given the offset of its tag
+     */
+    static long payloadOffset(long fieldOffset, int type, int length) {
+        return fieldOffset + CodedOutputStream.computeTagSize(type)
+                + CodedOutputStream.computeUInt32SizeNoTag(length);
+    }
+
+    /**
+     * Add a record for a message just appended to the chunk
+     *
+     * @param fieldOffset Length of the chunk before the message was appended
+     */
+    static void append(@NonNull File chunk, long fieldOffset, @NonNull Entry entry) {
+        File index = indexFile(chunk);
+        if(lastEnd(index) != fieldOffset) {
+            // records are missing, so leave it to be rebuilt when it is opened
+            delete(chunk);
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+        if(index.length() == 0) {
+            writeHeader(buf);
+        }
+        entry.writeTo(buf);
+
+        try (FileOutputStream out = new FileOutputStream(index, true)) {
+            out.write(buf.array(), 0, buf.position());
+        } catch (IOException e) {
+            // the index is rebuilt when it is next opened
+            CFLog.e("Could not update " + index.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return where the last record of the index ends in the chunk, or -1 if it is malformed
+     */
+    private static long lastEnd(File index) {
+        long length = index.length();
+        if(length == 0) return 0;
+        if(length < HEADER_SIZE || (length - HEADER_SIZE) % RECORD_SIZE != 0) return -1;
+        if(length == HEADER_SIZE) return 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(index, "r")) {
+            byte[] record = new byte[RECORD_SIZE];
+            raf.seek(length - RECORD_SIZE);
+            raf.readFully(record);
+            Entry last = Entry.readFrom(ByteBuffer.wrap(record), 0);
+            return last.offset + last.length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Write the index of a complete DataChunk, as it was written to the chunk file
+     */
+    static void write(@NonNull File chunk, @NonNull DataProtos.DataChunk dc) {
+        // DataChunk fields are serialized in order of field number
+        long pos = 0;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE * countMessages(dc));
+        writeHeader(buf);
+        pos = writeEntries(buf, pos, DataProtos.DataChunk.RUN_CONFIGS_FIELD_NUMBER, dc.getRunConfigsList());
+        pos = writeEntries(buf, pos, DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER, dc.getExposureBlocksList());
+        pos = writeEntries(buf, pos, DataProtos.DataChunk.CALIBRATION_RESULTS_FIELD_NUMBER, dc.getCalibrationResultsList());
+        pos = writeEntries(buf, pos, DataProtos.DataChunk.PRECALIBRATION_RESULTS_FIELD_NUMBER, dc.getPrecalibrationResultsList());
+        writeEntries(buf, pos, DataProtos.DataChunk.PRECALIBRATION_UPDATES_FIELD_NUMBER, dc.getPrecalibrationUpdatesList());
+
+        File index = indexFile(chunk);
+        try (FileOutputStream out = new FileOutputStream(index)) {
+            out.write(buf.array());
+        } catch (IOException e) {
+            CFLog.e("Could not write " + index.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private static int countMessages(DataProtos.DataChunk dc) {
+        return dc.getRunConfigsCount() + dc.getExposureBlocksCount() + dc.getCalibrationResultsCount()
+                + dc.getPrecalibrationResultsCount() + dc.getPrecalibrationUpdatesCount();
+    }
+
+    private static long writeEntries(ByteBuffer buf, long pos, int type,
+                                     List<? extends AbstractMessage> messages) {
+        for(AbstractMessage message : messages) {
+            int length = message.getSerializedSize();
+            long offset = payloadOffset(pos, type, length);
+            Entry.fromMessage(offset, type, message).writeTo(buf);
+            pos = offset + length;
+        }
+        return pos;
+    }
+
+    private static void writeHeader(ByteBuffer buf) {
+        buf.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(RECORD_SIZE)
+                .putInt(0);
+    }
+
+    /**
+     * Keep the index with its chunk when the chunk is renamed
+     */
+    static void rename(@NonNull File from, @NonNull File to) {
+        File index = indexFile(from);
+        if(index.exists() && !index.renameTo(indexFile(to))) {
+            CFLog.w("Could not rename " + index.getName());
+        }
+    }
+
+    static void delete(@NonNull File chunk) {
+        File index = indexFile(chunk);
+        if(index.exists() && !index.delete()) {
+            CFLog.w("Could not delete " + index.getName());
+        }
+    }
+
+    /**
+     * Map the index of a chunk, rebuilding it first if it is missing or out of date
+     *
+     * @param chunk .bin or .tmp.bin file
+     */
+    @NonNull
+    public static Reader open(@NonNull File chunk) throws IOException {
+        Reader reader = map(chunk);
+        if(reader == null) {
+            CFLog.i("Rebuilding index of " + chunk.getName());
+            rebuild(chunk);
+            reader = map(chunk);
+            if(reader == null) throw new IOException("Could not index " + chunk.getName());
+        }
+        return reader;
+    }
+
+    @Nullable
+    private static Reader map(File chunk) throws IOException {
+        File index = indexFile(chunk);
+        long length = index.length();
+        if(length < HEADER_SIZE || (length - HEADER_SIZE) % RECORD_SIZE != 0) return null;
+
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(index, "r")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        if(buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION || buf.getInt(8) != RECORD_SIZE) {
+            return null;
+        }
+
+        Reader reader = new Reader(chunk, buf, (int) ((length - HEADER_SIZE) / RECORD_SIZE));
+        long end = reader.size() == 0 ? 0 : reader.get(reader.size() - 1).offset
+                + reader.get(reader.size() - 1).length;
+        if(end != chunk.length()) return null;
+        return reader;
+    }
+
+    /**
+     * Write the index of an existing chunk, reading it one field at a time
+     */
+    private static void rebuild(File chunk) throws IOException {
+        File index = indexFile(chunk);
+        File tmp = new File(index.getParentFile(), index.getName() + ".tmp");
+
+        try (InputStream is = new BufferedInputStream(new FileInputStream(chunk));
+             FileOutputStream out = new FileOutputStream(tmp)) {
+
+            CodedInputStream in = CodedInputStream.newInstance(is);
+            in.setSizeLimit(Integer.MAX_VALUE);
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+            writeHeader(buf);
+            out.write(buf.array());
+
+            buf = ByteBuffer.allocate(RECORD_SIZE);
+            long pos = 0;
+            while(true) {
+                // the size limit and byte count are per field
+                in.resetSizeCounter();
+                int tag = in.readTag();
+                if(tag == 0) break;
+
+                int type = WireFormat.getTagFieldNumber(tag);
+                if(WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    in.skipField(tag);
+                    pos += in.getTotalBytesRead();
+                    continue;
+                }
+
+                int length = in.readRawVarint32();
+                long offset = pos + in.getTotalBytesRead();
+                byte[] bytes = in.readRawBytes(length);
+                pos += in.getTotalBytesRead();
+
+                buf.clear();
+                parseEntry(offset, type, bytes).writeTo(buf);
+                out.write(buf.array());
+            }
+        }
+
+        if(!tmp.renameTo(index)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp.getName());
+        }
+    }
+
+    private static Entry parseEntry(long offset, int type, byte[] bytes) throws IOException {
+        switch (type) {
+            case DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER:
+                return Entry.fromMessage(offset, type, DataProtos.ExposureBlock.parseFrom(bytes));
+            case DataProtos.DataChunk.RUN_CONFIGS_FIELD_NUMBER:
+                return Entry.fromMessage(offset, type, DataProtos.RunConfig.parseFrom(bytes));
+            default:
+                return new Entry(offset, bytes.length, type, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Memory-mapped view of an index, with access to the messages of its chunk
+     */
+    public static final class Reader implements Closeable {
+
+        private final File mChunk;
+        private final ByteBuffer mBuf;
+        private final int mSize;
+        private RandomAccessFile mChunkFile;
+
+        private Reader(File chunk, ByteBuffer buf, int size) {
+            mChunk = chunk;
+            mBuf = buf;
+            mSize = size;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        @NonNull
+        public Entry get(int i) {
+            if(i < 0 || i >= mSize) throw new IndexOutOfBoundsException("Entry " + i);
+            return Entry.readFrom(mBuf, HEADER_SIZE + i * RECORD_SIZE);
+        }
+
+        /**
+         * @return the index of the ExposureBlock with this number, or -1
+         */
+        public int findExposureBlock(int xbn) {
+            for(int i=0; i<mSize; i++) {
+                int pos = HEADER_SIZE + i * RECORD_SIZE;
+                // compare in place, without making an Entry
+                if(mBuf.getInt(pos + 12) == DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER
+                        && mBuf.getInt(pos + 16) == xbn) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Read the bytes of one message from the chunk
+         */
+        @NonNull
+        public synchronized byte[] read(int i) throws IOException {
+            Entry entry = get(i);
+            if(mChunkFile == null) {
+                mChunkFile = new RandomAccessFile(mChunk, "r");
+            }
+            byte[] bytes = new byte[entry.length];
+            mChunkFile.seek(entry.offset);
+            mChunkFile.readFully(bytes);
+            return bytes;
+        }
+
+        @NonNull
+        public DataProtos.ExposureBlock readExposureBlock(int i) throws IOException {
+            if(!get(i).isExposureBlock()) throw new IllegalArgumentException("Entry " + i + " is not an ExposureBlock");
+            return DataProtos.ExposureBlock.parseFrom(read(i));
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if(mChunkFile != null) {
+                mChunkFile.close();
+                mChunkFile = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package io.crayfis.android.server;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Persists the fields of {@link CFConfig} to SharedPreferences.  Only values which differ from
+ * what is stored are written, in one batch per FLUSH_DELAY_MS.  Each group of fields has a
+ * version, which goes up when one of its values changes, and listeners hear about each batch of
+ * changes once.
+ */
+public final class ConfigStore {
+
+    public enum Group {
+        TRIGGERS,
+        CAMERA,
+        RUN,
+        ACCOUNT
+    }
+
+    public interface OnConfigChangeListener {
+        /**
+         * Called on the main thread after a change to the config
+         *
+         * @param groups Groups with a new version
+         */
+        void onConfigChanged(Set<Group> groups);
+    }
+
+    private static final long FLUSH_DELAY_MS = 1000L;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final HashMap<String, Group> mGroups = new HashMap<>();
+    // values as they are in SharedPreferences, after the last write
+    private final HashMap<String, Object> mPersisted = new HashMap<>();
+    // values to be written with the next flush
+    private final LinkedHashMap<String, Object> mDirty = new LinkedHashMap<>();
+    private final EnumMap<Group, Integer> mVersions = new EnumMap<>(Group.class);
+    // groups changed since listeners were last notified
+    private final EnumSet<Group> mChanged = EnumSet.noneOf(Group.class);
+
+    private final List<OnConfigChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
+    private SharedPreferences mPrefs;
+    private boolean mFlushPending;
+    private boolean mNotifyPending;
+
+    ConfigStore() {
+        for(Group group : Group.values()) {
+            mVersions.put(group, 0);
+        }
+    }
+
+    /**
+     * Assign a key to a group, before it is used
+     */
+    void register(@NonNull String key, @NonNull Group group) {
+        mGroups.put(key, group);
+    }
+
+    /**
+     * Take the stored values as they are, e.g. at startup
+     */
+    synchronized void load(@NonNull SharedPreferences prefs) {
+        mPrefs = prefs;
+        mPersisted.clear();
+        mPersisted.putAll(prefs.getAll());
+    }
+
+    /**
+     * Stage a value to be written.  Nothing happens if it matches the stored value.
+     *
+     * @param value String, Integer, Long, Float or Boolean, or null to remove the key
+     */
+    synchronized void put(@NonNull String key, @Nullable Object value) {
+        Object current = mDirty.containsKey(key) ? mDirty.get(key) : mPersisted.get(key);
+        if(equal(current, value)) return;
+
+        if(equal(mPersisted.get(key), value)) {
+            // changed back before it was written
+            mDirty.remove(key);
+        } else {
+            mDirty.put(key, value);
+        }
+        bumpVersion(key);
+    }
+
+    /**
+     * Write the staged values in the background, together with any staged before the flush
+     */
+    synchronized void commit(@NonNull SharedPreferences prefs) {
+        mPrefs = prefs;
+        if(!mDirty.isEmpty() && !mFlushPending) {
+            mFlushPending = true;
+            mHandler.postDelayed(mFlush, FLUSH_DELAY_MS);
+        }
+        scheduleNotify();
+    }
+
+    /**
+     * Whether a change reported by SharedPreferences was written by this store
+     */
+    synchronized boolean isEcho(@NonNull SharedPreferences prefs, @Nullable String key) {
+        if(key == null) return false;
+        Object expected = mPersisted.get(key);
+        if(!prefs.contains(key)) return expected == null;
+        if(expected == null) return false;
+        // read only this key, with the type we wrote
+        try {
+            return expected.equals(get(prefs, key, expected));
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record a value written by someone else, e.g. from the settings screen
+     */
+    synchronized void onExternalChange(@NonNull SharedPreferences prefs, @NonNull String key) {
+        Object value = prefs.getAll().get(key);
+        mPersisted.put(key, value);
+        if(mDirty.containsKey(key)) {
+            // the settings screen has the last word
+            mDirty.remove(key);
+        }
+        bumpVersion(key);
+        scheduleNotify();
+    }
+
+    public synchronized int getVersion(@NonNull Group group) {
+        return mVersions.get(group);
+    }
+
+    public void addListener(@NonNull OnConfigChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(@NonNull OnConfigChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void bumpVersion(String key) {
+        Group group = mGroups.get(key);
+        if(group == null) return;
+        mVersions.put(group, mVersions.get(group) + 1);
+        mChanged.add(group);
+    }
+
+    private void scheduleNotify() {
+        if(!mChanged.isEmpty() && !mNotifyPending) {
+            mNotifyPending = true;
+            mHandler.post(mNotify);
+        }
+    }
+
+    /**
+     * Write the staged values now, and wait until they are on disk, e.g. before the process exits
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlush);
+        SharedPreferences.Editor editor;
+        synchronized (this) {
+            mFlushPending = false;
+            if(mPrefs == null) return;
+            // an empty commit still waits for earlier batches to be written
+            editor = mPrefs.edit();
+            stage(editor);
+        }
+        if(!editor.commit()) {
+            CFLog.w("Could not save config");
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            SharedPreferences.Editor editor;
+            synchronized (ConfigStore.this) {
+                mFlushPending = false;
+                if(mDirty.isEmpty() || mPrefs == null) return;
+
+                editor = mPrefs.edit();
+                stage(editor);
+            }
+            editor.apply();
+        }
+    };
+
+    /**
+     * Move the staged values to an editor
+     */
+    private void stage(SharedPreferences.Editor editor) {
+        if(mDirty.isEmpty()) return;
+        for(Map.Entry<String, Object> entry : mDirty.entrySet()) {
+            put(editor, entry.getKey(), entry.getValue());
+        }
+        // update first, so the resulting callbacks are recognized as echoes
+        mPersisted.putAll(mDirty);
+        CFLog.d("Saved " + mDirty.size() + " config keys");
+        mDirty.clear();
+    }
+
+    private final Runnable mNotify = new Runnable() {
+        @Override
+        public void run() {
+            Set<Group> changed;
+            synchronized (ConfigStore.this) {
+                mNotifyPending = false;
+                if(mChanged.isEmpty()) return;
+                changed = EnumSet.copyOf(mChanged);
+                mChanged.clear();
+            }
+            for(OnConfigChangeListener listener : mListeners) {
+                listener.onConfigChanged(changed);
+            }
+        }
+    };
+
+    private static void put(SharedPreferences.Editor editor, String key, Object value) {
+        if(value == null) {
+            editor.remove(key);
+        } else if(value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if(value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if(value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if(value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if(value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Cannot store " + value.getClass() + " for " + key);
+        }
+    }
+
+    private static Object get(SharedPreferences prefs, String key, Object like) {
+        if(like instanceof String) {
+            return prefs.getString(key, null);
+        } else if(like instanceof Integer) {
+            return prefs.getInt(key, 0);
+        } else if(like instanceof Long) {
+            return prefs.getLong(key, 0L);
+        } else if(like instanceof Float) {
+            return prefs.getFloat(key, 0f);
+        } else if(like instanceof Boolean) {
+            return prefs.getBoolean(key, false);
+        }
+        return null;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
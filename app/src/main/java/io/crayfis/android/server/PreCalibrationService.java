@@ -5,10 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.renderscript.Allocation;
-import android.renderscript.Element;
 import android.renderscript.RenderScript;
-import android.renderscript.Type;
 import androidx.annotation.Nullable;
 import android.util.Base64;
 import android.util.JsonWriter;
@@ -31,12 +28,13 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Set;
 
 import io.crayfis.android.DataProtos;
+import io.crayfis.android.compute.Weights;
 import io.crayfis.android.exposure.ExposureBlockManager;
 import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.util.CFLog;
@@ -85,7 +83,7 @@ public class PreCalibrationService extends IntentService {
                 // let's try to generate one
 
                 // but first, let's see if the problem was a redis crash
-                mConfig = Config.loadFromPrefs(this, cameraId, resX, resY);
+                mConfig = Config.load(this, cameraId, resX, resY);
                 if(mConfig != null && mConfig.isValid()) {
                     // redis must have lost the config, so re-upload it
                     ByteString weights = ByteString.copyFrom(Base64.decode(mConfig.mB64Weights, Base64.DEFAULT));
@@ -109,8 +107,8 @@ public class PreCalibrationService extends IntentService {
                 break;
             default:
                 // no connection to the server, so let's see if we have a recent
-                // set of weights/hotcells in the SharedPrefs
-                mConfig = Config.loadFromPrefs(this, cameraId, resX, resY);
+                // set of weights/hotcells saved
+                mConfig = Config.load(this, cameraId, resX, resY);
         }
 
         if(mConfig != null && mConfig.isValid()) {
@@ -218,6 +216,10 @@ public class PreCalibrationService extends IntentService {
         private final String mB64Weights;
         private final int mWeightHash;
 
+        // decoded weights, if they were loaded from the PrecalStore
+        @Nullable
+        private final ByteBuffer mPlane;
+
         private static final String KEY_WEIGHTS_TEMPLATE = "weights_%d:%dx%d";
         private static final String KEY_HOTCELLS_TEMPLATE = "hotcells_%d:%dx%d";
         private static final String KEY_HASH_TEMPLATE = "hash_%d:%dx%d";
@@ -227,6 +229,18 @@ public class PreCalibrationService extends IntentService {
         final String KEY_HASH;
 
         public Config(int cameraId, int resX, int resY, int[] hotcells, int hotHash, String b64Weights, int weightHash) {
+            this(cameraId, resX, resY, hotcells, hotHash, b64Weights, weightHash, null);
+        }
+
+        Config(int cameraId, int resX, int resY, int[] hotcells, int hotHash, byte[] compressedWeights,
+               int weightHash, @Nullable ByteBuffer plane) {
+            this(cameraId, resX, resY, hotcells, hotHash,
+                    compressedWeights.length > 0 ? Base64.encodeToString(compressedWeights, Base64.DEFAULT) : null,
+                    weightHash, plane);
+        }
+
+        private Config(int cameraId, int resX, int resY, int[] hotcells, int hotHash, String b64Weights,
+                       int weightHash, @Nullable ByteBuffer plane) {
             mCameraId = cameraId;
             mResX = resX;
             mResY = resY;
@@ -234,6 +248,7 @@ public class PreCalibrationService extends IntentService {
             mHotHash = hotHash;
             mB64Weights = b64Weights;
             mWeightHash = weightHash;
+            mPlane = plane;
 
             KEY_WEIGHTS = String.format(KEY_WEIGHTS_TEMPLATE, mCameraId, mResX, mResY);
             KEY_HOTCELLS = String.format(KEY_HOTCELLS_TEMPLATE, mCameraId, mResX, mResY);
@@ -254,10 +269,22 @@ public class PreCalibrationService extends IntentService {
             return new Config(cameraId, result.getResX(), result.getResY(), hotcells, -1, b64weights, -1);
         }
 
-        boolean isValid() {
+        public boolean isValid() {
             return mB64Weights != null && mHotcells != null && mHotHash >= 0 && mWeightHash >= 0;
         }
 
+        public int getCameraId() {
+            return mCameraId;
+        }
+
+        public int getResX() {
+            return mResX;
+        }
+
+        public int getResY() {
+            return mResY;
+        }
+
         public int getHotHash() {
             return mHotHash;
         }
@@ -266,22 +293,49 @@ public class PreCalibrationService extends IntentService {
             return mWeightHash;
         }
 
-        public void saveToPrefs(SharedPreferences sharedPreferences) {
-            // first convert hotcells to Set<String>
-            Set<String> hexCells = new HashSet<>();
-            for(int coord: mHotcells) {
-                hexCells.add(Integer.toHexString(coord));
-            }
+        @Nullable
+        int[] getHotcells() {
+            return mHotcells;
+        }
 
-            sharedPreferences.edit()
-                    .putString(KEY_WEIGHTS, mB64Weights)
-                    .putStringSet(KEY_HOTCELLS, hexCells)
-                    .putLong(KEY_HASH, (long) mHotHash * Integer.MAX_VALUE + mWeightHash)
-                    .apply();
+        @Nullable
+        byte[] getCompressedWeights() {
+            return mB64Weights != null ? Base64.decode(mB64Weights, Base64.DEFAULT) : null;
         }
 
+        /**
+         * Saves a complete config in the PrecalStore, if it is not there already
+         *
+         * @param context Context
+         */
+        public void save(Context context) {
+            PrecalStore.getInstance(context).save(this);
+        }
+
+        /**
+         * Loads the config for this camera and resolution from the PrecalStore.  If there is none,
+         * we look for one saved in the SharedPreferences by earlier versions and move it over.
+         */
         @Nullable
-        static Config loadFromPrefs(Context context, int cameraId, int resX, int resY) {
+        public static Config load(Context context, int cameraId, int resX, int resY) {
+            PrecalStore store = PrecalStore.getInstance(context);
+            Config config = store.load(cameraId, resX, resY);
+            if(config != null) return config;
+
+            config = loadFromPrefs(context, cameraId, resX, resY);
+            if(config != null && config.isValid() && store.saveBlocking(config)) {
+                PreferenceManager.getDefaultSharedPreferences(context).edit()
+                        .remove(config.KEY_WEIGHTS)
+                        .remove(config.KEY_HOTCELLS)
+                        .remove(config.KEY_HASH)
+                        .apply();
+                CFLog.i("Migrated precalibration for camera " + cameraId + " from SharedPreferences");
+            }
+            return config;
+        }
+
+        @Nullable
+        private static Config loadFromPrefs(Context context, int cameraId, int resX, int resY) {
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
             String b64Weights = prefs.getString(String.format(KEY_WEIGHTS_TEMPLATE, cameraId, resX, resY), null);
             Set<String> hexCells = prefs.getStringSet(String.format(KEY_HOTCELLS_TEMPLATE, cameraId, resX, resY), null);
@@ -319,10 +373,20 @@ public class PreCalibrationService extends IntentService {
                     config.mWeightHash >= 0 ? config.mWeightHash : mWeightHash);
         }
 
-        public Allocation generateWeights(RenderScript RS) {
-            // configure weights in RS as well
+        /**
+         * Decodes the compressed weights into a full-resolution plane with hotcells zeroed.
+         * This is expensive, so callers should go through {@link WeightCache}.
+         *
+         * @return byte[] of length resX * resY
+         */
+        byte[] decodeWeights() {
             byte[] weightArray;
-            if(mB64Weights != null && !mB64Weights.isEmpty()) {
+            if(mPlane != null) {
+                // hotcells have already been applied
+                weightArray = new byte[mPlane.capacity()];
+                mPlane.duplicate().get(weightArray);
+                return weightArray;
+            } else if(mB64Weights != null && !mB64Weights.isEmpty()) {
                 byte[] bytes = Base64.decode(mB64Weights, Base64.DEFAULT);
 
                 MatOfByte compressedMat = new MatOfByte(bytes);
@@ -342,9 +406,6 @@ public class PreCalibrationService extends IntentService {
 
                 weightArray = resampledByte.toArray();
                 resampledByte.release();
-
-                resampledMat.release();
-                resampledByte.release();
             } else {
                 CFLog.d("No weights found");
                 weightArray = new byte[mResX * mResY];
@@ -353,19 +414,22 @@ public class PreCalibrationService extends IntentService {
 
             // kill hotcells in resampled frame;
             if(mHotcells != null) {
-                for (Integer pos : mHotcells) {
+                for (int pos : mHotcells) {
                     weightArray[pos] = (byte) 0;
                 }
             }
 
-            Type weightType = new Type.Builder(RS, Element.U8(RS))
-                    .setX(mResX)
-                    .setY(mResY)
-                    .create();
-            Allocation weights = Allocation.createTyped(RS, weightType, Allocation.USAGE_SCRIPT);
-            weights.copyFrom(weightArray);
+            return weightArray;
+        }
 
-            return weights;
+        /**
+         * Gets the weights, which are shared between ExposureBlocks with the same config.
+         *
+         * @param RS RenderScript context
+         * @return Weights of size resX x resY
+         */
+        public Weights generateWeights(RenderScript RS) {
+            return WeightCache.getInstance().getWeights(this, RS);
         }
     }
 }
@@ -0,0 +1,242 @@
+package io.crayfis.android.server;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Binary store for precalibration results, with one file per (camera, resolution).  Files are
+ * memory-mapped on load, so reading them costs no parsing proportional to the number of hotcells.
+ *
+ * Layout (big-endian):
+ *   header: magic, version, camera id, res x, res y, hot hash, weight hash,
+ *           # of hotcells, compressed weight length, weight plane length, CRC32 of body
+ *   body:   sorted int[] hotcells, compressed weights, full-resolution weight plane
+ */
+public final class PrecalStore {
+
+    private static final int MAGIC = 0x43465043; // "CFPC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 10 * 4 + 8;
+
+    private static final String DIR_NAME = "precal";
+    private static final String FILE_TEMPLATE = "precal_%d_%dx%d.bin";
+
+    private static PrecalStore sInstance;
+
+    private final File mDir;
+
+    public static synchronized PrecalStore getInstance(@NonNull Context context) {
+        if(sInstance == null) {
+            sInstance = new PrecalStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PrecalStore(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    private File getFile(int cameraId, int resX, int resY) {
+        return new File(mDir, String.format(FILE_TEMPLATE, cameraId, resX, resY));
+    }
+
+    /**
+     * Map the stored result for this camera and resolution
+     *
+     * @return Config backed by the mapped file, or null if there is no valid file
+     */
+    @Nullable
+    PreCalibrationService.Config load(int cameraId, int resX, int resY) {
+        File file = getFile(cameraId, resX, resY);
+        if(!file.exists()) return null;
+
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            CFLog.e("Could not map " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+
+        if(buf.capacity() < HEADER_SIZE
+                || buf.getInt(0) != MAGIC
+                || buf.getInt(4) != VERSION
+                || buf.getInt(8) != cameraId
+                || buf.getInt(12) != resX
+                || buf.getInt(16) != resY) {
+            CFLog.w("Ignoring malformed precalibration file " + file.getName());
+            return null;
+        }
+
+        int hotHash = buf.getInt(20);
+        int weightHash = buf.getInt(24);
+        int nHotcells = buf.getInt(28);
+        int compressedLength = buf.getInt(32);
+        int planeLength = buf.getInt(36);
+        long crc = buf.getLong(40);
+
+        long bodyLength = 4L * nHotcells + compressedLength + planeLength;
+        if(nHotcells < 0 || compressedLength < 0 || planeLength < 0
+                || HEADER_SIZE + bodyLength != buf.capacity()
+                || planeLength != 0 && planeLength != resX * resY) {
+            CFLog.w("Ignoring truncated precalibration file " + file.getName());
+            return null;
+        }
+
+        ByteBuffer body = buf.duplicate();
+        body.position(HEADER_SIZE);
+        if(crc32(body) != crc) {
+            CFLog.w("Checksum mismatch in " + file.getName());
+            return null;
+        }
+
+        body.position(HEADER_SIZE);
+        int[] hotcells = new int[nHotcells];
+        body.asIntBuffer().get(hotcells);
+        body.position(HEADER_SIZE + 4 * nHotcells);
+
+        byte[] compressed = new byte[compressedLength];
+        body.get(compressed);
+
+        ByteBuffer plane = null;
+        if(planeLength > 0) {
+            body.limit(body.position() + planeLength);
+            plane = body.slice();
+        }
+
+        return new PreCalibrationService.Config(cameraId, resX, resY, hotcells, hotHash,
+                compressed, weightHash, plane);
+    }
+
+    /**
+     * Writes the config in the background, unless the stored copy already has the same hashes.
+     *
+     * @param config Complete precalibration config
+     */
+    void save(@NonNull final PreCalibrationService.Config config) {
+        if(!config.isValid()) return;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(isStored(config)) return;
+                try {
+                    write(config);
+                } catch (IOException e) {
+                    CFLog.e("Could not save precalibration: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the config on the calling thread
+     *
+     * @param config Complete precalibration config
+     * @return true if the config was written
+     */
+    boolean saveBlocking(@NonNull PreCalibrationService.Config config) {
+        if(!config.isValid()) return false;
+        try {
+            write(config);
+            return true;
+        } catch (IOException e) {
+            CFLog.e("Could not save precalibration: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean isStored(PreCalibrationService.Config config) {
+        File file = getFile(config.getCameraId(), config.getResX(), config.getResY());
+        if(!file.exists()) return false;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < HEADER_SIZE) return false;
+            raf.seek(20);
+            return raf.readInt() == config.getHotHash() && raf.readInt() == config.getWeightHash();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void write(PreCalibrationService.Config config) throws IOException {
+        if(!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Could not create " + mDir);
+        }
+
+        int[] hotcells = config.getHotcells();
+        hotcells = hotcells != null ? hotcells.clone() : new int[0];
+        Arrays.sort(hotcells);
+
+        byte[] compressed = config.getCompressedWeights();
+        if(compressed == null) compressed = new byte[0];
+
+        // reuse the plane if it has already been decoded for an ExposureBlock
+        byte[] plane = WeightCache.getInstance().peekWeightPlane(config);
+        if(plane == null) {
+            plane = config.decodeWeights();
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(4 * hotcells.length + compressed.length + plane.length);
+        body.asIntBuffer().put(hotcells);
+        body.position(4 * hotcells.length);
+        body.put(compressed)
+                .put(plane)
+                .flip();
+        long crc = crc32(body.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(config.getCameraId())
+                .putInt(config.getResX())
+                .putInt(config.getResY())
+                .putInt(config.getHotHash())
+                .putInt(config.getWeightHash())
+                .putInt(hotcells.length)
+                .putInt(compressed.length)
+                .putInt(plane.length)
+                .putLong(crc)
+                .flip();
+
+        // write to a temporary file and rename, so readers never see a partial file
+        File file = getFile(config.getCameraId(), config.getResX(), config.getResY());
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             FileChannel channel = out.getChannel()) {
+            while(header.hasRemaining()) channel.write(header);
+            while(body.hasRemaining()) channel.write(body);
+            channel.force(true);
+        }
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp.getName());
+        }
+        CFLog.i("Saved precalibration to " + file.getName());
+    }
+
+    private static long crc32(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while(buf.hasRemaining()) {
+            int n = Math.min(chunk.length, buf.remaining());
+            buf.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+}
@@ -9,6 +9,7 @@ import io.crayfis.android.daq.DAQManager;
 import io.crayfis.android.trigger.L0.L0Processor;
 import io.crayfis.android.trigger.L1.L1Processor;
 import io.crayfis.android.trigger.L2.L2Processor;
+import io.crayfis.android.trigger.cluster.ClusterProcessor;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.trigger.precalibration.PreCalibrator;
 import io.crayfis.android.trigger.quality.QualityProcessor;
@@ -32,6 +33,8 @@ class ServerCommand {
     @SerializedName("set_precal_trig") private PrecalTrigCommand[] mPrecalTriggers;
     @SerializedName("set_L1_trig") private L1TrigCommand mL1Trigger;
     @SerializedName("set_L2_trig") private L2TrigCommand mL2Trigger;
+    @SerializedName("set_cluster_trig") private ClusterTrigCommand mClusterTrigger;
+    @SerializedName("set_data_trigger_graph") private String mDataTriggerGraph;
     @SerializedName("set_xb_period") private Integer mTargetExposureBlockPeriod;
     @SerializedName("cmd_recalibrate") private Boolean mShouldRecalibrate;
     @SerializedName("experiment") private String mCurrentExperiment;
@@ -190,6 +193,27 @@ class ServerCommand {
         }
     }
 
+    private class ClusterTrigCommand extends TrigCommand {
+        @SerializedName(ClusterProcessor.KEY_ENABLED) private Boolean mEnabled;
+        @SerializedName(ClusterProcessor.KEY_GAP) private Integer mGap;
+        @SerializedName(ClusterProcessor.KEY_MIN_PIX) private Integer mMinPix;
+        @SerializedName(ClusterProcessor.KEY_MAX_PIX) private Integer mMaxPix;
+        @SerializedName(ClusterProcessor.KEY_MIN_CHARGE) private Integer mMinCharge;
+        @SerializedName(ClusterProcessor.KEY_KEEP_HITS) private Boolean mKeepHits;
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(super.toString());
+            if(mEnabled != null) sb.append(ClusterProcessor.KEY_ENABLED + "=" + mEnabled + ";");
+            if(mGap != null) sb.append(ClusterProcessor.KEY_GAP + "=" + mGap + ";");
+            if(mMinPix != null) sb.append(ClusterProcessor.KEY_MIN_PIX + "=" + mMinPix + ";");
+            if(mMaxPix != null) sb.append(ClusterProcessor.KEY_MAX_PIX + "=" + mMaxPix + ";");
+            if(mMinCharge != null) sb.append(ClusterProcessor.KEY_MIN_CHARGE + "=" + mMinCharge + ";");
+            if(mKeepHits != null) sb.append(ClusterProcessor.KEY_KEEP_HITS + "=" + mKeepHits + ";");
+            return sb.toString();
+        }
+    }
+
     @Nullable
     PrecalCommand getWeights() {
         return mWeights;
@@ -253,6 +277,11 @@ class ServerCommand {
         return mL2Trigger;
     }
 
+    @Nullable
+    TrigCommand getClusterTrigger() {
+        return mClusterTrigger;
+    }
+
     /**
      * Get the target exposure block period.
      *
@@ -323,4 +352,9 @@ class ServerCommand {
         return mDataChunkSize;
     }
 
+    @Nullable
+    String getDataTriggerGraph() {
+        return mDataTriggerGraph;
+    }
+
 }
@@ -11,12 +11,14 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.GeneratedMessageV3;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -27,6 +29,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.DataProtos;
 import io.crayfis.android.R;
+import io.crayfis.android.exposure.ExposureBlock;
 import io.crayfis.android.util.CFLog;
 
 /**
@@ -47,6 +50,10 @@ public class UploadExposureService extends IntentService {
 
     public static final String PROTOBUF_MESSAGE = "pb_message";
 
+    public static final String EXTRA_XB_BYTES = "xb_bytes";
+
+    public static final String EXTRA_XB_MAX_PIXEL = "xb_max_pixel";
+
     private CFApplication.AppBuild mAppBuild;
     private int mCameraId;
     private boolean mIsPublic;
@@ -56,6 +63,8 @@ public class UploadExposureService extends IntentService {
     private static long sLastCacheUpload;
     private static final long UPLOAD_CACHE_GAP = 5000L;
     private static final long UPLOAD_CACHE_SPACING = 200L;
+    // an incomplete file of another camera in this run is left open unless untouched this long
+    private static final long STALE_CHUNK_MS = 10 * 60 * 1000L;
 
     /**
      * Helper for submitting one of the fields of a  {@link io.crayfis.android.DataProtos.DataChunk}.
@@ -88,6 +97,31 @@ public class UploadExposureService extends IntentService {
         }
     }
 
+    /**
+     * Helper for submitting a finished {@link io.crayfis.android.exposure.ExposureBlock}.  The
+     * XB is passed as serialized bytes, so its events are never re-parsed on the way to disk.
+     *
+     * @param context The context for the intent.
+     * @param cameraId The camera the XB was taken with.
+     * @param xb The {@link io.crayfis.android.exposure.ExposureBlock}.
+     */
+    public static void submitExposureBlock(@NonNull final Context context,
+                                           @NonNull final Integer cameraId,
+                                           @NonNull final ExposureBlock xb) {
+
+        try {
+            final Intent intent = new Intent(context, UploadExposureService.class)
+                    .putExtra(EXTRA_XB_BYTES, xb.toBytes())
+                    .putExtra(EXTRA_XB_MAX_PIXEL, xb.getMaxPixel())
+                    .putExtra(EXTRA_CAMERA_ID, cameraId);
+            context.startService(intent);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            // don't crash if an XB is too big, but still pass the header to report the error
+            submitMessage(context, cameraId, xb.buildProto());
+        }
+    }
+
     public synchronized static void uploadFileCache(@NonNull final Context context) {
 
         // make sure this isn't called again before the files can upload
@@ -121,13 +155,7 @@ public class UploadExposureService extends IntentService {
                     }
                     File f = cache.remove(0);
                     if(f.getName().endsWith(".tmp.bin")) {
-                        String completeFilename = f.getName().replace(".tmp.bin", ".bin");
-                        File completeFile = new File(mPath, completeFilename);
-                        CFLog.d("New file name: " + completeFilename);
-                        if (!f.renameTo(completeFile)) {
-                            CFLog.w("Failed to rename file " + f.getName());
-                        }
-                        uploadFile(completeFile);
+                        uploadFile(markComplete(f));
                     } else if(f.getName().endsWith(".bin")) {
                         uploadFile(f);
                     }
@@ -136,6 +164,17 @@ public class UploadExposureService extends IntentService {
 
             timer.scheduleAtFixedRate(uploadTask, 0, UPLOAD_CACHE_SPACING);
 
+        } else if(intent.hasExtra(EXTRA_XB_BYTES)) {
+            mCameraId = intent.getIntExtra(EXTRA_CAMERA_ID, -1);
+            final byte[] xb = intent.getByteArrayExtra(EXTRA_XB_BYTES);
+            final int maxPixel = intent.getIntExtra(EXTRA_XB_MAX_PIXEL, 0);
+            File file = appendExposureBlockToCache(xb, maxPixel);
+            if(mIsPublic) {
+                CFApplication application = (CFApplication) this.getApplication();
+                application.savePreferences();
+            } else if(file != null) {
+                uploadFile(file);
+            }
         } else {
             // otherwise, make a file from protobuf data
             final AbstractMessage message = (AbstractMessage) intent.getSerializableExtra(PROTOBUF_MESSAGE);
@@ -181,10 +220,16 @@ public class UploadExposureService extends IntentService {
 
     }
 
-    @NonNull
-    private DataProtos.DataChunk.Builder getCachedDataChunk() {
+    /**
+     * Find the incomplete DataChunk file for this run and camera, if any.  Incomplete files from
+     * other runs, and those of this run which are full or stale, are marked as complete and
+     * uploaded.  Open files of other cameras in this run are left for them to fill.
+     *
+     * @return .tmp.bin file, or null
+     */
+    @Nullable
+    private File findCachedChunkFile() {
 
-        // first, see if we have an incomplete file cached
         File[] incompleteFiles = mPath.listFiles(new FilenameFilter() {
             @Override
             public boolean accept(File file, String s) {
@@ -192,41 +237,122 @@ public class UploadExposureService extends IntentService {
             }
         });
 
+        if(incompleteFiles == null) return null;
+
+        File cached = null;
+        long chunkSize = CFConfig.getInstance().getDataChunkSize();
         for (File f : incompleteFiles) {
             CFLog.d("Found a file with length " + f.length());
             String[] pieces = f.getName().split("_");
-            if (mAppBuild.getRunId().toString().equals(pieces[0])
-                    && Integer.toString(mCameraId).equals(pieces[1])
-                    && f.length() < CFConfig.getInstance().getDataChunkSize()) {
-                try {
-                    final FileInputStream inputStream = new FileInputStream(f);
-                    DataProtos.DataChunk dc = DataProtos.DataChunk.parseFrom(inputStream);
-                    inputStream.close();
-                    if (!f.delete()) {
-                        CFLog.w("Could not delete file " + f.getName());
-                    }
-                    return dc.toBuilder();
-                } catch (Exception e) {
-                    CFLog.e("Error opening file " + f.getName());
-                    e.printStackTrace();
-                }
+            boolean thisRun = mAppBuild.getRunId().toString().equals(pieces[0]);
+            boolean thisCamera = pieces.length > 1 && Integer.toString(mCameraId).equals(pieces[1]);
+            boolean full = f.length() >= chunkSize;
+            boolean stale = System.currentTimeMillis() - f.lastModified() > STALE_CHUNK_MS;
+
+            if (thisRun && thisCamera && cached == null && !full) {
+                cached = f;
+            } else if (thisRun && !thisCamera && !full && !stale) {
+                CFLog.d("Leaving open file of another camera: " + f.getName());
             } else {
                 CFLog.d("File ready for upload: " + f.getName());
-                String completeFilename = f.getName().replace(".tmp.bin", ".bin");
-                File completeFile = new File(mPath, completeFilename);
-                CFLog.d("New file name: " + completeFilename);
-                if (!f.renameTo(completeFile)) {
-                    CFLog.w("Failed to rename file " + f.getName());
-                }
+                File completeFile = markComplete(f);
                 if(!mIsPublic) uploadFile(completeFile);
             }
         }
 
+        return cached;
+    }
+
+    @NonNull
+    private File markComplete(@NonNull File f) {
+        String completeFilename = f.getName().replace(".tmp.bin", ".bin");
+        File completeFile = new File(mPath, completeFilename);
+        CFLog.d("New file name: " + completeFilename);
+        if (!f.renameTo(completeFile)) {
+            CFLog.w("Failed to rename file " + f.getName());
+        } else {
+            ChunkIndex.rename(f, completeFile);
+        }
+        return completeFile;
+    }
+
+    @NonNull
+    private DataProtos.DataChunk.Builder getCachedDataChunk() {
+
+        // first, see if we have an incomplete file cached
+        File f = findCachedChunkFile();
+        if (f != null) {
+            try {
+                final FileInputStream inputStream = new FileInputStream(f);
+                DataProtos.DataChunk dc = DataProtos.DataChunk.parseFrom(inputStream);
+                inputStream.close();
+                if (!f.delete()) {
+                    CFLog.w("Could not delete file " + f.getName());
+                }
+                ChunkIndex.delete(f);
+                return dc.toBuilder();
+            } catch (Exception e) {
+                CFLog.e("Error opening file " + f.getName());
+                e.printStackTrace();
+            }
+        }
+
         // if not, we make a new builder
         return DataProtos.DataChunk.newBuilder();
 
     }
 
+    /**
+     * Append a serialized XB to the incomplete DataChunk for this run, or start a new one.  A
+     * DataChunk is a sequence of fields, so this is just the tag and length of the XB followed by
+     * its bytes, and the existing file never needs to be parsed.
+     *
+     * @param xb bytes of a DataProtos.ExposureBlock
+     * @param maxPixel largest pixel value in its events, for the index
+     * @return the file, if it is now complete, or null
+     */
+    @Nullable
+    private File appendExposureBlockToCache(@NonNull final byte[] xb, int maxPixel) {
+        File cached = findCachedChunkFile();
+        final String filename = cached != null ? cached.getName()
+                : mAppBuild.getRunId().toString() + "_" + mCameraId + "_" + System.currentTimeMillis()
+                + ".tmp.bin";
+        final File protofile = new File(mPath, filename);
+        final long fieldOffset = protofile.length();
+
+        try {
+            final FileOutputStream outputStream;
+            if(mIsPublic) {
+                outputStream = new FileOutputStream(protofile, true);
+            } else {
+                outputStream = getApplicationContext().openFileOutput(filename,
+                        Context.MODE_PRIVATE | Context.MODE_APPEND);
+            }
+            CodedOutputStream out = CodedOutputStream.newInstance(outputStream);
+            out.writeByteArray(DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER, xb);
+            out.flush();
+            outputStream.close();
+            CFLog.i("Data saved to " + filename);
+        } catch (Exception ex) {
+            CFLog.e("Error saving to file! Dropping data.", ex);
+            return null;
+        }
+
+        try {
+            final int type = DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER;
+            ChunkIndex.append(protofile, fieldOffset, ChunkIndex.Entry.scanExposureBlock(
+                    ChunkIndex.payloadOffset(fieldOffset, type, xb.length), xb, maxPixel));
+        } catch (IOException ex) {
+            CFLog.e("Could not index XB in " + filename, ex);
+            ChunkIndex.delete(protofile);
+        }
+
+        if(protofile.length() < CFConfig.getInstance().getDataChunkSize()) {
+            return null;
+        }
+        return markComplete(protofile);
+    }
+
     /**
      * Add message to existing DataChunk if one exists
      *
@@ -290,6 +416,9 @@ public class UploadExposureService extends IntentService {
             abstractMessage.writeTo(outputStream);
             outputStream.close();
             CFLog.i("Data saved to " + filename);
+            if(abstractMessage instanceof DataProtos.DataChunk) {
+                ChunkIndex.write(protofile, (DataProtos.DataChunk) abstractMessage);
+            }
         }
         catch (Exception ex) {
             CFLog.e("Error saving to file! Dropping data.", ex);
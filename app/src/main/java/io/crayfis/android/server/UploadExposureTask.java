@@ -26,6 +26,7 @@ import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.DataProtos;
 import io.crayfis.android.R;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 /**
  * An implementation of AsyncTask that uploads a chunk from the local cache.
@@ -90,6 +91,7 @@ class UploadExposureTask extends AsyncTask<Object, Object, Boolean> {
                 if (!mFile.delete()) {
                     CFLog.e("Could not delete file " + filename);
                 }
+                ChunkIndex.delete(mFile);
             }
         } catch (IOException ex) {
             CFLog.e("Unable to upload file " + filename, ex);
@@ -166,6 +168,7 @@ class UploadExposureTask extends AsyncTask<Object, Object, Boolean> {
 
         // try writing to the output stream
         rawData.writeTo(os);
+        Metrics.getInstance().counter("upload.bytes").add(rawData.size());
 
         CFLog.i("Connecting to upload server at: " + mServerInfo.uploadUrl);
         c.connect();
@@ -0,0 +1,171 @@
+package io.crayfis.android.server;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import io.crayfis.android.compute.Weights;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Holds decoded weight maps so that consecutive ExposureBlocks with the same precalibration
+ * share a single Allocation and plane rather than decoding and uploading the weights every time.
+ *
+ * Entries are keyed by (camera id, resolution, hot hash, weight hash).  Partial configs from an
+ * in-progress precalibration have no hashes yet, so those are matched by identity instead.
+ */
+public final class WeightCache {
+
+    // enough to cover a precalibration step and the final result for each camera
+    private static final int MAX_ENTRIES_PER_CAMERA = 2;
+
+    private static WeightCache sInstance;
+
+    private final LinkedHashMap<Key, Weights> mEntries = new LinkedHashMap<>(2 * MAX_ENTRIES_PER_CAMERA + 1, .75f, true);
+
+    private int mHits;
+    private int mMisses;
+
+    public static synchronized WeightCache getInstance() {
+        if(sInstance == null) {
+            sInstance = new WeightCache();
+        }
+        return sInstance;
+    }
+
+    private WeightCache() { }
+
+    /**
+     * Get the weights for this config, decoding them only if they have not been seen yet.
+     * The returned Weights are shared, so they must be treated as read-only.
+     *
+     * @param config The precalibration config
+     * @param RS RenderScript context
+     * @return Weights of size resX x resY, with hotcells zeroed
+     */
+    @NonNull
+    public synchronized Weights getWeights(@NonNull PreCalibrationService.Config config, RenderScript RS) {
+        Key key = new Key(config);
+        Weights entry = mEntries.get(key);
+        if(entry != null) {
+            mHits++;
+            return entry;
+        }
+
+        mMisses++;
+        evictOtherStreams(config.getCameraId(), config.getResX(), config.getResY());
+
+        byte[] plane = config.decodeWeights();
+        Type weightType = new Type.Builder(RS, Element.U8(RS))
+                .setX(config.getResX())
+                .setY(config.getResY())
+                .create();
+        Allocation weights = Allocation.createTyped(RS, weightType, Allocation.USAGE_SCRIPT);
+        weights.copyFrom(plane);
+
+        entry = new Weights(config.getResX(), config.getResY(), weights, plane);
+        mEntries.put(key, entry);
+
+        // drop the least-recently used entries of this camera
+        int count = 0;
+        for(Key k : mEntries.keySet()) {
+            if(k.cameraId == key.cameraId) count++;
+        }
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while(count > MAX_ENTRIES_PER_CAMERA && it.hasNext()) {
+            if(it.next().cameraId == key.cameraId) {
+                it.remove();
+                count--;
+            }
+        }
+
+        CFLog.d("Decoded weights for camera " + config.getCameraId() + " (" + mHits + " hits, "
+                + mMisses + " misses)");
+        return entry;
+    }
+
+    /**
+     * Get the decoded weight plane for this config if it has already been decoded
+     *
+     * @param config The precalibration config
+     * @return byte[] of length resX * resY, or null
+     */
+    @Nullable
+    synchronized byte[] peekWeightPlane(@NonNull PreCalibrationService.Config config) {
+        Weights entry = mEntries.get(new Key(config));
+        return entry != null ? entry.plane : null;
+    }
+
+    /**
+     * Drop all entries of the given camera which are not at the given resolution.  Other cameras
+     * may be streaming at the same time, so their entries are kept.
+     */
+    public synchronized void evictOtherStreams(int cameraId, int resX, int resY) {
+        Iterator<Key> it = mEntries.keySet().iterator();
+        while(it.hasNext()) {
+            Key k = it.next();
+            if(k.cameraId == cameraId && (k.resX != resX || k.resY != resY)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all entries, e.g. when the camera is reconfigured.  Allocations are not destroyed
+     * here since retired ExposureBlocks may still be processing frames with them.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private static final class Key {
+        final int cameraId;
+        final int resX;
+        final int resY;
+        final int hotHash;
+        final int weightHash;
+
+        // only used when the hashes are not yet known
+        @Nullable
+        final PreCalibrationService.Config partial;
+
+        Key(PreCalibrationService.Config config) {
+            cameraId = config.getCameraId();
+            resX = config.getResX();
+            resY = config.getResY();
+            hotHash = config.getHotHash();
+            weightHash = config.getWeightHash();
+            partial = hotHash < 0 || weightHash < 0 ? config : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return cameraId == k.cameraId
+                    && resX == k.resX
+                    && resY == k.resY
+                    && hotHash == k.hotHash
+                    && weightHash == k.weightHash
+                    && partial == k.partial;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = cameraId;
+            result = 31 * result + resX;
+            result = 31 * result + resY;
+            result = 31 * result + hotHash;
+            result = 31 * result + weightHash;
+            result = 31 * result + (partial != null ? System.identityHashCode(partial) : 0);
+            return result;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 /**
  * Created by cshimmin on 1/4/18.
@@ -21,6 +22,15 @@ public class L0Processor extends TriggerProcessor {
 
     public static AtomicInteger L0Count = new AtomicInteger();
 
+    static {
+        Metrics.getInstance().gauge("trigger.l0_frames", new Metrics.Gauge() {
+            @Override
+            public double value() {
+                return L0Count.get();
+            }
+        });
+    }
+
     private L0Processor(CFApplication application, ExposureBlock xb, Config config) {
         super(application, xb, config, true);
     }
@@ -29,6 +39,13 @@ public class L0Processor extends TriggerProcessor {
         return new L0Processor(application, xb, CFConfig.getInstance().getL0Trigger());
     }
 
+    /**
+     * Make an L0Processor with its own config, e.g. for a zero-bias branch of the TriggerChain
+     */
+    public static TriggerProcessor makeProcessor(CFApplication application, ExposureBlock xb, Config config) {
+        return new L0Processor(application, xb, config);
+    }
+
     public static Config makeConfig(String configStr) {
 
         HashMap<String, String> options = TriggerProcessor.parseConfigString(configStr);
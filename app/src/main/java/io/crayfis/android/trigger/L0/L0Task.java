@@ -2,8 +2,12 @@ package io.crayfis.android.trigger.L0;
 
 import org.opencv.core.Mat;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
 import io.crayfis.android.DataProtos;
 import io.crayfis.android.exposure.Frame;
@@ -19,6 +23,9 @@ class L0Task extends TriggerProcessor.Task {
 
         static final String NAME = "default";
         static final HashMap<String, Object> KEY_DEFAULT;
+        // the task keeps no state, so all of these can change between frames
+        private static final Set<String> HOT_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+                L0Processor.KEY_PRESCALE, L0Processor.KEY_RANDOM, L0Processor.KEY_WINDOWSIZE)));
 
         static {
             KEY_DEFAULT = new HashMap<>();
@@ -39,6 +46,11 @@ class L0Task extends TriggerProcessor.Task {
             windowSize = getInt(L0Processor.KEY_WINDOWSIZE);
         }
 
+        @Override
+        protected Set<String> getHotKeys() {
+            return HOT_KEYS;
+        }
+
         @Override
         public TriggerProcessor.Config makeNewConfig(String cfgstr) {
             return L0Processor.makeConfig(cfgstr);
@@ -50,7 +62,7 @@ class L0Task extends TriggerProcessor.Task {
         }
     }
 
-    private Config mConfig;
+    private final Config mConfig;
 
     L0Task(TriggerProcessor processor, Config cfg) {
         super(processor);
@@ -88,7 +100,7 @@ class L0Task extends TriggerProcessor.Task {
             zeroBiasBuilder.setYMin(yMin);
             for(short val : buf)
                 zeroBiasBuilder.addVal(val);
-            frame.setZeroBias(zeroBiasBuilder.build());
+            frame.setZeroBias(mProcessor.getBranch(), zeroBiasBuilder.build());
         }
 
         return 1;
@@ -0,0 +1,246 @@
+package io.crayfis.android.trigger.L1;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import io.crayfis.android.daq.DAQManager;
+import io.crayfis.android.server.CFConfig;
+import io.crayfis.android.server.PreCalibrationService;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Store for the L1 calibration of each (camera, resolution), so a restart can go straight to DATA.
+ * A stored calibration is only used if the ISO, exposure and precalibration hashes also match.
+ *
+ * Layout (big-endian):
+ *   header: magic, version, camera id, res x, res y, ISO, exposure (ns), hot hash, weight hash,
+ *           # of bins, threshold, saved time (ms), CRC32 of body
+ *   body:   long[] histogram of frame maxima
+ */
+final class L1CalibrationStore {
+
+    private static final int MAGIC = 0x43464C31; // "CFL1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 10 * 4 + 3 * 8;
+
+    private static final String DIR_NAME = "l1cal";
+    private static final String FILE_TEMPLATE = "l1cal_%d_%dx%d.bin";
+
+    private static L1CalibrationStore sInstance;
+
+    private final File mDir;
+
+    /**
+     * Camera settings which a calibration belongs to
+     */
+    static final class Key {
+        final int cameraId;
+        final int resX;
+        final int resY;
+        final int iso;
+        final long exposureNanos;
+        final int hotHash;
+        final int weightHash;
+        final int nBins;
+
+        Key(int cameraId, int resX, int resY, int iso, long exposureNanos, int hotHash, int weightHash, int nBins) {
+            this.cameraId = cameraId;
+            this.resX = resX;
+            this.resY = resY;
+            this.iso = iso;
+            this.exposureNanos = exposureNanos;
+            this.hotHash = hotHash;
+            this.weightHash = weightHash;
+            this.nBins = nBins;
+        }
+
+        /**
+         * @return the key for the primary camera as it is now, or null without a precalibration
+         */
+        @Nullable
+        static Key current() {
+            PreCalibrationService.Config precal = CFConfig.getInstance().getPrecalConfig();
+            if(precal == null) return null;
+            DAQManager daq = DAQManager.getInstance();
+            return new Key(daq.getCameraId(), daq.getResX(), daq.getResY(), daq.getISO(),
+                    daq.getExposureTime(), precal.getHotHash(), precal.getWeightHash(),
+                    daq.isStreamingRAW() ? 1024 : 256);
+        }
+
+        @Override
+        public String toString() {
+            return "camera " + cameraId + " " + resX + "x" + resY + " ISO " + iso
+                    + " exposure " + exposureNanos + " ns";
+        }
+    }
+
+    static final class Entry {
+        final float threshold;
+        final long[] hist;
+        final long savedAt;
+
+        Entry(float threshold, long[] hist, long savedAt) {
+            this.threshold = threshold;
+            this.hist = hist;
+            this.savedAt = savedAt;
+        }
+    }
+
+    static synchronized L1CalibrationStore getInstance(@NonNull Context context) {
+        if(sInstance == null) {
+            sInstance = new L1CalibrationStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private L1CalibrationStore(Context context) {
+        mDir = new File(context.getFilesDir(), DIR_NAME);
+    }
+
+    private File getFile(Key key) {
+        return new File(mDir, String.format(FILE_TEMPLATE, key.cameraId, key.resX, key.resY));
+    }
+
+    /**
+     * @return the stored calibration for these settings, or null if there is no valid one
+     */
+    @Nullable
+    Entry load(@NonNull Key key) {
+        File file = getFile(key);
+        if(!file.exists()) return null;
+
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < HEADER_SIZE || raf.length() > HEADER_SIZE + 8L * 4096) return null;
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            buf = ByteBuffer.wrap(bytes);
+        } catch (IOException e) {
+            CFLog.e("Could not read " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+
+        if(buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            CFLog.w("Ignoring malformed L1 calibration file " + file.getName());
+            return null;
+        }
+        if(buf.getInt(8) != key.cameraId
+                || buf.getInt(12) != key.resX
+                || buf.getInt(16) != key.resY
+                || buf.getInt(20) != key.iso
+                || buf.getLong(24) != key.exposureNanos
+                || buf.getInt(32) != key.hotHash
+                || buf.getInt(36) != key.weightHash
+                || buf.getInt(40) != key.nBins) {
+            CFLog.i("Stored L1 calibration does not match " + key);
+            return null;
+        }
+
+        float threshold = buf.getFloat(44);
+        long savedAt = buf.getLong(48);
+        long crc = buf.getLong(56);
+
+        if(HEADER_SIZE + 8 * key.nBins != buf.capacity()) {
+            CFLog.w("Ignoring truncated L1 calibration file " + file.getName());
+            return null;
+        }
+
+        ByteBuffer body = buf.duplicate();
+        body.position(HEADER_SIZE);
+        if(crc32(body) != crc) {
+            CFLog.w("Checksum mismatch in " + file.getName());
+            return null;
+        }
+
+        body.position(HEADER_SIZE);
+        long[] hist = new long[key.nBins];
+        body.asLongBuffer().get(hist);
+
+        return new Entry(threshold, hist, savedAt);
+    }
+
+    /**
+     * Writes the calibration in the background
+     */
+    void save(@NonNull final Key key, final float threshold, @NonNull final long[] hist) {
+        if(hist.length != key.nBins) return;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(key, threshold, hist);
+                } catch (IOException e) {
+                    CFLog.e("Could not save L1 calibration: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the calibration for these settings, e.g. after it failed validation
+     */
+    void remove(@NonNull Key key) {
+        // on the calling thread, so that the next warm start cannot find it
+        File file = getFile(key);
+        if(file.exists() && !file.delete()) {
+            CFLog.w("Could not delete " + file.getName());
+        }
+    }
+
+    private void write(Key key, float threshold, long[] hist) throws IOException {
+        if(!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Could not create " + mDir);
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(8 * hist.length);
+        body.asLongBuffer().put(hist);
+        long crc = crc32(body.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(key.cameraId)
+                .putInt(key.resX)
+                .putInt(key.resY)
+                .putInt(key.iso)
+                .putLong(key.exposureNanos)
+                .putInt(key.hotHash)
+                .putInt(key.weightHash)
+                .putInt(key.nBins)
+                .putFloat(threshold)
+                .putLong(System.currentTimeMillis())
+                .putLong(crc)
+                .flip();
+
+        // write to a temporary file and rename, so readers never see a partial file
+        File file = getFile(key);
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(header.array());
+            out.write(body.array());
+            out.getFD().sync();
+        }
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp.getName());
+        }
+        CFLog.i("Saved L1 calibration to " + file.getName());
+    }
+
+    private static long crc32(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        crc.update(bytes);
+        return crc.getValue();
+    }
+}
@@ -1,5 +1,9 @@
 package io.crayfis.android.trigger.L1;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
 import io.crayfis.android.DataProtos;
@@ -11,11 +15,149 @@ import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.util.FrameHistogram;
 import io.crayfis.android.util.Histogram;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 public class L1Calibrator extends FrameHistogram {
 
+    // critical value of the Kolmogorov-Smirnov statistic at 1% significance
+    private static final double KS_CRITICAL = 1.63;
+
+    private static final Metrics.Counter sWarmStartsRejected = Metrics.getInstance().counter("calibration.warm_starts_rejected");
+
+    // ID of the companion camera being calibrated, or -1 for the primary camera
+    private final int mCompanionId;
+
+    // warm-start calibration being checked against new frames, if any
+    private CFApplication mValidationApp;
+    private L1CalibrationStore.Key mValidationKey;
+    private long[] mValidationReference;
+    private Histogram mValidationHist;
+    private int mValidationFrames;
+
     L1Calibrator(int nFrames, int nBins) {
+        this(-1, nFrames, nBins);
+    }
+
+    L1Calibrator(int companionId, int nFrames, int nBins) {
         super(nFrames, nBins);
+        mCompanionId = companionId;
+    }
+
+    @Override
+    public void addValue(Integer value) {
+        super.addValue(value);
+        if(mValidationReference != null) {
+            validate(value);
+        }
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        synchronized (this) {
+            mValidationReference = null;
+        }
+    }
+
+    /**
+     * Fill with the frame maxima from a stored calibration, scaled down if there are more
+     * than fit.  The order is shuffled so that new frames replace old values evenly.
+     *
+     * @param hist Stored histogram of frame maxima
+     * @param nFrames Number of frames this calibrator holds
+     */
+    void restore(long[] hist, int nFrames) {
+        long total = 0;
+        for(long v : hist) {
+            total += v;
+        }
+        double scale = total > nFrames ? (double) nFrames / total : 1.0;
+
+        List<Integer> values = new ArrayList<>();
+        for(int bin=0; bin<hist.length && bin<nBins; bin++) {
+            long n = (long) (hist[bin] * scale);
+            for(long i=0; i<n; i++) {
+                values.add(bin);
+            }
+        }
+        Collections.shuffle(values, new Random(total));
+
+        clear();
+        for(Integer v : values) {
+            super.addValue(v);
+        }
+    }
+
+    /**
+     * Compare the next frames with a stored calibration.  If they do not come from the same
+     * distribution, the stored calibration is removed and we go back to calibrating.
+     *
+     * @param application Application instance
+     * @param key Settings the calibration was stored for
+     * @param reference Stored histogram of frame maxima
+     * @param nFrames Number of frames to compare
+     */
+    synchronized void startValidation(CFApplication application, L1CalibrationStore.Key key,
+                                      long[] reference, int nFrames) {
+        mValidationApp = application;
+        mValidationKey = key;
+        mValidationHist = new Histogram(nBins);
+        mValidationFrames = nFrames;
+        mValidationReference = reference;
+    }
+
+    private synchronized void validate(int value) {
+        if(mValidationReference == null) return;
+        mValidationHist.fill(value);
+        if(mValidationHist.getEntries() < mValidationFrames) return;
+
+        long[] reference = mValidationReference;
+        mValidationReference = null;
+
+        double d = ksStatistic(reference, mValidationHist.getValues());
+        long n = 0;
+        for(long v : reference) {
+            n += v;
+        }
+        long m = mValidationHist.getEntries();
+        double critical = KS_CRITICAL * Math.sqrt((double) (n + m) / (n * m));
+
+        if(d <= critical) {
+            CFLog.i("Warm-start L1 calibration validated: D = " + String.format("%.4f", d)
+                    + " < " + String.format("%.4f", critical));
+            return;
+        }
+
+        CFLog.w("Warm-start L1 calibration rejected: D = " + String.format("%.4f", d)
+                + " > " + String.format("%.4f", critical));
+        sWarmStartsRejected.inc();
+        L1CalibrationStore.getInstance(mValidationApp).remove(mValidationKey);
+        // new weights and a full calibration
+        mValidationApp.changeApplicationState(CFApplication.State.DATA, CFApplication.State.PRECALIBRATION);
+    }
+
+    /**
+     * @return largest difference between the cumulative distributions of two histograms
+     */
+    private static double ksStatistic(long[] a, long[] b) {
+        long nA = 0;
+        long nB = 0;
+        int len = Math.min(a.length, b.length);
+        for(int i=0; i<len; i++) {
+            nA += a[i];
+            nB += b[i];
+        }
+        if(nA == 0 || nB == 0) return 1.0;
+
+        double d = 0;
+        long sumA = 0;
+        long sumB = 0;
+        for(int i=0; i<len; i++) {
+            sumA += a[i];
+            sumB += b[i];
+            d = Math.max(d, Math.abs((double) sumA / nA - (double) sumB / nB));
+        }
+        return d;
     }
 
     public Integer[] getFrameStatistics() { return this.toArray(new Integer[this.size()]); }
@@ -26,18 +168,24 @@ public class L1Calibrator extends FrameHistogram {
      */
     void updateThresholds(boolean prescale) {
 
+        boolean companion = mCompanionId >= 0;
+
         // if we have a trigger lock, just set the thresholds
-        TriggerProcessor.Config L1Config = CFConfig.getInstance().getL1Trigger();
+        TriggerProcessor.Config L1Config = companion ? CFConfig.getInstance().getL1Trigger(mCompanionId)
+                : CFConfig.getInstance().getL1Trigger();
         if(L1Config.getBoolean(L1Processor.KEY_TRIGGER_LOCK)) {
-            CFConfig.getInstance().setThresholds();
+            if(!companion) CFConfig.getInstance().setThresholds();
             return;
         }
 
         // first, find the target L1 efficiency
-        double fps = DAQManager.getInstance().getFPS();
+        double fps = companion ? DAQManager.getInstance().getSmoothedFPS(mCompanionId)
+                : DAQManager.getInstance().getSmoothedFPS();
 
         if (fps == 0) {
             CFLog.w("Warning! Got 0 fps in threshold calculation.");
+            // a companion or warm start keeps its threshold rather than trigger on everything
+            if(companion || isValidating()) return;
         }
         double targetL1Rate = L1Config.getFloat(L1Processor.KEY_TARGET_EPM) / 60.0 / fps;
 
@@ -62,11 +210,22 @@ public class L1Calibrator extends FrameHistogram {
         double thresh = threshBase + threshPrescale;
         if(!prescale || thresh < 3) thresh = Math.ceil(thresh);
 
+        if(companion) {
+            CFLog.i("Setting new L1 threshold for camera " + mCompanionId + ": {"
+                    + L1Config.getFloat(L1Processor.KEY_L1_THRESH) + "} -> {" + thresh + "}");
+            CFConfig.getInstance().setThresholds(mCompanionId, (float) thresh);
+            return;
+        }
+
         CFLog.i("Setting new L1 threshold: {" + L1Config.getFloat(L1Processor.KEY_L1_THRESH) + "} -> {" + thresh + "}");
 
         CFConfig.getInstance().setThresholds((float) thresh);
     }
 
+    synchronized boolean isValidating() {
+        return mValidationReference != null;
+    }
+
     void submitCalibrationResult(CFApplication application) {
         // build the calibration result object
         UUID runId = application.getBuildInformation().getRunId();
@@ -1,5 +1,6 @@
 package io.crayfis.android.trigger.L1;
 
+import java.util.Date;
 import java.util.HashMap;
 
 import io.crayfis.android.daq.DAQManager;
@@ -8,6 +9,7 @@ import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 /**
  * Created by cshimmin on 5/4/16.
@@ -20,15 +22,32 @@ public class L1Processor extends TriggerProcessor {
     public static final String KEY_L1_THRESH = "l1thresh";
     public static final String KEY_PRESCALE = "prescale";
 
-    public static int L1CountData;
+    public static final Metrics.Counter L1CountData = Metrics.getInstance().counter("trigger.l1_data_frames");
+    private static final Metrics.Counter sWarmStarts = Metrics.getInstance().counter("calibration.warm_starts");
+
+    // fraction of the calibration frames used to check a warm start, and the least we check
+    private static final double VALIDATION_FRACTION = 0.1;
+    private static final int MIN_VALIDATION_FRAMES = 100;
 
     private static L1Calibrator sCalibrator = new L1Calibrator(1,1);
+    // calibrators of the companion cameras, by camera ID
+    private static final HashMap<Integer, L1Calibrator> sCompanionCalibrators = new HashMap<>();
+    // settings of a calibration which just finished, to be stored once its threshold is set
+    private static L1CalibrationStore.Key sFinishedKey;
+
+    // receives the maximum of each frame
+    final L1Calibrator calibrator;
 
-    private L1Processor(CFApplication application, ExposureBlock xb, Config config) {
+    private L1Processor(CFApplication application, ExposureBlock xb, Config config, L1Calibrator calibrator) {
         super(application, xb, config, false);
+        this.calibrator = calibrator;
     }
 
     public static TriggerProcessor makeProcessor(CFApplication application, ExposureBlock xb) {
+        if(xb.companion) {
+            return makeCompanionProcessor(application, xb);
+        }
+
         CFConfig config = CFConfig.getInstance();
         Config l1Config = config.getL1Trigger();
         boolean prescale = l1Config.getBoolean(KEY_PRESCALE);
@@ -50,8 +69,72 @@ public class L1Processor extends TriggerProcessor {
             sCalibrator.updateThresholds(prescale);
         }
 
+        if(xb.daq_state == CFApplication.State.DATA && sFinishedKey != null) {
+            L1CalibrationStore.getInstance(application).save(sFinishedKey,
+                    config.getL1Trigger().getFloat(KEY_L1_THRESH),
+                    sCalibrator.getHistogram().getValues());
+            sFinishedKey = null;
+        }
+
         // now use updated trigger
-        return new L1Processor(application, xb, CFConfig.getInstance().getL1Trigger());
+        return new L1Processor(application, xb, CFConfig.getInstance().getL1Trigger(), sCalibrator);
+    }
+
+    /**
+     * Restore the stored calibration for the current camera settings, if there is one, so that
+     * CALIBRATION can be skipped.  The first frames in DATA are checked against it.
+     *
+     * @param application Application instance
+     * @return whether a stored calibration was restored
+     */
+    public static boolean warmStart(CFApplication application) {
+        L1CalibrationStore.Key key = L1CalibrationStore.Key.current();
+        if(key == null) return false;
+        L1CalibrationStore.Entry entry = L1CalibrationStore.getInstance(application).load(key);
+        if(entry == null) return false;
+
+        int nFrames = CFConfig.getInstance().getL1Trigger().getInt(TriggerProcessor.Config.KEY_MAXFRAMES);
+        int nValidation = Math.min(nFrames, Math.max(MIN_VALIDATION_FRAMES, (int) (VALIDATION_FRACTION * nFrames)));
+
+        sCalibrator = new L1Calibrator(nFrames, key.nBins);
+        sCalibrator.restore(entry.hist, nFrames);
+        sCalibrator.startValidation(application, key, entry.hist, nValidation);
+        CFConfig.getInstance().setThresholds(entry.threshold);
+        sFinishedKey = null;
+
+        sWarmStarts.inc();
+        CFLog.i("Warm start for " + key + " from " + new Date(entry.savedAt)
+                + ", L1 threshold " + entry.threshold);
+        return true;
+    }
+
+    /**
+     * A companion camera has no CALIBRATION blocks, so its calibrator fills during DATA, and the
+     * threshold stays at its maximum until the first block is finished.
+     */
+    private static TriggerProcessor makeCompanionProcessor(CFApplication application, ExposureBlock xb) {
+        CFConfig config = CFConfig.getInstance();
+        Config l1Config = config.getL1Trigger(xb.camera_id);
+        boolean prescale = l1Config.getBoolean(KEY_PRESCALE);
+        int nFrames = l1Config.getInt(TriggerProcessor.Config.KEY_MAXFRAMES);
+        int nBins = DAQManager.getInstance().isStreamingRAW(xb.camera_id) ? 1024 : 256;
+
+        L1Calibrator calibrator;
+        synchronized (sCompanionCalibrators) {
+            calibrator = sCompanionCalibrators.get(xb.camera_id);
+            if(calibrator == null || calibrator.nBins != nBins) {
+                calibrator = new L1Calibrator(xb.camera_id, nFrames, nBins);
+                sCompanionCalibrators.put(xb.camera_id, calibrator);
+                config.setThresholds(xb.camera_id, null);
+            } else {
+                calibrator.updateThresholds(prescale);
+                if(calibrator.size() != nFrames) {
+                    calibrator.resize(nFrames);
+                }
+            }
+        }
+
+        return new L1Processor(application, xb, config.getL1Trigger(xb.camera_id), calibrator);
     }
 
     public static Config makeConfig(String configStr) {
@@ -79,8 +162,12 @@ public class L1Processor extends TriggerProcessor {
 
     @Override
     public void onMaxReached() {
-        if(application.changeApplicationState(CFApplication.State.CALIBRATION, CFApplication.State.DATA))
+        // only the primary camera calibrates in CALIBRATION
+        if(xb.companion) return;
+        if(application.changeApplicationState(CFApplication.State.CALIBRATION, CFApplication.State.DATA)) {
             sCalibrator.submitCalibrationResult(application);
+            sFinishedKey = L1CalibrationStore.Key.current();
+        }
     }
 
     public static L1Calibrator getCalibrator() {
@@ -62,10 +62,10 @@ class L1Task extends TriggerProcessor.Task {
     protected int processFrame(Frame frame) {
 
         int max = frame.getPixMax();
-        L1Processor.getCalibrator().addValue(max);
+        ((L1Processor) mProcessor).calibrator.addValue(max);
 
         if(frame.getExposureBlock().daq_state == CFApplication.State.DATA) {
-            L1Processor.L1CountData++;
+            L1Processor.L1CountData.inc();
 
             boolean pass = (max > mConfig.threshBase + 1 ||
                     max == mConfig.threshBase + 1 && Math.random() > mConfig.threshPrescale);
@@ -1,14 +1,20 @@
 package io.crayfis.android.trigger.L2;
 
+import androidx.annotation.Nullable;
+
 import java.util.HashMap;
 
 import io.crayfis.android.exposure.ExposureBlock;
+import io.crayfis.android.exposure.SyntheticFrame;
+import io.crayfis.android.exposure.SyntheticSensor;
 import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.trigger.TriggerProcessor;
-import io.crayfis.android.util.FrameHistory;
+import io.crayfis.android.trigger.L1.L1Processor;
 import io.crayfis.android.exposure.Frame;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
+import io.crayfis.android.util.RateEstimator;
 
 public class L2Processor extends TriggerProcessor {
 
@@ -17,17 +23,65 @@ public class L2Processor extends TriggerProcessor {
     public static final String KEY_L2_THRESH = "l2thresh";
     public static final String KEY_MAXN = "maxn";
 
-    public static int L2Count = 0;
+    public static final Metrics.Counter L2Count = Metrics.getInstance().counter("trigger.l2_frames");
+
+    // how far outside an injection's bounding box an L2 hit still counts as finding it
+    private static final int MATCH_MARGIN = 1;
 
     private static final int PASS_TIME_CAPACITY = 25;
-    private static final FrameHistory<Long> sPassTimes = new FrameHistory<>(PASS_TIME_CAPACITY);
+    private static final RateEstimator sPassRate = new RateEstimator(PASS_TIME_CAPACITY);
+    // pass rates of the companion cameras, by camera ID
+    private static final HashMap<Integer, RateEstimator> sCompanionPassRates = new HashMap<>();
 
-    private L2Processor(CFApplication application, ExposureBlock xb, TriggerProcessor.Config config) {
+    // null for variants, which should not affect the pass rate used for the L1 threshold
+    @Nullable
+    private final RateEstimator mPassRate;
+
+    private L2Processor(CFApplication application, ExposureBlock xb, TriggerProcessor.Config config,
+                        @Nullable RateEstimator passRate) {
         super(application, xb, config, false);
+        mPassRate = passRate;
     }
 
     public static TriggerProcessor makeProcessor(CFApplication application, ExposureBlock xb) {
-        return new L2Processor(application, xb, CFConfig.getInstance().getL2Trigger());
+        CFConfig config = CFConfig.getInstance();
+        return new L2Processor(application, xb,
+                xb.companion ? config.getL2Trigger(xb.camera_id) : config.getL2Trigger(),
+                xb.companion ? getCompanionPassRate(xb.camera_id) : sPassRate);
+    }
+
+    /**
+     * Make an L2Processor with a different config, to run alongside the main one.  Unless the
+     * trigger is locked or the config sets its own, the L2 threshold follows the current L1
+     * threshold.
+     *
+     * @param config L2Processor.Config for this variant
+     * @param fixedThresh Whether to keep the L2 threshold in config
+     */
+    public static TriggerProcessor makeVariant(CFApplication application, ExposureBlock xb,
+                                               TriggerProcessor.Config config, boolean fixedThresh) {
+        CFConfig cfConfig = CFConfig.getInstance();
+        TriggerProcessor.Config l1Trigger = xb.companion
+                ? cfConfig.getL1Trigger(xb.camera_id) : cfConfig.getL1Trigger();
+        if(!fixedThresh && !l1Trigger.getBoolean(L1Processor.KEY_TRIGGER_LOCK)
+                && config instanceof Config) {
+            float l1Thresh = l1Trigger.getFloat(L1Processor.KEY_L1_THRESH);
+            config = config.edit()
+                    .putInt(KEY_L2_THRESH, ((Config) config).generateL2Threshold(l1Thresh))
+                    .create();
+        }
+        return new L2Processor(application, xb, config, null);
+    }
+
+    private static RateEstimator getCompanionPassRate(int cameraId) {
+        synchronized (sCompanionPassRates) {
+            RateEstimator passRate = sCompanionPassRates.get(cameraId);
+            if(passRate == null) {
+                passRate = new RateEstimator(PASS_TIME_CAPACITY);
+                sCompanionPassRates.put(cameraId, passRate);
+            }
+            return passRate;
+        }
     }
 
     /**
@@ -64,8 +118,36 @@ public class L2Processor extends TriggerProcessor {
         super.submitFrame(frame);
 
         // record the frame time to calculate pass rate
-        synchronized (sPassTimes) {
-            sPassTimes.addValue(frame.getAcquiredTimeNano());
+        if(mPassRate != null) {
+            mPassRate.addEvent(frame.getAcquiredTimeNano());
+        }
+    }
+
+    /**
+     * Compare the L2 hits of a synthetic frame with what was injected into it, counting each
+     * track and spot as found if any hit lies on it
+     */
+    @Override
+    protected void onFrameProcessed(Frame frame, int passes) {
+        if(!(frame instanceof SyntheticFrame)) return;
+
+        int[] hits = frame.getL2Hits(getBranch());
+        int width = frame.getWidth();
+        Metrics metrics = Metrics.getInstance();
+        String prefix = getBranch() == Frame.Branch.ROOT ? "synthetic." : "synthetic.branch" + getBranch().id + ".";
+
+        for(SyntheticSensor.Injection injection : ((SyntheticFrame) frame).getInjections()) {
+            boolean found = false;
+            if(hits != null) {
+                for(int idx : hits) {
+                    if(injection.contains(idx % width, idx / width, MATCH_MARGIN)) {
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            String kind = injection.track ? "tracks" : "spots";
+            metrics.counter(prefix + kind + (found ? "_found" : "_missed")).inc();
         }
     }
 
@@ -74,22 +156,37 @@ public class L2Processor extends TriggerProcessor {
      * @return Pass rate, in frames per minute
      */
     public static double getPassRateFPM() {
-        synchronized (sPassTimes) {
-            if (sPassTimes.size() < PASS_TIME_CAPACITY) {
-                return -1.0;
-            }
-            long dt = System.nanoTime() - sPassTimes.getOldest();
-            double dtMin = dt / 1000000000. / 60.;
-            return sPassTimes.size() / dtMin;
+        if (!sPassRate.isFull()) {
+            return -1.0;
         }
+        return sPassRate.getRate(System.nanoTime()) * 60.;
+    }
+
+    /**
+     * Calculates and returns the L1 pass rate of a companion camera over its last 25 passes
+     * @param cameraId ID of the companion camera
+     * @return Pass rate, in frames per minute
+     */
+    public static double getPassRateFPM(int cameraId) {
+        RateEstimator passRate = getCompanionPassRate(cameraId);
+        if (!passRate.isFull()) {
+            return -1.0;
+        }
+        return passRate.getRate(System.nanoTime()) * 60.;
     }
 
     /**
      * Clear pass rate statistics when an ExposureBlock is aborted
      */
     public static void resetPassRate() {
-        synchronized (sPassTimes) {
-            sPassTimes.clear();
-        }
+        sPassRate.reset();
+    }
+
+    /**
+     * Clear the pass rate statistics of a companion camera
+     * @param cameraId ID of the companion camera
+     */
+    public static void resetPassRate(int cameraId) {
+        getCompanionPassRate(cameraId).reset();
     }
 }
\ No newline at end of file
@@ -1,21 +1,16 @@
 package io.crayfis.android.trigger.L2;
 
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
 import android.util.Pair;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import io.crayfis.android.DataProtos;
-import io.crayfis.android.ScriptC_l2Trigger;
+import io.crayfis.android.compute.ComputeBackend;
+import io.crayfis.android.exposure.ExposureBlock;
 import io.crayfis.android.exposure.Frame;
 import io.crayfis.android.trigger.TriggerProcessor;
-import io.crayfis.android.ui.navdrawer.data.LayoutData;
 import io.crayfis.android.util.CFLog;
 
 /**
@@ -66,43 +61,26 @@ class L2TaskPixels extends TriggerProcessor.Task {
     }
 
     private final Config mConfig;
-    private final ScriptC_l2Trigger mTrigger;
-    private final Lock mLock = new ReentrantLock();
-
-    private final Allocation aPixIdx;
-    private final Allocation aPixVal;
-    private final Allocation aPixN;
+    private final ComputeBackend.Trigger mTrigger;
 
     L2TaskPixels(TriggerProcessor processor, Config cfg) {
         super(processor);
         mConfig = cfg;
 
-        RenderScript rs = processor.application.getRenderScript();
-        mTrigger = new ScriptC_l2Trigger(rs);
-        aPixIdx = Allocation.createSized(rs, Element.U32(rs), mConfig.npix, Allocation.USAGE_SCRIPT);
-        aPixVal = Allocation.createSized(rs, Element.U32(rs), mConfig.npix, Allocation.USAGE_SCRIPT);
-        aPixN = Allocation.createSized(rs, Element.U32(rs), 1, Allocation.USAGE_SCRIPT);
-
-        mTrigger.invoke_set_L2Thresh(mConfig.thresh);
-        mTrigger.set_gMaxN(mConfig.maxn);
-        mTrigger.set_gNPixMax(mConfig.npix);
-        mTrigger.set_gResX(processor.xb.res_x);
-        mTrigger.set_gWeights(processor.xb.weights);
-        mTrigger.bind_gPixIdx(aPixIdx);
-        mTrigger.bind_gPixVal(aPixVal);
-        mTrigger.bind_gPixN(aPixN);
-
-        // make sure pixN is initialized to 0
-        mTrigger.invoke_reset();
+        ExposureBlock xb = processor.xb;
+        mTrigger = ComputeBackend.get(processor.application.getRenderScript())
+                .createTrigger(xb.res_x, xb.res_y, xb.weights, mConfig.thresh, mConfig.npix, mConfig.maxn);
     }
 
 
     protected int processFrame(Frame frame) {
 
-        L2Processor.L2Count++;
+        L2Processor.L2Count.inc();
 
         ArrayList<DataProtos.Pixel> pixels = new ArrayList<>();
         List<Pair<Integer, Integer>> l2PixelCoords = getL2PixelCoords(frame);
+        int[] l2Values = new int[l2PixelCoords.size()];
+        int nValues = 0;
 
         for(Pair<Integer, Integer> xy: l2PixelCoords) {
 
@@ -115,7 +93,7 @@ class L2TaskPixels extends TriggerProcessor.Task {
 
             CFLog.d("val = " + val + " at (" + ix + "," + iy +")");
 
-            LayoutData.appendData(val);
+            l2Values[nValues++] = val;
 
             double sum3 = 0;
             double sum5 = 0;
@@ -148,7 +126,8 @@ class L2TaskPixels extends TriggerProcessor.Task {
 
         }
 
-        frame.setPixels(pixels);
+        frame.setPixels(mProcessor.getBranch(), pixels);
+        frame.setL2Values(mProcessor.getBranch(), l2Values);
 
         return l2PixelCoords.size();
     }
@@ -156,36 +135,17 @@ class L2TaskPixels extends TriggerProcessor.Task {
     private List<Pair<Integer, Integer>> getL2PixelCoords(Frame frame) {
 
         List<Pair<Integer, Integer>> l2Coords = new ArrayList<>();
-        Allocation buf = frame.getAllocation();
-        int[] pixN = new int[1];
-
-        mLock.lock();
-
-        if (frame.getFormat() == Frame.Format.RAW) {
-            mTrigger.forEach_trigger_ushort(buf);
-        } else {
-            mTrigger.forEach_trigger_uchar(buf);
-        }
+        int[] pixIdx = new int[mConfig.npix];
+        int pixN = mTrigger.apply(frame, pixIdx);
+        frame.setL2Hits(mProcessor.getBranch(), pixIdx, pixN);
 
-        // first count the number of hits and construct buffers
-        aPixN.copyTo(pixN);
-
-        if(pixN[0] == 0) {
+        if(pixN == 0) {
             CFLog.e("No triggers found!");
-            mTrigger.invoke_reset();
-            mLock.unlock();
             return l2Coords;
         }
 
-        int[] pixIdx = new int[pixN[0]];
-        aPixIdx.copy1DRangeTo(0, pixN[0], pixIdx);
-
-        mTrigger.invoke_reset();
-
-        mLock.unlock();
-
         // now split coords into x and y
-        for (int i = 0; i < pixN[0]; i++) {
+        for (int i = 0; i < pixN; i++) {
             int x = pixIdx[i] % frame.getWidth();
             int y = pixIdx[i] / frame.getWidth();
             l2Coords.add(Pair.create(x, y));
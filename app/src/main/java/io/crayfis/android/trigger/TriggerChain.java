@@ -1,17 +1,29 @@
 package io.crayfis.android.trigger;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import io.crayfis.android.exposure.ExposureBlock;
 import io.crayfis.android.exposure.Frame;
 import io.crayfis.android.main.CFApplication;
+import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.trigger.L0.L0Processor;
 import io.crayfis.android.trigger.L1.L1Processor;
 import io.crayfis.android.trigger.L2.L2Processor;
+import io.crayfis.android.trigger.cluster.ClusterProcessor;
 import io.crayfis.android.trigger.precalibration.PreCalibrator;
 import io.crayfis.android.trigger.quality.QualityProcessor;
+import io.crayfis.android.util.CFLog;
 
 /**
  * Created by jswaney on 1/17/18.
@@ -19,12 +31,38 @@ import io.crayfis.android.trigger.quality.QualityProcessor;
 
 
 /**
- * Class for submitting frames through a pipeline of processors.  Configures the chain of processors
- * according to the application state and the trigger configurations
+ * Class for submitting frames through a graph of processors.  Configures the graph according to
+ * the application state and the trigger configurations.
+ *
+ * The graph is a tree described by a string, where "->" links stages and "(a | b)" splits the
+ * frames that pass a stage into branches, e.g.
+ *
+ *   L0 -> quality -> L1 -> (L2 -> cluster | L2[pixels; npix=3] | L0[L0; prescale=0.01])
+ *
+ * A stage may carry its own config in brackets, either a full config or "; key=val" edits of the
+ * usual one.  This is supported for L0 and L2.  Branches run concurrently on the same frame
+ * buffer, and the frame is retired once every branch is done with it.
+ *
+ * Each branch writes its own part of the Event.  A frame yields one Event for each of the last
+ * branches it reached, as the chain from the root to that branch would have written it, tagged
+ * with the branch id in field {@link Frame#EVENT_FIELD_BRANCH}.  Branches are numbered from 1 in
+ * the order they appear in the string.
  */
 public class TriggerChain implements Iterable<TriggerProcessor> {
 
+    private static final String L0 = "l0";
+    private static final String QUALITY = "quality";
+    private static final String PRECAL = "precal";
+    private static final String L1 = "l1";
+    private static final String L2 = "l2";
+    private static final String CLUSTER = "cluster";
+
     private final TriggerProcessor mFirst;
+    private int mNBranches = 1;
+
+    // stages with their own config, which getProcessor() skips
+    private final Set<TriggerProcessor> mVariants = Collections.newSetFromMap(
+            new HashMap<TriggerProcessor, Boolean>());
 
     /**
      * Constructor
@@ -34,29 +72,225 @@ public class TriggerChain implements Iterable<TriggerProcessor> {
      */
     public TriggerChain(CFApplication application, ExposureBlock xb) {
 
+        String graph = getDefaultGraph(xb);
+        if(xb.daq_state == CFApplication.State.DATA) {
+            String custom = CFConfig.getInstance().getDataTriggerGraph();
+            if(custom != null && !custom.trim().isEmpty()) {
+                graph = custom;
+            }
+        }
+
+        Node root;
+        try {
+            root = parse(graph);
+        } catch (IllegalArgumentException e) {
+            CFLog.e("Invalid trigger graph \"" + graph + "\": " + e.getMessage());
+            root = parse(getDefaultGraph(xb));
+        }
+
+        mFirst = build(root, application, xb, Frame.Branch.ROOT);
+    }
+
+    /**
+     * @return the graph which reproduces the usual chain for the state of the ExposureBlock
+     */
+    private static String getDefaultGraph(ExposureBlock xb) {
         switch (xb.daq_state) {
             case SURVEY:
-                mFirst = QualityProcessor.makeProcessor(application, xb);
-                break;
+                return QUALITY;
             case PRECALIBRATION:
-                mFirst = L0Processor.makeProcessor(application, xb)
-                        .setNext(QualityProcessor.makeProcessor(application, xb)
-                        .setNext(PreCalibrator.makeProcessor(application, xb)));
-                break;
+                return L0 + "->" + QUALITY + "->" + PRECAL;
             case CALIBRATION:
-                mFirst = L0Processor.makeProcessor(application, xb)
-                        .setNext(QualityProcessor.makeProcessor(application, xb)
-                        .setNext(L1Processor.makeProcessor(application, xb)));
-                break;
+                return L0 + "->" + QUALITY + "->" + L1;
             case DATA:
-                mFirst = L0Processor.makeProcessor(application, xb)
-                        .setNext(QualityProcessor.makeProcessor(application, xb)
-                        .setNext(L1Processor.makeProcessor(application, xb)
-                        .setNext(L2Processor.makeProcessor(application, xb))));
-                break;
+                String graph = L0 + "->" + QUALITY + "->" + L1 + "->" + L2;
+                if(ClusterProcessor.isEnabled()) {
+                    graph += "->" + CLUSTER;
+                }
+                return graph;
+            default:
+                return L0;
+        }
+    }
+
+    /**
+     * A stage of the graph as parsed, before any processors are made
+     */
+    private static final class Node {
+        final String name;
+        @Nullable final String config;
+        final List<Node> next = new ArrayList<>(1);
+
+        Node(String name, @Nullable String config) {
+            this.name = name;
+            this.config = config;
+        }
+    }
+
+    /**
+     * Parse a graph string of the form
+     *
+     *   chain := node ("->" node)* ["->" "(" chain ("|" chain)* ")"]
+     *   node  := name ["[" config "]"]
+     *
+     * @throws IllegalArgumentException if the string is malformed or names an unknown stage
+     */
+    private static Node parse(String graph) {
+        Parser parser = new Parser(graph);
+        Node root = parser.chain();
+        if(!parser.atEnd()) {
+            throw parser.error("unexpected input");
+        }
+        return root;
+    }
+
+    private static final class Parser {
+        private final String mStr;
+        private int mPos;
+
+        Parser(String str) {
+            mStr = str;
+        }
+
+        Node chain() {
+            Node first = node();
+            Node last = first;
+            while(consume("->")) {
+                if(consume("(")) {
+                    do {
+                        last.next.add(chain());
+                    } while(consume("|"));
+                    if(!consume(")")) throw error("expected ')'");
+                    // a split ends the chain
+                    break;
+                }
+                Node next = node();
+                last.next.add(next);
+                last = next;
+            }
+            return first;
+        }
+
+        Node node() {
+            skipSpaces();
+            int start = mPos;
+            while(mPos < mStr.length() && Character.isLetterOrDigit(mStr.charAt(mPos))) {
+                mPos++;
+            }
+            if(start == mPos) throw error("expected a stage");
+            String name = mStr.substring(start, mPos).toLowerCase(Locale.US);
+            switch (name) {
+                case L0:
+                case QUALITY:
+                case PRECAL:
+                case L1:
+                case L2:
+                case CLUSTER:
+                    break;
+                default:
+                    throw error("unknown stage " + name);
+            }
+
+            String config = null;
+            if(consume("[")) {
+                int end = mStr.indexOf(']', mPos);
+                if(end < 0) throw error("expected ']'");
+                config = mStr.substring(mPos, end).trim();
+                mPos = end + 1;
+                if(!name.equals(L0) && !name.equals(L2)) {
+                    throw error("a config is not supported for " + name);
+                }
+            }
+            return new Node(name, config);
+        }
+
+        boolean consume(String token) {
+            skipSpaces();
+            if(mStr.startsWith(token, mPos)) {
+                mPos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        boolean atEnd() {
+            skipSpaces();
+            return mPos == mStr.length();
+        }
+
+        private void skipSpaces() {
+            while(mPos < mStr.length() && Character.isWhitespace(mStr.charAt(mPos))) {
+                mPos++;
+            }
+        }
+
+        IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException(msg + " at position " + mPos);
+        }
+    }
+
+    /**
+     * Make the processors for a node and everything after it
+     */
+    private TriggerProcessor build(Node node, CFApplication application, ExposureBlock xb,
+                                   Frame.Branch branch) {
+        TriggerProcessor processor = makeProcessor(node, application, xb);
+        processor.setBranch(branch);
+        boolean split = node.next.size() > 1;
+        for(Node next : node.next) {
+            Frame.Branch nextBranch = split ? new Frame.Branch(mNBranches++, branch) : branch;
+            processor.addNext(build(next, application, xb, nextBranch));
+        }
+        return processor;
+    }
+
+    private TriggerProcessor makeProcessor(Node node, CFApplication application, ExposureBlock xb) {
+        CFConfig config = CFConfig.getInstance();
+        switch (node.name) {
+            case L0:
+                if(node.config == null) {
+                    return L0Processor.makeProcessor(application, xb);
+                }
+                TriggerProcessor l0 = L0Processor.makeProcessor(application, xb,
+                        makeConfig(node.config, config.getL0Trigger(), L0));
+                mVariants.add(l0);
+                return l0;
+            case QUALITY:
+                return QualityProcessor.makeProcessor(application, xb);
+            case PRECAL:
+                return PreCalibrator.makeProcessor(application, xb);
+            case L1:
+                return L1Processor.makeProcessor(application, xb);
+            case L2:
+                if(node.config == null) {
+                    return L2Processor.makeProcessor(application, xb);
+                }
+                TriggerProcessor.Config base = xb.companion
+                        ? config.getL2Trigger(xb.camera_id) : config.getL2Trigger();
+                boolean fixedThresh = TriggerProcessor.parseConfigString(node.config)
+                        .containsKey(L2Processor.KEY_L2_THRESH);
+                TriggerProcessor l2 = L2Processor.makeVariant(application, xb,
+                        makeConfig(node.config, base, L2), fixedThresh);
+                mVariants.add(l2);
+                return l2;
+            case CLUSTER:
+                return ClusterProcessor.makeProcessor(application, xb);
             default:
-                mFirst = L0Processor.makeProcessor(application, xb);
+                // checked by the parser
+                throw new IllegalArgumentException("Unknown stage " + node.name);
+        }
+    }
+
+    /**
+     * @return the config in brackets, or the base config with those edits if it has no name
+     */
+    private static TriggerProcessor.Config makeConfig(String configStr, TriggerProcessor.Config base,
+                                                      String stage) {
+        String name = configStr.split(";", 2)[0].trim();
+        if(name.isEmpty() || name.contains("=")) {
+            return base.editFromString(name.isEmpty() ? configStr : ";" + configStr);
         }
+        return stage.equals(L0) ? L0Processor.makeConfig(configStr) : L2Processor.makeConfig(configStr);
     }
 
     /**
@@ -69,23 +303,23 @@ public class TriggerChain implements Iterable<TriggerProcessor> {
     }
 
     /**
-     * Return a requested type of processor, if it is present in the TriggerChain
+     * Return a requested type of processor, if it is present in the TriggerChain.  Stages with
+     * their own config in the graph are not returned.
      *
      * @param cls Class extending TriggerProcessor to return
-     * @return The instance of the requested class if it exists, null otherwise
+     * @return The first instance of the requested class if it exists, null otherwise
      */
     public final TriggerProcessor getProcessor(Class<? extends TriggerProcessor> cls) {
-        TriggerProcessor processor = mFirst;
-
-        while(processor != null && processor.getClass() != cls) {
-            processor = processor.mNextProcessor;
+        for(TriggerProcessor processor : this) {
+            if(processor.getClass() == cls && !mVariants.contains(processor)) {
+                return processor;
+            }
         }
-
-        return processor;
+        return null;
     }
 
     /**
-     * Required method to make TriggerChain Iterable.
+     * Required method to make TriggerChain Iterable.  Visits every stage, breadth first.
      *
      * @return Iterator object
      */
@@ -95,26 +329,24 @@ public class TriggerChain implements Iterable<TriggerProcessor> {
 
         return new Iterator<TriggerProcessor>() {
 
-            private TriggerProcessor mCurrentProcessor = mFirst;
-            private boolean mUsedFirst = false;
+            private final Deque<TriggerProcessor> mQueue = new ArrayDeque<>();
+
+            {
+                if(mFirst != null) mQueue.add(mFirst);
+            }
 
             @Override
             public boolean hasNext() {
-                return (!mUsedFirst && mFirst != null) || mCurrentProcessor.mNextProcessor != null;
+                return !mQueue.isEmpty();
             }
 
             @Override
             public TriggerProcessor next() {
-                if(!mUsedFirst) {
-                    mUsedFirst = true;
-                    return mFirst;
-                }
-                if(hasNext()) {
-                    mCurrentProcessor = mCurrentProcessor.mNextProcessor;
-                    return mCurrentProcessor;
-                } else {
-                    return null;
+                TriggerProcessor processor = mQueue.poll();
+                if(processor != null) {
+                    mQueue.addAll(processor.mNextProcessors);
                 }
+                return processor;
             }
         };
     }
@@ -3,14 +3,24 @@ package io.crayfis.android.trigger;
 import android.os.AsyncTask;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import io.crayfis.android.exposure.ExposureBlock;
 import io.crayfis.android.exposure.Frame;
 import io.crayfis.android.main.CFApplication;
 import io.crayfis.android.util.CFLog;
+import io.crayfis.android.util.Metrics;
 
 /**
  * Created by jswaney on 1/10/18.
@@ -22,15 +32,26 @@ import io.crayfis.android.util.CFLog;
 public abstract class TriggerProcessor {
 
     public final CFApplication application;
-    public final Config config;
     public final ExposureBlock xb;
-    TriggerProcessor mNextProcessor;
+    // branches after this TriggerProcessor, which all see the frames that pass it
+    final List<TriggerProcessor> mNextProcessors = new ArrayList<>(1);
+    // branch of the graph this processor writes to, set by the TriggerChain
+    private Frame.Branch mBranch = Frame.Branch.ROOT;
     private final Executor mExecutor;
-    private final Task mTask;
+
+    // config and task read for each frame, which can be swapped without a new ExposureBlock
+    private final AtomicReference<Stage> mStage;
+    // every stage this processor has used, oldest first
+    private final List<Stage> mStages = new CopyOnWriteArrayList<>();
 
     private final  AtomicInteger processed = new AtomicInteger();
     private final AtomicInteger pass = new AtomicInteger();
     private final AtomicInteger skip = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    // shared by all processors of the same type for the same camera
+    private final Metrics.Counter mPending;
+    private final Metrics.Timer mTimer;
 
     /**
      * Constructor
@@ -42,10 +63,103 @@ public abstract class TriggerProcessor {
      */
     protected TriggerProcessor(CFApplication application, ExposureBlock xb, Config config, boolean serial) {
         this.application = application;
-        this.config = config;
         this.xb = xb;
         mExecutor = (serial) ? AsyncTask.SERIAL_EXECUTOR : AsyncTask.THREAD_POOL_EXECUTOR;
-        mTask = config.makeTask(this);
+        Stage stage = new Stage(config, config.makeTask(this));
+        mStage = new AtomicReference<>(stage);
+        mStages.add(stage);
+
+        int companionId = xb != null && xb.companion ? xb.camera_id : -1;
+        mPending = Metrics.getInstance().counter(metricName(getClass(), companionId, "pending"));
+        mTimer = Metrics.getInstance().timer(metricName(getClass(), companionId, "time"));
+    }
+
+    /**
+     * Name of a metric of a type of processor, e.g. "trigger.L1Processor.pending" for the
+     * primary camera and "trigger.camera2.L1Processor.pending" for a companion
+     *
+     * @param cls Type of processor
+     * @param companionId Camera streaming alongside the primary, or -1 for the primary camera
+     * @param metric Name of the metric
+     * @return the full name
+     */
+    public static String metricName(Class<? extends TriggerProcessor> cls, int companionId, String metric) {
+        String camera = companionId < 0 ? "" : "camera" + companionId + ".";
+        return "trigger." + camera + cls.getSimpleName() + "." + metric;
+    }
+
+    /**
+     * A config and the task made from it, with the frames processed under them
+     */
+    public static final class Stage {
+
+        public final Config config;
+        final Task task;
+
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicLong firstNano = new AtomicLong(-1);
+        private final AtomicLong lastNano = new AtomicLong(-1);
+
+        Stage(Config config, Task task) {
+            this.config = config;
+            this.task = task;
+        }
+
+        private void record(Frame frame) {
+            long t = frame.getAcquiredTimeNano();
+            processed.incrementAndGet();
+            firstNano.compareAndSet(-1, t);
+            lastNano.set(t);
+        }
+
+        public int getProcessed() {
+            return processed.get();
+        }
+
+        /**
+         * @return acquisition time of the first frame processed with this config, or -1
+         */
+        public long getFirstNano() {
+            return firstNano.get();
+        }
+
+        /**
+         * @return acquisition time of the last frame processed with this config, or -1
+         */
+        public long getLastNano() {
+            return lastNano.get();
+        }
+    }
+
+    /**
+     * @return the config currently applied to frames
+     */
+    public Config getConfig() {
+        return mStage.get().config;
+    }
+
+    /**
+     * @return every config this processor has used, with the frames processed under each
+     */
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(mStages);
+    }
+
+    /**
+     * Apply a new config from the next frame on, if it only changes fields which the task
+     * can pick up without losing its state
+     *
+     * @param newConfig Config to apply
+     * @return whether the config was swapped in
+     */
+    public boolean swapConfig(Config newConfig) {
+        Stage current = mStage.get();
+        if(!current.config.canSwapTo(newConfig)) return false;
+        Stage next = new Stage(newConfig, newConfig.makeTask(this));
+        if(!mStage.compareAndSet(current, next)) return false;
+        mStages.add(next);
+        CFLog.i(getClass().getSimpleName() + " config v" + current.config.version + " -> v" + newConfig.version);
+        return true;
     }
 
     /**
@@ -80,49 +194,95 @@ public abstract class TriggerProcessor {
      * @param frame Frame to be processed
      */
     protected void submitFrame(final Frame frame) {
+        mPending.inc();
         mExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                Integer maxFrames = config.getInt(Config.KEY_MAXFRAMES);
+                mPending.add(-1);
+                Stage stage = mStage.get();
+                int maxFrames = stage.config.maxFrames;
+
+                if((finished.get() || maxFrames != Config.NO_MAXFRAMES && processed.intValue() > maxFrames)
+                        && mNextProcessors.isEmpty()) {
+                    frame.retire();
+                    return;
+                }
 
-                if(maxFrames != null && processed.intValue() > maxFrames && mNextProcessor == null) {
+                // the watchdog may have taken the buffer back while the frame was queued
+                if(!frame.beginProcessing()) {
+                    skip.incrementAndGet();
                     frame.retire();
                     return;
                 }
 
+                frame.setHolder(TriggerProcessor.this.getClass().getSimpleName());
+                frame.enterBranch(mBranch);
+                boolean handedOff = false;
                 try {
                     int nFrames = processed.incrementAndGet();
-                    int passes = mTask.processFrame(frame);
+                    long start = System.nanoTime();
+                    int passes;
+                    try {
+                        passes = stage.task.processFrame(frame);
+                        onFrameProcessed(frame, passes);
+                    } finally {
+                        frame.endProcessing();
+                    }
+                    mTimer.record(System.nanoTime() - start);
+                    stage.record(frame);
                     pass.addAndGet(passes);
-                    if(passes > 0 && mNextProcessor != null) {
-                        mNextProcessor.submitFrame(frame);
+                    int nBranches = mNextProcessors.size();
+                    if(passes > 0 && nBranches > 0) {
+                        // each branch releases its own hold on the frame
+                        handedOff = true;
+                        frame.hold(nBranches - 1);
+                        for(int i=0; i<nBranches; i++) {
+                            mNextProcessors.get(i).submitFrame(frame);
+                        }
                     } else {
                         onFrameResult(frame, passes > 0);
+                        handedOff = true;
                         frame.retire();
                     }
 
-                    if(maxFrames != null && nFrames == maxFrames) {
-                        mTask.onMaxReached();
+                    if((maxFrames != Config.NO_MAXFRAMES && nFrames == maxFrames || stage.task.isFinished())
+                            && finished.compareAndSet(false, true)) {
+                        stage.task.onMaxReached();
                         onMaxReached();
                     }
                 } catch (OutOfMemoryError e) {
                     skip.incrementAndGet();
+                } finally {
+                    // otherwise the buffer would never return to the camera
+                    if(!handedOff) frame.retire();
                 }
             }
         });
     }
 
     /**
-     * Adds a link after this TriggerProcessor in the TriggerChain
+     * Adds a link after this TriggerProcessor in the TriggerChain.  With more than one, each
+     * is a separate branch which receives the same frames.
      *
      * @param next TriggerProcessor that follows this one in the TriggerChain
      * @return self
      */
-    TriggerProcessor setNext(TriggerProcessor next) {
-        mNextProcessor = next;
+    TriggerProcessor addNext(TriggerProcessor next) {
+        mNextProcessors.add(next);
         return this;
     }
 
+    void setBranch(Frame.Branch branch) {
+        mBranch = branch;
+    }
+
+    /**
+     * @return the branch of the TriggerChain whose Event this processor writes to
+     */
+    public Frame.Branch getBranch() {
+        return mBranch;
+    }
+
     /**
      * Callback after frame is processed by this TriggerProcessor
      *
@@ -131,9 +291,18 @@ public abstract class TriggerProcessor {
      */
     protected void onFrameResult(Frame frame, boolean pass) { }
 
+    /**
+     * Callback after the Task has processed a frame, before it is handed to the next
+     * TriggerProcessors or retired
+     *
+     * @param frame Frame processed
+     * @param passes Number of passes returned by the Task
+     */
+    protected void onFrameProcessed(Frame frame, int passes) { }
+
     /**
      * Callback after the TriggerProcessor has processed the number of frames given by
-     * Config.getInt(KEY_MAXFRAMES)
+     * Config.getInt(KEY_MAXFRAMES), or once the Task reports that it is finished
      */
     protected void onMaxReached() { }
 
@@ -171,12 +340,20 @@ public abstract class TriggerProcessor {
     public static abstract class Config {
 
         public static final String KEY_MAXFRAMES = "maxframes";
+        public static final int NO_MAXFRAMES = -1;
+
+        private static final AtomicInteger sVersions = new AtomicInteger();
 
         private final String mTaskName;
-        private final HashMap<String, Integer> mTaskConfigInt = new HashMap<>();
-        private final HashMap<String, Float> mTaskConfigFloat = new HashMap<>();
-        private final HashMap<String, Boolean> mTaskConfigBool = new HashMap<>();
-        private final HashMap<String, String> mTaskConfigStr = new HashMap<>();
+        private final Map<String, Integer> mTaskConfigInt;
+        private final Map<String, Float> mTaskConfigFloat;
+        private final Map<String, Boolean> mTaskConfigBool;
+        private final Map<String, String> mTaskConfigStr;
+
+        // fields read for every frame
+        public final int maxFrames;
+        // increases with every config made, so blocks can record which config each frame used
+        public final int version;
 
         /**
          * Constructor
@@ -190,6 +367,11 @@ public abstract class TriggerProcessor {
         public Config(String taskName, HashMap<String, String> keyVal, HashMap<String, Object> keyDefault) {
             mTaskName = taskName;
 
+            HashMap<String, Integer> taskConfigInt = new HashMap<>();
+            HashMap<String, Float> taskConfigFloat = new HashMap<>();
+            HashMap<String, Boolean> taskConfigBool = new HashMap<>();
+            HashMap<String, String> taskConfigStr = new HashMap<>();
+
             for(String key : keyDefault.keySet()) {
 
                 String valString = keyVal.get(key);
@@ -197,34 +379,76 @@ public abstract class TriggerProcessor {
 
                 if(def instanceof Integer) {
                     try {
-                        mTaskConfigInt.put(key, Integer.parseInt(valString));
+                        taskConfigInt.put(key, Integer.parseInt(valString));
                     } catch (Exception e) {
-                        mTaskConfigInt.put(key, (Integer) def);
+                        taskConfigInt.put(key, (Integer) def);
                     }
                 } else if(def instanceof Float) {
                     try {
-                        mTaskConfigFloat.put(key, Float.parseFloat(valString));
+                        taskConfigFloat.put(key, Float.parseFloat(valString));
                     } catch (Exception e) {
-                        mTaskConfigFloat.put(key, (Float) def);
+                        taskConfigFloat.put(key, (Float) def);
                     }
                 } else if(def instanceof Boolean) {
                     if(valString != null && (valString.equals("true") || valString.equals("false"))) {
-                        mTaskConfigBool.put(key, Boolean.parseBoolean(valString));
+                        taskConfigBool.put(key, Boolean.parseBoolean(valString));
                     } else {
-                        mTaskConfigBool.put(key, (Boolean) def);
+                        taskConfigBool.put(key, (Boolean) def);
                     }
                 } else if(def instanceof String) {
                     if(valString != null) {
-                        mTaskConfigStr.put(key, valString);
+                        taskConfigStr.put(key, valString);
                     } else {
-                        mTaskConfigStr.put(key, (String) def);
+                        taskConfigStr.put(key, (String) def);
                     }
                 }
             }
+        
+            mTaskConfigInt = Collections.unmodifiableMap(taskConfigInt);
+            mTaskConfigFloat = Collections.unmodifiableMap(taskConfigFloat);
+            mTaskConfigBool = Collections.unmodifiableMap(taskConfigBool);
+            mTaskConfigStr = Collections.unmodifiableMap(taskConfigStr);
+
+            Integer max = mTaskConfigInt.get(KEY_MAXFRAMES);
+            maxFrames = max != null ? max : NO_MAXFRAMES;
+            version = sVersions.incrementAndGet();
         }
 
         public abstract Config makeNewConfig(String configStr);
 
+        /**
+         * Fields which the task reads afresh for each frame, so that a config which only changes
+         * these can be swapped into a running processor
+         *
+         * @return names of the fields
+         */
+        protected Set<String> getHotKeys() {
+            return Collections.emptySet();
+        }
+
+        /**
+         * @return whether newConfig is the same task, and only differs in its hot fields
+         */
+        boolean canSwapTo(Config newConfig) {
+            if(newConfig == null || newConfig.getClass() != getClass()
+                    || !mTaskName.equals(newConfig.mTaskName)) {
+                return false;
+            }
+            Set<String> hot = getHotKeys();
+            return sameExcept(mTaskConfigInt, newConfig.mTaskConfigInt, hot)
+                    && sameExcept(mTaskConfigFloat, newConfig.mTaskConfigFloat, hot)
+                    && sameExcept(mTaskConfigBool, newConfig.mTaskConfigBool, hot)
+                    && sameExcept(mTaskConfigStr, newConfig.mTaskConfigStr, hot);
+        }
+
+        private static <T> boolean sameExcept(Map<String, T> a, Map<String, T> b, Set<String> except) {
+            if(!a.keySet().equals(b.keySet())) return false;
+            for(String key : a.keySet()) {
+                if(!except.contains(key) && !a.get(key).equals(b.get(key))) return false;
+            }
+            return true;
+        }
+
         public String getName() {
             return mTaskName;
         }
@@ -252,7 +476,7 @@ public abstract class TriggerProcessor {
         @SuppressWarnings(value="unchecked")
         public final String toString() {
             StringBuilder cfgBuilder = new StringBuilder(mTaskName + "; ");
-            for(HashMap<String, ?> hm : new HashMap[] {mTaskConfigInt, mTaskConfigFloat, mTaskConfigBool, mTaskConfigStr}) {
+            for(Map<String, ?> hm : new Map[] {mTaskConfigInt, mTaskConfigFloat, mTaskConfigBool, mTaskConfigStr}) {
                 for (String key : hm.keySet()) {
                     cfgBuilder.append(key)
                             .append(" = ")
@@ -358,7 +582,7 @@ public abstract class TriggerProcessor {
                     }
                 }
                 if(e.eTaskConfigStr.containsKey(key)) {
-                    mTaskConfigStr.put(key, strVal);
+                    e.eTaskConfigStr.put(key, strVal);
                 }
             }
             return e.create();
@@ -389,9 +613,20 @@ public abstract class TriggerProcessor {
          */
         protected abstract int processFrame(Frame frame);
 
+        /**
+         * Allows a Task to finish before Config.getInt(KEY_MAXFRAMES) frames have been
+         * processed, e.g. once its result has converged.  Checked after each frame.
+         *
+         * @return true if no more frames are needed
+         */
+        protected boolean isFinished() {
+            return false;
+        }
+
         /**
          * Callback after the TriggerProcessor has processed the number of frames given by
-         * Config.getInt(KEY_MAXFRAMES).  Executes before TriggerProcessor.onMaxReached()
+         * Config.getInt(KEY_MAXFRAMES), or once isFinished() returns true.  Executes
+         * before TriggerProcessor.onMaxReached()
          */
         protected void onMaxReached() { }
     }
@@ -0,0 +1,53 @@
+package io.crayfis.android.trigger.cluster;
+
+import java.util.HashMap;
+
+import io.crayfis.android.exposure.ExposureBlock;
+import io.crayfis.android.main.CFApplication;
+import io.crayfis.android.server.CFConfig;
+import io.crayfis.android.trigger.TriggerProcessor;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Optional stage after L2 which groups the L2 hits of each frame into clusters
+ */
+public class ClusterProcessor extends TriggerProcessor {
+
+    public static final String KEY_ENABLED = "enabled";
+    public static final String KEY_GAP = "gap";
+    public static final String KEY_MIN_PIX = "minpix";
+    public static final String KEY_MAX_PIX = "maxpix";
+    public static final String KEY_MIN_CHARGE = "mincharge";
+    public static final String KEY_KEEP_HITS = "keephits";
+
+    private ClusterProcessor(CFApplication application, ExposureBlock xb, TriggerProcessor.Config config) {
+        super(application, xb, config, false);
+    }
+
+    public static TriggerProcessor makeProcessor(CFApplication application, ExposureBlock xb) {
+        return new ClusterProcessor(application, xb, CFConfig.getInstance().getClusterTrigger());
+    }
+
+    /**
+     * @return whether the stage should be added after L2
+     */
+    public static boolean isEnabled() {
+        Boolean enabled = CFConfig.getInstance().getClusterTrigger().getBoolean(KEY_ENABLED);
+        return enabled != null && enabled;
+    }
+
+    public static TriggerProcessor.Config makeConfig(String configStr) {
+
+        HashMap<String, String> options = TriggerProcessor.parseConfigString(configStr);
+        String name = options.get("name");
+        options.remove("name");
+
+        switch (name) {
+            case ClusterTask.Config.NAME:
+                return new ClusterTask.Config(options);
+            default:
+                CFLog.w("No cluster implementation found for " + name + ", using default!");
+                return new ClusterTask.Config(options);
+        }
+    }
+}
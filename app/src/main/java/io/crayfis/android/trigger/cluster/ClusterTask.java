@@ -0,0 +1,242 @@
+package io.crayfis.android.trigger.cluster;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import io.crayfis.android.compute.Plane;
+import io.crayfis.android.exposure.Frame;
+import io.crayfis.android.trigger.TriggerProcessor;
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Groups the L2 hits of a frame into connected clusters with a union-find, where two hits are
+ * connected if they are within "gap" pixels of each other in x and y.  Each cluster that passes
+ * the cuts is written to the Event as a length-delimited record under field 30:
+ *
+ *   1: x_min  2: y_min  3: x_max  4: y_max  5: charge  6: max
+ *   7: centroid_x (float)  8: centroid_y (float)
+ *   9: x (packed)  10: y (packed)  11: val (packed)
+ */
+class ClusterTask extends TriggerProcessor.Task {
+
+    static final int EVENT_FIELD_CLUSTERS = 30;
+
+    static class Config extends TriggerProcessor.Config {
+
+        static final String NAME = "connected";
+        static final HashMap<String, Object> KEY_DEFAULT;
+
+        static {
+            KEY_DEFAULT = new HashMap<>();
+            KEY_DEFAULT.put(ClusterProcessor.KEY_ENABLED, false);
+            KEY_DEFAULT.put(ClusterProcessor.KEY_GAP, 1);
+            KEY_DEFAULT.put(ClusterProcessor.KEY_MIN_PIX, 1);
+            KEY_DEFAULT.put(ClusterProcessor.KEY_MAX_PIX, 0); // 0 for no limit
+            KEY_DEFAULT.put(ClusterProcessor.KEY_MIN_CHARGE, 0);
+            KEY_DEFAULT.put(ClusterProcessor.KEY_KEEP_HITS, true);
+        }
+
+        final int gap;
+        final int minPix;
+        final int maxPix;
+        final int minCharge;
+        final boolean keepHits;
+
+        Config(HashMap<String, String> options) {
+            super(NAME, options, KEY_DEFAULT);
+
+            gap = Math.max(getInt(ClusterProcessor.KEY_GAP), 1);
+            minPix = getInt(ClusterProcessor.KEY_MIN_PIX);
+            maxPix = getInt(ClusterProcessor.KEY_MAX_PIX);
+            minCharge = getInt(ClusterProcessor.KEY_MIN_CHARGE);
+            keepHits = getBoolean(ClusterProcessor.KEY_KEEP_HITS);
+        }
+
+        @Override
+        public TriggerProcessor.Config makeNewConfig(String cfgstr) {
+            return ClusterProcessor.makeConfig(cfgstr);
+        }
+
+        @Override
+        public TriggerProcessor.Task makeTask(TriggerProcessor processor) {
+            return new ClusterTask(processor, this);
+        }
+    }
+
+    private final Config mConfig;
+
+    ClusterTask(TriggerProcessor processor, Config cfg) {
+        super(processor);
+        mConfig = cfg;
+    }
+
+    @Override
+    protected int processFrame(Frame frame) {
+
+        int[] hits = frame.getL2Hits(mProcessor.getBranch());
+        if(hits == null || hits.length == 0) return 0;
+
+        // sorted, so the hit map is a binary search
+        hits = hits.clone();
+        Arrays.sort(hits);
+        int n = hits.length;
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+
+        int[] parent = new int[n];
+        for(int i=0; i<n; i++) {
+            parent[i] = i;
+        }
+
+        // only look forward, since earlier hits have already looked at this one
+        int gap = mConfig.gap;
+        for(int i=0; i<n; i++) {
+            int x = hits[i] % width;
+            int y = hits[i] / width;
+            for(int dy=0; dy<=gap && y+dy<height; dy++) {
+                for(int dx=-gap; dx<=gap; dx++) {
+                    if(dy == 0 && dx <= 0) continue;
+                    int nx = x + dx;
+                    if(nx < 0 || nx >= width) continue;
+                    int j = Arrays.binarySearch(hits, nx + width*(y+dy));
+                    if(j >= 0) {
+                        union(parent, i, j);
+                    }
+                }
+            }
+        }
+
+        // group hits by root, keeping each group in index order
+        int[] root = new int[n];
+        int[] size = new int[n];
+        for(int i=0; i<n; i++) {
+            root[i] = find(parent, i);
+            size[root[i]]++;
+        }
+
+        Plane plane = frame.getPlane();
+        UnknownFieldSet.Field.Builder records = UnknownFieldSet.Field.newBuilder();
+        int nPassed = 0;
+        int[] members = new int[n];
+        for(int r=0; r<n; r++) {
+            if(size[r] == 0) continue;
+            if(size[r] < mConfig.minPix || mConfig.maxPix > 0 && size[r] > mConfig.maxPix) continue;
+
+            int m = 0;
+            for(int i=r; i<n && m<size[r]; i++) {
+                if(root[i] == r) members[m++] = hits[i];
+            }
+
+            ByteString record = encode(members, m, width, plane);
+            if(record != null) {
+                records.addLengthDelimited(record);
+                nPassed++;
+            }
+        }
+
+        if(nPassed == 0) {
+            // no cluster passed the cuts, so drop the event
+            frame.rejectEvent(mProcessor.getBranch());
+            return 0;
+        }
+
+        frame.addEventFields(mProcessor.getBranch(), UnknownFieldSet.newBuilder()
+                .addField(EVENT_FIELD_CLUSTERS, records.build())
+                .build(), !mConfig.keepHits);
+
+        return nPassed;
+    }
+
+    /**
+     * Encode a cluster record, or return null if it fails the charge cut
+     */
+    private ByteString encode(int[] members, int m, int width, Plane plane) {
+        int xMin = Integer.MAX_VALUE, yMin = Integer.MAX_VALUE;
+        int xMax = -1, yMax = -1;
+        long charge = 0;
+        int max = 0;
+        double sumX = 0, sumY = 0;
+
+        for(int i=0; i<m; i++) {
+            int x = members[i] % width;
+            int y = members[i] / width;
+            int val = plane.get(members[i]);
+            xMin = Math.min(xMin, x);
+            xMax = Math.max(xMax, x);
+            yMin = Math.min(yMin, y);
+            yMax = Math.max(yMax, y);
+            charge += val;
+            max = Math.max(max, val);
+            sumX += (double) val * x;
+            sumY += (double) val * y;
+        }
+
+        if(charge < mConfig.minCharge) return null;
+
+        // fall back to the geometric center for clusters of zero charge
+        float cx = charge > 0 ? (float) (sumX / charge) : (xMin + xMax) / 2f;
+        float cy = charge > 0 ? (float) (sumY / charge) : (yMin + yMax) / 2f;
+
+        try {
+            int packedX = 0, packedY = 0, packedVal = 0;
+            for(int i=0; i<m; i++) {
+                packedX += CodedOutputStream.computeUInt32SizeNoTag(members[i] % width);
+                packedY += CodedOutputStream.computeUInt32SizeNoTag(members[i] / width);
+                packedVal += CodedOutputStream.computeUInt32SizeNoTag(plane.get(members[i]));
+            }
+
+            ByteString.Output bytes = ByteString.newOutput();
+            CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+            out.writeUInt32(1, xMin);
+            out.writeUInt32(2, yMin);
+            out.writeUInt32(3, xMax);
+            out.writeUInt32(4, yMax);
+            out.writeUInt64(5, charge);
+            out.writeUInt32(6, max);
+            out.writeFloat(7, cx);
+            out.writeFloat(8, cy);
+
+            out.writeUInt32NoTag(9 << 3 | 2);
+            out.writeUInt32NoTag(packedX);
+            for(int i=0; i<m; i++) out.writeUInt32NoTag(members[i] % width);
+            out.writeUInt32NoTag(10 << 3 | 2);
+            out.writeUInt32NoTag(packedY);
+            for(int i=0; i<m; i++) out.writeUInt32NoTag(members[i] / width);
+            out.writeUInt32NoTag(11 << 3 | 2);
+            out.writeUInt32NoTag(packedVal);
+            for(int i=0; i<m; i++) out.writeUInt32NoTag(plane.get(members[i]));
+
+            out.flush();
+            return bytes.toByteString();
+        } catch (IOException e) {
+            // not possible when writing to memory
+            CFLog.e("Could not encode cluster: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while(parent[i] != i) {
+            // path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int i, int j) {
+        int ri = find(parent, i);
+        int rj = find(parent, j);
+        // the lower index is always the root, so clusters come out in scan order
+        if(ri < rj) {
+            parent[rj] = ri;
+        } else if(rj < ri) {
+            parent[ri] = rj;
+        }
+    }
+}
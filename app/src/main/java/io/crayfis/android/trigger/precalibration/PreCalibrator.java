@@ -32,6 +32,10 @@ public class PreCalibrator extends TriggerProcessor {
     public static final String KEY_DIFFERENTIAL_THRESH = "differential_thresh";
     public static final String KEY_INTEGRAL_THRESH = "integral_thresh";
     public static final String KEY_WEIGHT_GRID_SIZE = "grid_size";
+    public static final String KEY_WEIGHT_TOLERANCE = "wgt_tol";
+    public static final String KEY_MINFRAMES = "minframes";
+    public static final String KEY_CHECKPOINT = "checkpoint";
+    public static final String KEY_NSTABLE = "nstable";
 
     public static class ConfigList extends ArrayList<Config> {
 
@@ -50,6 +54,7 @@ public class PreCalibrator extends TriggerProcessor {
 
     private static List<Config> sConfigList;
     private static int sConfigStep = 0;
+    private static int[] sFramesUsed;
     static final DataProtos.PreCalibrationResult.Builder BUILDER = DataProtos.PreCalibrationResult.newBuilder();
 
     private PreCalibrator(CFApplication app, ExposureBlock xb, Config config) {
@@ -60,6 +65,7 @@ public class PreCalibrator extends TriggerProcessor {
         if(sConfigStep == 0) {
             BUILDER.clear();
             sConfigList = CFConfig.getInstance().getPrecalTrigger();
+            sFramesUsed = new int[sConfigList.size()];
         }
 
         return new PreCalibrator(application, xb, sConfigList.get(sConfigStep));
@@ -95,6 +101,8 @@ public class PreCalibrator extends TriggerProcessor {
 
     @Override
     public void onMaxReached() {
+        sFramesUsed[sConfigStep] = getProcessed();
+
         // use current weights/hotcells
         PreCalibrationService.Config cfg
                 = PreCalibrationService.Config.fromPartialResult(DAQManager.getInstance().getCameraId(),
@@ -167,7 +175,7 @@ public class PreCalibrator extends TriggerProcessor {
                 .setEndTime(System.currentTimeMillis())
                 .setBatteryTemp(application.getBatteryTemp())
                 .setInterpolation(PreCalibrationService.INTER)
-                .setPrecalConfig(sConfigList.toString());
+                .setPrecalConfig(getStepSummary());
 
         // submit the PreCalibrationResult object
 
@@ -176,6 +184,23 @@ public class PreCalibrator extends TriggerProcessor {
     }
 
 
+    /**
+     * Describes the configuration of each step, along with the number of frames it used,
+     * since steps may finish before reaching maxframes.
+     *
+     * @return String of the form "cfg1; frames_used = N1 -> cfg2; frames_used = N2 ..."
+     */
+    private static String getStepSummary() {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<sConfigList.size(); i++) {
+            if(i > 0) sb.append(" -> ");
+            sb.append(sConfigList.get(i))
+                    .append("; frames_used = ")
+                    .append(sFramesUsed[i]);
+        }
+        return sb.toString();
+    }
+
     public Config getCurrentConfig() {
         return sConfigList.get(sConfigStep);
     }
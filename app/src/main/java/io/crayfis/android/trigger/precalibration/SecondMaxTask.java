@@ -1,24 +1,12 @@
 package io.crayfis.android.trigger.precalibration;
 
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.ScriptIntrinsicHistogram;
-import android.renderscript.Type;
-
-import org.opencv.core.Core;
-import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.imgproc.Imgproc;
-
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
 
+import io.crayfis.android.compute.ComputeBackend;
 import io.crayfis.android.daq.DAQManager;
 import io.crayfis.android.exposure.Frame;
-import io.crayfis.android.server.CFConfig;
-import io.crayfis.android.ScriptC_findSecond;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.util.CFLog;
 
@@ -38,15 +26,24 @@ class SecondMaxTask extends TriggerProcessor.Task {
             KEY_DEFAULT.put(KEY_MAXFRAMES, 50000);
             KEY_DEFAULT.put(PreCalibrator.KEY_INTEGRAL_THRESH, .01f); // max number of hotcells
             KEY_DEFAULT.put(PreCalibrator.KEY_DIFFERENTIAL_THRESH, .02f); // max number per bin in second max distribution
+            KEY_DEFAULT.put(PreCalibrator.KEY_MINFRAMES, 5000);
+            KEY_DEFAULT.put(PreCalibrator.KEY_CHECKPOINT, 2500);
+            KEY_DEFAULT.put(PreCalibrator.KEY_NSTABLE, 3); // 0 to always use maxframes
         }
 
         final float integralThresh;
         final float differentialThresh;
+        final int minFrames;
+        final int checkpoint;
+        final int nStable;
         Config(HashMap<String, String> options) {
             super(NAME, options, KEY_DEFAULT);
 
             integralThresh = getFloat(PreCalibrator.KEY_INTEGRAL_THRESH);
             differentialThresh = getFloat(PreCalibrator.KEY_DIFFERENTIAL_THRESH);
+            minFrames = getInt(PreCalibrator.KEY_MINFRAMES);
+            checkpoint = Math.max(getInt(PreCalibrator.KEY_CHECKPOINT), 1);
+            nStable = getInt(PreCalibrator.KEY_NSTABLE);
         }
 
         @Override
@@ -61,153 +58,195 @@ class SecondMaxTask extends TriggerProcessor.Task {
         }
     }
 
-    private final Set<Integer> HOTCELL_COORDS;
-
-    private final CFConfig CONFIG = CFConfig.getInstance();
-    private final boolean mRAW = DAQManager.getInstance().isStreamingRAW();
-
-    private final RenderScript RS;
-    private final ScriptC_findSecond mScriptCFindSecond;
-    private final Allocation aMax;
-    private final Allocation aSecond;
+    private final ComputeBackend.SecondMax mSecondMax;
 
     private final Config mConfig;
+    private final int mWidth;
+    private final int mHeight;
+
+    // guards the running max/second max and the checkpoint state
+    private final Object mOrderLock = new Object();
+    private int mFrames;
+    private boolean mDone;
+
+    // reused between checkpoints
+    private final int[] mSecondHist = new int[256];
+    private final byte[] mSecondArray;
+    private int[] mCandidates = new int[0];
+    private int mNCandidates;
+    private int mCutoff = -1;
+    private int mStableCheckpoints;
+    private volatile boolean mConverged;
 
     SecondMaxTask(TriggerProcessor processor, Config config) {
         super(processor);
 
         mConfig = config;
 
-        RS = mProcessor.application.getRenderScript();
         CFLog.i("SecondMaxTask created");
-        mScriptCFindSecond = new ScriptC_findSecond(RS);
 
         DAQManager daq = DAQManager.getInstance();
+        mWidth = daq.getResX();
+        mHeight = daq.getResY();
+
+        mSecondMax = ComputeBackend.get(mProcessor.application.getRenderScript())
+                .createSecondMax(mWidth, mHeight);
 
-        Type type = new Type.Builder(RS, Element.U8(RS))
-                .setX(daq.getResX())
-                .setY(daq.getResY())
-                .create();
-        aMax = Allocation.createTyped(RS, type, Allocation.USAGE_SCRIPT);
-        aSecond = Allocation.createTyped(RS, type, Allocation.USAGE_SCRIPT);
-        mScriptCFindSecond.set_aMax(aMax);
-        mScriptCFindSecond.set_aSecond(aSecond);
-        if(processor.xb.weights != null)
-            mScriptCFindSecond.set_gWeights(processor.xb.weights);
-        HOTCELL_COORDS = new HashSet<>();
+        mSecondArray = new byte[mWidth * mHeight];
     }
 
     /**
-     * Keeps allocations of running largest and second-largest values for each pixel
+     * Keeps running largest and second-largest values for each pixel
      *
      * @param frame Frame
-     * @return true if we have reached the requisite number of frames, false otherwise
+     * @return 1 if the frame was used, 0 if the hotcells have already been found
      */
     @Override
     protected int processFrame(Frame frame) {
-        if(mRAW)
-            mScriptCFindSecond.forEach_order_ushort(frame.getAllocation());
-        else
-            mScriptCFindSecond.forEach_order_uchar(frame.getAllocation());
-        if(frame.getExposureBlock().count.intValue()
-                % (CONFIG.getTargetFPS()*CONFIG.getExposureBlockPeriod()) == 0) {
-            mProcessor.application.checkBatteryStats();
+        synchronized (mOrderLock) {
+            if(mDone) return 0;
+
+            mSecondMax.add(frame);
+            mFrames++;
+
+            if(mConfig.nStable > 0 && mFrames % mConfig.checkpoint == 0) {
+                checkpoint();
+            }
         }
         return 1;
     }
 
-    @Override
-    protected void onMaxReached() {
+    /**
+     * Recomputes the cutoff and the set of pixels with second max above it.  We are done once
+     * both have stayed the same for nstable consecutive checkpoints.
+     */
+    private void checkpoint() {
+        int cutoff = findCutoff();
+        mSecondMax.copySecond(mSecondArray);
+
+        // the scan is in order, so candidate lists can be compared directly
+        int[] candidates = mCandidates;
+        int n = 0;
+        boolean same = cutoff == mCutoff;
+        for(int pos=0; pos<mSecondArray.length; pos++) {
+            int second = mSecondArray[pos] & 0xFF;
+            if(second >= cutoff && second > 0) {
+                if(n == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, Math.max(16, 2*n));
+                }
+                if(same && (n >= mNCandidates || candidates[n] != pos)) {
+                    same = false;
+                }
+                candidates[n++] = pos;
+            }
+        }
+        if(n != mNCandidates) {
+            same = false;
+        }
 
-        // set up Allocations for histogram
-        ScriptIntrinsicHistogram histogram = ScriptIntrinsicHistogram.create(RS, Element.U8(RS));
-        Allocation aout = Allocation.createSized(RS, Element.U32(RS), 256, Allocation.USAGE_SCRIPT);
-        histogram.setOutput(aout);
-        histogram.forEach(aSecond);
+        mCandidates = candidates;
+        mNCandidates = n;
+        mCutoff = cutoff;
+        mStableCheckpoints = same ? mStableCheckpoints + 1 : 0;
 
-        int[] secondHist = new int[256];
-        aout.copyTo(secondHist);
+        CFLog.d("Checkpoint at " + mFrames + " frames: cutoff = " + cutoff + ", " + n
+                + " candidates, stable for " + mStableCheckpoints);
 
-        for(int i=0; i<secondHist.length; i++) {
-            if (secondHist[i] != 0) {
-                CFLog.d("hist[" + i + "] = " + secondHist[i]);
-            }
+        if(mStableCheckpoints >= mConfig.nStable && mFrames >= mConfig.minFrames) {
+            CFLog.i("Hotcells converged after " + mFrames + " frames");
+            mConverged = true;
         }
+    }
 
-        // find minimum value in aSecond considered as "hot"
-        int area = aMax.getType().getX() * aMax.getType().getY();
+    /**
+     * Fills mSecondHist with the distribution of second max values and finds the minimum
+     * value considered "hot"
+     *
+     * @return cutoff in [0, 256]
+     */
+    private int findCutoff() {
+        mSecondMax.histogramSecond(mSecondHist);
+
+        int area = mWidth * mHeight;
         int integralLimit = (int) (mConfig.integralThresh * area);
         int differentialLimit = (int) (mConfig.differentialThresh * area);
         int pixKilled = 0;
 
         int cutoff=255;
         while(pixKilled < integralLimit && cutoff > 0) {
-            if(secondHist[cutoff] > differentialLimit) {
+            if(mSecondHist[cutoff] > differentialLimit) {
                 cutoff++;
                 break;
             }
-            pixKilled += secondHist[cutoff];
+            pixKilled += mSecondHist[cutoff];
             cutoff--;
         }
+        return cutoff;
+    }
+
+    @Override
+    protected boolean isFinished() {
+        return mConverged;
+    }
+
+    @Override
+    protected void onMaxReached() {
+
+        byte[] maxArray = new byte[mWidth * mHeight];
+        int cutoff;
+        synchronized (mOrderLock) {
+            mDone = true;
+
+            cutoff = findCutoff();
+            mSecondMax.copyMax(maxArray);
+            mSecondMax.copySecond(mSecondArray);
+        }
+        mSecondMax.release();
+
+        for(int i=0; i<mSecondHist.length; i++) {
+            if (mSecondHist[i] != 0) {
+                CFLog.d("hist[" + i + "] = " + mSecondHist[i]);
+            }
+        }
         CFLog.d("cutoff = " + cutoff);
 
-        // copy to OpenCV to locate hot pixels
-        byte[] maxArray = new byte[area];
-        aMax.copyTo(maxArray);
-        aMax.destroy();
-
-        byte[] secondArray = new byte[area];
-        aSecond.copyTo(secondArray);
-        aSecond.destroy();
-
-        MatOfByte secondMat = new MatOfByte(secondArray);
-
-        Mat threshMat = new Mat();
-        Mat hotcellCoordsMat = new Mat();
-
-        Imgproc.threshold(secondMat, threshMat, cutoff-1, 0, Imgproc.THRESH_TOZERO);
-        secondMat.release();
-        Core.findNonZero(threshMat, hotcellCoordsMat);
-        threshMat.release();
-
-        for(int i=0; i<hotcellCoordsMat.total(); i++) {
-            double[] hotcellCoords = hotcellCoordsMat.get(i,0);
-            int pos = (int) hotcellCoords[1];
-            int width = aSecond.getType().getX();
-            int x = pos % width;
-            int y = pos / width;
-
-            HOTCELL_COORDS.add(pos);
-
-            // check pixels adjacent to hotcells, and see if max values are above the cutoff
-            for(int dx=x-1; dx<=x+1; dx++) {
-                for(int dy=y-1; dy<=y+1; dy++) {
-                    try {
-                        int adjMax = maxArray[dx + width * dy] & 0xFF;
-                        if (adjMax >= cutoff) {
-                            HOTCELL_COORDS.add(dx + width * dy);
-                        }
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        // don't crash if we're on the border
+        // mark pixels above the cutoff, along with adjacent pixels whose max is above the cutoff
+        BitSet hotcells = new BitSet(mSecondArray.length);
+        for(int pos=0; pos<mSecondArray.length; pos++) {
+            int second = mSecondArray[pos] & 0xFF;
+            if(second < cutoff || second == 0) continue;
+
+            hotcells.set(pos);
+
+            int x = pos % mWidth;
+            int y = pos / mWidth;
+            int xmin = Math.max(x-1, 0);
+            int xmax = Math.min(x+1, mWidth-1);
+            int ymin = Math.max(y-1, 0);
+            int ymax = Math.min(y+1, mHeight-1);
+            for(int dy=ymin; dy<=ymax; dy++) {
+                for(int dx=xmin; dx<=xmax; dx++) {
+                    int adj = dx + mWidth * dy;
+                    if((maxArray[adj] & 0xFF) >= cutoff) {
+                        hotcells.set(adj);
                     }
                 }
             }
         }
 
         // store in CFConfig and protobuf file
-        CFLog.d("Total hotcells found: " + HOTCELL_COORDS.size());
+        CFLog.d("Total hotcells found: " + hotcells.cardinality());
 
-        for(Integer pos: HOTCELL_COORDS) {
+        for(int pos = hotcells.nextSetBit(0); pos >= 0; pos = hotcells.nextSetBit(pos+1)) {
             PreCalibrator.BUILDER.addHotcell(pos);
         }
 
         int maxNonZero = 255;
-        while (secondHist[maxNonZero] == 0) {
+        while (maxNonZero > 0 && mSecondHist[maxNonZero] == 0) {
             maxNonZero--;
         }
         for (int i = 0; i <= maxNonZero; i++) {
-            PreCalibrator.BUILDER.addSecondHist(secondHist[i]);
+            PreCalibrator.BUILDER.addSecondHist(mSecondHist[i]);
         }
     }
 }
-
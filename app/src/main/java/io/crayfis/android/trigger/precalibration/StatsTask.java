@@ -1,10 +1,5 @@
 package io.crayfis.android.trigger.precalibration;
 
-import android.renderscript.Allocation;
-import android.renderscript.Element;
-import android.renderscript.RenderScript;
-import android.renderscript.Type;
-
 import com.google.protobuf.ByteString;
 
 import org.opencv.core.Mat;
@@ -15,9 +10,8 @@ import org.opencv.imgcodecs.Imgcodecs;
 import java.math.BigInteger;
 import java.util.HashMap;
 
+import io.crayfis.android.compute.ComputeBackend;
 import io.crayfis.android.daq.DAQManager;
-import io.crayfis.android.server.CFConfig;
-import io.crayfis.android.ScriptC_sumFrames;
 import io.crayfis.android.exposure.Frame;
 import io.crayfis.android.trigger.TriggerProcessor;
 import io.crayfis.android.util.CFLog;
@@ -37,15 +31,25 @@ class StatsTask extends TriggerProcessor.Task {
             KEY_DEFAULT = new HashMap<>();
             KEY_DEFAULT.put(KEY_MAXFRAMES, 25000);
             KEY_DEFAULT.put(PreCalibrator.KEY_WEIGHT_GRID_SIZE, 1500);
+            KEY_DEFAULT.put(PreCalibrator.KEY_MINFRAMES, 1000);
+            KEY_DEFAULT.put(PreCalibrator.KEY_CHECKPOINT, 100);
+            // half of the 8-bit quantization of the weights; 0 to always use maxframes
+            KEY_DEFAULT.put(PreCalibrator.KEY_WEIGHT_TOLERANCE, .002f);
         }
 
         final int frames;
         final int gridSize;
+        final int minFrames;
+        final int checkpoint;
+        final float tolerance;
         Config(HashMap<String, String> options) {
             super(NAME, options, KEY_DEFAULT);
 
             frames = getInt(KEY_MAXFRAMES);
             gridSize = getInt(PreCalibrator.KEY_WEIGHT_GRID_SIZE);
+            minFrames = getInt(PreCalibrator.KEY_MINFRAMES);
+            checkpoint = Math.max(getInt(PreCalibrator.KEY_CHECKPOINT), 1);
+            tolerance = getFloat(PreCalibrator.KEY_WEIGHT_TOLERANCE);
         }
 
         @Override
@@ -60,56 +64,126 @@ class StatsTask extends TriggerProcessor.Task {
         }
     }
 
-    private final Allocation mSumAlloc;
-    private final ScriptC_sumFrames mScriptCSumFrames;
-    private final RenderScript RS;
+    private final ComputeBackend.RunningSum mSum;
+    private final int mResX;
+    private final int mResY;
 
-    private final boolean mRAW = DAQManager.getInstance().isStreamingRAW();
     private final Config mConfig;
 
-    private final CFConfig CONFIG = CFConfig.getInstance();
     private static final String FORMAT = ".jpeg";
 
+    // Since normalization is very susceptible to the smallest bin, we add back the smallest
+    // mean that could result in a bin value of 0 within 99% confidence (assuming about 150
+    // tiles, 10% of the downsampled grid, could conceivably be in that range): -log(1/150) ~ 5
+    private static final float FUDGE_FACTOR = 5f;
+
+    private final int mSampleStep;
+
+    // guards the running sum and the convergence statistics
+    private final Object mSumLock = new Object();
+    private int mFrames;
+    private boolean mDone;
+
+    // running mean and variance of the per-pixel tile means, one entry per checkpoint
+    private final float[] mTileSums;
+    private final float[] mLastTileSums;
+    private final double[] mTileMean;
+    private final double[] mTileM2;
+    private int mCheckpoints;
+    private volatile boolean mConverged;
+
     StatsTask(TriggerProcessor processor, Config config) {
         super(processor);
 
         mConfig = config;
 
-        RS = processor.application.getRenderScript();
-
         CFLog.i("StatsTask created");
-        mScriptCSumFrames = new ScriptC_sumFrames(RS);
         DAQManager daq = DAQManager.getInstance();
-
-        Type type = new Type.Builder(RS, Element.I32(RS))
-                .setX(daq.getResX())
-                .setY(daq.getResY())
-                .create();
-
-        mSumAlloc = Allocation.createTyped(RS, type, Allocation.USAGE_SCRIPT);
-        mScriptCSumFrames.set_gSum(mSumAlloc);
+        mResX = daq.getResX();
+        mResY = daq.getResY();
+
+        mSum = ComputeBackend.get(processor.application.getRenderScript())
+                .createRunningSum(mResX, mResY);
+
+        mSampleStep = getSampleStep(mResX, mResY, mConfig.gridSize);
+
+        if(mConfig.tolerance > 0 && mSampleStep > 0) {
+            int nTiles = (mResX / mSampleStep) * (mResY / mSampleStep);
+            mTileSums = new float[nTiles];
+            mLastTileSums = new float[nTiles];
+            mTileMean = new double[nTiles];
+            mTileM2 = new double[nTiles];
+        } else {
+            mTileSums = null;
+            mLastTileSums = null;
+            mTileMean = null;
+            mTileM2 = null;
+        }
     }
 
     /**
      * Performs a running element-wise addition for each pixel in the frame
      *
      * @param frame Frame
-     * @return true if we have reached the requisite number of frames, false otherwise
+     * @return 1 if the frame was added to the sum, 0 if the sum is already complete
      */
     @Override
     protected int processFrame(Frame frame) {
-        if(frame.getExposureBlock().count.intValue()
-                % (CONFIG.getTargetFPS()*CONFIG.getExposureBlockPeriod()) == 0) {
-            mProcessor.application.checkBatteryStats();
+        synchronized (mSumLock) {
+            if(mDone) return 0;
+
+            mSum.add(frame);
+            mFrames++;
+
+            if(mTileSums != null && mFrames % mConfig.checkpoint == 0) {
+                updateConvergence();
+            }
         }
-        if(mRAW)
-            mScriptCSumFrames.forEach_update_ushort(frame.getAllocation());
-        else
-            mScriptCSumFrames.forEach_update_uchar(frame.getAllocation());
         
         return 1;
     }
 
+    /**
+     * Treats the mean of each downsampled tile over the last checkpoint as a single measurement
+     * and updates the running mean and variance of these.  The sums have converged once the
+     * relative error on every tile's weight log(1 + 1/mu) is below the tolerance.
+     */
+    private void updateConvergence() {
+        mSum.tileMeans(mSampleStep, 0, mTileSums);
+        mCheckpoints++;
+
+        double maxErr = 0;
+        for(int i=0; i<mTileSums.length; i++) {
+            double x = (mTileSums[i] - mLastTileSums[i]) / mConfig.checkpoint;
+            mLastTileSums[i] = mTileSums[i];
+
+            // Welford's algorithm
+            double delta = x - mTileMean[i];
+            mTileMean[i] += delta / mCheckpoints;
+            mTileM2[i] += delta * (x - mTileMean[i]);
+
+            if(mCheckpoints < 2) continue;
+
+            double stdErr = Math.sqrt(mTileM2[i] / (mCheckpoints - 1) / mCheckpoints);
+            double mu = mTileMean[i] + FUDGE_FACTOR / (mSampleStep * mSampleStep * mFrames);
+            double relErr = stdErr / (mu * (mu + 1) * Math.log1p(1 / mu));
+            if(Double.isNaN(relErr)) {
+                relErr = Double.POSITIVE_INFINITY;
+            }
+            maxErr = Math.max(maxErr, relErr);
+        }
+
+        if(mCheckpoints >= 2 && mFrames >= mConfig.minFrames && maxErr < mConfig.tolerance) {
+            CFLog.i("Weights converged after " + mFrames + " frames (max error " + maxErr + ")");
+            mConverged = true;
+        }
+    }
+
+    @Override
+    protected boolean isFinished() {
+        return mConverged;
+    }
+
     /**
      * Calculates weights based on running sum, then compresses and stores them in a protobuf file
      * and in the SharedPreferences
@@ -117,57 +191,47 @@ class StatsTask extends TriggerProcessor.Task {
     @Override
     protected void onMaxReached() {
 
-        int width = mSumAlloc.getType().getX();
-        int height = mSumAlloc.getType().getY();
+        int width = mResX;
+        int height = mResY;
 
-        mScriptCSumFrames.set_gTotalFrames(mConfig.frames);
+        // frames still in flight should not be added to the sum
+        int totalFrames;
+        synchronized (mSumLock) {
+            mDone = true;
+            totalFrames = mFrames;
+        }
 
         for(int pos: PreCalibrator.BUILDER.getHotcellList()) {
             int x = pos % width;
             int y = pos / width;
-            mScriptCSumFrames.invoke_killHotcell(x, y);
+            mSum.exclude(x, y);
         }
 
         // next, find weights
         // first, find appropriate dimensions to downsample
 
-        int sampleStep = getSampleStep(width, height, mConfig.gridSize);
-        mScriptCSumFrames.set_sampleStep(sampleStep);
+        int sampleStep = mSampleStep;
 
         int sampleResX = width / sampleStep;
         int sampleResY = height / sampleStep;
 
         CFLog.d("Downsample resolution: " + sampleResX + "x" + sampleResY);
 
-        // next, we downsample (average) sums in RenderScript
+        // next, we downsample (average) the sums
 
-        Type sampleType = new Type.Builder(RS, Element.F32(RS))
-                .setX(sampleResX)
-                .setY(sampleResY)
-                .create();
-
-        Type byteType = new Type.Builder(RS, Element.U8(RS))
-                .setX(sampleResX)
-                .setY(sampleResY)
-                .create();
-
-
-        Allocation downsampledAlloc = Allocation.createTyped(RS, sampleType, Allocation.USAGE_SCRIPT);
-        Allocation byteAlloc = Allocation.createTyped(RS, byteType, Allocation.USAGE_SCRIPT);
-
-        // we find the block with the smallest average pix_val to normalize
-        mScriptCSumFrames.forEach_downsampleSums(downsampledAlloc);
-        mSumAlloc.destroy();
         float[] downsampleArray = new float[sampleResX * sampleResY];
-        downsampledAlloc.copyTo(downsampleArray);
+        mSum.tileMeans(sampleStep, FUDGE_FACTOR, downsampleArray);
+        mSum.release();
 
+        // we find the block with the smallest average pix_val to normalize
         float minAvg = 256f;
-        for (float avg : downsampleArray) {
-            if (avg < minAvg) {
-                minAvg = avg;
+        for (int i=0; i<downsampleArray.length; i++) {
+            downsampleArray[i] /= totalFrames;
+            if (downsampleArray[i] < minAvg) {
+                minAvg = downsampleArray[i];
             }
         }
-        CFLog.d("minSum = " + minAvg*sampleStep*sampleStep*mConfig.frames);
+        CFLog.d("minSum = " + minAvg*sampleStep*sampleStep*totalFrames);
 
         // we use log(1 + 1/mu) as our weights, which takes into account the nonlinearity of
         // truncation on the sums, assuming exponentially distributed noise for simplicity
@@ -175,11 +239,11 @@ class StatsTask extends TriggerProcessor.Task {
 
         CFLog.d("maxWeight = " + maxWeight);
 
-        mScriptCSumFrames.set_gMaxWeight((float)maxWeight);
-        mScriptCSumFrames.forEach_normalizeWeights(downsampledAlloc, byteAlloc);
-
+        // normalize to [0,1] and store as a byte for compression
         byte[] byteNormalizedArray = new byte[sampleResX * sampleResY];
-        byteAlloc.copyTo(byteNormalizedArray);
+        for (int i=0; i<downsampleArray.length; i++) {
+            byteNormalizedArray[i] = (byte) (int) (255 * Math.log1p(1f/downsampleArray[i]) / maxWeight);
+        }
 
         // compress with OpenCV
         MatOfByte downsampledBytes = new MatOfByte(byteNormalizedArray);
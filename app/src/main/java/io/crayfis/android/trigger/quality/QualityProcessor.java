@@ -54,6 +54,8 @@ public class QualityProcessor extends TriggerProcessor {
         if(!pass) {
             DAQManager daq = DAQManager.getInstance();
             daq.changeCameraFrom(frame.getCameraId());
+            // a companion just stops, while the primary camera carries on
+            if(xb.companion) return;
             CFLog.d("Flat: " + daq.isPhoneFlat());
             if (!daq.isPhoneFlat()) {
                 application.userErrorMessage(false, R.string.warning_facedown);
@@ -66,6 +68,7 @@ public class QualityProcessor extends TriggerProcessor {
 
     @Override
     public void onMaxReached() {
+        if(xb.companion) return;
         // we have a sufficient number of good frames, so switch to PRECALIBRATION from SURVEY
         application.changeApplicationState(CFApplication.State.SURVEY, CFApplication.State.PRECALIBRATION);
     }
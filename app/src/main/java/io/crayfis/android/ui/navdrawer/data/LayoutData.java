@@ -23,9 +23,10 @@ import com.jjoe64.graphview.Viewport;
 import com.jjoe64.graphview.series.BarGraphSeries;
 import com.jjoe64.graphview.series.DataPoint;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import io.crayfis.android.server.CFConfig;
 import io.crayfis.android.R;
-import io.crayfis.android.util.Histogram;
 import io.crayfis.android.ui.navdrawer.NavDrawerFragment;
 
 public class LayoutData extends NavDrawerFragment {
@@ -45,7 +46,9 @@ public class LayoutData extends NavDrawerFragment {
     private int mGoodCutoff;
     private int mIdealCutoff;
 
-    private static final Histogram histL2Pixels = new Histogram(256);
+    // bins of L2 pixel values, with the last bin as overflow.  This is filled from the event
+    // sink and read on the UI thread, so each bin is updated atomically.
+    private static final AtomicLongArray histL2Pixels = new AtomicLongArray(256);
 
     private final CFConfig CONFIG = CFConfig.getInstance();
 
@@ -89,11 +92,18 @@ public class LayoutData extends NavDrawerFragment {
     }
 
     public static void appendData(int val) {
-        histL2Pixels.fill(val);
+        histL2Pixels.incrementAndGet(Math.max(0, Math.min(val, histL2Pixels.length() - 1)));
     }
 
-    public DataPoint[] makeGraphData() {
-        long[] values = histL2Pixels.getValues();
+    private static long[] snapshot() {
+        long[] values = new long[histL2Pixels.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = histL2Pixels.get(i);
+        }
+        return values;
+    }
+
+    public DataPoint[] makeGraphData(long[] values) {
 
         // include an overflow bin if necessary
         DataPoint[] data = new DataPoint[256];
@@ -205,8 +215,11 @@ public class LayoutData extends NavDrawerFragment {
         if (mGraphSeries !=null) {
             final double passRate = CONFIG.getTargetEventsPerMinute();
 
-            final long totalEntries = histL2Pixels.getEntries();
-            final long[] values = histL2Pixels.getValues();
+            final long[] values = snapshot();
+            long totalEntries = 0;
+            for (long v : values) {
+                totalEntries += v;
+            }
             if(totalEntries == 0) return;
 
             final int targetGood = (int)((1-GOOD_EPM/passRate)*totalEntries+1);
@@ -215,17 +228,17 @@ public class LayoutData extends NavDrawerFragment {
             int integral = 0;
             int i=-1;
 
-            while(integral < targetGood) {
+            while(integral < targetGood && i < values.length-1) {
                 integral += values[++i];
             }
             mGoodCutoff = i;
 
-            while(integral < targetIdeal) {
+            while(integral < targetIdeal && i < values.length-1) {
                 integral += values[++i];
             }
             mIdealCutoff = i;
 
-            mGraphSeries.resetData(makeGraphData());
+            mGraphSeries.resetData(makeGraphData(values));
 
             if(mViewport != null) {
                 final double maxY = 1.2 * mGraphSeries.getHighestValueY();
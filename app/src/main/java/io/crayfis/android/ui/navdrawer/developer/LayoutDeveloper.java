@@ -18,6 +18,7 @@ import io.crayfis.android.main.DAQActivity;
 import io.crayfis.android.main.DAQService;
 import io.crayfis.android.R;
 import io.crayfis.android.ui.navdrawer.NavDrawerFragment;
+import io.crayfis.android.util.Metrics;
 
 
 public class LayoutDeveloper extends NavDrawerFragment {
@@ -73,7 +74,7 @@ public class LayoutDeveloper extends NavDrawerFragment {
         mAppBuildView.setAppBuild(application.getBuildInformation());
         final DAQService.DAQBinder binder = activity.getBinder();
         if(binder != null) {
-            mTextView.setText(binder.getDevText());
+            mTextView.setText(binder.getDevText() + "\n" + Metrics.getInstance().render());
         }
     }
 
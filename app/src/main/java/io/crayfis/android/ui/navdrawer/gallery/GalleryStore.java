@@ -0,0 +1,293 @@
+package io.crayfis.android.ui.navdrawer.gallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Environment;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import io.crayfis.android.util.CFLog;
+
+/**
+ * Saved gallery images, with an index of their metadata kept next to them so that neither
+ * saving nor browsing needs to list or decode the whole directory.  Images are ordered by
+ * number of pixels, so the smallest can be evicted in O(log n) when the gallery is full, and
+ * downscaled thumbnails for the grid are kept in an LRU cache.
+ */
+class GalleryStore {
+
+    static final int MAX_NUM_IMAGES = 50;
+
+    // SD card image directory
+    private static final String DIRNAME = ".crayfis";
+    private static final String INDEX_NAME = ".index";
+
+    private static final int INDEX_MAGIC = 0x43464749; // "CFGI"
+    private static final int INDEX_VERSION = 1;
+
+    // smallest first, so the next image to evict is first()
+    private static final Comparator<SavedImage> BY_NUM_PIX = new Comparator<SavedImage>() {
+        @Override
+        public int compare(SavedImage a, SavedImage b) {
+            if(a.num_pix != b.num_pix) return a.num_pix < b.num_pix ? -1 : 1;
+            if(a.timestamp != b.timestamp) return a.timestamp < b.timestamp ? -1 : 1;
+            return a.filename.compareTo(b.filename);
+        }
+    };
+
+    private final File mDir;
+    private final TreeSet<SavedImage> mImages = new TreeSet<>(BY_NUM_PIX);
+    private final HashMap<String, SavedImage> mByName = new HashMap<>();
+    private final LruCache<String, Bitmap> mThumbnails;
+
+    private static GalleryStore sInstance;
+
+    /**
+     * Get the instance of {@link GalleryStore}, loading the index if needed.
+     *
+     * @return {@link GalleryStore}
+     */
+    static synchronized GalleryStore getInstance() {
+        if(sInstance == null) {
+            File sdCard = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM);
+            sInstance = new GalleryStore(new File(sdCard, DIRNAME));
+        }
+        return sInstance;
+    }
+
+    private GalleryStore(File dir) {
+        mDir = dir;
+
+        // an eighth of the heap, in kB
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        mThumbnails = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+
+        if(!readIndex()) {
+            rebuildIndex();
+        }
+    }
+
+    /**
+     * Save an image, evicting the image with the fewest pixels if the gallery is full.  Raises
+     * the gallery threshold to the smallest image kept.
+     *
+     * @param si Image with a bitmap
+     */
+    synchronized void add(SavedImage si) {
+        if(si.bitmap == null) return;
+
+        SavedImage old = mByName.get(si.filename);
+        if(old != null) {
+            mImages.remove(old);
+            mByName.remove(old.filename);
+        }
+
+        if(mImages.size() >= MAX_NUM_IMAGES) {
+            SavedImage smallest = mImages.first();
+            if(smallest.num_pix > LayoutGallery.sGalleryCount) {
+                LayoutGallery.sGalleryCount = smallest.num_pix;
+            }
+            if(si.num_pix < LayoutGallery.sGalleryCount) return;
+
+            CFLog.d("saveImage: deleting " + smallest.filename);
+            remove(smallest);
+        }
+
+        if(!mDir.isDirectory() && !mDir.mkdirs()) {
+            CFLog.e("Could not create " + mDir);
+            return;
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(new File(mDir, si.filename));
+            si.bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            out.flush();
+            out.close();
+            CFLog.d(" File created: " + si.filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // keep only the metadata in the index
+        SavedImage entry = new SavedImage(si.filename, si.max_pix, si.num_pix, si.timestamp);
+        mImages.add(entry);
+        mByName.put(entry.filename, entry);
+        writeIndex();
+    }
+
+    private void remove(SavedImage si) {
+        mImages.remove(si);
+        mByName.remove(si.filename);
+        // one thumbnail for each size it was requested at
+        String prefix = si.filename + "@";
+        for(String key : mThumbnails.snapshot().keySet()) {
+            if(key.startsWith(prefix)) {
+                mThumbnails.remove(key);
+            }
+        }
+        File file = new File(mDir, si.filename);
+        if(file.exists() && !file.delete()) {
+            CFLog.w("Could not delete " + file);
+        }
+    }
+
+    /**
+     * @return number of images deleted
+     */
+    synchronized int clear() {
+        int num_deleted = 0;
+        for(SavedImage si : new ArrayList<>(mImages)) {
+            remove(si);
+            num_deleted++;
+        }
+        mThumbnails.evictAll();
+        writeIndex();
+        return num_deleted;
+    }
+
+    /**
+     * @return metadata of all saved images, newest first
+     */
+    synchronized ArrayList<SavedImage> list() {
+        ArrayList<SavedImage> images = new ArrayList<>(mImages);
+        Collections.sort(images, new Comparator<SavedImage>() {
+            @Override
+            public int compare(SavedImage a, SavedImage b) {
+                return a.timestamp > b.timestamp ? -1 : a.timestamp < b.timestamp ? 1 : 0;
+            }
+        });
+        return images;
+    }
+
+    /**
+     * Get a thumbnail of an image, decoded at no more than twice the given size
+     *
+     * @param si Image
+     * @param size Side length of the grid cell, in px
+     * @return Bitmap, or null if it could not be decoded
+     */
+    @Nullable
+    Bitmap getThumbnail(SavedImage si, int size) {
+        String key = si.filename + "@" + size;
+        Bitmap thumb = mThumbnails.get(key);
+        if(thumb != null) return thumb;
+
+        File f = new File(mDir, si.filename);
+
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getPath(), o);
+
+        int scale = 1;
+        while (o.outWidth / scale / 2 >= size
+                && o.outHeight / scale / 2 >= size)
+            scale *= 2;
+
+        BitmapFactory.Options o2 = new BitmapFactory.Options();
+        o2.inSampleSize = scale;
+        try {
+            thumb = BitmapFactory.decodeFile(f.getPath(), o2);
+        } catch (OutOfMemoryError e) {
+            mThumbnails.evictAll();
+            return null;
+        }
+
+        if(thumb != null) {
+            mThumbnails.put(key, thumb);
+        }
+        return thumb;
+    }
+
+    private boolean readIndex() {
+        File index = new File(mDir, INDEX_NAME);
+        if(!index.isFile()) return false;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+            try {
+                if(in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) return false;
+                int n = in.readInt();
+                for(int i=0; i<n; i++) {
+                    SavedImage si = new SavedImage(in.readUTF(), in.readInt(), in.readInt(), in.readLong());
+                    mImages.add(si);
+                    mByName.put(si.filename, si);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            CFLog.w("Could not read gallery index: " + e.getMessage());
+            mImages.clear();
+            mByName.clear();
+            return false;
+        }
+        return true;
+    }
+
+    private void writeIndex() {
+        if(!mDir.isDirectory()) return;
+
+        File tmp = new File(mDir, INDEX_NAME + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(mImages.size());
+                for(SavedImage si : mImages) {
+                    out.writeUTF(si.filename);
+                    out.writeInt(si.max_pix);
+                    out.writeInt(si.num_pix);
+                    out.writeLong(si.timestamp);
+                }
+            } finally {
+                out.close();
+            }
+            if(!tmp.renameTo(new File(mDir, INDEX_NAME))) {
+                CFLog.w("Could not replace gallery index");
+            }
+        } catch (IOException e) {
+            CFLog.w("Could not write gallery index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build the index from the filenames in the directory, e.g. after an upgrade
+     */
+    private void rebuildIndex() {
+        File[] files = mDir.listFiles();
+        if(files == null) return;
+
+        for(File f : files) {
+            String name = f.getName().toLowerCase(Locale.US);
+            if(!name.endsWith(".png") && !name.endsWith(".jpg") && !name.endsWith(".jpeg")) continue;
+            SavedImage si = new SavedImage(f);
+            mImages.add(si);
+            mByName.put(si.filename, si);
+        }
+        CFLog.i("Rebuilt gallery index with " + mImages.size() + " images");
+        writeIndex();
+    }
+}
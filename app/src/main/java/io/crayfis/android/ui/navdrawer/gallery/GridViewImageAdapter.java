@@ -4,16 +4,12 @@ package io.crayfis.android.ui.navdrawer.gallery;
  * Created by danielwhiteson on 11/19/14.
  */
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.util.ArrayList;
 
 
 import android.content.Context;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
@@ -62,7 +58,7 @@ class GridViewImageAdapter extends BaseAdapter {
 
         // get screen dimensions
         try {
-            Bitmap image = decodeFile(_filePaths.get(position).filename, imageWidth,
+            Bitmap image = GalleryStore.getInstance().getThumbnail(_filePaths.get(position),
                     imageWidth);
 
             imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
@@ -77,35 +73,6 @@ class GridViewImageAdapter extends BaseAdapter {
 
     }
 
-
-
-    /*
-     * Resizing image size
-     */
-    private Bitmap decodeFile(String filePath, final int WIDTH, final int HEIGHT) {
-        try {
-
-            File f = new File(filePath);
-
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(new FileInputStream(f), null, o);
-
-            int scale = 1;
-            while (o.outWidth / scale / 2 >= WIDTH
-                    && o.outHeight / scale / 2 >= HEIGHT)
-                scale *= 2;
-
-            BitmapFactory.Options o2 = new BitmapFactory.Options();
-            o2.inSampleSize = scale;
-            return BitmapFactory.decodeStream(new FileInputStream(f), null, o2);
-        } catch (FileNotFoundException | OutOfMemoryError e) {
-            e.printStackTrace();
-        }
-
-        return null;
-    }
-
 }
 
 
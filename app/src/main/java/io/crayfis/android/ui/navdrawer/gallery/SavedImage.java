@@ -1,7 +1,6 @@
 package io.crayfis.android.ui.navdrawer.gallery;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.util.Pair;
 
@@ -9,6 +8,7 @@ import io.crayfis.android.DataProtos;
 import io.crayfis.android.util.CFLog;
 
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
@@ -23,6 +23,7 @@ class SavedImage {
     int max_pix;
     int num_pix;
     String date;
+    long timestamp;
     Bitmap bitmap;
 
     private String makeFilename(int mp,int np, String d)
@@ -32,25 +33,27 @@ class SavedImage {
 
     private void decodeFilename(String filename)
     {
-        String delims1 = "[\\.]";
-        String[] fn1 = filename.split(delims1);
+        String stem = filename.substring(0, Math.max(filename.lastIndexOf('.'), 0));
         max_pix=-1;
         num_pix=-1;
         date="???";
-        if (fn1.length>1) {
-            String delims2 = "_";
-            String[] tokens = fn1[1].split(delims2);
-            if (tokens.length>6) {
+        String delims2 = "_";
+        String[] tokens = stem.split(delims2);
+        if (tokens.length>6) {
+            try {
                 max_pix = Integer.valueOf(tokens[2]);
                 num_pix = Integer.valueOf(tokens[4]);
-                date = tokens[6];
-                CFLog.d("SavedImage: input name=" + filename + " mp = " + max_pix + " np = " + num_pix + " date= [" + date + "]");
+            } catch (NumberFormatException e) {
+                CFLog.w("SavedImage: could not parse " + filename);
             }
+            date = tokens[6];
+            CFLog.d("SavedImage: input name=" + filename + " mp = " + max_pix + " np = " + num_pix + " date= [" + date + "]");
         }
     }
 
     private SavedImage(long t) {
 
+        timestamp = t;
         SimpleDateFormat sdf = new SimpleDateFormat("MM-dd-yyyy-HH:mm");
         Date resultdate = new Date(t);
         date=sdf.format(resultdate);
@@ -196,13 +199,23 @@ class SavedImage {
         CFLog.d("Success building image bitmap="+bitmap+" filename="+filename);
     }
 
-    SavedImage(String fname) {
-
+    /**
+     * Metadata of an image already on disk, as stored in the gallery index
+     */
+    SavedImage(String fname, int mp, int np, long t) {
+        this(t);
         filename = fname;
-        bitmap = BitmapFactory.decodeFile(fname);
-        decodeFilename(fname);
-
+        max_pix = mp;
+        num_pix = np;
     }
 
+    /**
+     * Metadata of an image already on disk, from its filename
+     */
+    SavedImage(File f) {
+        filename = f.getName();
+        timestamp = f.lastModified();
+        decodeFilename(filename);
+    }
 
 }
\ No newline at end of file
@@ -12,30 +12,24 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import android.content.Context;
-import java.util.ArrayList;
 
 import io.crayfis.android.DataProtos;
 import io.crayfis.android.R;
 import io.crayfis.android.ui.navdrawer.NavDrawerFragment;
+import io.crayfis.android.util.EventRing;
 
 public class LayoutLiveView extends NavDrawerFragment {
 
-    static final Object event_lock = new Object();
-
     static final int max_events = 100;
-    static final ArrayList<DataProtos.Event> events = new ArrayList<>(max_events);
+
+    // written only by the live view event sink
+    static final EventRing<DataProtos.Event> events = new EventRing<>(max_events);
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
     }
 
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        events.clear();
-    }
-
     private boolean shown_message=false;
 
     private static final @StringRes int ABOUT_ID = R.string.toast_black;
@@ -61,13 +55,14 @@ public class LayoutLiveView extends NavDrawerFragment {
         super.setUserVisibleHint(isVisibleToUser);
     }
 
+    /**
+     * Add an event to the display.  Must only be called from one thread.
+     *
+     * @param event Event
+     */
     public static void addEvent(DataProtos.Event event)
     {
-        synchronized(event_lock)
-        {
-            events.add(event);
-        }
-
+        events.add(event);
     }
 
     @Override
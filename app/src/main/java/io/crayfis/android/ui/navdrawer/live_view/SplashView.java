@@ -17,6 +17,8 @@ import android.graphics.RectF;
 
 import android.graphics.Color;
 
+import java.util.List;
+
 class SplashView extends AppCompatImageView
 {
     private Handler h;
@@ -66,37 +68,36 @@ class SplashView extends AppCompatImageView
     {
         super.onDraw(c);
 
-        // make sure the event list is not modified while we loop over it
-        synchronized(LayoutLiveView.event_lock) {
+        // a consistent copy, so the event sink never waits on drawing
+        List<DataProtos.Event> events = LayoutLiveView.events.snapshot();
 
-            if (LayoutLiveView.events.size()>0)
-            {
-                int maxCanvasX = c.getWidth();
-                int maxCanvasY = c.getHeight();
+        if (events.size()>0)
+        {
+            int maxCanvasX = c.getWidth();
+            int maxCanvasY = c.getHeight();
 
-                scale_x = maxCanvasY / ((float) 1.1 * DAQManager.getInstance().getResX());  // 1.1 to avoid off screen edge effects
-                scale_y = maxCanvasX / ((float) 1.1 * DAQManager.getInstance().getResY());
-                //CFLog.d("Splashview camera = "+maxCameraX+","+maxCameraY+" canvas = "+maxCanvasX+", "+maxCanvasY+" scaling = "+scale_x+", "+scale_y);
-            }
+            scale_x = maxCanvasY / ((float) 1.1 * DAQManager.getInstance().getResX());  // 1.1 to avoid off screen edge effects
+            scale_y = maxCanvasX / ((float) 1.1 * DAQManager.getInstance().getResY());
+            //CFLog.d("Splashview camera = "+maxCameraX+","+maxCameraY+" canvas = "+maxCanvasX+", "+maxCanvasY+" scaling = "+scale_x+", "+scale_y);
+        }
 
-            // loop over events
-            for (DataProtos.Event event: LayoutLiveView.events) {
-                // get the event and pixels
-
-                // calculate the event age
-                long age = (System.currentTimeMillis() - event.getTimestamp());
-
-                // remove it if it's too old
-                if (age <= MS_TO_SHOW) {
-                    if(event.getPixelsCount() > 0) {
-                        for (DataProtos.Pixel pix : event.getPixelsList()) {
-                            paintPixel(c, pix.getX(), pix.getY(), pix.getVal(), age);
-                        }
-                    } else if(event.hasByteBlock()) {
-                        DataProtos.ByteBlock bb = event.getByteBlock();
-                        for (int i=0; i<bb.getXCount(); i++) {
-                            paintPixel(c, bb.getX(i), bb.getY(i), 20, age);
-                        }
+        // loop over events
+        for (DataProtos.Event event: events) {
+            // get the event and pixels
+
+            // calculate the event age
+            long age = (System.currentTimeMillis() - event.getTimestamp());
+
+            // remove it if it's too old
+            if (age <= MS_TO_SHOW) {
+                if(event.getPixelsCount() > 0) {
+                    for (DataProtos.Pixel pix : event.getPixelsList()) {
+                        paintPixel(c, pix.getX(), pix.getY(), pix.getVal(), age);
+                    }
+                } else if(event.hasByteBlock()) {
+                    DataProtos.ByteBlock bb = event.getByteBlock();
+                    for (int i=0; i<bb.getXCount(); i++) {
+                        paintPixel(c, bb.getX(i), bb.getY(i), 20, age);
                     }
                 }
             }
@@ -128,10 +128,6 @@ public class LayoutYourAccount extends NavDrawerFragment {
 
                             Toast.makeText(act, R.string.login_notice + " " + username + " " + R.string.login_notice_code + " " + code,
                                     Toast.LENGTH_SHORT).show();
-                            final UserStatusView userStatus = (UserStatusView) act.findViewById(R.id.user_status);
-                            if (userStatus != null) {
-                                userStatus.postInvalidate();
-                            }
                         }
 
 
@@ -8,7 +8,10 @@ import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
+import java.util.Set;
+
 import io.crayfis.android.server.CFConfig;
+import io.crayfis.android.server.ConfigStore;
 import io.crayfis.android.R;
 import io.crayfis.android.util.ViewUtil;
 
@@ -21,6 +24,17 @@ public class UserStatusView extends RelativeLayout {
     private ImageView mUserStatusAvatar;
     private TextView mUserStatusText;
     private ViewGroup mUserUnregistered;
+    // version of the account fields on display
+    private int mAccountVersion = -1;
+
+    private final ConfigStore.OnConfigChangeListener mConfigListener = new ConfigStore.OnConfigChangeListener() {
+        @Override
+        public void onConfigChanged(Set<ConfigStore.Group> groups) {
+            if(groups.contains(ConfigStore.Group.ACCOUNT)) {
+                setContentFromUser();
+            }
+        }
+    };
 
     public UserStatusView(final Context context) {
         this(context, null);
@@ -40,6 +54,23 @@ public class UserStatusView extends RelativeLayout {
         setContentFromUser();
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        final CFConfig cfConfig = CFConfig.getInstance();
+        cfConfig.addListener(mConfigListener);
+        // catch up on changes made while detached
+        if (mAccountVersion != cfConfig.getVersion(ConfigStore.Group.ACCOUNT)) {
+            setContentFromUser();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        CFConfig.getInstance().removeListener(mConfigListener);
+        super.onDetachedFromWindow();
+    }
+
     @Override
     public void invalidate() {
         super.invalidate();
@@ -48,6 +79,7 @@ public class UserStatusView extends RelativeLayout {
 
     private void setContentFromUser() {
         final CFConfig cfConfig = CFConfig.getInstance();
+        mAccountVersion = cfConfig.getVersion(ConfigStore.Group.ACCOUNT);
         final String accountName = cfConfig.getAccountName();
 
         if (accountName == null) {
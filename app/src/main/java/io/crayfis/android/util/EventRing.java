@@ -0,0 +1,66 @@
+package io.crayfis.android.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of the most recent items, written by a single thread and read by any
+ * number of others.  Neither side ever blocks: readers take a snapshot, and discard any slots
+ * the writer lapped while they were copying.
+ *
+ * @param <T> Item type
+ */
+public class EventRing<T> {
+
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mCapacity;
+
+    // total number of items ever added
+    private final AtomicLong mHead = new AtomicLong();
+
+    public EventRing(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mCapacity = capacity;
+        mSlots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Add an item, overwriting the oldest if the ring is full.  Must only be called from one
+     * thread at a time.
+     *
+     * @param item Item
+     */
+    public void add(T item) {
+        long head = mHead.get();
+        mSlots.set((int) (head % mCapacity), item);
+        mHead.set(head + 1);
+    }
+
+    /**
+     * @return the items currently in the ring, oldest first
+     */
+    public ArrayList<T> snapshot() {
+        long head = mHead.get();
+        long start = Math.max(0, head - mCapacity);
+
+        ArrayList<T> items = new ArrayList<>((int) (head - start));
+        for(long i=start; i<head; i++) {
+            items.add(mSlots.get((int) (i % mCapacity)));
+        }
+
+        // drop anything overwritten during the copy.  The writer may already be storing item
+        // mHead before publishing it, so the slot of item mHead - capacity is not safe either.
+        long lapped = mHead.get() + 1 - mCapacity - start;
+        if(lapped > 0) {
+            items.subList(0, (int) Math.min(lapped, items.size())).clear();
+        }
+        return items;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+}
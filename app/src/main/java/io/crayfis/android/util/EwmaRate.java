@@ -0,0 +1,60 @@
+package io.crayfis.android.util;
+
+/**
+ * Exponentially-weighted average of the interval between events, for a smoother rate than
+ * {@link RateEstimator} gives.  Written by a single thread; readers see the last published
+ * values without locking.
+ */
+public class EwmaRate {
+
+    private final double mAlpha;
+
+    // mean interval, in ns, or 0 if fewer than two events
+    private volatile double mMeanInterval;
+    // time of the last event, or 0 if none
+    private volatile long mLast;
+
+    /**
+     * @param alpha Weight of each new interval, between 0 and 1
+     */
+    public EwmaRate(double alpha) {
+        if(alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Alpha must be in (0, 1]");
+        }
+        mAlpha = alpha;
+    }
+
+    /**
+     * Must only be called from one thread at a time.
+     *
+     * @param timeNanos Event time, on the System.nanoTime() clock
+     */
+    public void addEvent(long timeNanos) {
+        long last = mLast;
+        if(last != 0 && timeNanos > last) {
+            double dt = timeNanos - last;
+            double mean = mMeanInterval;
+            mMeanInterval = (mean == 0) ? dt : mean + mAlpha * (dt - mean);
+        }
+        mLast = timeNanos;
+    }
+
+    public void reset() {
+        mLast = 0;
+        mMeanInterval = 0;
+    }
+
+    /**
+     * The rate decays once the time since the last event exceeds the mean interval, so a
+     * stalled source does not report its old rate.
+     *
+     * @param nowNanos Current time, on the System.nanoTime() clock
+     * @return Rate, in events per second, or 0 if there are fewer than two events
+     */
+    public double getRate(long nowNanos) {
+        double mean = mMeanInterval;
+        if(mean == 0) return 0.0;
+        double interval = Math.max(mean, nowNanos - mLast);
+        return 1e9 / interval;
+    }
+}
@@ -0,0 +1,288 @@
+package io.crayfis.android.util;
+
+import androidx.annotation.NonNull;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnknownFieldSet;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of runtime health metrics: counters, gauges and timers, looked up by name.  Updates
+ * are cheap enough for the per-frame path: counters are striped across cache lines, and timers
+ * only increment one fixed bucket.
+ *
+ * A snapshot is written into each ExposureBlock under field {@link #XB_FIELD_METRICS}, as one
+ * length-delimited record per metric:
+ *
+ *   1: name (string)  2: value (double)
+ *   3: count  4: mean_us (double)  5: p50_us  6: p99_us   (timers only)
+ */
+public final class Metrics {
+
+    public static final int XB_FIELD_METRICS = 100;
+
+    private interface Metric {
+        String render();
+        void writeTo(CodedOutputStream out) throws IOException;
+    }
+
+    /**
+     * Value computed when read, e.g. a queue length
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    /**
+     * Counter which may be updated from many threads at once.  Each thread adds to one of
+     * several padded cells, and get() sums them.
+     */
+    public static final class Counter implements Metric {
+
+        // longs per cell, so that cells fall on separate cache lines
+        private static final int PAD = 8;
+
+        private final String mName;
+        private final int mMask;
+        private final AtomicLongArray mCells;
+
+        private Counter(String name) {
+            mName = name;
+            int stripes = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+            mMask = stripes - 1;
+            mCells = new AtomicLongArray(stripes * PAD);
+        }
+
+        public void inc() {
+            add(1);
+        }
+
+        public void add(long n) {
+            int stripe = (int) (Thread.currentThread().getId() & mMask);
+            mCells.addAndGet(stripe * PAD, n);
+        }
+
+        public long get() {
+            long sum = 0;
+            for(int i=0; i<mCells.length(); i+=PAD) {
+                sum += mCells.get(i);
+            }
+            return sum;
+        }
+
+        @Override
+        public String render() {
+            return mName + " = " + get();
+        }
+
+        @Override
+        public void writeTo(CodedOutputStream out) throws IOException {
+            out.writeString(1, mName);
+            out.writeDouble(2, get());
+        }
+    }
+
+    private static final class GaugeMetric implements Metric {
+
+        private final String mName;
+        private final Gauge mGauge;
+
+        GaugeMetric(String name, Gauge gauge) {
+            mName = name;
+            mGauge = gauge;
+        }
+
+        @Override
+        public String render() {
+            return mName + " = " + String.format("%.2f", mGauge.value());
+        }
+
+        @Override
+        public void writeTo(CodedOutputStream out) throws IOException {
+            out.writeString(1, mName);
+            out.writeDouble(2, mGauge.value());
+        }
+    }
+
+    /**
+     * Histogram of durations, in power-of-two buckets of microseconds from 1 us to ~2 min
+     */
+    public static final class Timer implements Metric {
+
+        private static final int NBUCKETS = 27;
+
+        private final String mName;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(NBUCKETS);
+        private final Counter mTotalNanos;
+
+        private Timer(String name) {
+            mName = name;
+            mTotalNanos = new Counter(name);
+        }
+
+        /**
+         * @param nanos Duration, e.g. the difference of two calls to System.nanoTime()
+         */
+        public void record(long nanos) {
+            long us = Math.max(nanos / 1000, 1);
+            int bucket = Math.min(63 - Long.numberOfLeadingZeros(us), NBUCKETS - 1);
+            mBuckets.incrementAndGet(bucket);
+            mTotalNanos.add(nanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for(int i=0; i<NBUCKETS; i++) {
+                count += mBuckets.get(i);
+            }
+            return count;
+        }
+
+        public double getMeanMicros() {
+            long count = getCount();
+            return count > 0 ? mTotalNanos.get() / 1000.0 / count : 0;
+        }
+
+        /**
+         * @return upper edge of the bucket containing the given quantile, in us
+         */
+        public long getQuantileMicros(double q) {
+            long[] counts = new long[NBUCKETS];
+            long total = 0;
+            for(int i=0; i<NBUCKETS; i++) {
+                counts[i] = mBuckets.get(i);
+                total += counts[i];
+            }
+            if(total == 0) return 0;
+
+            long target = (long) Math.ceil(q * total);
+            long sum = 0;
+            for(int i=0; i<NBUCKETS; i++) {
+                sum += counts[i];
+                if(sum >= target) return 2L << i;
+            }
+            return 2L << (NBUCKETS - 1);
+        }
+
+        @Override
+        public String render() {
+            return mName + ": n = " + getCount() + ", mean = " + String.format("%.0f", getMeanMicros())
+                    + " us, p50 < " + getQuantileMicros(0.5) + " us, p99 < " + getQuantileMicros(0.99) + " us";
+        }
+
+        @Override
+        public void writeTo(CodedOutputStream out) throws IOException {
+            out.writeString(1, mName);
+            out.writeUInt64(3, getCount());
+            out.writeDouble(4, getMeanMicros());
+            out.writeUInt64(5, getQuantileMicros(0.5));
+            out.writeUInt64(6, getQuantileMicros(0.99));
+        }
+    }
+
+    private final ConcurrentHashMap<String, Metric> mMetrics = new ConcurrentHashMap<>();
+
+    private static final Metrics sInstance = new Metrics();
+
+    public static Metrics getInstance() {
+        return sInstance;
+    }
+
+    private Metrics() { }
+
+    /**
+     * Get or create a counter
+     *
+     * @param name Name, e.g. "trigger.l2_frames"
+     * @return Counter
+     */
+    @NonNull
+    public Counter counter(@NonNull String name) {
+        Metric m = mMetrics.get(name);
+        if(m == null) {
+            Metric created = new Counter(name);
+            m = mMetrics.putIfAbsent(name, created);
+            if(m == null) m = created;
+        }
+        return (Counter) m;
+    }
+
+    /**
+     * Get or create a timer
+     *
+     * @param name Name, e.g. "trigger.L2Processor.time"
+     * @return Timer
+     */
+    @NonNull
+    public Timer timer(@NonNull String name) {
+        Metric m = mMetrics.get(name);
+        if(m == null) {
+            Metric created = new Timer(name);
+            m = mMetrics.putIfAbsent(name, created);
+            if(m == null) m = created;
+        }
+        return (Timer) m;
+    }
+
+    /**
+     * Register a gauge, replacing any previous gauge of the same name
+     *
+     * @param name Name, e.g. "camera.fps"
+     * @param gauge Gauge
+     */
+    public void gauge(@NonNull String name, @NonNull Gauge gauge) {
+        mMetrics.put(name, new GaugeMetric(name, gauge));
+    }
+
+    /**
+     * Unregister a gauge, unless it has since been replaced by another of the same name
+     *
+     * @param name Name the gauge was registered under
+     * @param gauge Gauge
+     */
+    public void removeGauge(@NonNull String name, @NonNull Gauge gauge) {
+        Metric m = mMetrics.get(name);
+        if(m instanceof GaugeMetric && ((GaugeMetric) m).mGauge == gauge) {
+            mMetrics.remove(name, m);
+        }
+    }
+
+    /**
+     * @return one line per metric, sorted by name
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        for(Metric m : new TreeMap<>(mMetrics).values()) {
+            sb.append(m.render()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return a snapshot of every metric, as unknown fields of an ExposureBlock
+     */
+    public UnknownFieldSet toFields() {
+        UnknownFieldSet.Field.Builder records = UnknownFieldSet.Field.newBuilder();
+        for(Map.Entry<String, Metric> e : new TreeMap<>(mMetrics).entrySet()) {
+            try {
+                ByteString.Output bytes = ByteString.newOutput();
+                CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+                e.getValue().writeTo(out);
+                out.flush();
+                records.addLengthDelimited(bytes.toByteString());
+            } catch (IOException ex) {
+                // not possible when writing to memory
+                CFLog.e("Could not encode metric " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+        return UnknownFieldSet.newBuilder()
+                .addField(XB_FIELD_METRICS, records.build())
+                .build();
+    }
+}
@@ -0,0 +1,87 @@
+package io.crayfis.android.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rate of events over a sliding window of the most recent timestamps, kept in a primitive
+ * ring so that recording an event neither boxes nor locks.  Readers never block the writer:
+ * if the oldest timestamp is overwritten while it is being read, they simply read again.
+ * Events may be added from several threads, e.g. by the L1 thread pool.
+ */
+public class RateEstimator {
+
+    private final int mWindow;
+    private final int mCapacity;
+    private final AtomicLongArray mTimes;
+
+    // total number of events ever added
+    private final AtomicLong mCount = new AtomicLong();
+    // value of mCount at the last reset
+    private volatile long mStart;
+
+    /**
+     * @param window Number of events to average over
+     */
+    public RateEstimator(int window) {
+        if(window <= 0) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        mWindow = window;
+        // leave slack so a reader can finish before its slot is reused
+        mCapacity = 2 * window;
+        mTimes = new AtomicLongArray(mCapacity);
+    }
+
+    /**
+     * @param timeNanos Event time, on the System.nanoTime() clock
+     */
+    public void addEvent(long timeNanos) {
+        long i = mCount.getAndIncrement();
+        mTimes.set((int) (i % mCapacity), timeNanos);
+    }
+
+    /**
+     * Forget all previous events.  May be called from any thread.
+     */
+    public void reset() {
+        mStart = mCount.get();
+    }
+
+    /**
+     * @return number of events in the window
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(mCount.get() - mStart, mWindow));
+    }
+
+    /**
+     * @return whether the window has filled since the last reset
+     */
+    public boolean isFull() {
+        return size() == mWindow;
+    }
+
+    /**
+     * Calculates the rate between the oldest event in the window and the given time
+     *
+     * @param nowNanos Current time, on the System.nanoTime() clock
+     * @return Rate, in events per second, or 0 if there are no events
+     */
+    public double getRate(long nowNanos) {
+        while(true) {
+            long head = mCount.get();
+            long n = Math.min(head - mStart, mWindow);
+            if(n <= 0) return 0.0;
+
+            long oldest = mTimes.get((int) ((head - n) % mCapacity));
+            if(mCount.get() - (head - n) > mCapacity) {
+                // lapped while reading
+                continue;
+            }
+
+            long dt = nowNanos - oldest;
+            return dt > 0 ? n * 1e9 / dt : 0.0;
+        }
+    }
+}
@@ -11,6 +11,17 @@ uint32_t* gPixN;
 uint gNPixMax;
 bool gMaxN;
 uint gResX;
+uint gResY;
+
+// maxn mode: each band of gBandRows rows keeps its own top gNPixMax, sorted by
+// descending value, in gBandIdx/gBandVal[band*gNPixMax ...]
+rs_allocation gIn;
+uint32_t* gBandIdx;
+uint32_t* gBandVal;
+uint32_t* gBandN;
+uint32_t* gCursor;
+uint gBandRows;
+uint gNBands;
 
 // set this separately
 static uint gL2Thresh;
@@ -37,6 +48,8 @@ static void trigger_default(uint in, uchar wgt, uint32_t x, uint32_t y) {
     }
 }
 
+// N.B. this shares gPixIdx/gPixVal between threads, so the result depends on scheduling.
+// It is only kept to compare against band_maxn_*() in the benchmark.
 static void trigger_maxn(uint in, uchar wgt, uint32_t x, uint32_t y) {
 
     uint adjusted = (uint)in * wgt;
@@ -81,6 +94,79 @@ void RS_KERNEL trigger_ushort(ushort in, uint32_t x, uint32_t y) {
     }
 }
 
+// insert into a band's sorted list; ties keep scan order, so lower indices win
+static uint insert_maxn(uint32_t *bidx, uint32_t *bval, uint n, uint iidx, uint ival) {
+    if(ival <= gL2Thresh || (n == gNPixMax && ival <= bval[n-1])) {
+        return n;
+    }
+    uint j = n < gNPixMax ? n++ : n-1;
+    while(j > 0 && bval[j-1] < ival) {
+        bval[j] = bval[j-1];
+        bidx[j] = bidx[j-1];
+        j--;
+    }
+    bval[j] = ival;
+    bidx[j] = iidx;
+    return n;
+}
+
+// one thread per band: returns the number of entries in the band's list
+uint RS_KERNEL band_maxn_uchar(uint32_t x) {
+    uint32_t *bidx = gBandIdx + x*gNPixMax;
+    uint32_t *bval = gBandVal + x*gNPixMax;
+    uint n = 0;
+    uint y1 = min((x+1)*gBandRows, gResY);
+    for(uint iy=x*gBandRows; iy<y1; iy++) {
+        for(uint ix=0; ix<gResX; ix++) {
+            uint adjusted = (uint) rsGetElementAt_uchar(gIn, ix, iy) * rsGetElementAt_uchar(gWeights, ix, iy);
+            n = insert_maxn(bidx, bval, n, ix + gResX*iy, adjusted);
+        }
+    }
+    return n;
+}
+
+uint RS_KERNEL band_maxn_ushort(uint32_t x) {
+    uint32_t *bidx = gBandIdx + x*gNPixMax;
+    uint32_t *bval = gBandVal + x*gNPixMax;
+    uint n = 0;
+    uint y1 = min((x+1)*gBandRows, gResY);
+    for(uint iy=x*gBandRows; iy<y1; iy++) {
+        for(uint ix=0; ix<gResX; ix++) {
+            uint adjusted = (uint) rsGetElementAt_ushort(gIn, ix, iy) * rsGetElementAt_uchar(gWeights, ix, iy);
+            n = insert_maxn(bidx, bval, n, ix + gResX*iy, adjusted);
+        }
+    }
+    return n;
+}
+
+// k-way merge of the band lists into gPixIdx/gPixVal, with earlier bands winning ties.
+// gBandN must be bound to the output of band_maxn_*().
+void merge_maxn() {
+    for(uint b=0; b<gNBands; b++) {
+        gCursor[b] = 0;
+    }
+    uint n = 0;
+    while(n < gNPixMax) {
+        int best = -1;
+        uint bestVal = 0;
+        for(uint b=0; b<gNBands; b++) {
+            uint c = gCursor[b];
+            if(c >= gBandN[b]) continue;
+            uint v = gBandVal[b*gNPixMax + c];
+            if(best < 0 || v > bestVal) {
+                best = b;
+                bestVal = v;
+            }
+        }
+        if(best < 0) break;
+        *(gPixIdx+n) = gBandIdx[best*gNPixMax + gCursor[best]];
+        *(gPixVal+n) = bestVal;
+        gCursor[best]++;
+        n++;
+    }
+    *gPixN = n;
+}
+
 void reset() {
     *gPixN = 0;
 }
\ No newline at end of file
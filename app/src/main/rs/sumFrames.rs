@@ -7,6 +7,7 @@ rs_allocation gSum;
 float gMaxWeight;
 uint sampleStep;
 uint gTotalFrames;
+float gTileFudge;
 
 // Since normalization is very succeptible to smallest bin, we
 // add back the smallest mean that could result in a bin value
@@ -63,6 +64,24 @@ float RS_KERNEL downsampleSums(uint32_t x, uint32_t y) {
     return (float)sum/count/gTotalFrames;
 }
 
+// average running sum per pixel in each sampleStep x sampleStep tile,
+// after adding gTileFudge to the total
+float RS_KERNEL tileSums(uint32_t x, uint32_t y) {
+    uint count = 0;
+    long sum = 0;
+    for(uint ix=x*sampleStep; ix<(x+1)*sampleStep; ix++) {
+        for(uint iy=y*sampleStep; iy<(y+1)*sampleStep; iy++) {
+            int isum = rsGetElementAt_int(gSum, ix, iy);
+            if(isum >= 0) {
+                sum += isum;
+                count++;
+            }
+        }
+    }
+
+    return count > 0 ? (float)((sum + (double)gTileFudge)/count) : 0;
+}
+
 // mark hotcells as -1
 void killHotcell(uint32_t x, uint32_t y) {
     rsSetElementAt_int(gSum, -1, x, y);
@@ -0,0 +1,291 @@
+package io.crayfis.android.compute;
+
+import android.renderscript.Allocation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the JavaBackend kernels against plain loops over the same planes.  The frame is taller
+ * than the number of bands, so that results have to be merged across bands.
+ */
+public class JavaBackendTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+
+    private JavaBackend mBackend;
+    private Random mRandom;
+
+    /**
+     * Input backed only by a Plane, as the JavaBackend never asks for an Allocation
+     */
+    private static final class PlaneInput implements ComputeBackend.Input {
+        private final Plane mPlane;
+
+        PlaneInput(Plane plane) {
+            mPlane = plane;
+        }
+
+        @Override
+        public int getWidth() {
+            return mPlane.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return mPlane.height;
+        }
+
+        @Override
+        public boolean isRAW() {
+            return mPlane.isRAW();
+        }
+
+        @Override
+        public Allocation getAllocation() {
+            return null;
+        }
+
+        @Override
+        public Plane getPlane() {
+            return mPlane;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mBackend = new JavaBackend(3);
+        mRandom = new Random(1234);
+    }
+
+    @After
+    public void tearDown() {
+        mBackend = null;
+    }
+
+    private Plane randomBytes(int max) {
+        Plane plane = Plane.ofBytes(WIDTH, HEIGHT);
+        for(int i=0; i<plane.bytes.length; i++) {
+            plane.bytes[i] = (byte) mRandom.nextInt(max + 1);
+        }
+        return plane;
+    }
+
+    private Plane randomShorts(int max) {
+        Plane plane = Plane.ofShorts(WIDTH, HEIGHT);
+        for(int i=0; i<plane.shorts.length; i++) {
+            plane.shorts[i] = (short) mRandom.nextInt(max + 1);
+        }
+        return plane;
+    }
+
+    private Weights randomWeights() {
+        byte[] wgt = new byte[WIDTH * HEIGHT];
+        for(int i=0; i<wgt.length; i++) {
+            wgt[i] = (byte) mRandom.nextInt(256);
+        }
+        return new Weights(WIDTH, HEIGHT, wgt);
+    }
+
+    private static int weightAt(Weights weights, int i) {
+        return weights != null ? weights.plane[i] & 0xFF : 255;
+    }
+
+    private static int[] referenceTrigger(Plane plane, Weights weights, int thresh, int npix) {
+        int min = (thresh + 1) * 255 - 127;
+        int[] idx = new int[npix];
+        int n = 0;
+        for(int i=0; i<WIDTH*HEIGHT && n<npix; i++) {
+            if(plane.get(i) * weightAt(weights, i) >= min) {
+                idx[n++] = i;
+            }
+        }
+        return Arrays.copyOf(idx, n);
+    }
+
+    private static int[] referenceMaxN(final Plane plane, final Weights weights, int thresh, int npix) {
+        int min = (thresh + 1) * 255 - 127;
+        List<Integer> passing = new ArrayList<>();
+        for(int i=0; i<WIDTH*HEIGHT; i++) {
+            if(plane.get(i) * weightAt(weights, i) > min) {
+                passing.add(i);
+            }
+        }
+        Collections.sort(passing, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int va = plane.get(a) * weightAt(weights, a);
+                int vb = plane.get(b) * weightAt(weights, b);
+                if(va != vb) return vb > va ? 1 : -1;
+                return a.compareTo(b);
+            }
+        });
+        int n = Math.min(npix, passing.size());
+        int[] idx = new int[n];
+        for(int k=0; k<n; k++) {
+            idx[k] = passing.get(k);
+        }
+        return idx;
+    }
+
+    private void checkTrigger(Plane plane, Weights weights, int thresh, int npix, boolean maxn) {
+        ComputeBackend.Trigger trigger = mBackend.createTrigger(WIDTH, HEIGHT, weights, thresh, npix, maxn);
+        int[] idx = new int[npix];
+        int n = trigger.apply(new PlaneInput(plane), idx);
+        trigger.release();
+
+        int[] expected = maxn ? referenceMaxN(plane, weights, thresh, npix)
+                : referenceTrigger(plane, weights, thresh, npix);
+        assertArrayEquals(expected, Arrays.copyOf(idx, n));
+    }
+
+    @Test
+    public void triggerUnweighted() {
+        Plane plane = randomBytes(40);
+        checkTrigger(plane, null, 35, 1000, false);
+        checkTrigger(plane, null, 35, 10, false);
+    }
+
+    @Test
+    public void triggerWeighted() {
+        Plane plane = randomShorts(1023);
+        Weights weights = randomWeights();
+        checkTrigger(plane, weights, 700, 1000, false);
+        checkTrigger(plane, weights, 300, 25, false);
+    }
+
+    @Test
+    public void triggerMaxN() {
+        // a narrow range of values, so that ties have to be broken by index
+        Plane plane = randomBytes(40);
+        checkTrigger(plane, null, 30, 50, true);
+        checkTrigger(plane, null, 30, 1000, true);
+        checkTrigger(plane, randomWeights(), 20, 17, true);
+    }
+
+    private void checkHistogram(Plane plane, Weights weights) {
+        ComputeBackend.Histogram histogram = mBackend.createHistogram(WIDTH, HEIGHT, plane.isRAW());
+        int[] hist = new int[histogram.size()];
+        histogram.apply(new PlaneInput(plane), weights, hist);
+        histogram.release();
+
+        int[] expected = new int[plane.isRAW() ? 1024 : 256];
+        for(int i=0; i<WIDTH*HEIGHT; i++) {
+            int val = weights != null ? (plane.get(i) * weightAt(weights, i) + 127) / 255 : plane.get(i);
+            expected[Math.min(val, expected.length - 1)]++;
+        }
+        assertArrayEquals(expected, hist);
+    }
+
+    @Test
+    public void histogramYUV() {
+        Plane plane = randomBytes(255);
+        checkHistogram(plane, null);
+        checkHistogram(plane, randomWeights());
+    }
+
+    @Test
+    public void histogramRAW() {
+        // values past 1023 go in the last bin
+        Plane plane = randomShorts(1100);
+        checkHistogram(plane, null);
+        checkHistogram(plane, randomWeights());
+    }
+
+    @Test
+    public void runningSum() {
+        final int step = 4;
+        final float fudge = 0.5f;
+        ComputeBackend.RunningSum runningSum = mBackend.createRunningSum(WIDTH, HEIGHT);
+        long[] sums = new long[WIDTH * HEIGHT];
+        for(int f=0; f<5; f++) {
+            Plane plane = f % 2 == 0 ? randomShorts(1023) : randomBytes(255);
+            runningSum.add(new PlaneInput(plane));
+            for(int i=0; i<sums.length; i++) {
+                sums[i] += plane.get(i);
+            }
+        }
+
+        boolean[] excluded = new boolean[WIDTH * HEIGHT];
+        for(int k=0; k<40; k++) {
+            int x = mRandom.nextInt(WIDTH);
+            int y = mRandom.nextInt(HEIGHT);
+            runningSum.exclude(x, y);
+            excluded[x + WIDTH * y] = true;
+        }
+        // a fully excluded tile has a mean of 0
+        for(int y=0; y<step; y++) {
+            for(int x=0; x<step; x++) {
+                runningSum.exclude(x, y);
+                excluded[x + WIDTH * y] = true;
+            }
+        }
+
+        int outX = WIDTH / step;
+        int outY = HEIGHT / step;
+        float[] means = new float[outX * outY];
+        runningSum.tileMeans(step, fudge, means);
+        runningSum.release();
+
+        for(int ty=0; ty<outY; ty++) {
+            for(int tx=0; tx<outX; tx++) {
+                double sum = 0;
+                int count = 0;
+                for(int y=ty*step; y<(ty+1)*step; y++) {
+                    for(int x=tx*step; x<(tx+1)*step; x++) {
+                        if(excluded[x + WIDTH * y]) continue;
+                        sum += sums[x + WIDTH * y];
+                        count++;
+                    }
+                }
+                double expected = count > 0 ? (sum + fudge) / count : 0;
+                assertEquals(expected, means[tx + outX * ty], 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void secondMax() {
+        ComputeBackend.SecondMax secondMax = mBackend.createSecondMax(WIDTH, HEIGHT);
+        int nFrames = 6;
+        int[][] values = new int[WIDTH * HEIGHT][nFrames];
+        for(int f=0; f<nFrames; f++) {
+            // RAW values are truncated to 8 bits
+            Plane plane = f % 2 == 0 ? randomShorts(400) : randomBytes(255);
+            secondMax.add(new PlaneInput(plane));
+            for(int i=0; i<values.length; i++) {
+                values[i][f] = Math.min(plane.get(i), 255);
+            }
+        }
+
+        byte[] max = new byte[WIDTH * HEIGHT];
+        byte[] second = new byte[WIDTH * HEIGHT];
+        int[] hist = new int[256];
+        secondMax.copyMax(max);
+        secondMax.copySecond(second);
+        secondMax.histogramSecond(hist);
+        secondMax.release();
+
+        int[] expectedHist = new int[256];
+        for(int i=0; i<values.length; i++) {
+            int[] sorted = values[i].clone();
+            Arrays.sort(sorted);
+            assertEquals(sorted[nFrames - 1], max[i] & 0xFF);
+            assertEquals(sorted[nFrames - 2], second[i] & 0xFF);
+            expectedHist[sorted[nFrames - 2]]++;
+        }
+        assertArrayEquals(expectedHist, hist);
+    }
+}
@@ -0,0 +1,56 @@
+package io.crayfis.tools.reprocess;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import io.crayfis.android.DataProtos;
+
+/**
+ * Reads the ExposureBlocks of a DataChunk file one at a time.  A DataChunk is a sequence of
+ * length-delimited fields, so only one ExposureBlock is in memory at once and the other fields
+ * are skipped without being parsed.
+ */
+final class ChunkReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream mStream;
+    private final CodedInputStream mIn;
+
+    ChunkReader(File file) throws IOException {
+        mStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        mIn = CodedInputStream.newInstance(mStream, BUFFER_SIZE);
+        mIn.setSizeLimit(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the bytes of the next ExposureBlock, or null at the end of the file
+     * @throws IOException if the file is truncated or malformed
+     */
+    byte[] nextExposureBlock() throws IOException {
+        while(true) {
+            // the limit counts bytes since the last reset, so keep it per field
+            mIn.resetSizeCounter();
+            int tag = mIn.readTag();
+            if(tag == 0) return null;
+
+            if(WireFormat.getTagFieldNumber(tag) == DataProtos.DataChunk.EXPOSURE_BLOCKS_FIELD_NUMBER
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                return mIn.readByteArray();
+            }
+            if(!mIn.skipField(tag)) return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
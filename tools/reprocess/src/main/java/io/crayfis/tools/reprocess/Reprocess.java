@@ -0,0 +1,314 @@
+package io.crayfis.tools.reprocess;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.crayfis.android.DataProtos;
+
+/**
+ * Command-line tool which re-applies L2 settings to uploaded DataChunk files, to estimate the
+ * event rate and data volume at other thresholds and radii.
+ *
+ *   reprocess --thresh 20,25,30 [--radius 1,2] [--threads N] [--out xb.tsv] chunks/...
+ *
+ * Files are read by a pool of readers, and each ExposureBlock is analyzed on a pool with one
+ * thread per core.  Its queue is bounded, so readers wait for the analysis rather than holding
+ * many ExposureBlocks in memory.  One row per ExposureBlock and setting goes to --out, and the
+ * totals for each setting to stdout.
+ */
+public final class Reprocess {
+
+    private static final String[] COLUMNS = {
+            "file", "run_id", "xbn", "res_x", "res_y", "frames", "duration_s",
+            "l2thresh_orig", "radius_orig", "events_orig", "bytes_orig",
+            "l2thresh", "radius", "exact", "events", "hits", "bytes", "rate_epm", "zb_frac"
+    };
+
+    private final List<Scenario> mScenarios;
+    private final XBAnalyzer mAnalyzer;
+    private final PrintWriter mOut;
+    private final Summary[] mSummaries;
+
+    private final AtomicInteger mNFiles = new AtomicInteger();
+    private final AtomicInteger mNXBs = new AtomicInteger();
+    private final AtomicInteger mNSkipped = new AtomicInteger();
+    private final AtomicInteger mNErrors = new AtomicInteger();
+
+    /**
+     * Totals of one Scenario over every ExposureBlock
+     */
+    private static final class Summary {
+        int xbs;
+        int inexact;
+        long frames;
+        long durationMs;
+        long origEvents;
+        long origBytes;
+        long events;
+        long hits;
+        long bytes;
+        long zbAbove;
+        long zbPixels;
+
+        synchronized void add(XBAnalyzer.Result r, int s) {
+            xbs++;
+            if(!r.exact[s]) inexact++;
+            frames += r.frames;
+            durationMs += r.durationMs;
+            origEvents += r.origEvents;
+            origBytes += r.origBytes;
+            events += r.events[s];
+            hits += r.hits[s];
+            bytes += r.bytes[s];
+            zbAbove += r.zbAbove[s];
+            zbPixels += r.zbPixels;
+        }
+    }
+
+    private Reprocess(List<Scenario> scenarios, PrintWriter out) {
+        mScenarios = scenarios;
+        mAnalyzer = new XBAnalyzer(scenarios);
+        mOut = out;
+        mSummaries = new Summary[scenarios.size()];
+        for(int i=0; i<mSummaries.length; i++) {
+            mSummaries[i] = new Summary();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Integer> threshs = new ArrayList<>();
+        List<Integer> radii = new ArrayList<>();
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        String outPath = null;
+        List<File> inputs = new ArrayList<>();
+
+        try {
+            for(int i=0; i<args.length; i++) {
+                switch (args[i]) {
+                    case "--thresh":
+                        threshs.addAll(parseInts(args[++i]));
+                        break;
+                    case "--radius":
+                        radii.addAll(parseInts(args[++i]));
+                        break;
+                    case "--threads":
+                        nThreads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--out":
+                        outPath = args[++i];
+                        break;
+                    default:
+                        if(args[i].startsWith("--")) throw new IllegalArgumentException(args[i]);
+                        inputs.add(new File(args[i]));
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            usage("bad argument " + e.getMessage());
+            return;
+        }
+        if(threshs.isEmpty() || inputs.isEmpty() || nThreads < 1) {
+            usage(null);
+            return;
+        }
+        if(radii.isEmpty()) radii.add(2);
+
+        List<Scenario> scenarios = new ArrayList<>();
+        for(int thresh : threshs) {
+            for(int radius : radii) {
+                scenarios.add(new Scenario(thresh, radius));
+            }
+        }
+
+        List<File> files = new ArrayList<>();
+        for(File input : inputs) {
+            collect(input, files);
+        }
+        Collections.sort(files);
+
+        PrintWriter out = outPath != null
+                ? new PrintWriter(new BufferedWriter(new FileWriter(outPath)))
+                : new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        Reprocess reprocess = new Reprocess(scenarios, out);
+        try {
+            reprocess.run(files, nThreads);
+        } finally {
+            out.flush();
+            if(outPath != null) out.close();
+        }
+        reprocess.printSummary();
+    }
+
+    private static void usage(String error) {
+        if(error != null) System.err.println(error);
+        System.err.println("usage: reprocess --thresh T1,T2,... [--radius R1,...] [--threads N] "
+                + "[--out file.tsv] <chunk.bin or directory>...");
+        System.exit(1);
+    }
+
+    private static List<Integer> parseInts(String csv) {
+        List<Integer> vals = new ArrayList<>();
+        for(String s : csv.split(",")) {
+            vals.add(Integer.parseInt(s.trim()));
+        }
+        return vals;
+    }
+
+    private static void collect(File input, List<File> files) {
+        if(input.isDirectory()) {
+            File[] children = input.listFiles();
+            if(children == null) return;
+            for(File child : children) {
+                collect(child, files);
+            }
+        } else if(input.getName().endsWith(".bin")) {
+            files.add(input);
+        }
+    }
+
+    private void run(List<File> files, int nThreads) throws InterruptedException {
+        mOut.println(String.join("\t", COLUMNS));
+
+        // when the queue is full, the reader analyzes the block itself, which slows it down
+        final ThreadPoolExecutor xbPool = new ThreadPoolExecutor(nThreads, nThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(4 * nThreads),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        ExecutorService readerPool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(files.size(), nThreads)));
+
+        for(final File file : files) {
+            readerPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read(file, xbPool);
+                }
+            });
+        }
+
+        readerPool.shutdown();
+        readerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        xbPool.shutdown();
+        xbPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void read(final File file, ExecutorService xbPool) {
+        try (ChunkReader reader = new ChunkReader(file)) {
+            byte[] bytes;
+            while((bytes = reader.nextExposureBlock()) != null) {
+                final byte[] xbBytes = bytes;
+                xbPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        analyze(file.getName(), xbBytes);
+                    }
+                });
+            }
+            mNFiles.incrementAndGet();
+        } catch (IOException e) {
+            mNErrors.incrementAndGet();
+            System.err.println(file + ": " + e.getMessage());
+        }
+    }
+
+    private void analyze(String file, byte[] bytes) {
+        DataProtos.ExposureBlock xb;
+        try {
+            xb = DataProtos.ExposureBlock.parseFrom(bytes);
+        } catch (InvalidProtocolBufferException e) {
+            mNErrors.incrementAndGet();
+            System.err.println(file + ": " + e.getMessage());
+            return;
+        }
+
+        XBAnalyzer.Result r = mAnalyzer.analyze(file, xb);
+        if(r == null) {
+            mNSkipped.incrementAndGet();
+            return;
+        }
+        mNXBs.incrementAndGet();
+
+        StringBuilder sb = new StringBuilder();
+        for(int s=0; s<mScenarios.size(); s++) {
+            Scenario scenario = mScenarios.get(s);
+            mSummaries[s].add(r, s);
+
+            sb.append(r.file).append('\t')
+                    .append(r.runId).append('\t')
+                    .append(r.xbn).append('\t')
+                    .append(r.resX).append('\t')
+                    .append(r.resY).append('\t')
+                    .append(r.frames).append('\t')
+                    .append(format(r.durationMs / 1000.)).append('\t')
+                    .append(r.origThresh).append('\t')
+                    .append(r.origRadius).append('\t')
+                    .append(r.origEvents).append('\t')
+                    .append(r.origBytes).append('\t')
+                    .append(scenario.thresh).append('\t')
+                    .append(scenario.radius).append('\t')
+                    .append(r.exact[s] ? 1 : 0).append('\t')
+                    .append(r.events[s]).append('\t')
+                    .append(r.hits[s]).append('\t')
+                    .append(r.bytes[s]).append('\t')
+                    .append(format(rate(r.events[s], r.durationMs))).append('\t')
+                    .append(format(fraction(r.zbAbove[s], r.zbPixels))).append('\n');
+        }
+        synchronized (mOut) {
+            mOut.print(sb);
+        }
+    }
+
+    private void printSummary() {
+        System.out.println();
+        System.out.println(mNFiles.get() + " files, " + mNXBs.get() + " DATA blocks, "
+                + mNSkipped.get() + " other blocks, " + mNErrors.get() + " errors");
+        System.out.println(String.join("\t", Arrays.asList("l2thresh", "radius", "xbs", "inexact",
+                "frames", "events", "rate_epm", "rate_ratio", "hits", "bytes", "bytes_ratio", "zb_frac")));
+
+        for(int s=0; s<mScenarios.size(); s++) {
+            Scenario scenario = mScenarios.get(s);
+            Summary sum = mSummaries[s];
+            System.out.println(scenario.thresh + "\t" + scenario.radius
+                    + "\t" + sum.xbs
+                    + "\t" + sum.inexact
+                    + "\t" + sum.frames
+                    + "\t" + sum.events
+                    + "\t" + format(rate(sum.events, sum.durationMs))
+                    + "\t" + format(fraction(sum.events, sum.origEvents))
+                    + "\t" + sum.hits
+                    + "\t" + sum.bytes
+                    + "\t" + format(fraction(sum.bytes, sum.origBytes))
+                    + "\t" + format(fraction(sum.zbAbove, sum.zbPixels)));
+        }
+    }
+
+    /**
+     * @return events per minute
+     */
+    private static double rate(long events, long durationMs) {
+        return durationMs > 0 ? events * 60000. / durationMs : 0.;
+    }
+
+    private static double fraction(long num, long denom) {
+        return denom > 0 ? (double) num / denom : 0.;
+    }
+
+    private static String format(double val) {
+        return String.format(Locale.US, "%.4g", val);
+    }
+}
@@ -0,0 +1,20 @@
+package io.crayfis.tools.reprocess;
+
+/**
+ * L2 settings to re-apply to recorded events
+ */
+final class Scenario {
+
+    final int thresh;
+    final int radius;
+
+    Scenario(int thresh, int radius) {
+        this.thresh = thresh;
+        this.radius = radius;
+    }
+
+    @Override
+    public String toString() {
+        return "l2thresh=" + thresh + ";radius=" + radius;
+    }
+}
@@ -0,0 +1,228 @@
+package io.crayfis.tools.reprocess;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.crayfis.android.DataProtos;
+
+/**
+ * Re-applies L2 settings to the events of one ExposureBlock.
+ *
+ * L2 keeps pixels strictly above the threshold, so raising it only removes hits which are in
+ * the recorded ByteBlocks and Pixels.  Thresholds below the one used for the data, or radii above
+ * the recorded one, cannot be reconstructed, and those results are marked as inexact lower
+ * bounds.  ByteBlock values are not weighted, so they are compared to the threshold as they are.
+ */
+final class XBAnalyzer {
+
+    /**
+     * Rates and sizes of one ExposureBlock, for each Scenario
+     */
+    static final class Result {
+        String file;
+        String runId;
+        int xbn;
+        int resX;
+        int resY;
+        int frames;
+        long durationMs;
+        int origThresh;
+        int origRadius = -1;
+        int origEvents;
+        long origBytes;
+
+        final boolean[] exact;
+        final int[] events;
+        final long[] hits;
+        final long[] bytes;
+        final long[] zbAbove;
+        long zbPixels;
+
+        Result(int nScenarios) {
+            exact = new boolean[nScenarios];
+            events = new int[nScenarios];
+            hits = new long[nScenarios];
+            bytes = new long[nScenarios];
+            zbAbove = new long[nScenarios];
+        }
+    }
+
+    private final List<Scenario> mScenarios;
+
+    XBAnalyzer(List<Scenario> scenarios) {
+        mScenarios = scenarios;
+    }
+
+    /**
+     * @return the result, or null if the ExposureBlock is not from DATA
+     */
+    Result analyze(String file, DataProtos.ExposureBlock xb) {
+        if(xb.getDaqState() != DataProtos.ExposureBlock.State.DATA) return null;
+
+        int nScenarios = mScenarios.size();
+        Result r = new Result(nScenarios);
+        r.file = file;
+        r.runId = String.format("%016x%016x", xb.getRunIdHi(), xb.getRunId());
+        r.xbn = xb.getXbn();
+        r.resX = xb.getResX();
+        r.resY = xb.getResY();
+        r.frames = xb.getL0Processed();
+        r.durationMs = xb.getEndTime() - xb.getStartTime();
+        r.origThresh = xb.getL2Thresh();
+        r.origEvents = xb.getEventsCount();
+        r.origBytes = xb.getSerializedSize();
+
+        // everything but the events stays the same
+        long xbBase = r.origBytes;
+        for(DataProtos.Event event : xb.getEventsList()) {
+            xbBase -= CodedOutputStream.computeMessageSize(DataProtos.ExposureBlock.EVENTS_FIELD_NUMBER, event);
+            if(event.hasByteBlock() && r.origRadius < 0) {
+                r.origRadius = event.getByteBlock().getSideLength() / 2;
+            }
+        }
+        for(int s=0; s<nScenarios; s++) {
+            Scenario scenario = mScenarios.get(s);
+            r.exact[s] = scenario.thresh >= r.origThresh
+                    && (r.origRadius < 0 || scenario.radius <= r.origRadius);
+            r.bytes[s] = xbBase;
+        }
+
+        for(DataProtos.Event event : xb.getEventsList()) {
+            analyzeEvent(event, r);
+        }
+        return r;
+    }
+
+    private void analyzeEvent(DataProtos.Event event, Result r) {
+
+        DataProtos.ByteBlock bb = event.hasByteBlock() ? event.getByteBlock() : null;
+        Block block = bb != null ? new Block(bb, r.resX, r.resY) : null;
+        List<DataProtos.Pixel> pixels = event.getPixelsList();
+        boolean triggered = bb != null || !pixels.isEmpty();
+
+        if(event.hasZeroBias()) {
+            r.zbPixels += event.getZeroBias().getValCount();
+        }
+
+        int size = event.getSerializedSize();
+        if(bb != null) {
+            size -= fieldSize(DataProtos.Event.BYTE_BLOCK_FIELD_NUMBER, bb.getSerializedSize());
+        }
+
+        for(int s=0; s<mScenarios.size(); s++) {
+            Scenario scenario = mScenarios.get(s);
+
+            if(event.hasZeroBias()) {
+                for(int val : event.getZeroBias().getValList()) {
+                    if(val > scenario.thresh) r.zbAbove[s]++;
+                }
+            }
+
+            int newSize = size;
+            int nHits = 0;
+            if(block != null) {
+                DataProtos.ByteBlock newBB = block.rebuild(scenario);
+                if(newBB.getXCount() > 0) {
+                    nHits += newBB.getXCount();
+                    newSize += fieldSize(DataProtos.Event.BYTE_BLOCK_FIELD_NUMBER, newBB.getSerializedSize());
+                }
+            }
+            for(DataProtos.Pixel pixel : pixels) {
+                int val = pixel.hasAdjustedVal() ? pixel.getAdjustedVal() : pixel.getVal();
+                if(val > scenario.thresh) {
+                    nHits++;
+                } else {
+                    newSize -= fieldSize(DataProtos.Event.PIXELS_FIELD_NUMBER, pixel.getSerializedSize());
+                }
+            }
+
+            // zero-bias events and those without hits to re-check are kept as they are
+            if(nHits > 0 || event.hasZeroBias() || !triggered) {
+                r.events[s]++;
+                r.hits[s] += nHits;
+                r.bytes[s] += fieldSize(DataProtos.ExposureBlock.EVENTS_FIELD_NUMBER, newSize);
+            }
+        }
+    }
+
+    private static int fieldSize(int fieldNumber, int length) {
+        return CodedOutputStream.computeTagSize(fieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(length)
+                + length;
+    }
+
+    /**
+     * Pixel values of a ByteBlock, by position.  The values are stored in the order the L2 task
+     * added them: the square around each hit in turn, skipping pixels already added and those
+     * outside the frame.
+     */
+    private static final class Block {
+        final DataProtos.ByteBlock bb;
+        final int resX;
+        final int resY;
+        final HashMap<Long, Integer> values = new HashMap<>();
+
+        Block(DataProtos.ByteBlock bb, int resX, int resY) {
+            this.bb = bb;
+            this.resX = resX;
+            this.resY = resY;
+
+            int radius = bb.getSideLength() / 2;
+            Set<Long> seen = new HashSet<>();
+            int iVal = 0;
+            for(int i=0; i<bb.getXCount() && i<bb.getYCount(); i++) {
+                for(int dy=-radius; dy<=radius; dy++) {
+                    for(int dx=-radius; dx<=radius; dx++) {
+                        int x = bb.getX(i) + dx;
+                        int y = bb.getY(i) + dy;
+                        long key = key(x, y);
+                        if(!seen.add(key) || !inFrame(x, y)) continue;
+                        if(iVal >= bb.getValCount()) return;
+                        values.put(key, bb.getVal(iVal++));
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the ByteBlock the L2 task would have written with these settings
+         */
+        DataProtos.ByteBlock rebuild(Scenario scenario) {
+            DataProtos.ByteBlock.Builder builder = DataProtos.ByteBlock.newBuilder()
+                    .setSideLength(2 * scenario.radius + 1);
+            Set<Long> added = new HashSet<>();
+            for(int i=0; i<bb.getXCount() && i<bb.getYCount(); i++) {
+                int cx = bb.getX(i);
+                int cy = bb.getY(i);
+                Integer center = values.get(key(cx, cy));
+                if(center == null || center <= scenario.thresh) continue;
+
+                builder.addX(cx).addY(cy);
+                for(int dy=-scenario.radius; dy<=scenario.radius; dy++) {
+                    for(int dx=-scenario.radius; dx<=scenario.radius; dx++) {
+                        int x = cx + dx;
+                        int y = cy + dy;
+                        if(!added.add(key(x, y)) || !inFrame(x, y)) continue;
+                        Integer val = values.get(key(x, y));
+                        // outside the recorded squares, so assume a typical value
+                        builder.addVal(val != null ? val : scenario.thresh);
+                    }
+                }
+            }
+            return builder.build();
+        }
+
+        private boolean inFrame(int x, int y) {
+            if(resX <= 0 || resY <= 0) return x >= 0 && y >= 0;
+            return x >= 0 && y >= 0 && x < resX && y < resY;
+        }
+
+        private static long key(int x, int y) {
+            return ((long) y << 32) | (x & 0xFFFFFFFFL);
+        }
+    }
+}